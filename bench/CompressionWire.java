@@ -0,0 +1,204 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import networking.ClientNetworking;
+import resource.Configurations;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         Bytes on the wire and end to end time of the compress option
+ *         against octet. A log-like text file and a file of random bytes are
+ *         written to the server and read back, with and without compress,
+ *         through a relay that counts every datagram with its IP and UDP
+ *         headers and can hold the link to a byte rate.
+ *
+ *         The server has to be running on this host first. Compile against
+ *         the classes of src and run from the directory holding them:
+ *
+ *         javac -cp bin -d bin bench/CompressionWire.java
+ *
+ *         java -cp bin CompressionWire [file size] [link bytes/s, 0 for no
+ *         limit]
+ */
+public class CompressionWire {
+
+	private static final int RELAY_PORT = 7073;
+	// IPv4 and UDP headers
+	private static final int HEADERS = 28;
+
+	private static final AtomicLong mWireBytes = new AtomicLong();
+	private static long mRate;
+	private static long mNextSendTime = System.nanoTime();
+
+	public static void main(String[] args) throws Exception {
+		int vSize = args.length > 0 ? Integer.parseInt(args[0]) : 8000000;
+		mRate = args.length > 1 ? Long.parseLong(args[1]) : 5000000;
+		startRelay();
+		System.out.printf("%d byte files, link %s%n", vSize, mRate > 0 ? mRate + " B/s" : "unlimited");
+		byte[] vText = makeLog(vSize);
+		byte[] vRandom = new byte[vSize];
+		new Random(11).nextBytes(vRandom);
+		for (boolean vCompress : new boolean[] { false, true }) {
+			transfer("text", vText, vCompress);
+		}
+		for (boolean vCompress : new boolean[] { false, true }) {
+			transfer("random", vRandom, vCompress);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Writes the file to the server, reads it back and prints the line.
+	 */
+	private static void transfer(String kind, byte[] content, boolean compress) throws Exception {
+		InetAddress vAddress = InetAddress.getLoopbackAddress();
+		String vName = "compressionwire_" + kind + "_" + System.nanoTime() + ".log";
+		Path vSource = Paths.get(System.getProperty("java.io.tmpdir"), vName);
+		Files.write(vSource, content);
+
+		ClientNetworking net = new ClientNetworking();
+		net.setRequestCompression(compress);
+		mWireBytes.set(0);
+		long vStart = System.nanoTime();
+		TFTPErrorMessage vResult = net.generateInitWRQ(vSource.toString(), RELAY_PORT, vAddress, Logger.SILENT);
+		if (vResult != null && vResult.getType() == ErrorType.NO_ERROR) {
+			vResult = net.sendFile();
+		}
+		double vWriteMillis = (System.nanoTime() - vStart) / 1e6;
+		long vWriteWire = mWireBytes.get();
+		// The server writes the last block after its final ACK
+		Thread.sleep(200);
+		Path vWritten = Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vName);
+		boolean vWriteIntact = Arrays.equals(Files.readAllBytes(vWritten), content);
+
+		net = new ClientNetworking();
+		net.setRequestCompression(compress);
+		mWireBytes.set(0);
+		vStart = System.nanoTime();
+		vResult = net.generateInitRRQ(vName, RELAY_PORT, vAddress, Logger.SILENT);
+		if (vResult.getType() == ErrorType.NO_ERROR) {
+			vResult = net.receiveFile();
+		}
+		double vReadMillis = (System.nanoTime() - vStart) / 1e6;
+		long vReadWire = mWireBytes.get();
+		Path vRead = Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vName);
+		boolean vReadIntact = Arrays.equals(Files.readAllBytes(vRead), content);
+
+		System.out.printf("%-6s %-8s WRQ %7.0f ms %10d wire bytes %-7s | RRQ %7.0f ms %10d wire bytes %s%n", kind,
+				compress ? "compress" : "octet", vWriteMillis, vWriteWire, vWriteIntact ? "intact" : "CORRUPT",
+				vReadMillis, vReadWire, vReadIntact ? "intact" : "CORRUPT");
+		Files.deleteIfExists(vSource);
+		Files.deleteIfExists(vWritten);
+		Files.deleteIfExists(vRead);
+	}
+
+	/**
+	 * @return a server log of the given size, lines of a timestamp, a level,
+	 *         a worker, a message and ids
+	 */
+	private static byte[] makeLog(int size) {
+		Random vRandom = new Random(11);
+		String[] vLevels = { "INFO", "DEBUG", "WARN", "ERROR" };
+		String[] vMessages = { "connection accepted from", "request served in", "cache miss for key",
+				"retrying upstream", "config reloaded by" };
+		StringBuilder vLog = new StringBuilder();
+		long vTime = 1700000000000L;
+		while (vLog.length() < size) {
+			vTime += vRandom.nextInt(50);
+			vLog.append(vTime).append(' ').append(vLevels[vRandom.nextInt(vLevels.length)]).append(" [worker-")
+					.append(vRandom.nextInt(16)).append("] ").append(vMessages[vRandom.nextInt(vMessages.length)])
+					.append(' ').append(vRandom.nextInt(100000)).append(" id=")
+					.append(Long.toHexString(vRandom.nextLong())).append('\n');
+		}
+		return Arrays.copyOf(vLog.toString().getBytes(), size);
+	}
+
+	/**
+	 * Holds a datagram back until the link has room for it.
+	 */
+	private static synchronized void pace(int length) {
+		if (mRate <= 0) {
+			return;
+		}
+		long vNow = System.nanoTime();
+		mNextSendTime = Math.max(mNextSendTime, vNow) + length * 1000000000L / mRate;
+		LockSupport.parkNanos(mNextSendTime - vNow);
+	}
+
+	/**
+	 * Starts the counting relay in front of the server.
+	 */
+	private static void startRelay() throws Exception {
+		DatagramSocket vFront = new DatagramSocket(RELAY_PORT);
+		vFront.setReceiveBufferSize(4 << 20);
+		InetAddress vLoopback = InetAddress.getLoopbackAddress();
+		Map<SocketAddress, DatagramSocket> vBacks = new ConcurrentHashMap<>();
+		Map<DatagramSocket, SocketAddress> vServers = new ConcurrentHashMap<>();
+		Thread vIntake = new Thread(() -> {
+			try {
+				while (true) {
+					DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_DATAGRAM_BUFFER],
+							Configurations.MAX_DATAGRAM_BUFFER);
+					vFront.receive(vPacket);
+					SocketAddress vClient = vPacket.getSocketAddress();
+					DatagramSocket vBack = vBacks.get(vClient);
+					if (vBack == null) {
+						vBack = new DatagramSocket();
+						vBack.setReceiveBufferSize(4 << 20);
+						vBacks.put(vClient, vBack);
+						startReturnPath(vFront, vBack, vClient, vServers);
+					}
+					// Requests go to the listen port, the rest to the transfer
+					SocketAddress vServer = vServers.get(vBack);
+					if (vServer == null || vPacket.getData()[1] == 1 || vPacket.getData()[1] == 2) {
+						vServer = new InetSocketAddress(vLoopback, Configurations.SERVER_LISTEN_PORT);
+					}
+					mWireBytes.addAndGet(vPacket.getLength() + HEADERS);
+					pace(vPacket.getLength() + HEADERS);
+					vBack.send(new DatagramPacket(vPacket.getData(), vPacket.getLength(), vServer));
+				}
+			} catch (Exception e) {
+				return;
+			}
+		});
+		vIntake.setDaemon(true);
+		vIntake.start();
+	}
+
+	private static void startReturnPath(DatagramSocket front, DatagramSocket back, SocketAddress client,
+			Map<DatagramSocket, SocketAddress> servers) {
+		Thread vReturn = new Thread(() -> {
+			try {
+				while (true) {
+					DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_DATAGRAM_BUFFER],
+							Configurations.MAX_DATAGRAM_BUFFER);
+					back.receive(vPacket);
+					servers.put(back, vPacket.getSocketAddress());
+					mWireBytes.addAndGet(vPacket.getLength() + HEADERS);
+					pace(vPacket.getLength() + HEADERS);
+					front.send(new DatagramPacket(vPacket.getData(), vPacket.getLength(), client));
+				}
+			} catch (Exception e) {
+				return;
+			}
+		});
+		vReturn.setDaemon(true);
+		vReturn.start();
+	}
+}
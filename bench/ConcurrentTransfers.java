@@ -0,0 +1,148 @@
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import networking.ClientNetworking;
+import resource.Configurations;
+import resource.Strings;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         Many concurrent transfers against one server, to compare the ways
+ *         the server can run them. Every client reads its own small file, all
+ *         of them started together, and the run prints how long it took, how
+ *         many files came out intact, how many requests the server refused as
+ *         busy, how many failed otherwise, and the median and slowest read.
+ *         Run it once with the server on its bounded worker pool and once on
+ *         virtual threads. The pool refuses what its workers and pending
+ *         queue cannot hold, virtual threads start every transfer up to
+ *         VIRTUAL_MAX_TRANSFERS. Both still lease a socket per transfer from
+ *         the pool of SERVER_SOCKET_POOL_SIZE ports and refuse a read as busy
+ *         when none is free within SOCKET_POOL_LEASE_WAIT, so past that many
+ *         transfers in flight virtual threads refuse reads too. Every read
+ *         lasts at least the dally of the client after its last ACK, about
+ *         three seconds, which is most of the median.
+ *
+ *         Virtual threads need a JVM of release 21 or later for the server;
+ *         on an older one it says so at startup and runs the pool instead.
+ *         Each client keeps a socket open, so the limit on open files has to
+ *         be above the number of transfers for both processes.
+ *
+ *         The server has to be running on this host first. Compile against
+ *         the classes of src and run from the directory holding them:
+ *
+ *         javac -cp bin -d bin bench/ConcurrentTransfers.java
+ *
+ *         java -cp bin ConcurrentTransfers [transfers...] [-size file size]
+ *
+ *         The defaults are runs of 1000 and 10000 transfers of 2000 bytes.
+ */
+public class ConcurrentTransfers {
+
+	public static void main(String[] args) throws Exception {
+		int vSize = 2000;
+		int[] vRuns = { 1000, 10000 };
+		int vCount = 0;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-size")) {
+				vSize = Integer.parseInt(args[++i]);
+			} else {
+				args[vCount++] = args[i];
+			}
+		}
+		if (vCount > 0) {
+			vRuns = new int[vCount];
+			for (int i = 0; i < vCount; ++i) {
+				vRuns[i] = Integer.parseInt(args[i]);
+			}
+		}
+		System.out.printf("%d byte files%n", vSize);
+		System.out.println("transfers  seconds  intact  busy  failed  median ms  slowest ms");
+		for (int vTransfers : vRuns) {
+			run(vTransfers, vSize);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts the reads together, waits for all of them and prints the line.
+	 */
+	private static void run(int transfers, int size) throws Exception {
+		Random vRandom = new Random(13);
+		String[] vNames = new String[transfers];
+		byte[][] vContents = new byte[transfers][];
+		for (int i = 0; i < transfers; ++i) {
+			vNames[i] = "concurrent_" + i + "_" + System.nanoTime() + ".bin";
+			vContents[i] = new byte[size];
+			vRandom.nextBytes(vContents[i]);
+			Files.write(Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vNames[i]), vContents[i]);
+		}
+		long[] vMillis = new long[transfers];
+		AtomicInteger vIntact = new AtomicInteger();
+		AtomicInteger vBusy = new AtomicInteger();
+		AtomicInteger vFailed = new AtomicInteger();
+		CountDownLatch vStartGate = new CountDownLatch(1);
+		Thread[] vThreads = new Thread[transfers];
+		for (int i = 0; i < transfers; ++i) {
+			final int k = i;
+			vThreads[i] = new Thread(() -> {
+				try {
+					vStartGate.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long vReadStart = System.nanoTime();
+				ClientNetworking net = new ClientNetworking();
+				TFTPErrorMessage vResult = net.generateInitRRQ(vNames[k], Configurations.SERVER_LISTEN_PORT,
+						InetAddress.getLoopbackAddress(), Logger.SILENT);
+				if (vResult.getType() == ErrorType.NO_ERROR) {
+					vResult = net.receiveFile();
+				}
+				vMillis[k] = (System.nanoTime() - vReadStart) / 1000000;
+				if (vResult.getType() != ErrorType.NO_ERROR) {
+					if (Strings.SERVER_BUSY.equals(vResult.getString())) {
+						vBusy.incrementAndGet();
+					} else {
+						System.err.println(vNames[k] + ": " + vResult.getType() + " " + vResult.getString());
+						vFailed.incrementAndGet();
+					}
+					return;
+				}
+				try {
+					if (Arrays.equals(
+							Files.readAllBytes(Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vNames[k])),
+							vContents[k])) {
+						vIntact.incrementAndGet();
+					} else {
+						vFailed.incrementAndGet();
+					}
+				} catch (Exception e) {
+					vFailed.incrementAndGet();
+				}
+			}, "transfer-" + i);
+			vThreads[i].setDaemon(true);
+			vThreads[i].start();
+		}
+		long vStart = System.nanoTime();
+		vStartGate.countDown();
+		for (Thread vThread : vThreads) {
+			vThread.join();
+		}
+		double vSeconds = (System.nanoTime() - vStart) / 1e9;
+		Arrays.sort(vMillis);
+		System.out.printf("%9d  %7.2f  %6d  %4d  %6d  %9d  %10d%n", transfers, vSeconds, vIntact.get(), vBusy.get(),
+				vFailed.get(), vMillis[transfers / 2], vMillis[transfers - 1]);
+		for (int i = 0; i < transfers; ++i) {
+			Files.deleteIfExists(Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vNames[i]));
+			Files.deleteIfExists(Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vNames[i]));
+		}
+	}
+}
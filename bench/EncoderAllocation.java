@@ -0,0 +1,133 @@
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import networking.SendWindow;
+import packet.AckPacket;
+import packet.DataPacket;
+import packet.PacketEncoder;
+import packet.ReadWritePacket;
+import resource.Configurations;
+import types.ModeType;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Bytes allocated per packet encoded, by the packet classes and by the
+ *         PacketEncoder and SendWindow that the transfers send with. The
+ *         allocations of the measuring thread are read from the JVM before
+ *         and after a run of packets, once the code has been warmed up, so a
+ *         run that allocates nothing per packet shows 0.
+ *
+ *         Needs a HotSpot JVM, which counts the bytes each thread allocates.
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/EncoderAllocation.java
+ *
+ *         java -cp bin EncoderAllocation [packets per run]
+ */
+public class EncoderAllocation {
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	// Read by every run so the JIT cannot drop the work
+	private static long mSink = 0;
+
+	/**
+	 * One way of encoding packets, run for a number of packets.
+	 */
+	private interface Run {
+		void packets(int count);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int vPackets = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		InetAddress vAddress = InetAddress.getLoopbackAddress();
+		byte[] vBlock = new byte[Configurations.MAX_PAYLOAD_BUFFER];
+		new Random(1).nextBytes(vBlock);
+		ByteBuffer vBuffer = ByteBuffer.allocate(Configurations.MAX_BUFFER);
+		LinkedHashMap<String, String> vOptions = new LinkedHashMap<String, String>();
+		vOptions.put(Configurations.OPTION_BLOCK_SIZE, "1428");
+		vOptions.put(Configurations.OPTION_WINDOW_SIZE, "16");
+
+		System.out.println("bytes allocated per packet");
+		measure("DataPacket.buildPacket(byte[])", vPackets, count -> {
+			DataPacket vPacket = new DataPacket(vAddress, 69);
+			for (int i = 0; i < count; ++i) {
+				vPacket.setBlockNumber(i & 0xFFFF);
+				mSink += vPacket.buildPacket(vBlock).getLength();
+			}
+		});
+		measure("AckPacket.buildPacket()", vPackets, count -> {
+			for (int i = 0; i < count; ++i) {
+				AckPacket vPacket = new AckPacket(vAddress, 69);
+				vPacket.setBlockNumber(i & 0xFFFF);
+				mSink += vPacket.buildPacket().getLength();
+			}
+		});
+		measure("ReadWritePacket.buildPacket()", vPackets / 10, count -> {
+			for (int i = 0; i < count; ++i) {
+				ReadWritePacket vPacket = new ReadWritePacket(vAddress, 69, RequestType.RRQ, "file.bin");
+				vPacket.setOption(Configurations.OPTION_BLOCK_SIZE, "1428");
+				mSink += vPacket.buildPacket().getLength();
+			}
+		});
+		measure("PacketEncoder.encodeData", vPackets, count -> {
+			for (int i = 0; i < count; ++i) {
+				mSink += PacketEncoder.encodeData(vBuffer, i & 0xFFFF, vBlock, 0, vBlock.length);
+			}
+		});
+		measure("PacketEncoder.encodeAck", vPackets, count -> {
+			for (int i = 0; i < count; ++i) {
+				mSink += PacketEncoder.encodeAck(vBuffer, i & 0xFFFF);
+			}
+		});
+		measure("PacketEncoder.encodeAck with digest", vPackets, count -> {
+			for (int i = 0; i < count; ++i) {
+				mSink += PacketEncoder.encodeAck(vBuffer, i & 0xFFFF, i);
+			}
+		});
+		measure("PacketEncoder.encodeRequest", vPackets / 10, count -> {
+			for (int i = 0; i < count; ++i) {
+				mSink += PacketEncoder.encodeRequest(vBuffer, RequestType.RRQ, "file.bin", ModeType.OCTET, vOptions);
+			}
+		});
+		// A window of 16 blocks going out and being acknowledged one by one
+		SendWindow vWindow = new SendWindow();
+		int[] vNextBlock = { 1 };
+		measure("SendWindow.add/removeFirst, window 16", vPackets, count -> {
+			for (int i = 0; i < count; ++i) {
+				if (vWindow.size() == 16) {
+					vWindow.removeFirst();
+				}
+				DatagramPacket vPacket = vWindow.add(vNextBlock[0], vBlock, vBlock.length, vAddress, 69);
+				vNextBlock[0] = (vNextBlock[0] + 1) & 0xFFFF;
+				mSink += vPacket.getLength();
+			}
+		});
+		System.out.println("(checksum " + mSink + ")");
+	}
+
+	/**
+	 * Warms a run up, then prints what it allocates per packet.
+	 */
+	private static void measure(String name, int packets, Run run) {
+		for (int i = 0; i < 5; ++i) {
+			run.packets(packets / 10);
+		}
+		long vThread = Thread.currentThread().getId();
+		long vBefore = THREADS.getThreadAllocatedBytes(vThread);
+		long vStart = System.nanoTime();
+		run.packets(packets);
+		long vNanos = System.nanoTime() - vStart;
+		long vAllocated = THREADS.getThreadAllocatedBytes(vThread) - vBefore;
+		System.out.printf("%-40s %10.1f B/packet %8.1f ns/packet%n", name, (double) vAllocated / packets,
+				(double) vNanos / packets);
+	}
+}
@@ -0,0 +1,250 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import networking.ClientNetworking;
+import resource.Configurations;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         Loss sweep of the congestion window. Concurrent reads of distinct
+ *         files go through a relay that acts as a bottleneck link: the
+ *         traffic to the clients shares one tail-drop queue drained at a
+ *         fixed byte rate, both directions are delayed, and packets are
+ *         dropped at random at the given rates. For every loss rate it prints
+ *         the throughput of each read, the aggregate throughput, Jain's
+ *         fairness index over the reads, how many files came out intact and
+ *         how many packets the queue dropped. It is a manual benchmark, it
+ *         passes or fails nothing and the table is for whoever runs it to
+ *         read; PacingCheck checks the pacing clock on its own.
+ *
+ *         The server has to be running on this host first. Compile against
+ *         the classes of src and run from the directory holding them:
+ *
+ *         javac -cp bin -d bin bench/LossSweep.java
+ *
+ *         java -cp bin LossSweep [reads] [file size] [rate bytes/s] [queue
+ *         packets] [one way delay ms] [loss rates...]
+ *
+ *         The defaults are 4 reads of 2 MB over 1 MB/s with a 64 packet
+ *         queue, a 5 ms delay and loss rates of 0, 0.5%, 1% and 2%.
+ */
+public class LossSweep {
+
+	private static final int RELAY_PORT = 7071;
+
+	private static double mLoss;
+	private static final Random mRandom = new Random(7);
+	private static final AtomicLong mQueueDrops = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int vReads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int vSize = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+		long vRate = args.length > 2 ? Long.parseLong(args[2]) : 1000000;
+		int vQueue = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		long vDelay = args.length > 4 ? Long.parseLong(args[4]) : 5;
+		double[] vLossRates = { 0, 0.005, 0.01, 0.02 };
+		if (args.length > 5) {
+			vLossRates = new double[args.length - 5];
+			for (int i = 5; i < args.length; ++i) {
+				vLossRates[i - 5] = Double.parseDouble(args[i]);
+			}
+		}
+		startRelay(vRate, vQueue, vDelay);
+		System.out.println("loss   aggregate Mbit/s  jain   intact  queue drops  per read Mbit/s");
+		for (double vLoss : vLossRates) {
+			mLoss = vLoss;
+			mQueueDrops.set(0);
+			sweep(vLoss, vReads, vSize);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the concurrent reads once and prints their line.
+	 */
+	private static void sweep(double loss, int reads, int size) throws Exception {
+		Random vRandom = new Random(3);
+		String[] vNames = new String[reads];
+		byte[][] vContents = new byte[reads][];
+		for (int i = 0; i < reads; ++i) {
+			vNames[i] = "losssweep_" + i + "_" + System.nanoTime() + ".bin";
+			vContents[i] = new byte[size];
+			vRandom.nextBytes(vContents[i]);
+			Files.write(Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vNames[i]), vContents[i]);
+		}
+		double[] vMbps = new double[reads];
+		boolean[] vIntact = new boolean[reads];
+		Thread[] vThreads = new Thread[reads];
+		long vStart = System.nanoTime();
+		for (int i = 0; i < reads; ++i) {
+			final int k = i;
+			vThreads[i] = new Thread(() -> {
+				long vReadStart = System.nanoTime();
+				ClientNetworking net = new ClientNetworking();
+				TFTPErrorMessage vResult = net.generateInitRRQ(vNames[k], RELAY_PORT,
+						InetAddress.getLoopbackAddress(), Logger.SILENT);
+				if (vResult.getType() == ErrorType.NO_ERROR) {
+					vResult = net.receiveFile();
+				}
+				vMbps[k] = size * 8 / ((System.nanoTime() - vReadStart) / 1e9) / 1e6;
+				if (vResult.getType() != ErrorType.NO_ERROR) {
+					System.err.println(vNames[k] + ": " + vResult.getType() + " " + vResult.getString());
+				}
+				try {
+					vIntact[k] = vResult.getType() == ErrorType.NO_ERROR && Arrays.equals(
+							Files.readAllBytes(Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vNames[k])),
+							vContents[k]);
+				} catch (Exception e) {
+					vIntact[k] = false;
+				}
+			});
+			vThreads[i].start();
+		}
+		for (Thread vThread : vThreads) {
+			vThread.join();
+		}
+		double vSeconds = (System.nanoTime() - vStart) / 1e9;
+		double vSum = 0;
+		double vSquares = 0;
+		int vGood = 0;
+		StringBuilder vPerRead = new StringBuilder();
+		for (int i = 0; i < reads; ++i) {
+			vSum += vMbps[i];
+			vSquares += vMbps[i] * vMbps[i];
+			vGood += vIntact[i] ? 1 : 0;
+			vPerRead.append(String.format("%.2f ", vMbps[i]));
+			Files.deleteIfExists(Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vNames[i]));
+			Files.deleteIfExists(Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vNames[i]));
+		}
+		System.out.printf("%-6s %16.2f  %.3f  %d/%d   %11d  %s%n", loss * 100 + "%",
+				(double) reads * size * 8 / vSeconds / 1e6, vSum * vSum / (reads * vSquares), vGood, reads,
+				mQueueDrops.get(), vPerRead);
+	}
+
+	/**
+	 * Starts the bottleneck relay in front of the server.
+	 */
+	private static void startRelay(long rate, int queueSize, long delay) throws Exception {
+		DatagramSocket vFront = new DatagramSocket(RELAY_PORT);
+		InetAddress vLoopback = InetAddress.getLoopbackAddress();
+		ScheduledExecutorService vDelayed = Executors.newScheduledThreadPool(2);
+		LinkedBlockingQueue<DatagramPacket> vQueue = new LinkedBlockingQueue<>(queueSize);
+		Map<SocketAddress, DatagramSocket> vBacks = new ConcurrentHashMap<>();
+		Map<DatagramSocket, SocketAddress> vServers = new ConcurrentHashMap<>();
+
+		// Drains the queue to the clients at the link rate
+		Thread vDrain = new Thread(() -> {
+			long vNext = System.nanoTime();
+			try {
+				while (true) {
+					DatagramPacket vPacket = vQueue.take();
+					long vNow = System.nanoTime();
+					vNext = Math.max(vNext, vNow) + vPacket.getLength() * 1000000000L / rate;
+					LockSupport.parkNanos(vNext - vNow);
+					vDelayed.schedule(() -> send(vFront, vPacket), delay, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		});
+		vDrain.setDaemon(true);
+		vDrain.start();
+
+		// Client to server, each client gets its own socket towards the server
+		Thread vIntake = new Thread(() -> {
+			try {
+				while (true) {
+					DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_DATAGRAM_BUFFER],
+							Configurations.MAX_DATAGRAM_BUFFER);
+					vFront.receive(vPacket);
+					SocketAddress vClient = vPacket.getSocketAddress();
+					DatagramSocket vBack = vBacks.get(vClient);
+					if (vBack == null) {
+						vBack = new DatagramSocket();
+						vBack.setReceiveBufferSize(1 << 20);
+						vBacks.put(vClient, vBack);
+						startReturnPath(vBack, vClient, vQueue, vServers);
+					}
+					if (isLost()) {
+						continue;
+					}
+					// A request, sent again if its answer was lost, goes to the
+					// listen port, the rest to the port the transfer answers from
+					SocketAddress vServer = vServers.get(vBack);
+					if (vServer == null || vPacket.getData()[1] == 1 || vPacket.getData()[1] == 2) {
+						vServer = new InetSocketAddress(vLoopback, Configurations.SERVER_LISTEN_PORT);
+					}
+					DatagramSocket vOut = vBack;
+					DatagramPacket vCopy = new DatagramPacket(Arrays.copyOf(vPacket.getData(), vPacket.getLength()),
+							vPacket.getLength(), vServer);
+					vDelayed.schedule(() -> send(vOut, vCopy), delay, TimeUnit.MILLISECONDS);
+				}
+			} catch (Exception e) {
+				return;
+			}
+		});
+		vIntake.setDaemon(true);
+		vIntake.start();
+	}
+
+	/**
+	 * Server to client, through the shared queue.
+	 */
+	private static void startReturnPath(DatagramSocket back, SocketAddress client,
+			LinkedBlockingQueue<DatagramPacket> queue, Map<DatagramSocket, SocketAddress> servers) {
+		Thread vReturn = new Thread(() -> {
+			try {
+				while (true) {
+					DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_DATAGRAM_BUFFER],
+							Configurations.MAX_DATAGRAM_BUFFER);
+					back.receive(vPacket);
+					// The transfer answers from its own port
+					servers.put(back, vPacket.getSocketAddress());
+					if (isLost()) {
+						continue;
+					}
+					DatagramPacket vCopy = new DatagramPacket(Arrays.copyOf(vPacket.getData(), vPacket.getLength()),
+							vPacket.getLength(), client);
+					if (!queue.offer(vCopy)) {
+						mQueueDrops.incrementAndGet();
+					}
+				}
+			} catch (Exception e) {
+				return;
+			}
+		});
+		vReturn.setDaemon(true);
+		vReturn.start();
+	}
+
+	private static synchronized boolean isLost() {
+		return mRandom.nextDouble() < mLoss;
+	}
+
+	private static void send(DatagramSocket socket, DatagramPacket packet) {
+		try {
+			socket.send(packet);
+		} catch (Exception e) {
+			// A send that fails is one more lost packet
+		}
+	}
+}
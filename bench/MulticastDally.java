@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import networking.ClientNetworking;
+import packet.AckPacket;
+import resource.Configurations;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Check of the master of a multicast read on loopback: when its ACK
+ *         of the last block is lost, the server sends the last block to the
+ *         group again and the master, dallying on the group, has to
+ *         acknowledge it once more. The master here leaves out the first ACK
+ *         of the last block it sends, as if the network lost it; a relay
+ *         cannot do that, the master knows the server by the port the group
+ *         blocks come from. The check passes if the file came through intact
+ *         and the master sent an ACK of the last block after the one lost.
+ *
+ *         The server has to be running on this host first, on a network
+ *         interface that loops multicast back. Compile against the classes
+ *         of src and run from the directory holding them:
+ *
+ *         javac -cp bin -d bin bench/MulticastDally.java
+ *
+ *         java -cp bin MulticastDally [file sizes...]
+ */
+public class MulticastDally {
+
+	// Block number of the last block of the file being read
+	private static volatile int mLastBlock;
+	private static final AtomicInteger mLastAcks = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int[] vSizes = { 100000, 99960 };
+		if (args.length > 0) {
+			vSizes = new int[args.length];
+			for (int i = 0; i < args.length; ++i) {
+				vSizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		boolean vPassed = true;
+		for (int vSize : vSizes) {
+			vPassed &= read(vSize);
+		}
+		System.out.println(vPassed ? "PASSED" : "FAILED");
+		System.exit(vPassed ? 0 : 1);
+	}
+
+	/**
+	 * Reads a file as the master of a multicast group and prints its line.
+	 *
+	 * @return true if the check passed
+	 */
+	private static boolean read(int size) throws Exception {
+		byte[] vContent = new byte[size];
+		new Random(size).nextBytes(vContent);
+		String vName = "multicastdally_" + size + "_" + System.nanoTime() + ".bin";
+		Path vServed = Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vName);
+		Files.write(vServed, vContent);
+		// A file of whole blocks ends with an empty one
+		mLastBlock = (size / Configurations.CLIENT_BLOCK_SIZE + 1) & 0xFFFF;
+		mLastAcks.set(0);
+
+		ClientNetworking net = new ClientNetworking() {
+			@Override
+			protected void sendDatagram(DatagramPacket packet) throws IOException {
+				if (packet.getData()[1] == RequestType.ACK.getOptCode()
+						&& new AckPacket(packet).getBlockNumber() == mLastBlock && mLastAcks.incrementAndGet() == 1) {
+					return;
+				}
+				super.sendDatagram(packet);
+			}
+		};
+		net.setRequestMulticast(true);
+		net.setRequestedBlockSize(Configurations.CLIENT_BLOCK_SIZE);
+		TFTPErrorMessage vResult = net.generateInitRRQ(vName, Configurations.SERVER_LISTEN_PORT,
+				InetAddress.getLoopbackAddress(), Logger.SILENT);
+		if (vResult.getType() == ErrorType.NO_ERROR) {
+			vResult = net.receiveFile();
+		}
+		Path vRead = Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vName);
+		if (vResult.getType() != ErrorType.NO_ERROR) {
+			System.err.println(vName + ": " + vResult.getType() + " " + vResult.getString());
+		}
+		boolean vIntact = vResult.getType() == ErrorType.NO_ERROR && Files.exists(vRead)
+				&& Arrays.equals(Files.readAllBytes(vRead), vContent);
+		// The first ACK of the last block is lost, the next ones go out
+		boolean vAnswered = mLastAcks.get() > 1;
+		System.out.printf("%8d bytes  %-7s  ACKs of the last block: %d, %s%n", size, vIntact ? "intact" : "CORRUPT",
+				mLastAcks.get(), vAnswered ? "resent block acknowledged" : "resent block NOT acknowledged");
+		Files.deleteIfExists(vServed);
+		Files.deleteIfExists(vRead);
+		return vIntact && vAnswered;
+	}
+}
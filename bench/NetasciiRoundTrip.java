@@ -0,0 +1,233 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import helpers.NetasciiDecoder;
+import helpers.NetasciiEncoder;
+
+/**
+ * @author Team 3
+ *
+ *         Check of the netascii translation across block boundaries. Files
+ *         made mostly of CR, LF and NUL are encoded into DATA blocks the way
+ *         TFTPNetworking.takeNetasciiBlock() fills them from the blocks of
+ *         the read-ahead, and decoded block by block the way the receiver
+ *         does, finish() after the short block that ends the transfer. At
+ *         block sizes of 1 to 9 bytes nearly every line ending, and every CR
+ *         the decoder holds back, falls on the edge of a block. Every file up
+ *         to a few bytes long is tried, then random longer ones.
+ *
+ *         The check passes if every file decodes to itself and every DATA
+ *         block sequence is valid netascii: each CR followed by LF or NUL,
+ *         each LF preceded by CR, and one byte more on the wire per CR and
+ *         per LF of the file. Some senders do not escape a bare CR, so the
+ *         decoder is also handed every short byte sequence as it came off
+ *         the wire, bare CRs and a CR at the very end included, and has to
+ *         decode it in blocks the way it decodes it in one piece.
+ *
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/NetasciiRoundTrip.java
+ *
+ *         java -cp bin NetasciiRoundTrip [random files per block size]
+ */
+public class NetasciiRoundTrip {
+
+	private static final byte[] ALPHABET = { NetasciiEncoder.CR, NetasciiEncoder.LF, NetasciiEncoder.NUL, 'x' };
+	// Every file over the alphabet up to this length is tried
+	private static final int EXHAUSTIVE_LENGTH = 7;
+	private static final int MAX_BLOCK_SIZE = 9;
+
+	private static int mFailures = 0;
+	private static int mLenientFailures = 0;
+
+	public static void main(String[] args) {
+		int vRandomFiles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		Random vRandom = new Random(17);
+		System.out.println("block size  files  failures  wires  failures");
+		for (int vBlockSize = 1; vBlockSize <= MAX_BLOCK_SIZE; ++vBlockSize) {
+			int vBefore = mFailures;
+			int vLenientBefore = mLenientFailures;
+			int vFiles = 0;
+			for (int vLength = 0; vLength <= EXHAUSTIVE_LENGTH; ++vLength) {
+				int vCount = 1 << (2 * vLength);
+				for (int vIndex = 0; vIndex < vCount; ++vIndex) {
+					byte[] vBytes = new byte[vLength];
+					for (int i = 0; i < vLength; ++i) {
+						vBytes[i] = ALPHABET[(vIndex >> (2 * i)) & 3];
+					}
+					check(vBytes, vBlockSize);
+					checkLenient(vBytes, vBlockSize);
+					++vFiles;
+				}
+			}
+			int vWires = vFiles;
+			for (int i = 0; i < vRandomFiles; ++i) {
+				byte[] vFile = new byte[vRandom.nextInt(400)];
+				for (int k = 0; k < vFile.length; ++k) {
+					int vPick = vRandom.nextInt(8);
+					vFile[k] = vPick < ALPHABET.length ? ALPHABET[vPick] : (byte) vRandom.nextInt(256);
+				}
+				check(vFile, vBlockSize);
+				++vFiles;
+			}
+			System.out.printf("%10d  %5d  %8d  %5d  %8d%n", vBlockSize, vFiles, mFailures - vBefore, vWires,
+					mLenientFailures - vLenientBefore);
+		}
+		boolean vPassed = mFailures == 0 && mLenientFailures == 0;
+		System.out.println(vPassed ? "PASSED" : "FAILED");
+		System.exit(vPassed ? 0 : 1);
+	}
+
+	/**
+	 * Sends one file through the encoder and the decoder and counts it as a
+	 * failure if it does not come back the same, printing the first few.
+	 */
+	private static void check(byte[] file, int blockSize) {
+		byte[] vWire = encode(file, blockSize);
+		byte[] vDecoded = decode(vWire, blockSize);
+		String vProblem = null;
+		if (!isNetascii(vWire, file)) {
+			vProblem = "not netascii on the wire";
+		} else if (!Arrays.equals(vDecoded, file)) {
+			vProblem = "decoded differently";
+		}
+		if (vProblem != null) {
+			if (++mFailures <= 10) {
+				System.out.println("block size " + blockSize + ", " + vProblem + ": file " + Arrays.toString(file)
+						+ ", wire " + Arrays.toString(vWire) + ", decoded " + Arrays.toString(vDecoded));
+			}
+		}
+	}
+
+	/**
+	 * Decodes bytes as they came off the wire, not all of them valid
+	 * netascii, in blocks and against decodeWhole(), and counts a failure if
+	 * the two differ.
+	 */
+	private static void checkLenient(byte[] wire, int blockSize) {
+		byte[] vDecoded = decode(wire, blockSize);
+		byte[] vExpected = decodeWhole(wire);
+		if (!Arrays.equals(vDecoded, vExpected) && ++mLenientFailures <= 10) {
+			System.out.println("block size " + blockSize + ", wire " + Arrays.toString(wire) + " decoded "
+					+ Arrays.toString(vDecoded) + " instead of " + Arrays.toString(vExpected));
+		}
+	}
+
+	/**
+	 * Decodes the wire in one piece, byte by byte: CR LF is a line feed, CR
+	 * NUL a carriage return, and any other CR, the last one too, stays as
+	 * it is.
+	 *
+	 * @return the file
+	 */
+	private static byte[] decodeWhole(byte[] wire) {
+		byte[] vFile = new byte[wire.length];
+		int vWritten = 0;
+		for (int i = 0; i < wire.length; ++i) {
+			if (wire[i] != NetasciiEncoder.CR || i + 1 == wire.length) {
+				vFile[vWritten++] = wire[i];
+			} else if (wire[i + 1] == NetasciiEncoder.LF) {
+				vFile[vWritten++] = NetasciiEncoder.LF;
+				++i;
+			} else {
+				vFile[vWritten++] = NetasciiEncoder.CR;
+				if (wire[i + 1] == NetasciiEncoder.NUL) {
+					++i;
+				}
+			}
+		}
+		return Arrays.copyOf(vFile, vWritten);
+	}
+
+	/**
+	 * Fills DATA blocks from file blocks as takeNetasciiBlock() does, a DATA
+	 * block taking the rest of one file block and the start of the next.
+	 * The read-ahead ends the file with a short block, an empty one if the
+	 * file is a whole number of blocks.
+	 *
+	 * @return the DATA blocks one after the other, the last one short
+	 */
+	private static byte[] encode(byte[] file, int blockSize) {
+		NetasciiEncoder vEncoder = new NetasciiEncoder();
+		byte[] vFileBlock = new byte[blockSize];
+		byte[] vBlock = new byte[blockSize];
+		byte[] vWire = new byte[file.length * 2 + blockSize];
+		int vRead = 0;
+		int vSent = 0;
+		boolean vLastBlockTaken = false;
+		while (true) {
+			int vLength = 0;
+			while (true) {
+				vLength += vEncoder.encode(vBlock, vLength, blockSize - vLength);
+				if (vLength == blockSize || vLastBlockTaken) {
+					break;
+				}
+				int vCount = Math.min(blockSize, file.length - vRead);
+				System.arraycopy(file, vRead, vFileBlock, 0, vCount);
+				vRead += vCount;
+				vLastBlockTaken = vCount < blockSize;
+				vEncoder.setInput(vFileBlock, vCount);
+			}
+			System.arraycopy(vBlock, 0, vWire, vSent, vLength);
+			vSent += vLength;
+			if (vLength < blockSize) {
+				return Arrays.copyOf(vWire, vSent);
+			}
+		}
+	}
+
+	/**
+	 * Decodes the DATA blocks one at a time into an output block of the
+	 * size the receiver uses, as TFTPNetworking does on every block.
+	 *
+	 * @return the file written
+	 */
+	private static byte[] decode(byte[] wire, int blockSize) {
+		NetasciiDecoder vDecoder = new NetasciiDecoder();
+		byte[] vOutput = new byte[blockSize + 1];
+		byte[] vFile = new byte[wire.length + 1];
+		int vWritten = 0;
+		int vPosition = 0;
+		while (true) {
+			int vBlockLength = Math.min(blockSize, wire.length - vPosition);
+			int vLength = vDecoder.decode(wire, vPosition, vBlockLength, vOutput);
+			vPosition += vBlockLength;
+			if (vBlockLength < blockSize) {
+				vLength += vDecoder.finish(vOutput, vLength);
+			}
+			System.arraycopy(vOutput, 0, vFile, vWritten, vLength);
+			vWritten += vLength;
+			if (vBlockLength < blockSize) {
+				return Arrays.copyOf(vFile, vWritten);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the wire holds only CR LF and CR NUL pairs for line
+	 *         endings, one byte longer per CR and LF of the file
+	 */
+	private static boolean isNetascii(byte[] wire, byte[] file) {
+		int vExpected = file.length;
+		for (byte vByte : file) {
+			if (vByte == NetasciiEncoder.CR || vByte == NetasciiEncoder.LF) {
+				++vExpected;
+			}
+		}
+		if (wire.length != vExpected) {
+			return false;
+		}
+		for (int i = 0; i < wire.length; ++i) {
+			if (wire[i] == NetasciiEncoder.CR) {
+				if (i + 1 == wire.length || (wire[i + 1] != NetasciiEncoder.LF && wire[i + 1] != NetasciiEncoder.NUL)) {
+					return false;
+				}
+				++i;
+			} else if (wire[i] == NetasciiEncoder.LF) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
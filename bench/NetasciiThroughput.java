@@ -0,0 +1,146 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import helpers.NetasciiDecoder;
+import helpers.NetasciiEncoder;
+
+/**
+ * @author Team 3
+ *
+ *         Throughput of the netascii translation against a plain block copy,
+ *         the work an octet transfer does per block. A text file held in
+ *         memory is cut into file blocks the way the read-ahead hands them
+ *         out, encoded into DATA blocks as the sender fills them, then
+ *         decoded block by block as the receiver does. Each round prints the
+ *         rate of the three and the bytes the encoder and decoder allocated
+ *         per block, and checks that the decoded file is the one encoded.
+ *
+ *         Needs a HotSpot JVM, which counts the bytes each thread allocates.
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/NetasciiThroughput.java
+ *
+ *         java -cp bin NetasciiThroughput [bytes per line] [block size] [file
+ *         MB]
+ */
+public class NetasciiThroughput {
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+	private static final int ROUNDS = 6;
+
+	private static byte[] mText;
+	private static int mBlockSize;
+	// What the encoder sent, and the file the decoder wrote back
+	private static byte[] mWire;
+	private static byte[] mDecoded;
+	private static byte[] mCopy;
+
+	public static void main(String[] args) {
+		int vLine = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		mBlockSize = args.length > 1 ? Integer.parseInt(args[1]) : 1428;
+		int vMegabytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		Random vRandom = new Random(5);
+		mText = new byte[vMegabytes << 20];
+		for (int i = 0; i < mText.length; ++i) {
+			mText[i] = (byte) (vRandom.nextInt(vLine) == 0 ? '\n' : 'a' + vRandom.nextInt(26));
+		}
+		// Every LF grows by a CR, the last block may be empty
+		mWire = new byte[mText.length * 2 + mBlockSize];
+		mDecoded = new byte[mText.length + 1];
+		mCopy = new byte[mText.length];
+
+		long vBlocks = mText.length / mBlockSize + 1;
+		System.out.printf("%d MB of text, a line every %d bytes, %d byte blocks%n", vMegabytes, vLine, mBlockSize);
+		for (int round = 0; round < ROUNDS; ++round) {
+			long vCopy = copy();
+			long vThread = Thread.currentThread().getId();
+			long vAllocated = THREADS.getThreadAllocatedBytes(vThread);
+			long vStart = System.nanoTime();
+			int vWireLength = encode();
+			long vEncode = System.nanoTime() - vStart;
+			long vEncodeAllocated = THREADS.getThreadAllocatedBytes(vThread) - vAllocated;
+			vAllocated = THREADS.getThreadAllocatedBytes(vThread);
+			vStart = System.nanoTime();
+			int vFileLength = decode(vWireLength);
+			long vDecode = System.nanoTime() - vStart;
+			long vDecodeAllocated = THREADS.getThreadAllocatedBytes(vThread) - vAllocated;
+			boolean vIntact = vFileLength == mText.length
+					&& Arrays.equals(Arrays.copyOf(mDecoded, vFileLength), mText);
+			System.out.printf(
+					"copy %5.0f MB/s | encode %5.0f MB/s %5.1f B/block | decode %5.0f MB/s %5.1f B/block | %s%n",
+					mText.length / (vCopy / 1e3), mText.length / (vEncode / 1e3),
+					(double) vEncodeAllocated / vBlocks, mText.length / (vDecode / 1e3),
+					(double) vDecodeAllocated / vBlocks, vIntact ? "intact" : "CORRUPT");
+		}
+	}
+
+	/**
+	 * Copies the file block by block, as an octet transfer moves it.
+	 *
+	 * @return nanoseconds taken
+	 */
+	private static long copy() {
+		long vStart = System.nanoTime();
+		for (int vPosition = 0; vPosition < mText.length; vPosition += mBlockSize) {
+			System.arraycopy(mText, vPosition, mCopy, vPosition, Math.min(mBlockSize, mText.length - vPosition));
+		}
+		return System.nanoTime() - vStart;
+	}
+
+	/**
+	 * Fills DATA blocks from file blocks as TFTPNetworking.takeNetasciiBlock()
+	 * does, a DATA block taking the rest of one file block and the start of
+	 * the next.
+	 *
+	 * @return bytes sent
+	 */
+	private static int encode() {
+		NetasciiEncoder vEncoder = new NetasciiEncoder();
+		byte[] vFileBlock = new byte[mBlockSize];
+		byte[] vBlock = new byte[mBlockSize];
+		int vRead = 0;
+		int vSent = 0;
+		boolean vEndOfFile = false;
+		while (true) {
+			int vLength = 0;
+			while (true) {
+				vLength += vEncoder.encode(vBlock, vLength, mBlockSize - vLength);
+				if (vLength == mBlockSize || vEndOfFile) {
+					break;
+				}
+				int vCount = Math.min(mBlockSize, mText.length - vRead);
+				System.arraycopy(mText, vRead, vFileBlock, 0, vCount);
+				vRead += vCount;
+				vEndOfFile = vCount < mBlockSize;
+				vEncoder.setInput(vFileBlock, vCount);
+			}
+			System.arraycopy(vBlock, 0, mWire, vSent, vLength);
+			vSent += vLength;
+			if (vLength < mBlockSize) {
+				return vSent;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the DATA blocks in place in the received bytes, as the receiver
+	 * decodes each payload in its datagram buffer.
+	 *
+	 * @return bytes of the file written
+	 */
+	private static int decode(int wireLength) {
+		NetasciiDecoder vDecoder = new NetasciiDecoder();
+		byte[] vOutput = new byte[mBlockSize + 1];
+		int vWritten = 0;
+		for (int vPosition = 0; vPosition < wireLength; vPosition += mBlockSize) {
+			int vLength = vDecoder.decode(mWire, vPosition, Math.min(mBlockSize, wireLength - vPosition), vOutput);
+			System.arraycopy(vOutput, 0, mDecoded, vWritten, vLength);
+			vWritten += vLength;
+		}
+		vWritten += vDecoder.finish(mDecoded, vWritten);
+		return vWritten;
+	}
+}
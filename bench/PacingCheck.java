@@ -0,0 +1,198 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+import networking.CongestionWindow;
+import networking.NonBlockingTransfer;
+import networking.PacingQueue;
+import networking.TimerWheel;
+import packet.ReadPacket;
+import resource.Configurations;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         Check of the pacing clock, without a server or a network. The
+ *         first part takes a CongestionWindow through slow start, a loss, a
+ *         second loss of the same window and congestion avoidance, and checks
+ *         the window and the pacing interval after each step against the
+ *         values worked out by hand. The second part sends blocks from a
+ *         transfer the way an event loop does: the transfer holds each block
+ *         back on a PacingQueue and a loop waits for it the way EventLoop
+ *         does, in a Selector and then parked for what is left under a
+ *         millisecond. The intervals are all shorter than a tick of the timer
+ *         wheel. The check passes if no block went out before its interval
+ *         and the blocks went out no more than a little over it apart on
+ *         average.
+ *
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/PacingCheck.java
+ *
+ *         java -cp bin PacingCheck [blocks per interval]
+ */
+public class PacingCheck {
+
+	private static final long MILLI = 1000000;
+	// Round trip and timeout that leave the interval uncapped
+	private static final long RTT = 8 * MILLI;
+	private static final long TIMEOUT = 10000;
+	private static final int WINDOW_SIZE = 16;
+
+	private static boolean mPassed = true;
+
+	public static void main(String[] args) throws Exception {
+		int vBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		checkCongestionWindow();
+		System.out.println("interval us  blocks  mean gap us  shortest gap us");
+		// Each interval is under a tick of the timer wheel
+		long[] vIntervals = { 100000, 250000, 1000000, 2500000, 7000000 };
+		for (long vInterval : vIntervals) {
+			checkPacing(vInterval, vBlocks);
+		}
+		System.out.println(mPassed ? "PASSED" : "FAILED");
+		System.exit(mPassed ? 0 : 1);
+	}
+
+	/**
+	 * Checks the window and the pacing interval of a CongestionWindow after
+	 * each step of its life.
+	 */
+	private static void checkCongestionWindow() {
+		CongestionWindow vWindow = new CongestionWindow();
+		long vNow = 0;
+		// Unknown round trip, no pacing
+		vWindow.onSent(vNow, -1, TIMEOUT, WINDOW_SIZE);
+		expect("unknown round trip", 0, vWindow.getSendDelay(vNow));
+		// Slow start probes at twice the window
+		vWindow.onSent(vNow, RTT, TIMEOUT, WINDOW_SIZE);
+		expect("initial window", Configurations.CONGESTION_INITIAL_WINDOW, vWindow.getWindow());
+		expect("slow start interval", (long) (RTT / (4 * Configurations.PACING_GAIN_SLOW_START)),
+				vWindow.getSendDelay(vNow));
+		vWindow.onAcknowledged(4);
+		expect("window after 4 blocks of slow start", 8, vWindow.getWindow());
+		vNow = vWindow.getSendDelay(0);
+		vWindow.onSent(vNow, RTT, TIMEOUT, WINDOW_SIZE);
+		expect("interval at 8 blocks", (long) (RTT / (8 * Configurations.PACING_GAIN_SLOW_START)),
+				vWindow.getSendDelay(vNow));
+		// The clock counts from the later of now and the last deadline
+		vNow += 100 * MILLI;
+		vWindow.onSent(vNow, RTT, TIMEOUT, WINDOW_SIZE);
+		expect("interval after an idle spell", (long) (RTT / (8 * Configurations.PACING_GAIN_SLOW_START)),
+				vWindow.getSendDelay(vNow));
+		// A loss halves the window once per window of data, here with one
+		// block of it still unacknowledged
+		vWindow.onSent(vNow, RTT, TIMEOUT, WINDOW_SIZE);
+		vWindow.onLoss();
+		expect("window after a loss", 4, vWindow.getWindow());
+		vWindow.onLoss();
+		expect("window after a second loss of the same window", 4, vWindow.getWindow());
+		vNow += 100 * MILLI;
+		vWindow.onSent(vNow, RTT, TIMEOUT, WINDOW_SIZE);
+		expect("congestion avoidance interval", (long) (RTT / (4 * Configurations.PACING_GAIN)),
+				vWindow.getSendDelay(vNow));
+		// Congestion avoidance grows by one block per window
+		vWindow.onAcknowledged(4);
+		expect("window after one window of congestion avoidance", 4, vWindow.getWindow());
+		vWindow.onAcknowledged(1);
+		expect("window after one more block", 5, vWindow.getWindow());
+		// A window always goes out within half a timeout
+		vNow += 100 * MILLI;
+		vWindow.onSent(vNow, 100 * RTT, 8, WINDOW_SIZE);
+		expect("capped interval", 8 * MILLI / 2 / WINDOW_SIZE, vWindow.getSendDelay(vNow));
+	}
+
+	/**
+	 * Sends blocks paced at one interval through a pacing queue and prints
+	 * the line of the interval.
+	 */
+	private static void checkPacing(long interval, int blocks) throws Exception {
+		PacingQueue vPacing = new PacingQueue();
+		PacedSender vSender = new PacedSender(interval, blocks);
+		vSender.setTimer(null, vPacing, new TimerWheel.Task() {
+			public void expire(long now) {
+				vSender.handleTimeout(now);
+			}
+		});
+		Selector vSelector = Selector.open();
+		vSender.onPacingDue();
+		// The waits of EventLoop.run(), with no timer pending on the wheel
+		while (vPacing.size() > 0) {
+			long vTimeout = vPacing.selectTimeout(System.nanoTime(), 0);
+			if (vTimeout >= 0) {
+				vSelector.select(vTimeout);
+			} else if (vSelector.selectNow() == 0) {
+				LockSupport.parkNanos(vPacing.timeUntilNext(System.nanoTime()));
+			}
+			vPacing.advance(System.nanoTime());
+		}
+		vSelector.close();
+		long vShortest = Long.MAX_VALUE;
+		for (int i = 1; i < blocks; ++i) {
+			vShortest = Math.min(vShortest, vSender.mSendTimes[i] - vSender.mSendTimes[i - 1]);
+		}
+		long vMean = (vSender.mSendTimes[blocks - 1] - vSender.mSendTimes[0]) / (blocks - 1);
+		// Parking overshoots by some tens of microseconds on a loaded host
+		boolean vPaced = vShortest >= interval && vMean <= interval + Math.max(interval / 4, 150000);
+		mPassed &= vPaced;
+		System.out.printf("%11d  %6d  %11d  %15d  %s%n", interval / 1000, blocks, vMean / 1000, vShortest / 1000,
+				vPaced ? "ok" : "NOT PACED");
+	}
+
+	private static void expect(String what, long expected, long actual) {
+		if (expected != actual) {
+			System.out.println(what + ": expected " + expected + ", got " + actual);
+			mPassed = false;
+		}
+	}
+
+	/**
+	 * A transfer that only sends blocks, one interval apart on its pacing
+	 * clock, and notes when each went out. Slow start with no ACK keeps the
+	 * initial window, so a round trip of that many intervals times the gain
+	 * makes the clock tick at the interval.
+	 */
+	private static class PacedSender extends NonBlockingTransfer {
+		private final long mRttNanos;
+		private final long[] mSendTimes;
+		private int mSent = 0;
+
+		PacedSender(long interval, int blocks) throws Exception {
+			super(request(), null, Logger.SILENT);
+			this.mRttNanos = (long) (interval * Configurations.CONGESTION_INITIAL_WINDOW
+					* Configurations.PACING_GAIN_SLOW_START);
+			this.mSendTimes = new long[blocks];
+		}
+
+		private static ReadPacket request() {
+			ReadPacket vRequest = new ReadPacket(InetAddress.getLoopbackAddress(), Configurations.SERVER_LISTEN_PORT,
+					"paced");
+			vRequest.buildPacket();
+			return vRequest;
+		}
+
+		@Override
+		protected void onPacingDue() {
+			while (this.mSent < this.mSendTimes.length && awaitPacing()) {
+				long vNow = System.nanoTime();
+				this.mSendTimes[this.mSent++] = vNow;
+				mCongestion.onSent(vNow, this.mRttNanos, TIMEOUT, WINDOW_SIZE);
+			}
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		protected void onPacket(DatagramPacket packet) {
+		}
+
+		@Override
+		protected void onTimeout() {
+		}
+	}
+}
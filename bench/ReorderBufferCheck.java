@@ -0,0 +1,126 @@
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import networking.ReorderBuffer;
+
+/**
+ * @author Team 3
+ *
+ *         Check of the ReorderBuffer on its own. A receiver takes windows of
+ *         blocks that arrive shuffled, some twice and some not at all, and
+ *         hands them on in order the way TFTPNetworking does: the block
+ *         expected is written at once with every held block after it, a
+ *         block ahead of it is held, an older one is dropped. The sender then
+ *         sends the window again from the first block missing. The blocks
+ *         start a few windows short of 65535, so every window size runs
+ *         through the rollover to 0.
+ *
+ *         The check passes if every block comes out once and in order, a
+ *         held block is handed back exactly when it is the one expected, and
+ *         hold() and size() agree with a plain set of the blocks held.
+ *
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/ReorderBufferCheck.java
+ *
+ *         java -cp bin ReorderBufferCheck [rounds per window size]
+ */
+public class ReorderBufferCheck {
+
+	private static final int[] WINDOW_SIZES = { 1, 2, 3, 4, 7, 8, 9, 16, 31, 64, 100, 512, 4096 };
+
+	private static final Random mRandom = new Random(23);
+	private static int mFailures = 0;
+
+	public static void main(String[] args) {
+		int vRounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		System.out.println("window  blocks  held  duplicates  failures");
+		for (int vWindow : WINDOW_SIZES) {
+			run(vWindow, vRounds);
+		}
+		System.out.println(mFailures == 0 ? "PASSED" : "FAILED");
+		System.exit(mFailures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Sends windows until enough blocks came out in order and prints the
+	 * line of the window size.
+	 */
+	private static void run(int window, int rounds) {
+		int vBefore = mFailures;
+		ReorderBuffer vBuffer = new ReorderBuffer(window);
+		Set<Integer> vHeld = new HashSet<Integer>();
+		int vExpected = (65536 - 3 * window - 5) & 0xFFFF;
+		long vDelivered = 0;
+		long vHolds = 0;
+		long vDuplicates = 0;
+		for (int round = 0; round < rounds || (vHeld.size() > 0 && round < 2 * rounds); ++round) {
+			List<Integer> vArrivals = new ArrayList<Integer>();
+			for (int i = 0; i < window; ++i) {
+				int vBlock = (vExpected + i) & 0xFFFF;
+				// Past the set rounds nothing is lost, the last gaps are filled
+				if (round < rounds && mRandom.nextInt(10) == 0) {
+					continue;
+				}
+				vArrivals.add(vBlock);
+				if (mRandom.nextInt(10) == 0) {
+					vArrivals.add(vBlock);
+				}
+			}
+			Collections.shuffle(vArrivals, mRandom);
+			for (int vBlock : vArrivals) {
+				int vAhead = (vBlock - vExpected) & 0xFFFF;
+				if (vAhead == 0) {
+					vExpected = (vExpected + 1) & 0xFFFF;
+					++vDelivered;
+					// Every held block after it comes out with it
+					while (true) {
+						DatagramPacket vPacket = vBuffer.take(vExpected);
+						if (vPacket == null) {
+							// Lost from the buffer, it is sent again like a lost block
+							expect(!vHeld.remove(vExpected), window, "held block " + vExpected + " not handed back");
+							break;
+						}
+						expect(vHeld.remove(vExpected), window, "block " + vExpected + " handed back, never held");
+						expect(blockOf(vPacket) == vExpected, window,
+								"block " + blockOf(vPacket) + " handed back as " + vExpected);
+						vExpected = (vExpected + 1) & 0xFFFF;
+						++vDelivered;
+					}
+				} else if (vAhead < window) {
+					boolean vNew = vBuffer.hold(vBlock, packetOf(vBlock));
+					expect(vNew == vHeld.add(vBlock), window, "hold of block " + vBlock + " returned " + vNew);
+					if (vNew) {
+						++vHolds;
+					} else {
+						++vDuplicates;
+					}
+				}
+				expect(vBuffer.size() == vHeld.size(), window,
+						"size " + vBuffer.size() + " with " + vHeld.size() + " blocks held");
+			}
+		}
+		expect(vHeld.isEmpty(), window, vHeld.size() + " blocks never handed back");
+		System.out.printf("%6d  %6d  %4d  %10d  %8d%n", window, vDelivered, vHolds, vDuplicates, mFailures - vBefore);
+	}
+
+	private static DatagramPacket packetOf(int block) {
+		return new DatagramPacket(new byte[] { (byte) (block >> 8), (byte) block }, 2);
+	}
+
+	private static int blockOf(DatagramPacket packet) {
+		return ((packet.getData()[0] & 0xFF) << 8) | (packet.getData()[1] & 0xFF);
+	}
+
+	private static void expect(boolean condition, int window, String what) {
+		if (!condition && ++mFailures <= 10) {
+			System.out.println("window " + window + ": " + what);
+		}
+	}
+}
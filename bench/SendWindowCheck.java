@@ -0,0 +1,163 @@
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import networking.SendWindow;
+import packet.DataPacket;
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         Check of the SendWindow on its own. Blocks of random length, empty
+ *         and full ones among them, are added and acknowledged in random
+ *         order against a plain queue of the blocks sent, at window sizes
+ *         that make the ring grow and wrap round. After every step each
+ *         packet in the window is read back through DataPacket and has to
+ *         hold its block number and its bytes, and getBlockNumber(),
+ *         getPayloadLength() and size() have to agree with the queue. A
+ *         window that has grown to its size and to the largest block then
+ *         keeps sending blocks no larger, and has to allocate nothing.
+ *
+ *         Needs a HotSpot JVM, which counts the bytes each thread allocates.
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/SendWindowCheck.java
+ *
+ *         java -cp bin SendWindowCheck [steps per window size]
+ */
+public class SendWindowCheck {
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private static final int[] WINDOW_SIZES = { 1, 2, 3, 5, 8, 16, 33, 128 };
+	private static final int BLOCK_SIZE = Configurations.MAX_PAYLOAD_BUFFER;
+	private static final int PORT = 69;
+
+	private static final Random mRandom = new Random(25);
+	private static final InetAddress mAddress = InetAddress.getLoopbackAddress();
+	private static int mFailures = 0;
+
+	public static void main(String[] args) {
+		int vSteps = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		System.out.println("window   steps  bytes allocated  failures");
+		for (int vWindow : WINDOW_SIZES) {
+			run(vWindow, vSteps);
+		}
+		System.out.println(mFailures == 0 ? "PASSED" : "FAILED");
+		System.exit(mFailures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Sends and acknowledges blocks at one window size and prints its line.
+	 */
+	private static void run(int window, int steps) {
+		int vBefore = mFailures;
+		SendWindow vWindow = new SendWindow();
+		ArrayDeque<byte[]> vSent = new ArrayDeque<byte[]>();
+		// Block numbers run through the rollover to 0
+		int vNextBlock = (65536 - steps / 4) & 0xFFFF;
+		int vFirstBlock = vNextBlock;
+		for (int i = 0; i < steps; ++i) {
+			boolean vAdd = vSent.isEmpty() || (vSent.size() < window && mRandom.nextBoolean());
+			if (vAdd) {
+				byte[] vBlock = randomBlock();
+				DatagramPacket vPacket = vWindow.add(vNextBlock, vBlock, vBlock.length, mAddress, PORT);
+				expect(vPacket == vWindow.getPacket(vSent.size()), window, "add() did not return the packet it kept");
+				vSent.addLast(vBlock);
+				vNextBlock = (vNextBlock + 1) & 0xFFFF;
+			} else {
+				vWindow.removeFirst();
+				vSent.removeFirst();
+				vFirstBlock = (vFirstBlock + 1) & 0xFFFF;
+			}
+			compare(vWindow, vSent, vFirstBlock, window);
+		}
+		long vAllocated = steadyState(vWindow, vNextBlock, window, steps);
+		System.out.printf("%6d  %6d  %15d  %8d%n", window, steps, vAllocated, mFailures - vBefore);
+	}
+
+	/**
+	 * Fills the window with full blocks so every slot is as large as it gets,
+	 * then keeps it full with random blocks and counts what that allocates.
+	 *
+	 * @return bytes allocated by the measured steps
+	 */
+	private static long steadyState(SendWindow sendWindow, int nextBlock, int window, int steps) {
+		byte[] vFull = new byte[BLOCK_SIZE];
+		// The ring may hold up to twice the window, every slot of it is filled
+		for (int i = 0; i < 2 * window; ++i) {
+			if (sendWindow.size() == window) {
+				sendWindow.removeFirst();
+			}
+			sendWindow.add(nextBlock, vFull, vFull.length, mAddress, PORT);
+			nextBlock = (nextBlock + 1) & 0xFFFF;
+		}
+		// Lengths are drawn up front, the loop itself must not allocate
+		int[] vLengths = new int[steps];
+		for (int i = 0; i < steps; ++i) {
+			vLengths[i] = mRandom.nextInt(BLOCK_SIZE + 1);
+		}
+		// Twice, so the count comes from code already compiled
+		long vAllocated = 0;
+		for (int vRun = 0; vRun < 2; ++vRun) {
+			long vStart = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+			for (int i = 0; i < steps; ++i) {
+				sendWindow.removeFirst();
+				sendWindow.add(nextBlock, vFull, vLengths[i], mAddress, PORT);
+				nextBlock = (nextBlock + 1) & 0xFFFF;
+			}
+			vAllocated = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - vStart;
+		}
+		expect(vAllocated == 0, window, vAllocated + " bytes allocated by a full window");
+		expect(sendWindow.size() == window, window, "size " + sendWindow.size() + " of a full window");
+		return vAllocated;
+	}
+
+	/**
+	 * Checks every block in the window against the queue of blocks sent.
+	 */
+	private static void compare(SendWindow sendWindow, ArrayDeque<byte[]> sent, int firstBlock, int window) {
+		expect(sendWindow.size() == sent.size(), window, "size " + sendWindow.size() + " with " + sent.size() + " sent");
+		expect(sendWindow.isEmpty() == sent.isEmpty(), window, "isEmpty() is " + sendWindow.isEmpty());
+		Iterator<byte[]> vBlocks = sent.iterator();
+		for (int i = 0; i < sent.size(); ++i) {
+			byte[] vBlock = vBlocks.next();
+			int vBlockNumber = (firstBlock + i) & 0xFFFF;
+			DatagramPacket vPacket = sendWindow.getPacket(i);
+			DataPacket vData = new DataPacket(vPacket);
+			expect(sendWindow.getBlockNumber(i) == vBlockNumber, window,
+					"getBlockNumber(" + i + ") is " + sendWindow.getBlockNumber(i) + ", not " + vBlockNumber);
+			expect(vData.getBlockNumber() == vBlockNumber, window,
+					"packet " + i + " holds block " + vData.getBlockNumber() + ", not " + vBlockNumber);
+			expect(sendWindow.getPayloadLength(i) == vBlock.length, window,
+					"getPayloadLength(" + i + ") is " + sendWindow.getPayloadLength(i) + ", not " + vBlock.length);
+			expect(Arrays.equals(vData.getDataBuffer(), vBlock), window, "packet " + i + " holds other bytes");
+			expect(mAddress.equals(vPacket.getAddress()) && vPacket.getPort() == PORT, window,
+					"packet " + i + " goes to " + vPacket.getAddress() + ":" + vPacket.getPort());
+		}
+	}
+
+	/**
+	 * @return a block of random bytes, often empty or full
+	 */
+	private static byte[] randomBlock() {
+		int vPick = mRandom.nextInt(8);
+		int vLength = vPick == 0 ? 0 : vPick == 1 ? BLOCK_SIZE : mRandom.nextInt(BLOCK_SIZE + 1);
+		byte[] vBlock = new byte[vLength];
+		mRandom.nextBytes(vBlock);
+		return vBlock;
+	}
+
+	private static void expect(boolean condition, int window, String what) {
+		if (!condition && ++mFailures <= 10) {
+			System.out.println("window " + window + ": " + what);
+		}
+	}
+}
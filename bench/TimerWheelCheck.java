@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import networking.TimerWheel;
+
+/**
+ * @author Team 3
+ *
+ *         Check of the TimerWheel on its own, on a clock of its own. A small
+ *         wheel with short ticks takes timeouts due up to several turns
+ *         ahead. Some are cancelled before they are due, some schedule
+ *         themselves again when they run, and some cancel another timeout
+ *         when they run, often one due on the same tick. The clock first
+ *         moves in random steps of up to a tick, then as EventLoop moves it,
+ *         by whatever timeUntilNextTick() returns.
+ *
+ *         The check passes if no task runs before its deadline or later than
+ *         a tick and a step after it, every task not cancelled runs exactly
+ *         once, a cancelled one never runs, and size() always counts the
+ *         timeouts still pending.
+ *
+ *         Compile against the classes of src and run from the directory
+ *         holding them:
+ *
+ *         javac -cp bin -d bin bench/TimerWheelCheck.java
+ *
+ *         java -cp bin TimerWheelCheck [timeouts per run]
+ */
+public class TimerWheelCheck {
+
+	private static final int BUCKETS = 8;
+	private static final long TICK = 10;
+	// Deadlines reach about four turns of the wheel ahead
+	private static final long HORIZON = 4 * BUCKETS * TICK;
+
+	private static final Random mRandom = new Random(9);
+	private static int mFailures = 0;
+
+	private static TimerWheel mWheel;
+	private static List<Entry> mEntries;
+	private static long mNow;
+	private static long mLongestStep;
+
+	public static void main(String[] args) {
+		int vTimeouts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		System.out.println("clock                 tasks  cancelled  latest ms  failures");
+		checkSameTick();
+		run("random steps", vTimeouts, false);
+		run("next tick", vTimeouts, true);
+		System.out.println(mFailures == 0 ? "PASSED" : "FAILED");
+		System.exit(mFailures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Three timeouts on one tick, the first to run cancelling the one after
+	 * it in its bucket. The last one has to run in the same advance().
+	 */
+	private static void checkSameTick() {
+		int vBefore = mFailures;
+		mWheel = new TimerWheel(BUCKETS, TICK, 0);
+		mEntries = new ArrayList<Entry>();
+		mNow = 0;
+		Entry vLast = schedule(25);
+		Entry vCancelled = schedule(25);
+		// Scheduled last, so first in its bucket
+		Entry vCanceller = schedule(25);
+		vCanceller.mVictim = vCancelled;
+		mNow = 30;
+		int vRun = mWheel.advance(mNow);
+		expect(vRun == 2, "same tick", vRun + " tasks run instead of 2");
+		expect(vCanceller.mRuns == 1, "same tick", "cancelling task ran " + vCanceller.mRuns + " times");
+		expect(vCancelled.mRuns == 0, "same tick", "cancelled task ran");
+		expect(vLast.mRuns == 1, "same tick", "task after the cancelled one ran " + vLast.mRuns + " times");
+		expect(mWheel.size() == 0, "same tick", "size " + mWheel.size() + " with nothing pending");
+		// The bucket has to take timeouts as before
+		Entry vAgain = schedule(mNow + BUCKETS * TICK);
+		mNow += BUCKETS * TICK;
+		mWheel.advance(mNow);
+		expect(vAgain.mRuns == 1, "same tick", "timeout in the bucket afterwards ran " + vAgain.mRuns + " times");
+		System.out.printf("%-20s  %5d  %9d  %9s  %8d%n", "same tick", mEntries.size(), 1, "-", mFailures - vBefore);
+	}
+
+	/**
+	 * Schedules timeouts, runs the clock until none is pending and prints
+	 * the line of the run.
+	 */
+	private static void run(String name, int timeouts, boolean nextTick) {
+		int vBefore = mFailures;
+		long vStart = 1000 + mRandom.nextInt(1000);
+		mWheel = new TimerWheel(BUCKETS, TICK, vStart);
+		mEntries = new ArrayList<Entry>();
+		mNow = vStart;
+		mLongestStep = 0;
+		for (int i = 0; i < timeouts; ++i) {
+			Entry vEntry = schedule(mNow + mRandom.nextInt((int) HORIZON));
+			int vPick = mRandom.nextInt(10);
+			if (vPick < 2) {
+				vEntry.mRepeats = 1 + mRandom.nextInt(3);
+			} else if (vPick < 4) {
+				// Often a timeout due on the same tick
+				vEntry.mVictim = mEntries.get(Math.max(0, mEntries.size() - 1 - mRandom.nextInt(3)));
+			}
+		}
+		for (int i = 0; i < timeouts / 10; ++i) {
+			cancel(mEntries.get(mRandom.nextInt(mEntries.size())));
+		}
+		int vCancelled = 0;
+		long vLatest = 0;
+		int vSteps = 0;
+		while (pending() > 0 && vSteps++ < 100000) {
+			long vStep = nextTick ? mWheel.timeUntilNextTick(mNow) : 1 + mRandom.nextInt((int) TICK);
+			mLongestStep = Math.max(mLongestStep, vStep);
+			mNow += vStep;
+			mWheel.advance(mNow);
+			expect(mWheel.size() == pending(), name, "size " + mWheel.size() + " with " + pending() + " pending");
+		}
+		for (Entry vEntry : mEntries) {
+			if (vEntry.mCancelled) {
+				++vCancelled;
+				expect(vEntry.mRuns == 0, name, "cancelled timeout due at " + vEntry.mDeadline + " ran");
+				continue;
+			}
+			expect(vEntry.mRuns == 1, name, "timeout due at " + vEntry.mDeadline + " ran " + vEntry.mRuns + " times");
+			expect(vEntry.mRanAt >= vEntry.mDeadline, name,
+					"timeout due at " + vEntry.mDeadline + " ran early at " + vEntry.mRanAt);
+			// Expired on the first advance() past the end of its tick
+			long vLate = vEntry.mRanAt - vEntry.mDeadline;
+			expect(vLate < TICK + mLongestStep, name,
+					"timeout due at " + vEntry.mDeadline + " ran late at " + vEntry.mRanAt);
+			vLatest = Math.max(vLatest, vLate);
+		}
+		expect(mWheel.size() == 0, name, "size " + mWheel.size() + " at the end");
+		System.out.printf("%-20s  %5d  %9d  %9d  %8d%n", name, mEntries.size(), vCancelled, vLatest,
+				mFailures - vBefore);
+	}
+
+	private static Entry schedule(long deadline) {
+		Entry vEntry = new Entry(deadline);
+		vEntry.mTimeout = mWheel.schedule(vEntry, deadline);
+		mEntries.add(vEntry);
+		return vEntry;
+	}
+
+	private static void cancel(Entry entry) {
+		boolean vPending = !entry.mCancelled && entry.mRuns == 0;
+		expect(entry.mTimeout.isPending() == vPending, "cancel", "isPending() of timeout due at " + entry.mDeadline
+				+ " is " + entry.mTimeout.isPending());
+		entry.mTimeout.cancel();
+		entry.mCancelled |= vPending;
+	}
+
+	private static int pending() {
+		int vPending = 0;
+		for (Entry vEntry : mEntries) {
+			vPending += !vEntry.mCancelled && vEntry.mRuns == 0 ? 1 : 0;
+		}
+		return vPending;
+	}
+
+	private static void expect(boolean condition, String name, String what) {
+		if (!condition && ++mFailures <= 10) {
+			System.out.println(name + ": " + what);
+		}
+	}
+
+	/**
+	 * A timeout and what happened to it.
+	 */
+	private static class Entry implements TimerWheel.Task {
+		private final long mDeadline;
+		private TimerWheel.Timeout mTimeout;
+		private int mRuns = 0;
+		private long mRanAt;
+		private boolean mCancelled = false;
+		// Times it schedules a fresh timeout when it runs
+		private int mRepeats = 0;
+		// Timeout it cancels when it runs
+		private Entry mVictim;
+
+		Entry(long deadline) {
+			this.mDeadline = deadline;
+		}
+
+		public void expire(long now) {
+			expect(now == mNow, "expire", "run with " + now + " at " + mNow);
+			++this.mRuns;
+			this.mRanAt = now;
+			if (this.mVictim != null && this.mVictim != this) {
+				cancel(this.mVictim);
+			}
+			if (this.mRepeats > 0) {
+				Entry vNext = schedule(now + mRandom.nextInt((int) HORIZON));
+				vNext.mRepeats = this.mRepeats - 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import networking.ClientNetworking;
+import resource.Configurations;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         Throughput of the windowsize option over a link with a round trip
+ *         of a few milliseconds. A file is written to the server and read
+ *         back at each window size, through a relay that delays every
+ *         datagram in both directions. A window of 1 is the lock step of
+ *         plain TFTP, one block per round trip.
+ *
+ *         A reader waits after its final ACK in case the ACK was lost and the
+ *         last block comes again. That wait is the same at every window size,
+ *         so it is measured first on a one byte file and the read rates are
+ *         printed with and without it.
+ *
+ *         The server has to be running on this host first. Compile against
+ *         the classes of src and run from the directory holding them:
+ *
+ *         javac -cp bin -d bin bench/WindowThroughput.java
+ *
+ *         java -cp bin WindowThroughput [file size] [one way delay ms]
+ *         [window sizes...]
+ */
+public class WindowThroughput {
+
+	private static final int RELAY_PORT = 7074;
+
+	// Time of reading a one byte file, mostly the wait after the final ACK
+	private static double mReadFixedSeconds;
+
+	public static void main(String[] args) throws Exception {
+		int vSize = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+		long vDelay = args.length > 1 ? Long.parseLong(args[1]) : 2;
+		int[] vWindows = { 1, 2, 4, 8, 16, 32 };
+		if (args.length > 2) {
+			vWindows = new int[args.length - 2];
+			for (int i = 2; i < args.length; ++i) {
+				vWindows[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+		startRelay(vDelay);
+		byte[] vContent = new byte[vSize];
+		new Random(5).nextBytes(vContent);
+		mReadFixedSeconds = read(new byte[1], 1);
+		System.out.printf("%d byte file, %d ms each way, %.0f ms to read 1 byte%n", vSize, vDelay,
+				mReadFixedSeconds * 1000);
+		for (int vWindow : vWindows) {
+			transfer(vContent, vWindow);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Writes the file at one window size, reads it back and prints the line.
+	 */
+	private static void transfer(byte[] content, int window) throws Exception {
+		InetAddress vAddress = InetAddress.getLoopbackAddress();
+		String vName = "windowthroughput_" + window + "_" + System.nanoTime() + ".bin";
+		Path vSource = Paths.get(System.getProperty("java.io.tmpdir"), vName);
+		Files.write(vSource, content);
+
+		ClientNetworking net = new ClientNetworking();
+		net.setRequestedWindowSize(window);
+		long vStart = System.nanoTime();
+		TFTPErrorMessage vResult = net.generateInitWRQ(vSource.toString(), RELAY_PORT, vAddress, Logger.SILENT);
+		if (vResult != null && vResult.getType() == ErrorType.NO_ERROR) {
+			vResult = net.sendFile();
+		}
+		double vWriteSeconds = (System.nanoTime() - vStart) / 1e9;
+		// The server writes the last block after its final ACK
+		Thread.sleep(200);
+		Path vWritten = Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vName);
+		boolean vWriteIntact = Arrays.equals(Files.readAllBytes(vWritten), content);
+
+		Files.deleteIfExists(vSource);
+		Files.deleteIfExists(vWritten);
+
+		double vReadSeconds = read(content, window);
+		System.out.printf("windowsize %2d  WRQ %6.0f KB/s %-7s | RRQ %6.0f KB/s, %6.0f KB/s without the wait%n",
+				window, content.length / vWriteSeconds / 1000, vWriteIntact ? "intact" : "CORRUPT",
+				content.length / vReadSeconds / 1000, content.length / (vReadSeconds - mReadFixedSeconds) / 1000);
+	}
+
+	/**
+	 * Reads a file put in the server folder at one window size.
+	 *
+	 * @return seconds the read took, or NaN if the file did not come through
+	 *         intact
+	 */
+	private static double read(byte[] content, int window) throws Exception {
+		String vName = "windowthroughput_" + window + "_" + System.nanoTime() + ".bin";
+		Path vServed = Paths.get(Configurations.SERVER_ROOT_FILE_DIRECTORY, vName);
+		Files.write(vServed, content);
+		ClientNetworking net = new ClientNetworking();
+		net.setRequestedWindowSize(window);
+		long vStart = System.nanoTime();
+		TFTPErrorMessage vResult = net.generateInitRRQ(vName, RELAY_PORT, InetAddress.getLoopbackAddress(),
+				Logger.SILENT);
+		if (vResult.getType() == ErrorType.NO_ERROR) {
+			vResult = net.receiveFile();
+		}
+		double vSeconds = (System.nanoTime() - vStart) / 1e9;
+		Path vRead = Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, vName);
+		boolean vIntact = Files.exists(vRead) && Arrays.equals(Files.readAllBytes(vRead), content);
+		Files.deleteIfExists(vServed);
+		Files.deleteIfExists(vRead);
+		return vIntact ? vSeconds : Double.NaN;
+	}
+
+	/**
+	 * Starts the delaying relay in front of the server.
+	 */
+	private static void startRelay(long delay) throws Exception {
+		DatagramSocket vFront = new DatagramSocket(RELAY_PORT);
+		vFront.setReceiveBufferSize(4 << 20);
+		InetAddress vLoopback = InetAddress.getLoopbackAddress();
+		ScheduledExecutorService vDelayed = Executors.newSingleThreadScheduledExecutor();
+		Map<SocketAddress, DatagramSocket> vBacks = new ConcurrentHashMap<>();
+		Map<DatagramSocket, SocketAddress> vServers = new ConcurrentHashMap<>();
+		Thread vIntake = new Thread(() -> {
+			try {
+				while (true) {
+					DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_DATAGRAM_BUFFER],
+							Configurations.MAX_DATAGRAM_BUFFER);
+					vFront.receive(vPacket);
+					SocketAddress vClient = vPacket.getSocketAddress();
+					DatagramSocket vBack = vBacks.get(vClient);
+					if (vBack == null) {
+						vBack = new DatagramSocket();
+						vBack.setReceiveBufferSize(4 << 20);
+						vBacks.put(vClient, vBack);
+						startReturnPath(vFront, vBack, vClient, vServers, vDelayed, delay);
+					}
+					// Requests go to the listen port, the rest to the transfer
+					SocketAddress vServer = vServers.get(vBack);
+					if (vServer == null || vPacket.getData()[1] == 1 || vPacket.getData()[1] == 2) {
+						vServer = new InetSocketAddress(vLoopback, Configurations.SERVER_LISTEN_PORT);
+					}
+					DatagramSocket vOut = vBack;
+					DatagramPacket vCopy = new DatagramPacket(vPacket.getData(), vPacket.getLength(), vServer);
+					vDelayed.schedule(() -> send(vOut, vCopy), delay, TimeUnit.MILLISECONDS);
+				}
+			} catch (Exception e) {
+				return;
+			}
+		});
+		vIntake.setDaemon(true);
+		vIntake.start();
+	}
+
+	private static void startReturnPath(DatagramSocket front, DatagramSocket back, SocketAddress client,
+			Map<DatagramSocket, SocketAddress> servers, ScheduledExecutorService delayed, long delay) {
+		Thread vReturn = new Thread(() -> {
+			try {
+				while (true) {
+					DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_DATAGRAM_BUFFER],
+							Configurations.MAX_DATAGRAM_BUFFER);
+					back.receive(vPacket);
+					servers.put(back, vPacket.getSocketAddress());
+					DatagramPacket vCopy = new DatagramPacket(vPacket.getData(), vPacket.getLength(), client);
+					delayed.schedule(() -> send(front, vCopy), delay, TimeUnit.MILLISECONDS);
+				}
+			} catch (Exception e) {
+				return;
+			}
+		});
+		vReturn.setDaemon(true);
+		vReturn.start();
+	}
+
+	private static void send(DatagramSocket socket, DatagramPacket packet) {
+		try {
+			socket.send(packet);
+		} catch (Exception e) {
+			// A send that fails is a lost packet, the transfer sends it again
+		}
+	}
+}
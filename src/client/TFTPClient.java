@@ -128,6 +128,11 @@ public class TFTPClient {
 							if (result.getType() == ErrorType.NOT_DEFINED)
 								break;
 							result = net.receiveFile();
+							if (net.isBlockSizeLost()) {
+								// Ask again with the smaller block size it fell back to
+								net = new ClientNetworking();
+								result = null;
+							}
 						} while (result == null);
 						if (result.getType() == ErrorType.NO_ERROR || result.getType() == ErrorType.NOT_DEFINED) {
 							logger.print(Logger.VERBOSE, Strings.TRANSFER_SUCCESSFUL);
@@ -164,27 +169,35 @@ public class TFTPClient {
 						break;
 					}
 					
-					try {
-						result = net.generateInitWRQ(writeFileNameOrFilePath, this.mPortToSendTo, this.mAddressToSendTo, this.logger);
-					
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-					if (result == null)
-						break;
-					if ((result.getType() == ErrorType.NO_ERROR)
-							|| (result.getType() == ErrorType.SORCERERS_APPRENTICE)) {
-						result = net.sendFile();
-						if (result.getType() == ErrorType.NO_ERROR) {
-							logger.print(Logger.VERBOSE, Strings.TRANSFER_SUCCESSFUL);
+					while (true) {
+						try {
+							result = net.generateInitWRQ(writeFileNameOrFilePath, this.mPortToSendTo, this.mAddressToSendTo, this.logger);
+						
+						} catch (IOException e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						}
+						if (result == null)
+							break;
+						if ((result.getType() == ErrorType.NO_ERROR)
+								|| (result.getType() == ErrorType.SORCERERS_APPRENTICE)) {
+							result = net.sendFile();
+							if (net.isBlockSizeLost()) {
+								// Ask again with the smaller block size it fell back to
+								net = new ClientNetworking();
+								continue;
+							}
+							if (result.getType() == ErrorType.NO_ERROR) {
+								logger.print(Logger.VERBOSE, Strings.TRANSFER_SUCCESSFUL);
+							} else {
+								logger.print(Logger.ERROR, result.getString());
+							}
 						} else {
+							logger.print(Logger.ERROR, Strings.TRANSFER_FAILED);
 							logger.print(Logger.ERROR, result.getString());
-						}
-					} else {
-						logger.print(Logger.ERROR, Strings.TRANSFER_FAILED);
-						logger.print(Logger.ERROR, result.getString());
 
+						}
+						break;
 					}
 					break;
 				case 3:
@@ -0,0 +1,122 @@
+package helpers;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         Compresses and decompresses the DATA payloads of a transfer that
+ *         negotiated the compress option. Each block is deflated on its own,
+ *         so a block can be decoded whatever happened to the others, and
+ *         starts with one byte telling whether it is deflated or stored as is
+ *         because deflating did not make it shorter. An empty last block
+ *         stays empty. The uncompressed block keeps its size, so a block
+ *         shorter than the block size still ends the file.
+ *
+ *         Deflaters and inflaters hold native memory and are slow to create,
+ *         so each thread keeps one and resets it for every block.
+ */
+public class BlockCompression {
+
+	public static final byte STORED = 0;
+	public static final byte DEFLATED = 1;
+	// The flag is the only overhead, a stored block is one byte longer
+	public static final int OVERHEAD = 1;
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Configurations.COMPRESSION_LEVEL, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/**
+	 * Compresses a block into a buffer the caller keeps.
+	 *
+	 * @param block
+	 *            - the block as read from the file
+	 * @param length
+	 *            - bytes of the block
+	 * @param payload
+	 *            - at least length + OVERHEAD bytes long
+	 * @return the length of the payload, 0 for an empty block
+	 */
+	public static int compress(byte[] block, int length, byte[] payload) {
+		if (length == 0) {
+			return 0;
+		}
+		if (length > OVERHEAD + 1) {
+			Deflater deflater = DEFLATERS.get();
+			deflater.reset();
+			deflater.setInput(block, 0, length);
+			deflater.finish();
+			// Only room for a payload shorter than the stored block
+			int compressed = deflater.deflate(payload, OVERHEAD, length - OVERHEAD - 1);
+			if (deflater.finished()) {
+				payload[0] = DEFLATED;
+				return compressed + OVERHEAD;
+			}
+		}
+		payload[0] = STORED;
+		System.arraycopy(block, 0, payload, OVERHEAD, length);
+		return length + OVERHEAD;
+	}
+
+	/**
+	 * Decompresses a payload into a buffer the caller keeps.
+	 *
+	 * @param payload
+	 *            - buffer holding the DATA payload
+	 * @param offset
+	 *            - position of the payload in the buffer
+	 * @param length
+	 *            - bytes of the payload, may be 0
+	 * @param block
+	 *            - where the block goes, at least blockSize + 1 bytes long
+	 * @param blockSize
+	 *            - negotiated block size, the longest a block can be
+	 * @return the length of the block, shorter than the block size for the
+	 *         last one
+	 * @throws ZipException
+	 *             if the payload is not a compressed block
+	 */
+	public static int decompress(byte[] payload, int offset, int length, byte[] block, int blockSize)
+			throws ZipException {
+		if (length == 0) {
+			return 0;
+		}
+		if (payload[offset] == STORED && length - OVERHEAD <= blockSize) {
+			System.arraycopy(payload, offset + OVERHEAD, block, 0, length - OVERHEAD);
+			return length - OVERHEAD;
+		}
+		if (payload[offset] != DEFLATED) {
+			throw new ZipException();
+		}
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(payload, offset + OVERHEAD, length - OVERHEAD);
+		// One byte of room past the block size tells an oversized block apart
+		int blockLength;
+		try {
+			blockLength = inflater.inflate(block, 0, blockSize + 1);
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+		if (!inflater.finished() || blockLength > blockSize) {
+			throw new ZipException();
+		}
+		return blockLength;
+	}
+}
@@ -0,0 +1,350 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         Reads the blocks of a file being sent ahead of the sender, so that
+ *         the disk read of the next blocks happens while the sender waits for
+ *         the ACK of the last ones instead of after it. The blocks are read by
+ *         a few threads shared by every transfer into a ring of buffers kept
+ *         for the whole transfer.
+ *
+ *         The depth, the number of blocks read ahead, starts at one window.
+ *         Each time the sender has to wait for the disk the depth doubles, and
+ *         it shrinks by one block after a run of blocks taken without waiting,
+ *         so it follows the disk latency seen by the transfer.
+ *
+ *         When the transfer compresses its blocks the readers compress them
+ *         too, right after reading them, and the sender encodes the payloads
+ *         straight from the ring. They also add each block to the checksum of the
+ *         transfer, in order, since one reader at a time reads a file.
+ */
+public class BlockReadAhead {
+
+	private static final ExecutorService READERS = Executors.newFixedThreadPool(Configurations.READ_AHEAD_THREADS,
+			new ThreadFactory() {
+				private AtomicInteger mCount = new AtomicInteger(0);
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Read-ahead-" + mCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Totals over every transfer, for the server report
+	private static AtomicLong sBlocks = new AtomicLong(0);
+	private static AtomicLong sStalls = new AtomicLong(0);
+	private static AtomicLong sDiskNanos = new AtomicLong(0);
+	private static AtomicLong sStallNanos = new AtomicLong(0);
+
+	private FileStorageService mStorage;
+	private int mBlockSize;
+	private int mMinDepth;
+	private int mMaxDepth;
+	private int mDepth;
+	// Ring of buffers, block n is kept in slot (n - 1) % length. It has one
+	// slot more than the largest depth, so the block last taken is not
+	// overwritten while the sender copies it.
+	private byte[][] mBuffers;
+	private int[] mLengths;
+	// Compressed payloads of the blocks in the ring, null if not compressing
+	private byte[][] mPayloads;
+	private int[] mPayloadLengths;
+	// Checksum of the blocks read, null if none was agreed
+	private TransferChecksum mChecksum;
+	private long mFirstBlock;
+	private long mNextToTake;
+	private long mNextToRead;
+	private boolean mReading = false;
+	private boolean mLastBlockRead = false;
+	private boolean mLastBlockTaken = false;
+	private IOException mFailure = null;
+	private int mTakenWithoutStall = 0;
+	// Length of the block last handed out by take()
+	private int mTakenLength = 0;
+
+	private long mDiskNanos = 0;
+	private long mStallNanos = 0;
+
+	/**
+	 * Starts reading the first blocks of the file.
+	 *
+	 * @param storage
+	 *            - the file being sent, opened for reading
+	 * @param blockSize
+	 *            - negotiated block size
+	 * @param windowSize
+	 *            - negotiated window size, the smallest depth
+	 * @param firstBlock
+	 *            - position of the first block sent, from 1, past 1 when the
+	 *            transfer resumes
+	 * @param compress
+	 *            - true to hand out the blocks compressed
+	 * @param checksum
+	 *            - checksum to add the blocks to as they are read, may be null
+	 */
+	public BlockReadAhead(FileStorageService storage, int blockSize, int windowSize, long firstBlock,
+			boolean compress, TransferChecksum checksum) {
+		this.mStorage = storage;
+		this.mChecksum = checksum;
+		this.mBlockSize = blockSize;
+		this.mFirstBlock = firstBlock;
+		this.mNextToTake = firstBlock;
+		this.mNextToRead = firstBlock;
+		this.mMaxDepth = Math.max(windowSize,
+				Math.min(Configurations.READ_AHEAD_MAX_DEPTH, Configurations.READ_AHEAD_MAX_BYTES / blockSize));
+		this.mMinDepth = Math.min(windowSize, this.mMaxDepth);
+		this.mDepth = this.mMinDepth;
+		this.mBuffers = new byte[this.mMaxDepth + 1][];
+		this.mLengths = new int[this.mMaxDepth + 1];
+		if (compress) {
+			this.mPayloads = new byte[this.mMaxDepth + 1][];
+			this.mPayloadLengths = new int[this.mMaxDepth + 1];
+		}
+		synchronized (this) {
+			scheduleRead();
+		}
+	}
+
+	/**
+	 * Hands out the next block of the file, waiting for the disk if it has
+	 * not been read yet. The file is closed after its last block. The block
+	 * is the buffer of its slot in the ring, or its compressed payload, and
+	 * only the first getTakenLength() bytes of it belong to the block.
+	 *
+	 * @return the buffer holding the block, valid until the next call; null
+	 *         if the block is empty
+	 * @throws IOException
+	 *             if the block could not be read
+	 */
+	public synchronized byte[] take() throws IOException {
+		long vWaitStart = 0;
+		while (this.mNextToTake == this.mNextToRead && this.mFailure == null && !this.mLastBlockRead) {
+			if (vWaitStart == 0) {
+				vWaitStart = System.nanoTime();
+			}
+			scheduleRead();
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (this.mNextToTake == this.mNextToRead) {
+			if (this.mFailure != null) {
+				throw this.mFailure;
+			}
+			this.mTakenLength = 0;
+			return null;
+		}
+		adaptDepth(vWaitStart == 0 ? 0 : System.nanoTime() - vWaitStart);
+
+		int vSlot = slot(this.mNextToTake);
+		byte[] vBlock = this.mBuffers[vSlot];
+		int vLength = this.mLengths[vSlot];
+		++this.mNextToTake;
+		if (vLength == this.mBlockSize) {
+			scheduleRead();
+		} else {
+			// Nothing is read past the short block, the file can be closed
+			this.mLastBlockTaken = true;
+			this.mStorage.finishedReadingFile();
+		}
+		if (this.mPayloads != null) {
+			vBlock = this.mPayloads[vSlot];
+			vLength = this.mPayloadLengths[vSlot];
+		}
+		this.mTakenLength = vLength;
+		return vLength == 0 ? null : vBlock;
+	}
+
+	/**
+	 * @return the length of the block last handed out by take(), compressed
+	 *         if the transfer compresses
+	 */
+	public synchronized int getTakenLength() {
+		return this.mTakenLength;
+	}
+
+	/**
+	 * @return true once the short block that ends the file has been taken
+	 */
+	public synchronized boolean isLastBlockTaken() {
+		return this.mLastBlockTaken;
+	}
+
+	/**
+	 * Grows the depth when the sender had to wait for the disk, shrinks it
+	 * after a run of blocks that were ready in time. The first block is not
+	 * counted, nothing could have been read ahead of it.
+	 *
+	 * @param stallNanos
+	 *            - time the sender waited for this block
+	 */
+	private void adaptDepth(long stallNanos) {
+		sBlocks.incrementAndGet();
+		if (stallNanos > 0) {
+			this.mStallNanos += stallNanos;
+			sStallNanos.addAndGet(stallNanos);
+		}
+		if (this.mNextToTake == this.mFirstBlock) {
+			return;
+		}
+		if (stallNanos > 0) {
+			sStalls.incrementAndGet();
+			this.mDepth = Math.min(this.mDepth * 2, this.mMaxDepth);
+			this.mTakenWithoutStall = 0;
+		} else if (++this.mTakenWithoutStall >= Configurations.READ_AHEAD_SHRINK_AFTER) {
+			this.mDepth = Math.max(this.mDepth - 1, this.mMinDepth);
+			this.mTakenWithoutStall = 0;
+		}
+	}
+
+	/**
+	 * Queues a reader for this transfer unless one is already running or the
+	 * ring holds as many blocks as the depth. Called with the lock held.
+	 */
+	private void scheduleRead() {
+		if (this.mReading || !canReadMore()) {
+			return;
+		}
+		this.mReading = true;
+		READERS.execute(new Runnable() {
+			public void run() {
+				readBlocks();
+			}
+		});
+	}
+
+	/**
+	 * @return true if another block should be read now
+	 */
+	private boolean canReadMore() {
+		return !this.mLastBlockRead && this.mFailure == null && this.mNextToRead - this.mNextToTake < this.mDepth;
+	}
+
+	/**
+	 * Reads blocks on a reader thread until the ring holds as many blocks as
+	 * the depth. The disk is read without the lock, so the sender can take
+	 * the blocks already read meanwhile.
+	 */
+	private void readBlocks() {
+		while (true) {
+			long vBlock;
+			byte[] vBuffer;
+			byte[] vPayload = null;
+			synchronized (this) {
+				if (!canReadMore()) {
+					this.mReading = false;
+					return;
+				}
+				vBlock = this.mNextToRead;
+				int vSlot = slot(vBlock);
+				if (this.mBuffers[vSlot] == null) {
+					this.mBuffers[vSlot] = new byte[this.mBlockSize];
+				}
+				vBuffer = this.mBuffers[vSlot];
+				if (this.mPayloads != null) {
+					if (this.mPayloads[vSlot] == null) {
+						this.mPayloads[vSlot] = new byte[this.mBlockSize + BlockCompression.OVERHEAD];
+					}
+					vPayload = this.mPayloads[vSlot];
+				}
+			}
+			long vStart = System.nanoTime();
+			int vLength = 0;
+			IOException vFailure = null;
+			try {
+				vLength = this.mStorage.readBlockIntoBuffer(vBlock, vBuffer);
+			} catch (IOException e) {
+				vFailure = e;
+			}
+			long vDiskNanos = System.nanoTime() - vStart;
+			int vPayloadLength = 0;
+			if (vPayload != null && vFailure == null) {
+				vPayloadLength = BlockCompression.compress(vBuffer, vLength, vPayload);
+			}
+			if (this.mChecksum != null && vFailure == null) {
+				this.mChecksum.update(vBuffer, 0, vLength);
+			}
+			synchronized (this) {
+				this.mDiskNanos += vDiskNanos;
+				sDiskNanos.addAndGet(vDiskNanos);
+				if (vFailure != null) {
+					this.mFailure = vFailure;
+				} else {
+					this.mLengths[slot(vBlock)] = vLength;
+					if (this.mPayloadLengths != null) {
+						this.mPayloadLengths[slot(vBlock)] = vPayloadLength;
+					}
+					this.mLastBlockRead = vLength < this.mBlockSize;
+					++this.mNextToRead;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private int slot(long block) {
+		return (int) ((block - 1) % this.mBuffers.length);
+	}
+
+	/**
+	 * @return the number of blocks currently read ahead
+	 */
+	public synchronized int getDepth() {
+		return this.mDepth;
+	}
+
+	/**
+	 * @return time spent reading the disk for this transfer, in nanoseconds
+	 */
+	public synchronized long getDiskNanos() {
+		return this.mDiskNanos;
+	}
+
+	/**
+	 * @return time the sender waited for the disk, in nanoseconds
+	 */
+	public synchronized long getStallNanos() {
+		return this.mStallNanos;
+	}
+
+	/**
+	 * @return a line for the status command: blocks read ahead over every
+	 *         transfer, how often the sender waited, and how much of the disk
+	 *         time was spent while the sender was waiting on the network
+	 */
+	public static String getReport() {
+		long disk = sDiskNanos.get();
+		long stall = sStallNanos.get();
+		return String.format("Read-ahead blocks : %d | Stalls : %d | Disk %.1f ms | Waited %.1f ms | Overlapped %d%%",
+				sBlocks.get(), sStalls.get(), disk / 1000000.0, stall / 1000000.0, overlapPercent(disk, stall));
+	}
+
+	/**
+	 * @param diskNanos
+	 *            - time spent reading
+	 * @param stallNanos
+	 *            - time the sender waited for the reads
+	 * @return the share of the disk time the sender did not wait for
+	 */
+	public static int overlapPercent(long diskNanos, long stallNanos) {
+		if (diskNanos <= 0) {
+			return 100;
+		}
+		return (int) (100 * Math.max(0, diskNanos - stallNanos) / diskNanos);
+	}
+}
@@ -1,10 +1,16 @@
 package helpers;
 
+import java.net.DatagramPacket;
 import java.util.Arrays;
 
+import packet.AckView;
+import packet.DataView;
 import packet.ErrorPacket;
+import packet.ErrorView;
+import packet.OptionAckPacket;
 import packet.Packet;
 import packet.PacketFactory;
+import packet.PacketView;
 import packet.ReadPacket;
 import packet.ReadWritePacket;
 import packet.WritePacket;
@@ -58,7 +64,9 @@ public class BufferPrinter {
 	 */
 	public static void printPacket(Packet pb, Logger logger, RequestType requestType) {
 
-		PacketFactory pbf;
+		if (!printsVerbose(logger)) {
+			return;
+		}
 		RequestType currentPacket = RequestType.matchRequestByNumber(pb.getPacket().getData()[1]);
 		switch (requestType) {
 		case ACK:
@@ -79,6 +87,12 @@ public class BufferPrinter {
 			logger.print(Logger.VERBOSE, Strings.ERROR);
 			logger.print(Logger.VERBOSE, ((ErrorPacket) pb).getCustomPackageErrorMessage());
 			break;
+		case OACK:
+			logger.print(Logger.VERBOSE, "Expected: " + Strings.OACK_PACKET +  " and got " + currentPacket.getRequestTypeString());
+			if (pb instanceof OptionAckPacket) {
+				logger.print(Logger.VERBOSE, "Options : " + ((OptionAckPacket) pb).getOptions());
+			}
+			break;
 		case NONE:
 			logger.print(Logger.VERBOSE, Strings.NONE);
 			break;
@@ -100,6 +114,63 @@ public class BufferPrinter {
 			System.out.println();
 	}
 
+	/**
+	 * Prints a packet the PacketEncoder wrote, through a view made only when
+	 * the packet is printed.
+	 * 
+	 * @param packet		- the packet as it is sent
+	 * @param logger		- Logger level
+	 * @param requestType	- request type of the transfer
+	 */
+	public static void printPacket(DatagramPacket packet, Logger logger, RequestType requestType) {
+		if (!printsVerbose(logger)) {
+			return;
+		}
+		printPacket(new PacketFactory().getView(packet), logger, requestType);
+	}
+
+	/**
+	 * Prints a packet read through its view, the same way as printPacket()
+	 * prints a Packet.
+	 * 
+	 * @param view			- view of the packet from the PacketFactory
+	 * @param logger		- Logger level
+	 * @param requestType	- request type of the transfer
+	 */
+	public static void printPacket(PacketView view, Logger logger, RequestType requestType) {
+		if (!printsVerbose(logger)) {
+			return;
+		}
+		logger.print(Logger.VERBOSE, "Expected: " + requestType.getRequestTypeString() + " and got "
+				+ view.getRequestType().getRequestTypeString());
+		if (view instanceof ErrorView) {
+			logger.print(Logger.VERBOSE, ((ErrorView) view).getErrorMessage());
+		}
+		logger.print(Logger.VERBOSE, "IP Address : " + view.getAddress());
+		logger.print(Logger.VERBOSE, "Port : " + view.getPort());
+		if (view instanceof DataView) {
+			logger.print(Logger.VERBOSE, "Block # : " + ((DataView) view).getBlockNumber());
+		} else if (view instanceof AckView) {
+			logger.print(Logger.VERBOSE, "Block # : " + ((AckView) view).getBlockNumber());
+		}
+		byte[] vPacket = Arrays.copyOfRange(view.getBuffer(), view.getOffset(), view.getOffset() + view.getLength());
+		logger.print(Logger.VERBOSE, "Packet length : " + vPacket.length);
+		logger.print(Logger.VERBOSE, "Raw packet value : " + Arrays.toString(vPacket));
+		logger.print(Logger.VERBOSE, "String value : " + bufferToString(vPacket));
+		System.out.println();
+	}
+
+	/**
+	 * Only the VERBOSE and ERROR loggers print VERBOSE messages. The packets
+	 * are not formatted for the others, which would drop every line.
+	 * 
+	 * @param logger - Logger level
+	 * @return true if the packet lines would be printed
+	 */
+	private static boolean printsVerbose(Logger logger) {
+		return logger == Logger.VERBOSE || logger == Logger.ERROR;
+	}
+
 	/**
 	 * A utility function that converts a buffer into a string
 	 * 
@@ -1,7 +1,5 @@
 package helpers;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 /**
@@ -37,7 +35,7 @@ public class Conversion {
 	 * @return a two byte array representation of your short
 	 */
 	public static byte[] intToBytes(int value) {
-	    return ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putChar((char)value).array();
+	    return new byte[] { (byte) value, (byte) (value >>> 8) };
 	}
 	
 	/**
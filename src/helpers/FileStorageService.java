@@ -5,6 +5,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.PosixFilePermission;
@@ -35,6 +37,21 @@ public class FileStorageService {
 	private long mBytesProcessed = 0;
 	private String mDefaultStorageFolder = "";
 	private TFTPErrorMessage mLastMessage = null;
+	private int mBlockSize = Configurations.MAX_PAYLOAD_BUFFER;
+	private long mFileSize = 0;
+	private long mReservedSize = -1;
+	// Verified length of a partial file kept from a failed transfer and the
+	// size its sender announced, read beside the file when it is opened; -1
+	// when there is no partial file or the size was not announced
+	private long mRetainedLength = -1;
+	private long mRetainedFileSize = -1;
+	// Host the bytes of the partial file came from, and the host the bytes
+	// now written come from; null when not known
+	private String mRetainedSource = null;
+	private String mSource = null;
+	// Blocks are copied here to be written, the channel would otherwise copy
+	// every heap buffer it is handed into a direct one of its own
+	private ByteBuffer mWriteBuffer = null;
 
 	// File utility classes
 	RandomAccessFile mFile = null;
@@ -76,7 +93,9 @@ public class FileStorageService {
 		initializeFileServiceStorageLocation();
 		
 		//if client side initialized the transfer check if file already exists if so append file name with
-		if(instanceType == InstanceType.CLIENT && requestType == RequestType.RRQ){
+		//unless it is the partial file of an earlier read, which is resumed
+		if(instanceType == InstanceType.CLIENT && requestType == RequestType.RRQ
+				&& !isPartialFile(Paths.get(this.mDefaultStorageFolder, fileNameOrFilePath).toString())){
 			fileNameOrFilePath = incrementFileName(fileNameOrFilePath);
 		}
 		
@@ -175,12 +194,15 @@ public class FileStorageService {
 			this.mFilePath = Paths.get(this.mDefaultStorageFolder, this.mFileName).toString();
 		}
 		this.mBytesProcessed = 0;
+		readPartialRecord();
 
 		try {
 			this.mFile = new RandomAccessFile(this.mFilePath, "rw");
 			this.mFileChannel = this.mFile.getChannel();
+			this.mFileSize = this.mFile.length();
+			this.mRetainedLength = Math.min(this.mRetainedLength, this.mFileSize);
 
-			System.out.println("Opened a channel for a " + this.mFile.length() + " bytes long.");
+			System.out.println("Opened a channel for a " + this.mFileSize + " bytes long.");
 		} catch (IOException e) {
 			
 			if(e.getMessage().contains("No such file or directory")) {
@@ -195,13 +217,73 @@ public class FileStorageService {
 		}
 	}
 	
+	/**
+	 * Sets the size of the blocks read from and written to disk, once a block
+	 * size other than 512 bytes has been negotiated. A block shorter than this
+	 * size ends the file.
+	 * 
+	 * @param blockSize - the negotiated DATA payload size
+	 */
+	public void setBlockSize(int blockSize) {
+		this.mBlockSize = blockSize;
+	}
+	
+	/**
+	 * Gets the size the file had when its channel was opened, without asking
+	 * the file system again. Used to answer the tsize option of a RRQ.
+	 * 
+	 * @return long - size of the file in bytes
+	 */
+	public long getFileSize() {
+		return this.mFileSize;
+	}
+	
+	/**
+	 * Makes sure a file about to be received fits on the disk, and extends it
+	 * to its final size up front so the file system can lay it out in one
+	 * piece instead of growing it one block at a time. The file is cut back to
+	 * the bytes actually received once the last block is written.
+	 * 
+	 * @param transferSize - the size of the file announced with tsize
+	 * @throws DiskFullException if the free space is smaller than the file
+	 */
+	public void reserveSpace(long transferSize) throws DiskFullException {
+		long freeSpace = new File(this.mDefaultStorageFolder).getUsableSpace();
+		if(transferSize - this.mFileSize > freeSpace) {
+			throw new DiskFullException(String.format(Strings.TRANSFER_SIZE_EXCEEDED, transferSize, freeSpace));
+		}
+		try {
+			this.mFile.setLength(transferSize);
+			this.mReservedSize = transferSize;
+		} catch (IOException e) {
+			if(new File(this.mDefaultStorageFolder).getUsableSpace() < transferSize - this.mFileSize) {
+				throw new DiskFullException(String.format(Strings.TRANSFER_SIZE_EXCEEDED, transferSize, freeSpace));
+			}
+			// Not fatal, the file grows block by block instead
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Cuts off the part of a reserved file that was not received, in case the
+	 * sender announced more than it sent.
+	 * 
+	 * @throws IOException
+	 */
+	private void releaseUnusedSpace() throws IOException {
+		if(this.mReservedSize > this.mBytesProcessed) {
+			this.mFileChannel.truncate(this.mBytesProcessed);
+		}
+		this.mReservedSize = -1;
+	}
+	
 	/**
 	 * This function will save the byte buffer given by the TFTPPacket message segment and write
 	 * each block into disk. It remembers where the last segment left off and will return false
 	 * when the operation is done. It will return true if it thinks there is more buffer to write.
 	 * In such case, the server is meant to be getting a fileBuffer length zero to terminate.
 	 * 
-	 * @param fileBuffer - 512 bytes of file content sent over in the TFTPPacket
+	 * @param fileBuffer - one block of file content sent over in the TFTPPacket
 	 * @return boolean - if the file has been fully saved or not
 	 * @throws DiskFullException 
 	 */
@@ -213,33 +295,74 @@ public class FileStorageService {
 					this.mFileLock.release();
 				}
 				this.mFileLock  = null;
+				releaseUnusedSpace();
 				this.mFileChannel.force(false);
 				this.mFileChannel.close();
 				this.mFile.close();
+				discardPartialRecord();
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 			return false;
 		}
+		return saveFileByteBufferToDisk(fileBuffer, fileBuffer.length, fileBuffer.length < this.mBlockSize);
+	}
+	
+	/**
+	 * Saves the first bytes of a buffer as the next part of the file. Used
+	 * when what is written is not a DATA block as received, such as a
+	 * netascii block translated back into a buffer kept for the transfer, so
+	 * the length of the part does not tell if it ends the file.
+	 * 
+	 * @param fileBuffer - bytes of the file, may be longer than length
+	 * @param length - number of bytes to save
+	 * @param lastBlock - true if the part ends the file, which is then closed
+	 * @return boolean - if the file has been fully saved or not
+	 * @throws DiskFullException 
+	 */
+	public boolean saveFileByteBufferToDisk(byte[] fileBuffer, int length, boolean lastBlock) throws DiskFullException {
+		return saveFileByteBufferToDisk(fileBuffer, 0, length, lastBlock);
+	}
+	
+	/**
+	 * Saves a part of a buffer as the next part of the file, such as the
+	 * payload of a DATA block read in place from the buffer it was received
+	 * in.
+	 * 
+	 * @param fileBuffer - bytes of the file
+	 * @param offset - position of the first byte to save
+	 * @param length - number of bytes to save
+	 * @param lastBlock - true if the part ends the file, which is then closed
+	 * @return boolean - if the file has been fully saved or not
+	 * @throws DiskFullException 
+	 */
+	public boolean saveFileByteBufferToDisk(byte[] fileBuffer, int offset, int length, boolean lastBlock) throws DiskFullException {
 		int bytesWritten = 0;
-		// Try to write the bytes to disk by wrapping byte[] into a ByteBuffer
+		// Try to write the bytes to disk through the write buffer
 		try {
-			ByteBuffer wrappedBuffer = ByteBuffer.wrap(fileBuffer);
-			while(wrappedBuffer.hasRemaining()) {
-				bytesWritten += this.mFileChannel.write(wrappedBuffer, this.mBytesProcessed);
+			if (this.mWriteBuffer == null || this.mWriteBuffer.capacity() < length) {
+				this.mWriteBuffer = ByteBuffer.allocateDirect(Math.max(length, this.mBlockSize + 1));
+			}
+			this.mWriteBuffer.clear();
+			if (length > 0) {
+				this.mWriteBuffer.put(fileBuffer, offset, length);
+			}
+			this.mWriteBuffer.flip();
+			while(this.mWriteBuffer.hasRemaining()) {
+				bytesWritten += this.mFileChannel.write(this.mWriteBuffer, this.mBytesProcessed + bytesWritten);
 			}
 		} catch (IOException e) {
-			if (e.getMessage().contains("space")) { // weak i know but hopefully this is only temporary.
-				throw new DiskFullException("Attempted allocation exceeds remaining disk space. ("+ new File(this.mFilePath).getFreeSpace() +" remaining)");
+			long freeSpace = new File(this.mDefaultStorageFolder).getUsableSpace();
+			if (freeSpace < length || (e.getMessage() != null && e.getMessage().contains("space"))) {
+				throw new DiskFullException("Attempted allocation exceeds remaining disk space. ("+ freeSpace +" remaining)");
 			}
 			return false;
 		}
 		// Increment processed, next round, continue where we left off
 		this.mBytesProcessed += bytesWritten;
 		
-		// Check if we received a length zero
-		if(bytesWritten < Configurations.MAX_PAYLOAD_BUFFER) {
+		if(lastBlock) {
 			System.out.println(Strings.FILE_WRITE_COMPLETE);
 			try {
 				// Force the changes into disk, without force(false) we would write 
@@ -248,9 +371,11 @@ public class FileStorageService {
 					this.mFileLock.release();
 				}
 				this.mFileLock  = null;
+				releaseUnusedSpace();
 				this.mFileChannel.force(false);
 				this.mFileChannel.close();
 				this.mFile.close();
+				discardPartialRecord();
 			} catch (IOException e) {
 				System.out.println(Strings.FILE_CHANNEL_CLOSE_ERROR);
 				e.printStackTrace();
@@ -263,7 +388,7 @@ public class FileStorageService {
 	}
 	
 	/**
-	 * This function fills an array of bytes with 512 bytes of file content. The function remember the
+	 * This function fills an array of bytes with one block of file content. The function remember the
 	 * last position it left off so it may resume from that index when called again. The function 
 	 * will return false, where there is no more file to be read and true when there is still more.
 	 * Make sure this function ends before re-using this class
@@ -272,7 +397,7 @@ public class FileStorageService {
 	 * @return boolean - if there is or is not any more file content to buffer 
 	 */
 	public byte[] getFileByteBufferFromDisk() throws AccessDeniedException {
-		ByteBuffer fileBuffer = ByteBuffer.allocate(Configurations.MAX_PAYLOAD_BUFFER);
+		ByteBuffer fileBuffer = ByteBuffer.allocate(this.mBlockSize);
 		int bytesRead = 0;
 		try {
 			bytesRead = this.mFileChannel.read(fileBuffer, this.mBytesProcessed);
@@ -292,7 +417,7 @@ public class FileStorageService {
 		// Increment the total number number of bytes processed
 		this.mBytesProcessed += bytesRead;
 		// We determine if we reached the end of the file
-		if(bytesRead < Configurations.MAX_PAYLOAD_BUFFER) {
+		if(bytesRead < this.mBlockSize) {
 			// We found the end of the file, or something bad happened where we cannot
 			// read anymore of the file
 			System.out.println(Strings.FILE_WRITE_COMPLETE);
@@ -303,18 +428,124 @@ public class FileStorageService {
 				System.arraycopy(fileBuffer.array(), 0, lastBlock, 0, bytesRead);
 			}
 			
-			try {
-				this.mFileChannel.close();
-				this.mFile.close();
-			} catch (IOException e) {
-				System.out.println(Strings.FILE_CHANNEL_CLOSE_ERROR);
-				e.printStackTrace();
-			}
+			finishedReadingFile();
 			return lastBlock;
 		}
 		return fileBuffer.array();
 	}
 	
+	/**
+	 * Reads one block of the file by its position, without moving the point
+	 * where the sequential reads continue. Multicast transfers go back to
+	 * the blocks a new master client is missing this way.
+	 * 
+	 * @param blockIndex - position of the block in the file, from 1, not wrapped at 65535
+	 * @return byte[] - the block, shorter than the block size for the last one
+	 * @throws IOException 
+	 */
+	public byte[] readBlockFromDisk(long blockIndex) throws IOException {
+		byte[] fileBuffer = new byte[this.mBlockSize];
+		int bytesRead = readBlockIntoBuffer(blockIndex, fileBuffer);
+		if(bytesRead < this.mBlockSize) {
+			byte[] lastBlock = new byte[bytesRead];
+			System.arraycopy(fileBuffer, 0, lastBlock, 0, bytesRead);
+			return lastBlock;
+		}
+		return fileBuffer;
+	}
+	
+	/**
+	 * Reads one block of the file by its position into a buffer the caller
+	 * keeps, so that blocks read ahead of time do not allocate. Safe to call
+	 * from another thread than the one sending the file.
+	 * 
+	 * @param blockIndex - position of the block in the file, from 1, not wrapped at 65535
+	 * @param buffer - at least one block long
+	 * @return int - bytes read, less than the block size for the last block
+	 * @throws IOException 
+	 */
+	public int readBlockIntoBuffer(long blockIndex, byte[] buffer) throws IOException {
+		FileChannel fileChannel = this.mFileChannel;
+		if(fileChannel == null) {
+			throw new ClosedChannelException();
+		}
+		ByteBuffer fileBuffer = ByteBuffer.wrap(buffer, 0, this.mBlockSize);
+		long position = (blockIndex - 1) * this.mBlockSize;
+		try {
+			while(fileBuffer.hasRemaining()) {
+				int bytesRead = fileChannel.read(fileBuffer, position + fileBuffer.position());
+				if(bytesRead == -1) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if(e.getMessage() != null && e.getMessage().contains("The process cannot access the file because another process has locked a portion of the file")) {
+				throw new AccessDeniedException("The file you're currently trying to read is in the process of being written. Please try again later.");
+			}
+			throw e;
+		}
+		return fileBuffer.position();
+	}
+	
+	/**
+	 * Closes the file once its last block has been read. The service keeps
+	 * its state, so finishedTransferingFile() may still be called after.
+	 */
+	public void finishedReadingFile() {
+		try {
+			this.mFileChannel.close();
+			this.mFile.close();
+		} catch (IOException e) {
+			System.out.println(Strings.FILE_CHANNEL_CLOSE_ERROR);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes one block of the file by its position, for blocks that may
+	 * arrive out of order or more than once.
+	 * 
+	 * @param blockIndex - position of the block in the file, from 1, not wrapped at 65535
+	 * @param fileBuffer - the block content
+	 * @throws DiskFullException 
+	 * @throws IOException 
+	 */
+	public void writeBlockToDisk(long blockIndex, byte[] fileBuffer) throws DiskFullException, IOException {
+		long position = (blockIndex - 1) * this.mBlockSize;
+		try {
+			ByteBuffer wrappedBuffer = ByteBuffer.wrap(fileBuffer);
+			while(wrappedBuffer.hasRemaining()) {
+				this.mFileChannel.write(wrappedBuffer, position + wrappedBuffer.position());
+			}
+		} catch (IOException e) {
+			long freeSpace = new File(this.mDefaultStorageFolder).getUsableSpace();
+			if (freeSpace < fileBuffer.length || (e.getMessage() != null && e.getMessage().contains("space"))) {
+				throw new DiskFullException("Attempted allocation exceeds remaining disk space. ("+ freeSpace +" remaining)");
+			}
+			throw e;
+		}
+		this.mBytesProcessed = Math.max(this.mBytesProcessed, position + fileBuffer.length);
+	}
+	
+	/**
+	 * Ends a file written by position: cuts it to its final length, forces
+	 * it to disk and closes the channel.
+	 * 
+	 * @param fileLength - length of the complete file
+	 */
+	public void completeFile(long fileLength) {
+		try {
+			this.mFileChannel.truncate(fileLength);
+			this.mFileChannel.force(false);
+		} catch (IOException e) {
+			System.out.println(Strings.FILE_CHANNEL_CLOSE_ERROR);
+			e.printStackTrace();
+		}
+		System.out.println(Strings.FILE_WRITE_COMPLETE);
+		this.finishedTransferingFile();
+		discardPartialRecord();
+	}
+	
 	/**
 	 * Static method that can be used to check if a file exists within the TFTP system 
 	 * 
@@ -386,7 +617,9 @@ public class FileStorageService {
 	
 	/** Deletes file from disk*/
 	public void deleteFileFromDisk(){
-		this.finishedTransferingFile();
+		if(this.mFileChannel != null) {
+			this.finishedTransferingFile();
+		}
 		File f = new File(this.mFilePath);
 		System.out.println(Strings.DELETE_FILE +this.mFilePath);
 		if(f.exists()) {
@@ -394,5 +627,201 @@ public class FileStorageService {
 		} else {
 			System.err.println("Tried to delete a file that does not exist.");
 		}
+		discardPartialRecord();
+	}
+	
+	/**
+	 * Keeps the part of a file received in order before its transfer failed,
+	 * so that a later transfer can resume after it instead of starting over.
+	 * Every receive that fails ends its file here, whatever the failure, so
+	 * a partial file kept from an earlier transfer is never lost to a retry
+	 * that failed as well. Only a complete file its sender rejected is
+	 * deleted outright, nothing in it can be trusted.
+	 */
+	public void retainPartialFile() {
+		retainPartialFile(this.mRetainedLength >= 0 ? this.mRetainedLength : this.mBytesProcessed);
+	}
+	
+	/**
+	 * Keeps the first bytes of a file, for a file written out of order where
+	 * only the blocks up to the first gap are verified. The file is cut back
+	 * to the verified bytes, forced to disk, and only then is their length
+	 * written beside it with the size of the whole file and the host they
+	 * came from, so a crash cannot leave a record longer than the data. A
+	 * file with nothing verified is deleted.
+	 * 
+	 * @param verifiedLength - bytes received in order from the start
+	 */
+	public void retainPartialFile(long verifiedLength) {
+		if(verifiedLength <= 0) {
+			deleteFileFromDisk();
+			return;
+		}
+		if(this.mFileChannel != null) {
+			this.finishedTransferingFile();
+		}
+		long fileSize = this.mReservedSize >= 0 ? this.mReservedSize : this.mRetainedFileSize;
+		// Bytes kept untouched from the earlier transfer are still its own
+		String source = this.mRetainedLength >= 0 ? this.mRetainedSource : this.mSource;
+		try {
+			RandomAccessFile file = new RandomAccessFile(this.mFilePath, "rw");
+			try {
+				file.setLength(verifiedLength);
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+			// Written aside then moved over the old record in one step
+			Path record = Paths.get(this.mFilePath + Configurations.PARTIAL_FILE_SUFFIX);
+			Path pending = Paths.get(this.mFilePath + Configurations.PARTIAL_FILE_SUFFIX + ".tmp");
+			Files.write(pending, (verifiedLength + " " + fileSize + " " + (source == null ? "-" : source))
+					.getBytes(StandardCharsets.US_ASCII));
+			Files.move(pending, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println(String.format(Strings.PARTIAL_FILE_KEPT, verifiedLength, this.mFileName));
+		} catch (IOException e) {
+			System.out.println(Strings.FILE_CHANNEL_CLOSE_ERROR);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Goes on writing a partial file after its first bytes, once the sender
+	 * agreed to skip them. What is past them was never verified and is cut
+	 * off, unless the file was just extended to its announced size. The
+	 * record beside the file stays until the file is complete, so it still
+	 * holds if this transfer fails as well.
+	 * 
+	 * @param offset - bytes already received, 0 to receive the file again
+	 * @throws IOException 
+	 */
+	public void resumeWritingAt(long offset) throws IOException {
+		if(this.mReservedSize < 0) {
+			this.mFileChannel.truncate(offset);
+		}
+		this.mBytesProcessed = offset;
+		this.mRetainedLength = -1;
+	}
+	
+	/**
+	 * Gets the verified length of the partial file kept from a failed
+	 * transfer, read when the file was opened.
+	 * 
+	 * @return long - bytes that can be skipped, -1 if the file is not partial
+	 */
+	public long getRetainedLength() {
+		return this.mRetainedLength;
+	}
+	
+	/**
+	 * Gets the size the sender announced for a partial file, to tell whether
+	 * the file changed since its first part was received.
+	 * 
+	 * @return long - size of the whole file, -1 if unknown
+	 */
+	public long getRetainedFileSize() {
+		return this.mRetainedFileSize;
+	}
+	
+	/**
+	 * Gets the host the part of a partial file came from, so that only the
+	 * same host may add to it.
+	 * 
+	 * @return String - host address, null if not known
+	 */
+	public String getRetainedSource() {
+		return this.mRetainedSource;
+	}
+	
+	/**
+	 * Sets the host the bytes written to this file come from, recorded with
+	 * the part kept if the transfer fails.
+	 * 
+	 * @param source - host address of the sender
+	 */
+	public void setSource(String source) {
+		this.mSource = source;
+	}
+	
+	/**
+	 * Static method that can be used to check if a file was left partial by a
+	 * failed transfer, and may only be resumed, not read.
+	 * 
+	 * @param filePathName
+	 * @return boolean - if the file has a partial file record beside it
+	 */
+	public static boolean isPartialFile(String filePathName) {
+		return new File(filePathName + Configurations.PARTIAL_FILE_SUFFIX).exists();
+	}
+	
+	/**
+	 * Static method that deletes a partial file, and its record, that nobody
+	 * resumed for Configurations.PARTIAL_FILE_EXPIRY. A record is written
+	 * again each time a transfer of the file fails, so the time runs from
+	 * the last attempt.
+	 * 
+	 * @param filePathName
+	 * @return boolean - if the file was partial and has been deleted
+	 */
+	public static boolean expirePartialFile(String filePathName) {
+		File record = new File(filePathName + Configurations.PARTIAL_FILE_SUFFIX);
+		if(!record.exists()
+				|| System.currentTimeMillis() - record.lastModified() < Configurations.PARTIAL_FILE_EXPIRY) {
+			return false;
+		}
+		new File(filePathName).delete();
+		record.delete();
+		System.out.println(String.format(Strings.PARTIAL_FILE_EXPIRED, filePathName));
+		return true;
+	}
+	
+	/**
+	 * Static method that deletes every partial file of a folder that has
+	 * expired, for those no request names again.
+	 * 
+	 * @param folder - the storage folder
+	 */
+	public static void expirePartialFiles(String folder) {
+		File[] records = new File(folder).listFiles(
+				(directory, name) -> name.endsWith(Configurations.PARTIAL_FILE_SUFFIX));
+		if(records == null) {
+			return;
+		}
+		for(File record : records) {
+			String path = record.getPath();
+			expirePartialFile(path.substring(0, path.length() - Configurations.PARTIAL_FILE_SUFFIX.length()));
+		}
+	}
+	
+	/**
+	 * Reads the record kept beside a partial file: its verified length, the
+	 * size of the whole file or -1, then the host it came from or -.
+	 */
+	private void readPartialRecord() {
+		this.mRetainedLength = -1;
+		this.mRetainedFileSize = -1;
+		this.mRetainedSource = null;
+		Path record = Paths.get(this.mFilePath + Configurations.PARTIAL_FILE_SUFFIX);
+		if(!Files.exists(record)) {
+			return;
+		}
+		try {
+			String[] values = new String(Files.readAllBytes(record), StandardCharsets.US_ASCII).trim().split(" ");
+			this.mRetainedLength = Long.parseLong(values[0]);
+			this.mRetainedFileSize = values.length > 1 ? Long.parseLong(values[1]) : -1;
+			this.mRetainedSource = values.length > 2 && !values[2].equals("-") ? values[2] : null;
+		} catch (IOException | NumberFormatException e) {
+			// A record that cannot be read verifies nothing
+			this.mRetainedLength = 0;
+		}
+	}
+	
+	/**
+	 * Removes the record beside a file that is now complete or deleted.
+	 */
+	private void discardPartialRecord() {
+		File record = new File(this.mFilePath + Configurations.PARTIAL_FILE_SUFFIX);
+		if(record.exists()) {
+			record.delete();
+		}
 	}
 }
\ No newline at end of file
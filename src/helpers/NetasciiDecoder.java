@@ -0,0 +1,103 @@
+package helpers;
+
+/**
+ * @author Team 3
+ *
+ *         Turns netascii DATA blocks back into the bytes of a text file as
+ *         they are received. CR LF becomes the local line feed and CR NUL a
+ *         bare carriage return. A CR followed by anything else is kept as it
+ *         is, some senders do not escape it.
+ *
+ *         A CR that ends a block cannot be decoded until the next block shows
+ *         what follows it, so it is held back in between. A block therefore
+ *         decodes to at most one byte more than its length, counting the CR
+ *         written by finish() after the last block. Nothing is allocated once
+ *         the decoder is made.
+ */
+public class NetasciiDecoder {
+
+	// A CR ended the last block and has not been written yet
+	private boolean mPendingCR = false;
+
+	/**
+	 * Decodes one block.
+	 *
+	 * @param block
+	 *            - buffer holding the DATA payload, may be null for an empty
+	 *            block
+	 * @param offset
+	 *            - position of the payload in the buffer
+	 * @param length
+	 *            - bytes of the payload
+	 * @param output
+	 *            - where the file bytes go, at least length + 1 bytes long
+	 * @return number of file bytes written from the start of output
+	 */
+	public int decode(byte[] block, int offset, int length, byte[] output) {
+		int vOut = 0;
+		int vIn = offset;
+		int vEnd = offset + length;
+		if (this.mPendingCR && length > 0) {
+			this.mPendingCR = false;
+			vIn = offset + 1;
+			if (block[offset] == NetasciiEncoder.LF) {
+				output[vOut++] = NetasciiEncoder.LF;
+			} else {
+				output[vOut++] = NetasciiEncoder.CR;
+				if (block[offset] != NetasciiEncoder.NUL) {
+					vIn = offset;
+				}
+			}
+		}
+		while (vIn < vEnd) {
+			// Bytes up to the next CR are copied as they are
+			int vScan = vIn;
+			while (vScan < vEnd && block[vScan] != NetasciiEncoder.CR) {
+				++vScan;
+			}
+			int vRun = vScan - vIn;
+			if (vRun > 0) {
+				System.arraycopy(block, vIn, output, vOut, vRun);
+				vOut += vRun;
+			}
+			if (vScan == vEnd) {
+				break;
+			}
+			if (vScan + 1 == vEnd) {
+				// What follows the CR comes with the next block
+				this.mPendingCR = true;
+				break;
+			}
+			byte vNext = block[vScan + 1];
+			if (vNext == NetasciiEncoder.LF) {
+				output[vOut++] = NetasciiEncoder.LF;
+				vIn = vScan + 2;
+			} else if (vNext == NetasciiEncoder.NUL) {
+				output[vOut++] = NetasciiEncoder.CR;
+				vIn = vScan + 2;
+			} else {
+				output[vOut++] = NetasciiEncoder.CR;
+				vIn = vScan + 1;
+			}
+		}
+		return vOut;
+	}
+
+	/**
+	 * Writes a CR still held back once the last block has been decoded.
+	 *
+	 * @param output
+	 *            - where the file bytes go
+	 * @param offset
+	 *            - position after the bytes of the last block
+	 * @return number of bytes written, 0 or 1
+	 */
+	public int finish(byte[] output, int offset) {
+		if (!this.mPendingCR) {
+			return 0;
+		}
+		this.mPendingCR = false;
+		output[offset] = NetasciiEncoder.CR;
+		return 1;
+	}
+}
@@ -0,0 +1,101 @@
+package helpers;
+
+/**
+ * @author Team 3
+ *
+ *         Turns the bytes of a text file into netascii as it is sent, one
+ *         DATA block at a time. A line feed goes out as CR LF and a bare
+ *         carriage return as CR NUL, so the file is read back byte for byte
+ *         by the netascii decoder. Local files end their lines with LF.
+ *
+ *         A line ending may be cut by the end of a block: its CR ends one
+ *         block and the byte after it starts the next one. The encoder keeps
+ *         that byte between the calls, so the blocks it fills are not aligned
+ *         with the blocks of the file it reads. Nothing is allocated once the
+ *         encoder is made, it reads from and writes to the callers' buffers.
+ */
+public class NetasciiEncoder {
+
+	public static final byte CR = '\r';
+	public static final byte LF = '\n';
+	public static final byte NUL = 0;
+
+	private byte[] mInput = null;
+	private int mInputPosition = 0;
+	private int mInputEnd = 0;
+	// Second byte of a pair whose CR ended the last block, -1 if none
+	private int mPending = -1;
+
+	/**
+	 * Hands the next bytes of the file to the encoder. They are read in
+	 * place, so the buffer must be left alone until needsInput() is true.
+	 *
+	 * @param input
+	 *            - bytes of the file, may be null at the end of the file
+	 * @param length
+	 *            - number of bytes to encode from the start of the buffer
+	 */
+	public void setInput(byte[] input, int length) {
+		this.mInput = input;
+		this.mInputPosition = 0;
+		this.mInputEnd = input == null ? 0 : length;
+	}
+
+	/**
+	 * @return true once every byte handed in has been encoded, including the
+	 *         second byte of a line ending cut by a block
+	 */
+	public boolean needsInput() {
+		return this.mPending < 0 && this.mInputPosition == this.mInputEnd;
+	}
+
+	/**
+	 * Encodes as many bytes as fit in a part of a block.
+	 *
+	 * @param block
+	 *            - the block being filled
+	 * @param offset
+	 *            - where to start writing
+	 * @param length
+	 *            - bytes left in the block
+	 * @return number of bytes written, less than length only if the encoder
+	 *         needs more input
+	 */
+	public int encode(byte[] block, int offset, int length) {
+		int vOut = offset;
+		int vEnd = offset + length;
+		if (this.mPending >= 0 && vOut < vEnd) {
+			block[vOut++] = (byte) this.mPending;
+			this.mPending = -1;
+		}
+		byte[] vInput = this.mInput;
+		int vIn = this.mInputPosition;
+		int vInputEnd = this.mInputEnd;
+		while (vOut < vEnd && vIn < vInputEnd) {
+			// Bytes up to the next line ending are copied as they are
+			int vScanEnd = vIn + Math.min(vEnd - vOut, vInputEnd - vIn);
+			int vScan = vIn;
+			while (vScan < vScanEnd && vInput[vScan] != LF && vInput[vScan] != CR) {
+				++vScan;
+			}
+			int vRun = vScan - vIn;
+			if (vRun > 0) {
+				System.arraycopy(vInput, vIn, block, vOut, vRun);
+				vIn += vRun;
+				vOut += vRun;
+			}
+			if (vScan == vScanEnd) {
+				continue;
+			}
+			byte vSecond = vInput[vIn++] == LF ? LF : NUL;
+			block[vOut++] = CR;
+			if (vOut < vEnd) {
+				block[vOut++] = vSecond;
+			} else {
+				this.mPending = vSecond;
+			}
+		}
+		this.mInputPosition = vIn;
+		return vOut - offset;
+	}
+}
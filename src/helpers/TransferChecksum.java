@@ -0,0 +1,167 @@
+package helpers;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * @author Team 3
+ *
+ *         The checksum of the file bytes a transfer moved, agreed with the
+ *         checksum option. The sender updates it as the blocks of the file
+ *         are read and the receiver as they are written, so nobody reads the
+ *         file a second time to check it. The receiver hands its digest back
+ *         with the final ACK and the sender compares the two.
+ *
+ *         CRC32C is preferred, it is computed with the CPU's CRC instruction
+ *         where there is one, but it only exists from Java 9 on and is looked
+ *         up at run time. CRC32 is always there.
+ */
+public class TransferChecksum {
+
+	public static final String CRC32C = "crc32c";
+	public static final String CRC32 = "crc32";
+	// Bytes of a digest on the wire, both methods give 32 bits
+	public static final int DIGEST_LENGTH = 4;
+
+	private static final Constructor<? extends Checksum> CRC32C_CONSTRUCTOR = findCrc32c();
+
+	private final String mMethod;
+	private final Checksum mChecksum;
+
+	private TransferChecksum(String method, Checksum checksum) {
+		this.mMethod = method;
+		this.mChecksum = checksum;
+	}
+
+	/**
+	 * @param method
+	 *            - name of the method as in the checksum option
+	 * @return a new checksum, or null if this JVM does not have the method
+	 */
+	public static TransferChecksum create(String method) {
+		if (method == null) {
+			return null;
+		}
+		if (method.equalsIgnoreCase(CRC32)) {
+			return new TransferChecksum(CRC32, new CRC32());
+		}
+		if (method.equalsIgnoreCase(CRC32C) && CRC32C_CONSTRUCTOR != null) {
+			try {
+				return new TransferChecksum(CRC32C, CRC32C_CONSTRUCTOR.newInstance());
+			} catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value of a checksum option asking for the methods this JVM
+	 *         has, best first
+	 */
+	public static String getOffer() {
+		return CRC32C_CONSTRUCTOR != null ? CRC32C + "," + CRC32 : CRC32;
+	}
+
+	/**
+	 * Picks the method of a checksum option, a list of methods separated by
+	 * commas in order of preference.
+	 *
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return the first method of the list this JVM has, or null if none
+	 */
+	public static String choose(String value) {
+		if (value == null) {
+			return null;
+		}
+		for (String method : value.split(",")) {
+			TransferChecksum checksum = create(method.trim());
+			if (checksum != null) {
+				return checksum.getMethod();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param method
+	 *            - a method acknowledged by the peer
+	 * @param value
+	 *            - the checksum option we sent
+	 * @return true if the method is one we asked for
+	 */
+	public static boolean isOffered(String method, String value) {
+		for (String offered : value.split(",")) {
+			if (offered.trim().equalsIgnoreCase(method)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the next bytes of the file.
+	 *
+	 * @param buffer
+	 *            - bytes of the file
+	 * @param offset
+	 *            - first byte to add
+	 * @param length
+	 *            - number of bytes to add
+	 */
+	public void update(byte[] buffer, int offset, int length) {
+		this.mChecksum.update(buffer, offset, length);
+	}
+
+	/**
+	 * @return the checksum of the bytes added so far
+	 */
+	public int getDigest() {
+		return (int) this.mChecksum.getValue();
+	}
+
+	public String getMethod() {
+		return this.mMethod;
+	}
+
+	/**
+	 * Writes a digest in network byte order.
+	 *
+	 * @param digest
+	 *            - the digest
+	 * @param buffer
+	 *            - where to write it
+	 * @param offset
+	 *            - position of its first byte
+	 */
+	public static void writeDigest(int digest, byte[] buffer, int offset) {
+		buffer[offset] = (byte) (digest >>> 24);
+		buffer[offset + 1] = (byte) (digest >>> 16);
+		buffer[offset + 2] = (byte) (digest >>> 8);
+		buffer[offset + 3] = (byte) digest;
+	}
+
+	/**
+	 * Reads a digest written by writeDigest().
+	 *
+	 * @param buffer
+	 *            - where to read it
+	 * @param offset
+	 *            - position of its first byte
+	 * @return the digest
+	 */
+	public static int readDigest(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16 | (buffer[offset + 2] & 0xFF) << 8
+				| (buffer[offset + 3] & 0xFF);
+	}
+
+	private static Constructor<? extends Checksum> findCrc32c() {
+		try {
+			return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
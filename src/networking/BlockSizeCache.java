@@ -0,0 +1,193 @@
+package networking;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import resource.Configurations;
+import resource.Tuple;
+
+/**
+ * @author Team 3
+ *
+ *         The block size the client asks each server for, the largest one
+ *         whose DATA packets reach it or come back from it in one IP
+ *         fragment. One lost fragment loses the whole block, so a block that
+ *         is fragmented on the way makes the transfer crawl or, where the
+ *         fragments are dropped, never gets through at all.
+ *
+ *         A server we know nothing of is asked for the largest block the
+ *         interface towards it carries unfragmented. When no block of that
+ *         size gets through, the client falls back to the next path MTU of
+ *         the RFC 1191 plateau table and asks again, down to the plain 512
+ *         bytes. The size that worked is kept per server address in memory
+ *         and in a file in the client folder, so later requests start from
+ *         it. An entry expires after a while, in case the path got better.
+ */
+public class BlockSizeCache {
+
+	// Common path MTUs, from RFC 1191, that a block size falls back to
+	private static final int[] PLATEAU_MTUS = { 65535, 32000, 17914, 8166, 4352, 2002, 1492, 1280, 1006, 576 };
+
+	// Block size and when it was found for each server address
+	private static Map<String, Tuple<Integer, Long>> sEntries = null;
+
+	/**
+	 * @param server
+	 *            - address of the server
+	 * @param port
+	 *            - port the request goes to
+	 * @return the block size to ask the server for
+	 */
+	public static synchronized int getBlockSize(InetAddress server, int port) {
+		Tuple<Integer, Long> vEntry = getEntries().get(server.getHostAddress());
+		if (vEntry != null
+				&& System.currentTimeMillis() - vEntry.second < Configurations.BLOCK_SIZE_CACHE_EXPIRY) {
+			return vEntry.first;
+		}
+		return getFirstHopBlockSize(server, port);
+	}
+
+	/**
+	 * Keeps a block size a full block of the transfer got through with.
+	 *
+	 * @param server
+	 *            - address of the server
+	 * @param blockSize
+	 *            - the block size
+	 */
+	public static synchronized void confirm(InetAddress server, int blockSize) {
+		Tuple<Integer, Long> vEntry = getEntries().get(server.getHostAddress());
+		if (vEntry != null && vEntry.first == blockSize
+				&& System.currentTimeMillis() - vEntry.second < Configurations.BLOCK_SIZE_CACHE_EXPIRY / 2) {
+			// Still fresh, spare the disk
+			return;
+		}
+		record(server, blockSize);
+	}
+
+	/**
+	 * Gives up on a block size no block got through with and keeps the next
+	 * smaller one for the server.
+	 *
+	 * @param server
+	 *            - address of the server
+	 * @param blockSize
+	 *            - the block size that failed
+	 * @return the block size to ask for next, 512 once none is left
+	 */
+	public static synchronized int fallBack(InetAddress server, int blockSize) {
+		int vNext = Configurations.MAX_PAYLOAD_BUFFER;
+		for (int vMtu : PLATEAU_MTUS) {
+			int vBlockSize = Math.min(vMtu - getHeaderBytes(server), Configurations.MAX_BLOCK_SIZE);
+			if (vBlockSize < blockSize && vBlockSize > Configurations.MAX_PAYLOAD_BUFFER) {
+				vNext = vBlockSize;
+				break;
+			}
+		}
+		record(server, vNext);
+		return vNext;
+	}
+
+	/**
+	 * Finds the interface the packets to the server leave from. Connecting a
+	 * datagram socket only picks the route, nothing is sent.
+	 *
+	 * @return the largest block that interface carries in one packet, or
+	 *         CLIENT_BLOCK_SIZE if its MTU cannot be found
+	 */
+	private static int getFirstHopBlockSize(InetAddress server, int port) {
+		DatagramSocket vSocket = null;
+		try {
+			vSocket = new DatagramSocket();
+			vSocket.connect(server, port);
+			NetworkInterface vInterface = NetworkInterface.getByInetAddress(vSocket.getLocalAddress());
+			if (vInterface == null || vInterface.getMTU() <= getHeaderBytes(server)) {
+				return Configurations.CLIENT_BLOCK_SIZE;
+			}
+			return Math.min(vInterface.getMTU() - getHeaderBytes(server), Configurations.MAX_BLOCK_SIZE);
+		} catch (IOException e) {
+			return Configurations.CLIENT_BLOCK_SIZE;
+		} finally {
+			if (vSocket != null) {
+				vSocket.close();
+			}
+		}
+	}
+
+	/**
+	 * @return bytes of a DATA packet on the wire besides its payload: the IP
+	 *         and UDP headers and the DATA header
+	 */
+	private static int getHeaderBytes(InetAddress server) {
+		int vIpHeader = server instanceof Inet6Address ? Configurations.IPV6_HEADER_SIZE
+				: Configurations.IPV4_HEADER_SIZE;
+		return vIpHeader + Configurations.UDP_HEADER_SIZE + Configurations.LEN_ACK_PACKET_BUFFER;
+	}
+
+	private static void record(InetAddress server, int blockSize) {
+		getEntries().put(server.getHostAddress(), new Tuple<Integer, Long>(blockSize, System.currentTimeMillis()));
+		save();
+	}
+
+	/**
+	 * Reads the cache file on first use, one "address blocksize time" line
+	 * per server.
+	 */
+	private static Map<String, Tuple<Integer, Long>> getEntries() {
+		if (sEntries != null) {
+			return sEntries;
+		}
+		sEntries = new HashMap<String, Tuple<Integer, Long>>();
+		Path vFile = Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, Configurations.BLOCK_SIZE_CACHE_FILE);
+		if (!Files.exists(vFile)) {
+			return sEntries;
+		}
+		try {
+			for (String vLine : Files.readAllLines(vFile, StandardCharsets.US_ASCII)) {
+				String[] vValues = vLine.trim().split(" ");
+				if (vValues.length != 3) {
+					continue;
+				}
+				try {
+					sEntries.put(vValues[0],
+							new Tuple<Integer, Long>(Integer.parseInt(vValues[1]), Long.parseLong(vValues[2])));
+				} catch (NumberFormatException e) {
+					// A line that cannot be read is found again
+				}
+			}
+		} catch (IOException e) {
+			// The cache only saves probing, start without it
+		}
+		return sEntries;
+	}
+
+	/**
+	 * Writes the cache file aside and moves it over the old one in one step.
+	 */
+	private static void save() {
+		StringBuilder vLines = new StringBuilder();
+		for (Map.Entry<String, Tuple<Integer, Long>> vEntry : sEntries.entrySet()) {
+			vLines.append(vEntry.getKey()).append(' ').append(vEntry.getValue().first).append(' ')
+					.append(vEntry.getValue().second).append('\n');
+		}
+		Path vFile = Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY, Configurations.BLOCK_SIZE_CACHE_FILE);
+		Path vPending = Paths.get(Configurations.CLIENT_ROOT_FILE_DIRECTORY,
+				Configurations.BLOCK_SIZE_CACHE_FILE + ".tmp");
+		try {
+			Files.write(vPending, vLines.toString().getBytes(StandardCharsets.US_ASCII));
+			Files.move(vPending, vFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// Kept in memory for this run only
+		}
+	}
+}
@@ -5,17 +5,24 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.file.AccessDeniedException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.ZipException;
 
 import helpers.BufferPrinter;
 import helpers.FileStorageService;
+import helpers.TransferChecksum;
 import packet.AckPacket;
 import packet.DataPacket;
+import packet.OptionAckPacket;
 import packet.ReadPacket;
 import packet.ReadWritePacket;
 import packet.WritePacket;
@@ -43,6 +50,24 @@ public class ClientNetworking extends TFTPNetworking {
 
 	private HashSet<String> textExtensions = new HashSet<String>(Arrays.asList("txt", "java", "c", "h", "cc"));
 	private InetAddress mAddressToSendTo;
+	private int mRequestedBlockSize = Configurations.CLIENT_BLOCK_SIZE;
+	// Ask for the largest block the path to the server carries unfragmented
+	private boolean mDiscoverBlockSize = Configurations.CLIENT_DISCOVER_BLOCK_SIZE;
+	// Block size tried until a first block gets through, 0 when not probing
+	private int mProbedBlockSize = 0;
+	// Set when the transfer was given up because no block got through
+	private boolean mBlockSizeLost = false;
+	private int mRequestedWindowSize = Configurations.CLIENT_WINDOW_SIZE;
+	// Seconds asked for with the timeout option, 0 to measure the timeout
+	private int mRequestedTimeout = 0;
+	private boolean mRequestMulticast = Configurations.CLIENT_REQUEST_MULTICAST;
+	private boolean mRequestCompression = Configurations.CLIENT_REQUEST_COMPRESSION;
+	private boolean mRequestChecksum = Configurations.CLIENT_REQUEST_CHECKSUM;
+	// Group the server distributes the file to, null for a unicast transfer
+	private InetSocketAddress mMulticastGroup = null;
+	private boolean mMulticastMaster = false;
+	// Set when the server makes this client master, the ACK is then due
+	private boolean mMasterAckDue = false;
 	
 	/**
 	 * See constructor from TFTPNetworking
@@ -65,6 +90,379 @@ public class ClientNetworking extends TFTPNetworking {
 		super(p, s, InstanceType.CLIENT);
 	}
 	
+	/**
+	 * Sets the block size asked for with the blksize option of the next
+	 * request. Asking for 512 bytes sends the request without options, as
+	 * servers that do not know RFC 2348 expect. The block size is then no
+	 * longer discovered.
+	 * 
+	 * @param blockSize
+	 *            - DATA payload size to ask the server for
+	 */
+	public void setRequestedBlockSize(int blockSize) {
+		this.mRequestedBlockSize = blockSize;
+		this.mDiscoverBlockSize = false;
+	}
+
+	/**
+	 * Tells whether the transfer was given up because no block of the size
+	 * asked for got through. The smaller size to ask for next is cached, the
+	 * request should be sent again from a new ClientNetworking.
+	 * 
+	 * @return true if the request should be sent again
+	 */
+	public boolean isBlockSizeLost() {
+		return this.mBlockSizeLost;
+	}
+
+	/**
+	 * Sets the number of blocks per window asked for with the windowsize
+	 * option of the next request. Asking for 1 leaves the option out and
+	 * keeps plain lock step transfers.
+	 * 
+	 * @param windowSize
+	 *            - blocks the sender may have in flight
+	 */
+	public void setRequestedWindowSize(int windowSize) {
+		this.mRequestedWindowSize = windowSize;
+	}
+
+	/**
+	 * Sets the timeout asked for with the timeout option of the next request.
+	 * Without it both sides measure the round trip time and set their own
+	 * timeout from it.
+	 * 
+	 * @param seconds
+	 *            - timeout from 1 to 255 seconds, 0 to leave the option out
+	 */
+	public void setRequestedTimeout(int seconds) {
+		this.mRequestedTimeout = seconds;
+	}
+
+	/**
+	 * Asks for the file to be read with the RFC 2090 multicast option, so
+	 * that clients reading it at the same time share one distribution.
+	 * 
+	 * @param multicast
+	 *            - true to add the multicast option to read requests
+	 */
+	public void setRequestMulticast(boolean multicast) {
+		this.mRequestMulticast = multicast;
+	}
+
+	/**
+	 * Asks for the DATA blocks to be deflated with the compress option, for
+	 * files that compress well.
+	 * 
+	 * @param compression
+	 *            - true to add the compress option to requests
+	 */
+	public void setRequestCompression(boolean compression) {
+		this.mRequestCompression = compression;
+	}
+
+	/**
+	 * Asks for the file to be checked end to end with the checksum option.
+	 * 
+	 * @param checksum
+	 *            - true to add the checksum option to requests
+	 */
+	public void setRequestChecksum(boolean checksum) {
+		this.mRequestChecksum = checksum;
+	}
+
+	/**
+	 * Adds the options this client asks for to a request
+	 * 
+	 * @param request
+	 *            - RRQ or WRQ about to be built
+	 */
+	private void addRequestOptions(ReadWritePacket request) {
+		if (this.mRequestedBlockSize != Configurations.MAX_PAYLOAD_BUFFER) {
+			request.setOption(Configurations.OPTION_BLOCK_SIZE, Integer.toString(this.mRequestedBlockSize));
+		}
+		if (this.mRequestedWindowSize != 1) {
+			request.setOption(Configurations.OPTION_WINDOW_SIZE, Integer.toString(this.mRequestedWindowSize));
+		}
+		if (this.mRequestedTimeout != 0) {
+			request.setOption(Configurations.OPTION_TIMEOUT, Integer.toString(this.mRequestedTimeout));
+		}
+		// A WRQ tells the size of the file, a RRQ asks for it with 0
+		long transferSize = request.getRequestType() == RequestType.WRQ ? storage.getFileSize() : 0;
+		request.setOption(Configurations.OPTION_TRANSFER_SIZE, Long.toString(transferSize));
+		if (this.mRequestMulticast && request.getRequestType() == RequestType.RRQ) {
+			request.setOption(Configurations.OPTION_MULTICAST, "");
+		}
+		if (this.mRequestCompression && !isNetascii()) {
+			request.setOption(Configurations.OPTION_COMPRESSION, Configurations.COMPRESSION_DEFLATE);
+		}
+		if (this.mRequestChecksum) {
+			request.setOption(Configurations.OPTION_CHECKSUM, TransferChecksum.getOffer());
+		}
+		if (Configurations.CLIENT_RESUME_TRANSFERS && !isNetascii()) {
+			// A RRQ offers the part kept from a failed read, a WRQ offers the
+			// whole file in case the server kept part of a failed write
+			long offset = request.getRequestType() == RequestType.RRQ ? storage.getRetainedLength()
+					: storage.getFileSize();
+			if (offset > 0) {
+				request.setOption(Configurations.OPTION_OFFSET, Long.toString(offset));
+			}
+		}
+	}
+
+	/**
+	 * Applies the options the server acknowledged. The server may only
+	 * acknowledge options we asked for, and may only lower the block size and
+	 * the window size. The timeout must be the one asked for. The size of a file we read must fit on our disk.
+	 * A multicast option must name a multicast group, a compress option the
+	 * method asked for, a checksum option one of the methods offered. An offset may be lower
+	 * than the one offered and must fall on a block boundary; a partial file
+	 * is received again from the start when the server did not agree to one.
+	 * 
+	 * @param optionAck
+	 *            - the OACK received
+	 * @param request
+	 *            - the request it answers
+	 * @return TFTPErrorMessage with OPTION_NEGOTIATION if the OACK must be
+	 *         refused, ALLOCATION_EXCEEDED if the file will not fit
+	 */
+	private TFTPErrorMessage acceptOptionAck(OptionAckPacket optionAck, ReadWritePacket request) {
+		long announcedSize = -1;
+		long resumeOffset = 0;
+		for (Map.Entry<String, String> option : optionAck.getOptions().entrySet()) {
+			if (option.getKey().equals(Configurations.OPTION_BLOCK_SIZE)
+					&& request.getOption(Configurations.OPTION_BLOCK_SIZE) != null) {
+				int blockSize = parseBlockSize(option.getValue());
+				if (blockSize != -1 && blockSize <= this.mRequestedBlockSize) {
+					setBlockSize(blockSize);
+					continue;
+				}
+			}
+			if (option.getKey().equals(Configurations.OPTION_WINDOW_SIZE)
+					&& request.getOption(Configurations.OPTION_WINDOW_SIZE) != null) {
+				int windowSize = parseWindowSize(option.getValue());
+				if (windowSize != -1 && windowSize <= this.mRequestedWindowSize) {
+					setWindowSize(windowSize);
+					continue;
+				}
+			}
+			if (option.getKey().equals(Configurations.OPTION_TIMEOUT)
+					&& request.getOption(Configurations.OPTION_TIMEOUT) != null) {
+				int timeout = parseTimeout(option.getValue());
+				if (timeout == this.mRequestedTimeout) {
+					setTimeout(timeout);
+					continue;
+				}
+			}
+			if (option.getKey().equals(Configurations.OPTION_TRANSFER_SIZE)
+					&& request.getOption(Configurations.OPTION_TRANSFER_SIZE) != null) {
+				long transferSize = parseTransferSize(option.getValue());
+				if (transferSize != -1) {
+					announcedSize = transferSize;
+					if (request.getRequestType() == RequestType.RRQ) {
+						try {
+							storage.reserveSpace(transferSize);
+						} catch (DiskFullException e) {
+							return new TFTPErrorMessage(ErrorType.ALLOCATION_EXCEEDED, e.getMessage());
+						}
+					}
+					continue;
+				}
+			}
+			if (option.getKey().equals(Configurations.OPTION_MULTICAST)
+					&& request.getOption(Configurations.OPTION_MULTICAST) != null) {
+				if (acceptMulticast(option.getValue())) {
+					continue;
+				}
+				return new TFTPErrorMessage(ErrorType.OPTION_NEGOTIATION,
+						String.format(Strings.MULTICAST_REFUSED, option.getValue()));
+			}
+			if (option.getKey().equals(Configurations.OPTION_COMPRESSION)
+					&& request.getOption(Configurations.OPTION_COMPRESSION) != null) {
+				if (option.getValue().equalsIgnoreCase(Configurations.COMPRESSION_DEFLATE)) {
+					setCompression(true);
+					continue;
+				}
+			}
+			if (option.getKey().equals(Configurations.OPTION_CHECKSUM)
+					&& request.getOption(Configurations.OPTION_CHECKSUM) != null) {
+				TransferChecksum checksum = TransferChecksum.create(option.getValue());
+				if (checksum != null
+						&& TransferChecksum.isOffered(option.getValue(), request.getOption(Configurations.OPTION_CHECKSUM))) {
+					setChecksum(checksum);
+					continue;
+				}
+			}
+			if (option.getKey().equals(Configurations.OPTION_OFFSET)
+					&& request.getOption(Configurations.OPTION_OFFSET) != null) {
+				long offset = parseOffset(option.getValue());
+				if (offset > 0 && offset <= parseOffset(request.getOption(Configurations.OPTION_OFFSET))) {
+					resumeOffset = offset;
+					continue;
+				}
+			}
+			return new TFTPErrorMessage(ErrorType.OPTION_NEGOTIATION,
+					String.format(Strings.OPTION_REFUSED, option.getKey(), option.getValue()));
+		}
+		// The block size may come after the offset, check it once both are known
+		if (resumeOffset % mBlockSize != 0) {
+			return new TFTPErrorMessage(ErrorType.OPTION_NEGOTIATION,
+					String.format(Strings.OFFSET_REFUSED, resumeOffset));
+		}
+		if (this.mDiscoverBlockSize && getBlockSize() > Configurations.MAX_PAYLOAD_BUFFER && this.mMulticastGroup == null) {
+			// Only a full block tells whether blocks of this size get through
+			long vRemaining = request.getRequestType() == RequestType.WRQ ? storage.getFileSize() - resumeOffset
+					: announcedSize == -1 ? -1 : announcedSize - resumeOffset;
+			if (vRemaining == -1 || vRemaining >= mBlockSize) {
+				this.mProbedBlockSize = getBlockSize();
+			}
+		}
+		if (request.getRequestType() == RequestType.RRQ && storage.getRetainedLength() != -1) {
+			try {
+				if (resumeOffset > 0 && storage.getRetainedFileSize() != -1 && announcedSize != -1
+						&& announcedSize != storage.getRetainedFileSize()) {
+					// The server file changed, what we kept is of no use
+					storage.resumeWritingAt(0);
+					return new TFTPErrorMessage(ErrorType.OPTION_NEGOTIATION,
+							String.format(Strings.PARTIAL_FILE_CHANGED, fileName));
+				}
+				storage.resumeWritingAt(resumeOffset);
+			} catch (IOException e) {
+				return new TFTPErrorMessage(ErrorType.NOT_DEFINED, "Unknown IO Exception occurred.");
+			}
+		}
+		if (resumeOffset > 0) {
+			setResumeOffset(resumeOffset);
+			logger.print(logger, String.format(Strings.RESUMING, fileName, resumeOffset));
+		}
+		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
+	}
+
+	/**
+	 * Picks the block size to ask for: the one cached for the server, or the
+	 * largest the interface towards it carries. It is kept small enough for
+	 * a whole window to fit in the receive buffer of our socket, a window of
+	 * larger blocks would be dropped there rather than on the path.
+	 * 
+	 * @param port
+	 *            - port the request goes to
+	 * @return the block size
+	 * @throws SocketException
+	 */
+	private int discoverBlockSize(int port) throws SocketException {
+		int vWindowFits = socket.getReceiveBufferSize() / Math.max(this.mRequestedWindowSize, 1);
+		return Math.max(Math.min(BlockSizeCache.getBlockSize(this.mAddressToSendTo, port), vWindowFits),
+				Configurations.MAX_PAYLOAD_BUFFER);
+	}
+
+	/**
+	 * Ends the probe of the block size once a block of the transfer got
+	 * through, and keeps the size for the server if the block was a full one.
+	 * 
+	 * @param payloadLength
+	 *            - bytes of the DATA payload that got through
+	 */
+	private void blockGotThrough(int payloadLength) {
+		if (this.mProbedBlockSize == 0) {
+			return;
+		}
+		if (payloadLength >= this.mProbedBlockSize) {
+			BlockSizeCache.confirm(this.mAddressToSendTo, this.mProbedBlockSize);
+		}
+		this.mProbedBlockSize = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see networking.TFTPNetworking#giveUpOnTimeout()
+	 */
+	@Override
+	protected TFTPErrorMessage giveUpOnTimeout() {
+		if (this.mProbedBlockSize == 0 || retries + 1 < Configurations.CLIENT_PROBE_TIMEOUTS
+				|| (mReorder != null && mReorder.size() > 0)) {
+			return null;
+		}
+		// The blocks are lost on the way, most likely as fragments
+		int vNext = BlockSizeCache.fallBack(this.mAddressToSendTo, this.mProbedBlockSize);
+		this.mBlockSizeLost = true;
+		logger.print(logger, String.format(Strings.BLOCK_SIZE_FALLBACK, vNext));
+		return new TFTPErrorMessage(ErrorType.OPTION_NEGOTIATION,
+				String.format(Strings.BLOCK_SIZE_LOST, this.mProbedBlockSize));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see networking.TFTPNetworking#storeBlock(byte[], int, int)
+	 */
+	@Override
+	protected boolean storeBlock(byte[] buffer, int offset, int length) throws ZipException, DiskFullException {
+		blockGotThrough(length);
+		return super.storeBlock(buffer, offset, length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see networking.TFTPNetworking#acknowledgeSendWindow(int)
+	 */
+	@Override
+	protected boolean acknowledgeSendWindow(int blockNumber) {
+		if (mSendWindow.isEmpty()) {
+			return false;
+		}
+		int vOldestLength = mSendWindow.getPayloadLength(0);
+		if (!super.acknowledgeSendWindow(blockNumber)) {
+			return false;
+		}
+		blockGotThrough(vOldestLength);
+		return true;
+	}
+
+	/**
+	 * Reads the value of a multicast option, "address,port,mc". The address
+	 * and port may be left out once the group is known, when the server only
+	 * makes this client master.
+	 * 
+	 * @param value
+	 *            - option value as acknowledged
+	 * @return false if the value does not name a multicast group
+	 */
+	private boolean acceptMulticast(String value) {
+		String[] parts = value.split(",", -1);
+		if (parts.length != 3 || !(parts[2].equals("0") || parts[2].equals("1"))) {
+			return false;
+		}
+		if (parts[0].isEmpty() && parts[1].isEmpty() && this.mMulticastGroup != null) {
+			this.mMulticastMaster = parts[2].equals("1");
+			return true;
+		}
+		try {
+			InetAddress group = InetAddress.getByName(parts[0]);
+			int port = Integer.parseInt(parts[1]);
+			if (!group.isMulticastAddress() || port < 1 || port > 65535) {
+				return false;
+			}
+			this.mMulticastGroup = new InetSocketAddress(group, port);
+		} catch (UnknownHostException e) {
+			return false;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		this.mMulticastMaster = parts[2].equals("1");
+		return true;
+	}
+
+	/**
+	 * @return size of the buffer the first answer to a request is received
+	 *         into, large enough for a DATA block of the size asked for
+	 */
+	private int getFirstReplyBufferSize() {
+		return Math.max(this.mRequestedBlockSize, Configurations.MAX_PAYLOAD_BUFFER) + Configurations.MAX_BUFFER
+				- Configurations.MAX_PAYLOAD_BUFFER;
+	}
+
 	private ModeType getMode(String fn) {
 		String[] parts = fn.split("\\.");
 		//return Configurations.DEFAULT_RW_MODE;
@@ -112,17 +510,24 @@ public class ClientNetworking extends TFTPNetworking {
 
 			wpb = new WritePacket(this.mAddressToSendTo, portToSendTo, storage.getFileName(),
 					getMode(storage.getFileName()));
+			setMode(wpb.getMode());
+			if (this.mDiscoverBlockSize) {
+				this.mRequestedBlockSize = discoverBlockSize(portToSendTo);
+			}
+			addRequestOptions(wpb);
 			fileName = storage.getFileName();
 			DatagramPacket lastWritePacket = wpb.buildPacket();
 			lastPacket = lastWritePacket;
 			logger.print(logger, Strings.SENDING);
 			BufferPrinter.printPacket(wpb, logger, RequestType.WRQ);
 			int attempts = 0;
+			// The answer to the request gives the first round trip time
+			mRtt.startSample(0);
 			while (true) {
 				socket.send(lastPacket);
 				try {
-					lastPacket = new DatagramPacket(new byte[Configurations.MAX_MESSAGE_SIZE],
-							Configurations.MAX_MESSAGE_SIZE, lastPacket.getAddress(), lastPacket.getPort());
+					lastPacket = new DatagramPacket(new byte[Configurations.MAX_BUFFER],
+							Configurations.MAX_BUFFER, lastPacket.getAddress(), lastPacket.getPort());
 					socket.receive(lastPacket);
 					logger.print(Logger.VERBOSE, Strings.RECEIVED);
 					wrqFirstAck = new AckPacket(lastPacket);
@@ -133,6 +538,7 @@ public class ClientNetworking extends TFTPNetworking {
 						System.out.println(Strings.CLIENT_CONNECTION_FAILURE);
 						return null;
 					}
+					mRtt.cancelSample();
 
 					lastPacket = lastWritePacket;
 					System.err.println("Time out occurred, resending WRQ");
@@ -140,7 +546,20 @@ public class ClientNetworking extends TFTPNetworking {
 				}
 				break;
 			}
+			mRtt.completeSample(0);
 			super.lastPacket = this.lastPacket;
+			if (OptionAckPacket.isOptionAck(lastPacket)) {
+				// The OACK takes the place of ACK 0, DATA 1 follows
+				OptionAckPacket optionAck = new OptionAckPacket(lastPacket);
+				errorChecker = new ErrorChecker(optionAck);
+				error = acceptOptionAck(optionAck, wpb);
+				if (error.getType() == ErrorType.NO_ERROR) {
+					expectFirstBlock();
+					return error;
+				}
+				errorHandle(error, lastPacket);
+				return error;
+			}
 			// Trusts that the first response is from expected source.
 			errorChecker = new ErrorChecker(wrqFirstAck);
 			error = errorChecker.check(wrqFirstAck, RequestType.ACK);
@@ -197,36 +616,74 @@ public class ClientNetworking extends TFTPNetworking {
 
 			ReadPacket rpb = new ReadPacket(this.mAddressToSendTo, portToSendTo, fileName,
 					getMode(fileName));
+			setMode(rpb.getMode());
+			if (this.mDiscoverBlockSize) {
+				this.mRequestedBlockSize = discoverBlockSize(portToSendTo);
+			}
+			addRequestOptions(rpb);
 			DatagramPacket lastReadPacket = rpb.buildPacket();
 			// now get the packet from the ReadPacket
 			lastPacket = lastReadPacket;
+			mRtt.startSample(0);
 			while (true) {
 				try {
 					logger.print(logger, Strings.SENDING);
 					BufferPrinter.printPacket(rpb, logger, RequestType.RRQ);
 					// send the read packet over sendReceiveSocket
 					socket.send(lastPacket);
-					lastPacket = new DatagramPacket(new byte[Configurations.MAX_MESSAGE_SIZE],
-							Configurations.MAX_MESSAGE_SIZE, lastPacket.getAddress(), lastPacket.getPort());
+					lastPacket = new DatagramPacket(new byte[getFirstReplyBufferSize()],
+							getFirstReplyBufferSize(), lastPacket.getAddress(), lastPacket.getPort());
 					socket.receive(lastPacket);
 					break;
 				} catch (SocketTimeoutException e) {
 					lastPacket = lastReadPacket;
+					mRtt.cancelSample();
 					if (++retries == Configurations.RETRANMISSION_TRY) {
 						logger.print(Logger.ERROR, String.format(Strings.RETRANSMISSION, retries));
 						if(this.storage != null)
-							this.storage.deleteFileFromDisk();
+							this.storage.retainPartialFile();
 						return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR, Strings.CLIENT_TRANSMISSION_ERROR);
 					}
 					logger.print(Logger.ERROR, Strings.CLIENT_TIME_OUT);
 					continue;
 				}
 			}
+			mRtt.completeSample(0);
+			if (OptionAckPacket.isOptionAck(lastPacket)) {
+				OptionAckPacket optionAck = new OptionAckPacket(lastPacket);
+				logger.print(Logger.VERBOSE, Strings.RECEIVED);
+				BufferPrinter.printPacket(optionAck, logger, RequestType.OACK);
+				errorChecker = new ErrorChecker(optionAck);
+				TFTPErrorMessage error = acceptOptionAck(optionAck, rpb);
+				if (error.getType() != ErrorType.NO_ERROR) {
+					errorHandle(error, lastPacket);
+					if(this.storage != null)
+						this.storage.retainPartialFile();
+					return error;
+				}
+				if (this.mMulticastGroup != null && !this.mMulticastMaster) {
+					// Only the master client acknowledges, the others listen
+					lastPacket = optionAck.getPacket();
+					retries = 0;
+					return error;
+				}
+				// ACK 0 accepts the options, the server then sends DATA 1
+				AckPacket vAckPacket = new AckPacket(lastPacket);
+				DatagramPacket vSendPacket = vAckPacket.buildPacket();
+				logger.print(logger, Strings.SENDING);
+				BufferPrinter.printPacket(vAckPacket, logger, RequestType.ACK);
+				transmit(vSendPacket);
+				mRtt.startSample((int) (mFirstBlock & 0xFFFF));
+				lastPacket = vSendPacket;
+				expectFirstBlock();
+				retries = 0;
+				return error;
+			}
 			if (errorChecker == null) {
 				errorChecker = new ErrorChecker(new DataPacket(lastPacket));
 				errorChecker.incrementExpectedBlockNumber();
 			}
-			byte[] vEmptyData = new byte[Configurations.MAX_BUFFER];
+			byte[] vEmptyData = null;
 			DataPacket receivedPacket = new DataPacket(lastPacket);
 			TFTPErrorMessage error = errorChecker.check(receivedPacket, RequestType.DATA);
 			logger.print(Logger.VERBOSE, Strings.RECEIVED);
@@ -234,11 +691,15 @@ public class ClientNetworking extends TFTPNetworking {
 
 			if (error.getType() == ErrorType.NO_ERROR) {
 				vEmptyData = receivedPacket.getDataBuffer();
-				storage.saveFileByteBufferToDisk(vEmptyData);
+				if (storage.getRetainedLength() != -1) {
+					// A server without the offset option sends the whole file
+					storage.resumeWritingAt(0);
+				}
+				storeBlock(vEmptyData);
 				this.sendACK(lastPacket);
 				errorChecker.incrementExpectedBlockNumber();
 				// Test first block if smaller than 512, then we know we got a packet less than 512 bytes and is the only packet.
-				if(vEmptyData.length < Configurations.MAX_PAYLOAD_BUFFER) return new TFTPErrorMessage(ErrorType.NOT_DEFINED, Strings.NO_ERROR);; 
+				if(vEmptyData.length < mBlockSize) return new TFTPErrorMessage(ErrorType.NOT_DEFINED, Strings.NO_ERROR);; 
 				return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
 			}
 			if (error.getType() == ErrorType.SORCERERS_APPRENTICE) super.sendACK(lastPacket); // This can't happen
@@ -247,7 +708,7 @@ public class ClientNetworking extends TFTPNetworking {
 			}
 			if (errorHandle(error, lastPacket, RequestType.DATA)) {
 				if(this.storage != null)
-					this.storage.deleteFileFromDisk();
+					this.storage.retainPartialFile();
 				return error;
 			}
 			errorChecker.incrementExpectedBlockNumber();
@@ -262,7 +723,7 @@ public class ClientNetworking extends TFTPNetworking {
 			TFTPErrorMessage errMsg = new TFTPErrorMessage(ErrorType.ALLOCATION_EXCEEDED, e.getMessage());
 			if(this.errorHandle(errMsg, this.lastPacket)) {
 				if(this.storage != null)
-					this.storage.deleteFileFromDisk();
+					this.storage.retainPartialFile();
 				return errMsg;
 			}
 		}
@@ -270,4 +731,253 @@ public class ClientNetworking extends TFTPNetworking {
 		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
 	}
 
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see networking.TFTPNetworking#receiveFile(java.net.DatagramSocket)
+	 */
+	@Override
+	public TFTPErrorMessage receiveFile(DatagramSocket vSocket) {
+		if (this.mMulticastGroup == null) {
+			return super.receiveFile(vSocket);
+		}
+		socket = vSocket;
+		return receiveMulticastFile();
+	}
+
+	/**
+	 * Receives a file distributed to a multicast group. Blocks are kept by
+	 * their position whatever order they come in, so a client that joined
+	 * late keeps what it hears and only the blocks it missed are sent again
+	 * once it becomes master. The master acknowledges the blocks it has in
+	 * order from the first, the other members only listen, and check their
+	 * own TID between bursts for the OACK that makes them master. A member
+	 * that has the whole file tells the server with an ACK of the last block.
+	 * 
+	 * @return TFTPErrorMessage with NO_ERROR once the whole file is on disk
+	 */
+	private TFTPErrorMessage receiveMulticastFile() {
+		// lastPacket is the OACK or ACK 0, both carry the server TID
+		InetSocketAddress vServer = (InetSocketAddress) lastPacket.getSocketAddress();
+		BitSet vReceived = new BitSet();
+		// Position of the short block that ends the file, -1 until it is heard
+		long vLastBlock = -1;
+		long vFileLength = 0;
+		long vNewest = 0;
+		long vLastHeard = now();
+		DatagramPacket vAckPacket = null;
+		MulticastSocket vGroupSocket = null;
+		try {
+			vGroupSocket = new MulticastSocket(this.mMulticastGroup.getPort());
+			vGroupSocket.joinGroup(this.mMulticastGroup, null);
+			vGroupSocket.setSoTimeout((int) Configurations.MULTICAST_POLL_INTERVAL);
+			if (this.mMulticastMaster) {
+				vAckPacket = lastPacket;
+			}
+			DatagramPacket vPacket = new DatagramPacket(new byte[getReceiveBufferSize()], getReceiveBufferSize());
+			while (vLastBlock == -1 || vReceived.nextClearBit(1) <= vLastBlock) {
+				try {
+					vPacket.setLength(vPacket.getData().length);
+					vGroupSocket.receive(vPacket);
+					// The source address depends on the interface the group
+					// is sent on, the port is the server TID
+					if (vPacket.getPort() != vServer.getPort() || vPacket.getLength() < Configurations.LEN_ACK_PACKET_BUFFER
+							|| vPacket.getData()[1] != RequestType.DATA.getOptCode()) {
+						continue;
+					}
+					DataPacket vDataPacket = new DataPacket(vPacket);
+					logger.print(Logger.VERBOSE, Strings.RECEIVED);
+					BufferPrinter.printPacket(vDataPacket, logger, RequestType.DATA);
+					long vBlock = vNewest == 0 ? vDataPacket.getBlockNumber()
+							: vNewest + (short) (vDataPacket.getBlockNumber() - vNewest);
+					if (vBlock < 1) {
+						continue;
+					}
+					vNewest = Math.max(vNewest, vBlock);
+					vLastHeard = now();
+					byte[] vPayload = vDataPacket.getDataBuffer();
+					if (!vReceived.get((int) vBlock)) {
+						storage.writeBlockToDisk(vBlock, vPayload);
+						vReceived.set((int) vBlock);
+						recordBytes(vPayload);
+					}
+					if (vPayload.length < mBlockSize) {
+						vLastBlock = vBlock;
+						vFileLength = (vBlock - 1) * mBlockSize + vPayload.length;
+					}
+					if (this.mMulticastMaster) {
+						mRtt.completeSample((vReceived.nextClearBit(1) - 2) & 0xFFFF);
+						vAckPacket = buildPrefixAck(vServer, vReceived);
+						transmit(vAckPacket);
+						mRtt.startSample((vReceived.nextClearBit(1) - 1) & 0xFFFF);
+						retries = 0;
+					}
+					continue;
+				} catch (SocketTimeoutException e) {
+					// The group is quiet, see what the server sent to our TID
+				}
+				TFTPErrorMessage vServerMessage = pollServer(vServer);
+				if (vServerMessage != null) {
+					retainReceivedBlocks(vReceived, vLastBlock);
+					return vServerMessage;
+				}
+				if (this.mMasterAckDue) {
+					// Made master, the ACK tells the server where to go on
+					this.mMasterAckDue = false;
+					vAckPacket = buildPrefixAck(vServer, vReceived);
+					transmit(vAckPacket);
+					vLastHeard = now();
+					continue;
+				}
+				if (this.mMulticastMaster && now() >= mRetransmitDeadline) {
+					logger.print(Logger.ERROR, Strings.CLIENT_TIME_OUT);
+					if (++retries == Configurations.RETRANMISSION_TRY) {
+						logger.print(Logger.ERROR, String.format(Strings.RETRANSMISSION, retries));
+						retainReceivedBlocks(vReceived, vLastBlock);
+						return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR, Strings.CLIENT_TRANSMISSION_ERROR);
+					}
+					mRtt.backoff();
+					transmit(vAckPacket);
+					recordRetransmit();
+					continue;
+				}
+				if (!this.mMulticastMaster && now() - vLastHeard >= Configurations.MULTICAST_IDLE_TIMEOUT) {
+					logger.print(Logger.ERROR, Strings.MULTICAST_IDLE);
+					retainReceivedBlocks(vReceived, vLastBlock);
+					return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR, Strings.MULTICAST_IDLE);
+				}
+			}
+			storage.completeFile(vFileLength);
+			AckPacket vDone = new AckPacket(vServer.getAddress(), vServer.getPort());
+			vDone.setBlockNumber((int) (vLastBlock & 0xFFFF));
+			if (this.mMulticastMaster) {
+				dallyOnGroup(vGroupSocket, vServer, vDone.buildPacket());
+			} else {
+				// Tells the server this member can be left out of the distribution
+				sendDatagram(vDone.buildPacket());
+			}
+		} catch (DiskFullException e) {
+			TFTPErrorMessage errMsg = new TFTPErrorMessage(ErrorType.ALLOCATION_EXCEEDED, e.getMessage());
+			errorHandle(errMsg, lastPacket);
+			retainReceivedBlocks(vReceived, vLastBlock);
+			return errMsg;
+		} catch (IOException e) {
+			e.printStackTrace();
+			retainReceivedBlocks(vReceived, vLastBlock);
+			return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR, Strings.CLIENT_TRANSMISSION_ERROR);
+		} finally {
+			if (vGroupSocket != null) {
+				try {
+					vGroupSocket.leaveGroup(this.mMulticastGroup, null);
+				} catch (IOException e) {
+				}
+				vGroupSocket.close();
+			}
+		}
+		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
+	}
+
+	/**
+	 * Keeps the blocks of a multicast file received in order from the first
+	 * when its transfer fails. The blocks past the first gap were written
+	 * around it and are not kept.
+	 * 
+	 * @param received
+	 *            - positions of the blocks received
+	 * @param lastBlock
+	 *            - position of the last block, -1 if not heard
+	 */
+	private void retainReceivedBlocks(BitSet received, long lastBlock) {
+		long vBlocks = received.nextClearBit(1) - 1;
+		if (lastBlock != -1 && vBlocks >= lastBlock) {
+			// The whole file is on disk, only what came after it failed
+			return;
+		}
+		this.storage.retainPartialFile(vBlocks * mBlockSize);
+	}
+
+	/**
+	 * Builds the ACK of the blocks received in order from the first one.
+	 * 
+	 * @param server
+	 *            - server TID
+	 * @param received
+	 *            - positions of the blocks received
+	 * @return the ACK packet
+	 */
+	private DatagramPacket buildPrefixAck(InetSocketAddress server, BitSet received) {
+		AckPacket vAckPacket = new AckPacket(server.getAddress(), server.getPort());
+		vAckPacket.setBlockNumber((received.nextClearBit(1) - 1) & 0xFFFF);
+		DatagramPacket vSendPacket = vAckPacket.buildPacket();
+		logger.print(logger, Strings.SENDING);
+		BufferPrinter.printPacket(vAckPacket, logger, RequestType.ACK);
+		return vSendPacket;
+	}
+
+	/**
+	 * Checks our own TID for an OACK making this client master, or an error
+	 * ending the distribution.
+	 * 
+	 * @param server
+	 *            - server TID
+	 * @return the error received, or null to go on
+	 * @throws IOException
+	 */
+	private TFTPErrorMessage pollServer(InetSocketAddress server) throws IOException {
+		DatagramPacket vPacket = new DatagramPacket(new byte[Configurations.MAX_BUFFER], Configurations.MAX_BUFFER);
+		socket.setSoTimeout(1);
+		try {
+			socket.receive(vPacket);
+		} catch (SocketTimeoutException e) {
+			return null;
+		}
+		if (!vPacket.getSocketAddress().equals(server) || vPacket.getLength() < 2) {
+			return null;
+		}
+		if (vPacket.getData()[1] == RequestType.ERROR.getOptCode()) {
+			return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR, Strings.CLIENT_TRANSMISSION_ERROR);
+		}
+		if (OptionAckPacket.isOptionAck(vPacket)) {
+			String vValue = new OptionAckPacket(vPacket).getOption(Configurations.OPTION_MULTICAST);
+			if (vValue != null && acceptMulticast(vValue) && this.mMulticastMaster) {
+				logger.print(logger, String.format(Strings.MULTICAST_MASTER, socket.getLocalSocketAddress(), fileName));
+				mRtt.cancelSample();
+				retries = 0;
+				this.mMasterAckDue = true;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits a while after the last ACK of a master, in case it was lost and
+	 * the server sends the last block again.
+	 * 
+	 * @param group
+	 *            - socket joined to the group
+	 * @param server
+	 *            - server TID
+	 * @param lastAck
+	 *            - ACK of the last block
+	 * @throws IOException
+	 */
+	private void dallyOnGroup(MulticastSocket group, InetSocketAddress server, DatagramPacket lastAck)
+			throws IOException {
+		int vLastBlockNumber = new AckPacket(lastAck).getBlockNumber();
+		DatagramPacket vPacket = new DatagramPacket(new byte[getReceiveBufferSize()], getReceiveBufferSize());
+		group.setSoTimeout(Configurations.TRANMISSION_TIMEOUT);
+		try {
+			while (true) {
+				vPacket.setLength(vPacket.getData().length);
+				group.receive(vPacket);
+				if (vPacket.getPort() == server.getPort() && vPacket.getLength() >= Configurations.LEN_ACK_PACKET_BUFFER
+						&& new DataPacket(vPacket).getBlockNumber() == vLastBlockNumber) {
+					sendDatagram(lastAck);
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			// The server has our last ACK
+		}
+	}
 }
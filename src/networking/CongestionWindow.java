@@ -0,0 +1,118 @@
+package networking;
+
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         Keeps the congestion window of one sending transfer and the clock
+ *         its DATA blocks are paced on. The window, in blocks per round trip,
+ *         grows by one block per acknowledged block up to the slow start
+ *         threshold and by one block per window of acknowledged blocks after
+ *         it. It is halved on a timeout or on an ACK that leaves blocks of
+ *         the window unacknowledged, at most once per window of data, since
+ *         all the blocks lost from one window are a single congestion event.
+ *
+ *         An RFC 7440 receiver only acknowledges a full window, so the
+ *         congestion window cannot hold back blocks of the negotiated window
+ *         like TCP does. It sets the rate instead: blocks go out one pacing
+ *         interval apart, a round trip divided by the congestion window, so
+ *         a small congestion window spreads the window over several round
+ *         trips. The interval is capped so that a window always goes out
+ *         within half a retransmission timeout, before the receiver gives up
+ *         waiting for its end.
+ */
+public class CongestionWindow {
+
+	private double mWindow = Configurations.CONGESTION_INITIAL_WINDOW;
+	private double mSlowStartThreshold = Configurations.CONGESTION_MAX_WINDOW;
+	// Blocks sent and acknowledged since the start, and the number of blocks
+	// sent when the window was last halved
+	private long mSent = 0;
+	private long mAcknowledged = 0;
+	private long mRecoveryPoint = 0;
+	// When the next block may be sent, from System.nanoTime()
+	private long mNextSendTime = 0;
+
+	/**
+	 * Grows the window for blocks the peer acknowledged.
+	 *
+	 * @param blocks
+	 *            - number of blocks the ACK covered
+	 */
+	public void onAcknowledged(int blocks) {
+		this.mAcknowledged += blocks;
+		for (int i = 0; i < blocks; ++i) {
+			if (this.mWindow < this.mSlowStartThreshold) {
+				this.mWindow += 1;
+			} else {
+				this.mWindow += 1 / this.mWindow;
+			}
+		}
+		this.mWindow = Math.min(this.mWindow, Configurations.CONGESTION_MAX_WINDOW);
+	}
+
+	/**
+	 * Halves the window after a loss, unless it was already halved for a
+	 * block sent before the last reduction.
+	 */
+	public void onLoss() {
+		if (this.mAcknowledged < this.mRecoveryPoint) {
+			return;
+		}
+		this.mWindow = Math.max(this.mWindow / 2, 1);
+		this.mSlowStartThreshold = this.mWindow;
+		this.mRecoveryPoint = this.mSent;
+	}
+
+	/**
+	 * @param now
+	 *            - current time from System.nanoTime()
+	 * @return nanoseconds until the next block may be sent, 0 or less if
+	 *         it may go now
+	 */
+	public long getSendDelay(long now) {
+		return this.mNextSendTime - now;
+	}
+
+	/**
+	 * Moves the pacing clock one interval forward for a block sent, new or
+	 * sent again.
+	 *
+	 * @param now
+	 *            - current time from System.nanoTime()
+	 * @param smoothedRtt
+	 *            - smoothed round trip time in nanoseconds, -1 if unknown
+	 * @param timeout
+	 *            - retransmission timeout in milliseconds
+	 * @param windowSize
+	 *            - negotiated window size
+	 */
+	public void onSent(long now, long smoothedRtt, long timeout, int windowSize) {
+		++this.mSent;
+		this.mNextSendTime = Math.max(this.mNextSendTime, now)
+				+ getPacingInterval(smoothedRtt, timeout, windowSize);
+	}
+
+	/**
+	 * @return the pacing interval in nanoseconds, 0 while the round trip time
+	 *         is unknown
+	 */
+	private long getPacingInterval(long smoothedRtt, long timeout, int windowSize) {
+		if (smoothedRtt <= 0) {
+			return 0;
+		}
+		double gain = this.mWindow < this.mSlowStartThreshold ? Configurations.PACING_GAIN_SLOW_START
+				: Configurations.PACING_GAIN;
+		double interval = smoothedRtt / (this.mWindow * gain);
+		double cap = timeout * 1000000.0 / 2 / windowSize;
+		return (long) Math.min(interval, cap);
+	}
+
+	/**
+	 * @return the congestion window in blocks per round trip
+	 */
+	public int getWindow() {
+		return (int) this.mWindow;
+	}
+}
@@ -0,0 +1,403 @@
+package networking;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import helpers.BufferPrinter;
+import helpers.FileStorageService;
+import packet.AckPacket;
+import packet.DataPacket;
+import packet.OptionAckPacket;
+import packet.ReadPacket;
+import packet.ReadWritePacket;
+import resource.Configurations;
+import resource.Strings;
+import testbed.TFTPErrorMessage;
+import types.DirectoryAccessViolationException;
+import types.ErrorType;
+import types.InstanceType;
+import types.Logger;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Serves one file to every client that asks for it with the RFC 2090
+ *         multicast option while the distribution runs. DATA blocks go once to
+ *         a multicast group instead of once to every client. One member at a
+ *         time is the master client: it acknowledges the blocks and the server
+ *         goes on from its ACKs in lock step, while the other members keep
+ *         every block they see. Once the master has the whole file the next
+ *         member becomes master, and its first ACK names the last block it has
+ *         in order, so only the blocks it is missing are sent to the group
+ *         again. Members that got the whole file while listening say so with
+ *         an ACK of the last block and leave.
+ *
+ *         Blocks are kept by their position in the file, from 1, and only
+ *         wrapped to 16 bits on the wire. An ACK is read as the first block at
+ *         or after the one just sent with the same low 16 bits, so files of
+ *         more than 65535 blocks work as long as a new master is less than
+ *         65536 blocks behind.
+ */
+public class MulticastTransfer extends ServerNetworking {
+
+	private InetSocketAddress mGroup;
+	private ReadPacket mRequest;
+	// Members in the order they joined, with the request each one sent
+	private LinkedHashMap<SocketAddress, ReadWritePacket> mMembers = new LinkedHashMap<SocketAddress, ReadWritePacket>();
+	private SocketAddress mMaster = null;
+	private boolean mClosed = false;
+	// Options acknowledged to the first client, a member gets those it asked for
+	private OptionAckPacket mOptionTemplate;
+	// Position of the short block that ends the file
+	private long mLastBlock;
+	private long mHighestSent = 0;
+
+	/**
+	 * @param request
+	 *            - the RRQ that started the distribution
+	 * @param socket
+	 *            - the transfer socket, the TID of the distribution
+	 * @param group
+	 *            - multicast address and port the blocks are sent to
+	 */
+	public MulticastTransfer(ReadPacket request, DatagramSocket socket, InetSocketAddress group) {
+		super(request, socket);
+		this.mRequest = request;
+		this.mGroup = group;
+	}
+
+	/**
+	 * Opens the file and negotiates the options of the first request, which
+	 * become those of the whole distribution. The first client is the first
+	 * master.
+	 *
+	 * @param log
+	 *            - logger of the transfer
+	 * @return TFTPErrorMessage with NO_ERROR if distribute() can run
+	 */
+	public TFTPErrorMessage open(Logger log) {
+		this.logger = log;
+		fileName = this.mRequest.getFilename();
+		TFTPErrorMessage error = errorChecker.check(this.mRequest, RequestType.RRQ);
+		if (error.getType() != ErrorType.NO_ERROR) {
+			return error;
+		}
+		String vFilePath = Configurations.SERVER_ROOT_FILE_DIRECTORY + "/" + fileName;
+		FileStorageService.expirePartialFile(vFilePath);
+		if (!FileStorageService.checkFileNameExists(vFilePath) || FileStorageService.isPartialFile(vFilePath)) {
+			return new TFTPErrorMessage(ErrorType.FILE_NOT_FOUND, Strings.FILE_NOT_FOUND);
+		}
+		try {
+			storage = new FileStorageService(fileName, InstanceType.SERVER, RequestType.RRQ);
+		} catch (DirectoryAccessViolationException e) {
+			return new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, Strings.MKDIR_FAIL);
+		} catch (FileNotFoundException e) {
+			return new TFTPErrorMessage(ErrorType.FILE_NOT_FOUND, Strings.FILE_NOT_FOUND);
+		} catch (AccessDeniedException e) {
+			return new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, e.getFile());
+		} catch (IOException e) {
+			return new TFTPErrorMessage(ErrorType.NOT_DEFINED, "Unknown IO Exception occurred.");
+		}
+		this.mOptionTemplate = negotiateOptions(this.mRequest);
+		if (this.mOptionTemplate == null) {
+			this.mOptionTemplate = new OptionAckPacket(this.mRequest.getPacket());
+		}
+		this.mLastBlock = storage.getFileSize() / mBlockSize + 1;
+		synchronized (this) {
+			this.mMembers.put(this.mRequest.getPacket().getSocketAddress(), this.mRequest);
+		}
+		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
+	}
+
+	/**
+	 * Adds a client asking for the same file to the distribution and tells it
+	 * where to listen. Called from the threads serving the other requests.
+	 *
+	 * @param request
+	 *            - RRQ with the multicast option
+	 * @return false if the distribution is over or uses a block size the
+	 *         client did not ask for, the request is then served on its own
+	 */
+	public synchronized boolean join(ReadPacket request) {
+		if (this.mClosed || this.mOptionTemplate == null) {
+			return false;
+		}
+		int vAsked = parseBlockSize(request.getOption(Configurations.OPTION_BLOCK_SIZE));
+		if (vAsked == -1 ? mBlockSize != Configurations.MAX_PAYLOAD_BUFFER : vAsked < mBlockSize) {
+			return false;
+		}
+		SocketAddress vMember = request.getPacket().getSocketAddress();
+		if (!this.mMembers.containsKey(vMember)) {
+			this.mMembers.put(vMember, request);
+			logger.print(logger, String.format(Strings.MULTICAST_JOINED, vMember, fileName));
+		}
+		try {
+			// The distribution thread owns the deadline, send without arming it
+			sendDatagram(buildOptionAck(request, vMember.equals(this.mMaster)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/**
+	 * @return true once the last member has left and no client can join
+	 */
+	public synchronized boolean isClosed() {
+		return this.mClosed;
+	}
+
+	/**
+	 * Runs the distribution until every member has the file or stopped
+	 * answering.
+	 *
+	 * @return TFTPErrorMessage with NO_ERROR
+	 */
+	public TFTPErrorMessage distribute() {
+		logger.print(logger, String.format(Strings.MULTICAST_STARTED, fileName, this.mGroup,
+				this.mRequest.getPacket().getSocketAddress()));
+		SocketAddress vMaster = null;
+		DatagramPacket vCurrent = null;
+		// First block the master can acknowledge, the one last sent to it
+		long vFloor = 0;
+		int vTimedBlock = 0;
+		try {
+			while (true) {
+				if (vMaster == null) {
+					ReadWritePacket vMasterRequest = nextMaster();
+					if (vMasterRequest == null) {
+						break;
+					}
+					vMaster = vMasterRequest.getPacket().getSocketAddress();
+					logger.print(logger, String.format(Strings.MULTICAST_MASTER, vMaster, fileName));
+					retries = 0;
+					vFloor = 0;
+					vCurrent = buildOptionAck(vMasterRequest, true);
+					transmit(vCurrent);
+					mRtt.startSample(vTimedBlock = 0);
+				}
+				DatagramPacket receivePacket = new DatagramPacket(new byte[Configurations.MAX_BUFFER],
+						Configurations.MAX_BUFFER);
+				try {
+					receiveBeforeDeadline(receivePacket);
+				} catch (SocketTimeoutException e) {
+					logger.print(Logger.ERROR, Strings.TFTPNETWORKING_TIME_OUT);
+					mRtt.backoff();
+					transmit(vCurrent);
+					recordRetransmit();
+					if (++retries == Configurations.RETRANMISSION_TRY) {
+						logger.print(Logger.ERROR, String.format(Strings.MULTICAST_DROPPED, vMaster, fileName));
+						leave(vMaster);
+						vMaster = null;
+					}
+					continue;
+				}
+				if (!receivePacket.getSocketAddress().equals(vMaster)) {
+					handleMemberPacket(receivePacket);
+					continue;
+				}
+				RequestType vType = RequestType.matchRequestByNumber(receivePacket.getData()[1]);
+				if (vType == RequestType.ERROR) {
+					leave(vMaster);
+					vMaster = null;
+					continue;
+				}
+				if (vType != RequestType.ACK || receivePacket.getLength() != Configurations.LEN_ACK_PACKET_BUFFER) {
+					continue;
+				}
+				AckPacket vAckPacket = new AckPacket(receivePacket);
+				logger.print(logger, Strings.RECEIVED);
+				BufferPrinter.printPacket(vAckPacket, logger, RequestType.ACK);
+				long vAcked = resolveBlock(vAckPacket.getBlockNumber(), vFloor);
+				if (vAcked > Math.max(this.mHighestSent, vFloor)) {
+					// A late duplicate of an earlier ACK
+					continue;
+				}
+				retries = 0;
+				mRtt.completeSample(vTimedBlock);
+				if (vAcked >= this.mLastBlock) {
+					// The master has the whole file
+					leave(vMaster);
+					vMaster = null;
+					continue;
+				}
+				vFloor = vAcked + 1;
+				vCurrent = buildData(vFloor);
+				transmit(vCurrent);
+				mRtt.startSample(vTimedBlock = (int) (vFloor & 0xFFFF));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			synchronized (this) {
+				this.mClosed = true;
+			}
+		}
+		storage.finishedTransferingFile();
+		logger.print(logger, String.format(Strings.MULTICAST_FINISHED, fileName));
+		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
+	}
+
+	/**
+	 * Picks the member that joined first as the next master, or closes the
+	 * distribution if nobody is left.
+	 *
+	 * @return the request of the new master, or null once closed
+	 */
+	private synchronized ReadWritePacket nextMaster() {
+		if (this.mMembers.isEmpty()) {
+			this.mClosed = true;
+			this.mMaster = null;
+			return null;
+		}
+		Map.Entry<SocketAddress, ReadWritePacket> vFirst = this.mMembers.entrySet().iterator().next();
+		this.mMaster = vFirst.getKey();
+		return vFirst.getValue();
+	}
+
+	/**
+	 * Removes a member that has the file or is gone.
+	 *
+	 * @param member
+	 *            - TID of the member
+	 */
+	private synchronized void leave(SocketAddress member) {
+		this.mMembers.remove(member);
+		if (member.equals(this.mMaster)) {
+			this.mMaster = null;
+		}
+	}
+
+	/**
+	 * Handles a packet that does not come from the master. A member sends an
+	 * ACK of the last block once it has the whole file, or an error to leave;
+	 * anyone else gets an unknown transfer ID error.
+	 *
+	 * @param packet
+	 *            - the packet received
+	 */
+	private void handleMemberPacket(DatagramPacket packet) {
+		boolean vMember;
+		synchronized (this) {
+			vMember = this.mMembers.containsKey(packet.getSocketAddress());
+		}
+		if (!vMember) {
+			errorHandle(new TFTPErrorMessage(ErrorType.UNKNOWN_TRANSFER, Strings.UNKNOWN_TRANSFER), packet);
+			return;
+		}
+		RequestType vType = packet.getLength() < 2 ? null : RequestType.matchRequestByNumber(packet.getData()[1]);
+		if (vType == RequestType.ERROR || (vType == RequestType.ACK
+				&& new AckPacket(packet).getBlockNumber() == (int) (this.mLastBlock & 0xFFFF))) {
+			leave(packet.getSocketAddress());
+		}
+	}
+
+	/**
+	 * Builds the OACK telling a member where to listen and whether it is the
+	 * master. It repeats the options the member asked for.
+	 *
+	 * @param request
+	 *            - the request of the member
+	 * @param master
+	 *            - true to make the member master client
+	 * @return the packet, addressed to the member
+	 */
+	private DatagramPacket buildOptionAck(ReadWritePacket request, boolean master) {
+		OptionAckPacket vOptionAck = new OptionAckPacket(request.getPacket());
+		for (Map.Entry<String, String> option : this.mOptionTemplate.getOptions().entrySet()) {
+			if (request.getOption(option.getKey()) != null) {
+				vOptionAck.setOption(option.getKey(), option.getValue());
+			}
+		}
+		vOptionAck.setOption(Configurations.OPTION_MULTICAST, this.mGroup.getAddress().getHostAddress() + ","
+				+ this.mGroup.getPort() + "," + (master ? 1 : 0));
+		return vOptionAck.buildPacket();
+	}
+
+	/**
+	 * Reads a block and builds the DATA packet sending it to the group.
+	 *
+	 * @param block
+	 *            - position of the block in the file
+	 * @return the packet, addressed to the group
+	 * @throws IOException
+	 */
+	private DatagramPacket buildData(long block) throws IOException {
+		byte[] vPayload = storage.readBlockFromDisk(block);
+		DataPacket vDataPacket = new DataPacket(this.mGroup.getAddress(), this.mGroup.getPort());
+		vDataPacket.setBlockNumber((int) ((block - 1) & 0xFFFF));
+		DatagramPacket vSendPacket = vDataPacket.buildPacket(vPayload);
+		logger.print(logger, Strings.SENDING);
+		BufferPrinter.printPacket(vDataPacket, logger, RequestType.DATA);
+		if (block > this.mHighestSent) {
+			this.mHighestSent = block;
+			recordBytes(vPayload);
+		}
+		return vSendPacket;
+	}
+
+	/**
+	 * Finds the position of a block from its 16 bit number.
+	 *
+	 * @param blockNumber
+	 *            - block number as sent
+	 * @param floor
+	 *            - lowest position the block can have
+	 * @return the first position at or after floor with that block number
+	 */
+	private static long resolveBlock(int blockNumber, long floor) {
+		return floor + ((blockNumber - floor) & 0xFFFF);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.ServerNetworking#acceptsWindowSize()
+	 */
+	@Override
+	protected boolean acceptsWindowSize() {
+		// The master acknowledges every block
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.ServerNetworking#acceptsCompression()
+	 */
+	@Override
+	protected boolean acceptsCompression() {
+		// Blocks are read and sent again by position, without the read-ahead
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.ServerNetworking#acceptsOffset()
+	 */
+	@Override
+	protected boolean acceptsOffset() {
+		// Members joining later need the blocks from the first one
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.ServerNetworking#acceptsChecksum()
+	 */
+	@Override
+	protected boolean acceptsChecksum() {
+		// Only the master acknowledges, the others could not be checked
+		return false;
+	}
+}
@@ -0,0 +1,203 @@
+package networking;
+
+import java.net.DatagramPacket;
+import java.nio.channels.DatagramChannel;
+import java.util.zip.ZipException;
+
+import helpers.BufferPrinter;
+import packet.DataView;
+import packet.PacketView;
+import packet.WritePacket;
+import resource.Configurations;
+import resource.Strings;
+import testbed.TFTPErrorMessage;
+import types.DiskFullException;
+import types.ErrorType;
+import types.Logger;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Serves a write request on the selector event loop. This is the state
+ *         machine version of handleInitWRQ() followed by receiveFile(): ACK
+ *         the DATA block closing each window, then once the short block has
+ *         been saved keep answering retransmissions of it until the line stays
+ *         quiet.
+ */
+public class NonBlockingReceiveTransfer extends NonBlockingTransfer {
+
+	// Set once the last block is on disk and we only wait in case our final
+	// ACK was lost
+	private boolean mDallying = false;
+	// The header of the last DATA block, which is all lastPacket answers with
+	private DatagramPacket mLastHeader = new DatagramPacket(new byte[Configurations.LEN_ACK_PACKET_BUFFER],
+			Configurations.LEN_ACK_PACKET_BUFFER);
+
+	/**
+	 * See constructor from NonBlockingTransfer
+	 */
+	public NonBlockingReceiveTransfer(WritePacket request, DatagramChannel channel, Logger log) {
+		super(request, channel, log);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#start()
+	 */
+	@Override
+	public void start() {
+		logger.print(logger, Strings.RECEIVED);
+		BufferPrinter.printPacket(this.mRequest, logger, RequestType.WRQ);
+
+		// Sends ACK 0 through transmit(), which arms the first deadline
+		TFTPErrorMessage result = handleInitWRQ(this.mRequest, logger);
+		if (!result.getString().equals(Strings.NO_ERROR)) {
+			errorHandle(result, this.mRequest.getPacket(), RequestType.WRQ);
+			finish();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#onPacket(java.net.DatagramPacket)
+	 */
+	@Override
+	protected void onPacket(DatagramPacket packet) {
+		PacketView vView = mPacketFactory.getView(packet);
+		TFTPErrorMessage error = errorChecker.check(vView, RequestType.DATA);
+		logger.print(logger, Strings.RECEIVED);
+		BufferPrinter.printPacket(vView, logger, RequestType.DATA);
+		if (error.getType() == ErrorType.UNKNOWN_TRANSFER) {
+			// Answer the stray sender, but keep replying to our peer
+			errorHandle(error, packet, RequestType.DATA);
+			return;
+		}
+		if (error.getType() == ErrorType.NO_ERROR) {
+			DataView receivedBlock = (DataView) vView;
+			lastPacket = keepHeader(packet);
+			if (this.mDallying) {
+				// The client did not get our final ACK
+				sendACK(lastPacket);
+				finish();
+				return;
+			}
+			retries = 0;
+			mRtt.completeSample(receivedBlock.getBlockNumber());
+			saveBlock(receivedBlock);
+			// Blocks held past a gap it filled follow it in order
+			DatagramPacket vHeld;
+			while (!this.mDallying && !isFinished() && (vHeld = takeHeldBlock()) != null) {
+				lastPacket = vHeld;
+				saveBlock((DataView) mPacketFactory.getView(vHeld));
+			}
+			return;
+		}
+		if (error.getType() == ErrorType.SORCERERS_APPRENTICE) {
+			if (!this.mDallying && holdEarlyBlock(retain(packet), ((DataView) vView).getBlockNumber())) {
+				return;
+			}
+			answerDuplicate();
+		}
+		if (errorHandle(error, packet, RequestType.DATA)) {
+			if (this.mDallying) {
+				// The sender rejected the complete file, nothing in it is
+				// verified
+				this.storage.deleteFileFromDisk();
+			} else {
+				this.storage.retainPartialFile();
+			}
+			finish();
+		}
+	}
+
+	/**
+	 * Copies the header of a DATA block into the packet kept as lastPacket.
+	 * The ACKs and errors lastPacket answers with only need its block number
+	 * and sender, so the payload is not copied out of the receive buffer.
+	 *
+	 * @param packet
+	 *            - the validated DATA packet
+	 * @return the packet to keep as lastPacket
+	 */
+	private DatagramPacket keepHeader(DatagramPacket packet) {
+		System.arraycopy(packet.getData(), packet.getOffset(), this.mLastHeader.getData(), 0,
+				Configurations.LEN_ACK_PACKET_BUFFER);
+		this.mLastHeader.setAddress(packet.getAddress());
+		this.mLastHeader.setPort(packet.getPort());
+		return this.mLastHeader;
+	}
+
+	/**
+	 * Writes an in-order block to disk, decompressed or translated from
+	 * netascii if agreed, and acknowledges it.
+	 *
+	 * @param receivedBlock
+	 *            - view of the validated DATA packet
+	 */
+	private void saveBlock(DataView receivedBlock) {
+		boolean vHasMore;
+		try {
+			vHasMore = storeBlock(receivedBlock.getBuffer(), receivedBlock.getPayloadOffset(),
+					receivedBlock.getPayloadLength());
+		} catch (ZipException e) {
+			this.errorHandle(new TFTPErrorMessage(ErrorType.ILLEGAL_OPERATION, Strings.COMPRESSION_CORRUPT),
+					this.lastPacket);
+			this.storage.retainPartialFile();
+			finish();
+			return;
+		} catch (DiskFullException e) {
+			TFTPErrorMessage errMsg = new TFTPErrorMessage(ErrorType.ALLOCATION_EXCEEDED, e.getMessage());
+			if (this.errorHandle(errMsg, this.lastPacket)) {
+				this.storage.retainPartialFile();
+			}
+			finish();
+			return;
+		}
+		if (vHasMore)
+			errorChecker.incrementExpectedBlockNumber();
+		if (closesWindow(vHasMore)) {
+			sendACK(lastPacket);
+			if (vHasMore) {
+				mRtt.startSample(errorChecker.getExpectedBlockNumber());
+			}
+		} else {
+			// The sender is still in its window, give it a full timeout
+			armTransmissionTimeout();
+		}
+		if (!vHasMore) {
+			this.mDallying = true;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#onTimeout()
+	 */
+	@Override
+	protected void onTimeout() {
+		if (this.mDallying) {
+			if (++retries == Configurations.RETRANMISSION_TRY) {
+				logger.print(Logger.VERBOSE, "Waited enough time, file transfer considered done.");
+				finish();
+			} else {
+				armTransmissionTimeout(Configurations.TRANMISSION_TIMEOUT);
+			}
+			return;
+		}
+		logger.print(Logger.ERROR, Strings.TFTPNETWORKING_SOCKET_TIMEOUT);
+		mBlocksSinceAck = 0;
+		mRtt.backoff();
+		sendACK(lastPacket);
+		recordRetransmit();
+		if (++retries == Configurations.RETRANMISSION_TRY) {
+			if (errorChecker.getExpectedBlockNumber() != 0) {
+				this.storage.retainPartialFile();
+			}
+			finish();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package networking;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.channels.DatagramChannel;
+
+import helpers.BufferPrinter;
+import packet.AckView;
+import packet.PacketView;
+import packet.ReadPacket;
+import resource.Configurations;
+import resource.Strings;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Serves a read request on the selector event loop. This is the state
+ *         machine version of handleInitRRQ() followed by sendFile(): send a
+ *         window of DATA blocks, wait for the ACK closing it, then send the
+ *         next window until the short block has been acknowledged. When
+ *         options were negotiated the OACK has to be acknowledged with ACK 0
+ *         before the first block goes out.
+ */
+public class NonBlockingSendTransfer extends NonBlockingTransfer {
+
+	/**
+	 * See constructor from NonBlockingTransfer
+	 */
+	public NonBlockingSendTransfer(ReadPacket request, DatagramChannel channel, Logger log) {
+		super(request, channel, log);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#start()
+	 */
+	@Override
+	public void start() {
+		logger.print(logger, Strings.RECEIVED);
+		BufferPrinter.printPacket(this.mRequest, logger, RequestType.RRQ);
+
+		TFTPErrorMessage result = handleInitRRQ(this.mRequest, logger);
+		if (!result.getString().equals(Strings.NO_ERROR)) {
+			errorHandle(result, this.mRequest.getPacket(), RequestType.RRQ);
+			finish();
+			return;
+		}
+		lastPacket = new DatagramPacket(new byte[Configurations.MAX_MESSAGE_SIZE], Configurations.MAX_MESSAGE_SIZE,
+				lastPacket.getAddress(), lastPacket.getPort());
+		if (mPendingOptionAck == null) {
+			sendWindow(false);
+		}
+	}
+
+	/**
+	 * Sends again the blocks still in the window if asked to, then reads and
+	 * sends new blocks until the window is full.
+	 *
+	 * @param resend
+	 *            - true to send the unacknowledged blocks again first
+	 */
+	private void sendWindow(boolean resend) {
+		try {
+			if (resend) {
+				resendSendWindow();
+			}
+			TFTPErrorMessage error = fillSendWindow();
+			if (error != null) {
+				this.errorHandle(error, this.lastPacket, RequestType.ACK);
+				finish();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			finish();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#onPacket(java.net.DatagramPacket)
+	 */
+	@Override
+	protected void onPacket(DatagramPacket packet) {
+		PacketView vView = mPacketFactory.getView(packet);
+
+		logger.print(logger, Strings.RECEIVED);
+		BufferPrinter.printPacket(vView, logger, RequestType.ACK);
+
+		TFTPErrorMessage error = errorChecker.check(vView, RequestType.ACK);
+		if (error.getType() == ErrorType.NO_ERROR && mPendingOptionAck != null) {
+			// ACK 0, the client accepted our options
+			retries = 0;
+			mRtt.completeSample(0);
+			mPendingOptionAck = null;
+			expectFirstBlock();
+			sendWindow(false);
+			return;
+		}
+		if (error.getType() == ErrorType.NO_ERROR) {
+			AckView ackView = (AckView) vView;
+			if (!acknowledgeSendWindow(ackView.getBlockNumber())) {
+				return;
+			}
+			retries = 0;
+			if (isSendComplete()) {
+				// The short block has been acknowledged
+				error = verifyDigest(ackView);
+				if (error != null) {
+					errorHandle(error, packet, RequestType.ACK);
+					this.storage.finishedTransferingFile();
+				}
+				finish();
+			} else {
+				// Blocks past the ACK were lost, they go out again first
+				sendWindow(true);
+			}
+			return;
+		}
+		if (error.getType() == ErrorType.SORCERERS_APPRENTICE) {
+			return;
+		}
+		if (errorHandle(error, packet, RequestType.ACK)) {
+			this.storage.finishedTransferingFile();
+			finish();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#onPacingDue()
+	 */
+	@Override
+	protected void onPacingDue() {
+		if (mPendingOptionAck == null) {
+			sendWindow(false);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.NonBlockingTransfer#onTimeout()
+	 */
+	@Override
+	protected void onTimeout() {
+		logger.print(Logger.ERROR, Strings.TFTPNETWORKING_TIME_OUT);
+		mRtt.backoff();
+		mCongestion.onLoss();
+		if (mPendingOptionAck != null) {
+			transmitOrAbort(mPendingOptionAck);
+		} else {
+			try {
+				resendSendWindow();
+			} catch (IOException e) {
+				e.printStackTrace();
+				finish();
+				return;
+			}
+		}
+		recordRetransmit();
+		if (++retries == Configurations.RETRANMISSION_TRY) {
+			logger.print(Logger.ERROR, String.format(Strings.TFTPNETWORKING_RE_TRAN_SHUT_DOWN, retries));
+			this.storage.finishedTransferingFile();
+			finish();
+		}
+	}
+}
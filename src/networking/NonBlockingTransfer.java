@@ -0,0 +1,403 @@
+package networking;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import packet.ReadWritePacket;
+import resource.Configurations;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         Base class of the transfers run by the selector event loop. Instead
+ *         of blocking in receive() like sendFile() and receiveFile(), a
+ *         non-blocking transfer is a state machine that is handed every
+ *         datagram that arrives on its channel and is told when its
+ *         retransmission deadline has passed, by a timeout on the timer wheel
+ *         of its event loop, or that a block held back by pacing may go out,
+ *         by the pacing queue of the loop. Packets are still built with the
+ *         packet classes, decoded with the views of the PacketFactory and
+ *         validated with the ErrorChecker, so the protocol
+ *         behaves the same as the blocking path. The blocking sendFile() and
+ *         receiveFile() inherited from TFTPNetworking must not be called on
+ *         these transfers.
+ */
+public abstract class NonBlockingTransfer extends ServerNetworking {
+
+	protected DatagramChannel mChannel;
+	protected ReadWritePacket mRequest;
+	private TimerWheel mTimers;
+	private PacingQueue mPacing;
+	private TimerWheel.Task mTimerTask;
+	private TimerWheel.Timeout mTimeout;
+	// Deadline the pending timer was scheduled for
+	private long mScheduledDeadline = Long.MAX_VALUE;
+	// When the pacing clock lets the next block out, from System.nanoTime(),
+	// while the transfer is queued on the pacing queue
+	private long mPacingDeadline = 0;
+	private boolean mPacingQueued = false;
+	// Set when the pacing deadline has passed, until the send goes on
+	private boolean mPacingDue = false;
+	private boolean mFinished = false;
+	private boolean mSharedChannel = false;
+	// Hands the receive buffer of the event loop to onPacket() in place
+	private DatagramPacket mReceived = null;
+	// The channel copies a heap buffer into a direct one for every send, so
+	// packets are copied into this one instead, kept for the transfer
+	private ByteBuffer mSendBuffer = null;
+	// Address the last packet went to, made again only when the peer changes
+	private InetSocketAddress mSendTarget = null;
+
+	/**
+	 * @param request
+	 *            - the RRQ or WRQ that started this transfer
+	 * @param channel
+	 *            - a bound, non-blocking channel that is the server TID
+	 * @param log
+	 *            - logger to print with
+	 */
+	public NonBlockingTransfer(ReadWritePacket request, DatagramChannel channel, Logger log) {
+		super(request, null);
+		this.mRequest = request;
+		this.mChannel = channel;
+		this.logger = log;
+	}
+
+	/**
+	 * @return the file named in the request
+	 */
+	public String getRequestFileName() {
+		return this.mRequest.getFilename();
+	}
+
+	/**
+	 * @return the bytes of the request that started this transfer
+	 */
+	public byte[] getRequestBuffer() {
+		return this.mRequest.getPacketBuffer();
+	}
+
+	/**
+	 * Validates the request and sends the first packet of the transfer. If the
+	 * request is refused, the error is sent and the transfer is finished
+	 * before this returns.
+	 */
+	public abstract void start();
+
+	/**
+	 * Handles one datagram received on the transfer channel. The datagram may
+	 * point into the receive buffer of the event loop, which the next datagram
+	 * is received into, so it must go through retain() to be kept.
+	 *
+	 * @param packet
+	 *            - the received datagram, with the sender address set
+	 */
+	protected abstract void onPacket(DatagramPacket packet);
+
+	/**
+	 * Makes a datagram handed to onPacket() safe to keep past it, such as a
+	 * block held until the gap before it is filled.
+	 *
+	 * @param packet
+	 *            - the datagram handed to onPacket()
+	 * @return the datagram itself, or a copy of it if it points into the
+	 *         receive buffer of the event loop
+	 */
+	protected DatagramPacket retain(DatagramPacket packet) {
+		if (packet != this.mReceived) {
+			return packet;
+		}
+		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+				packet.getOffset() + packet.getLength());
+		return new DatagramPacket(data, data.length, packet.getSocketAddress());
+	}
+
+	/**
+	 * Handles the retransmission deadline passing without a valid reply.
+	 */
+	protected abstract void onTimeout();
+
+	/**
+	 * Called when a send held back by the pacing clock may go on. Transfers
+	 * that do not send windows never hold one back.
+	 */
+	protected void onPacingDue() {
+	}
+
+	/**
+	 * Marks the channel as shared with other transfers, as in single port
+	 * mode. The event loop then reads the channel and delivers each datagram
+	 * to its transfer by remote TID, so the TID check of the ErrorChecker is
+	 * skipped and the channel is left open when the transfer closes.
+	 */
+	public void useSharedChannel() {
+		this.mSharedChannel = true;
+		this.errorChecker.setTransferIdVerified(true);
+	}
+
+	/**
+	 * Hands one datagram from the remote TID of this transfer to the state
+	 * machine, for transfers on a shared channel.
+	 *
+	 * @param packet
+	 *            - the received datagram, with the sender address set
+	 */
+	public void deliver(DatagramPacket packet) {
+		if (!this.mFinished) {
+			onPacket(packet);
+		}
+	}
+
+	/**
+	 * Hands one datagram the event loop read from the shared channel to the
+	 * state machine, in place in the receive buffer of the loop. onPacket()
+	 * copies what it keeps, as for a datagram read from its own channel.
+	 *
+	 * @param scratch
+	 *            - the receive buffer of the event loop, holding the datagram
+	 * @param from
+	 *            - the remote TID the datagram came from
+	 */
+	public void deliver(ByteBuffer scratch, SocketAddress from) {
+		if (!this.mFinished) {
+			onPacket(received(scratch, from));
+		}
+	}
+
+	/**
+	 * Drains every datagram waiting on the channel and hands each of them to
+	 * the state machine.
+	 *
+	 * @param scratch
+	 *            - a receive buffer shared by all transfers on the event loop
+	 */
+	public void handleReadable(ByteBuffer scratch) {
+		try {
+			while (!this.mFinished) {
+				scratch.clear();
+				SocketAddress from = this.mChannel.receive(scratch);
+				if (from == null) {
+					break;
+				}
+				// Read in place, onPacket() copies what it keeps
+				onPacket(received(scratch, from));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			finish();
+		}
+	}
+
+	/**
+	 * Points the packet handed to onPacket() at a datagram in a receive
+	 * buffer of the event loop.
+	 *
+	 * @param scratch
+	 *            - the receive buffer, filled up to its position
+	 * @param from
+	 *            - the remote TID the datagram came from
+	 * @return the packet, the same one for every datagram
+	 */
+	private DatagramPacket received(ByteBuffer scratch, SocketAddress from) {
+		if (this.mReceived == null) {
+			this.mReceived = new DatagramPacket(scratch.array(), scratch.position(), from);
+		} else {
+			this.mReceived.setData(scratch.array(), 0, scratch.position());
+			this.mReceived.setSocketAddress(from);
+		}
+		return this.mReceived;
+	}
+
+	/**
+	 * Puts the timeouts of the transfer on a timer wheel and its held back
+	 * sends on a pacing queue. Must be called before start().
+	 *
+	 * @param timers
+	 *            - the wheel of the event loop running the transfer
+	 * @param pacing
+	 *            - the pacing queue of the same loop
+	 * @param task
+	 *            - run when the timeout or the pacing deadline of the
+	 *            transfer is due, it should call handleTimeout()
+	 */
+	public void setTimer(TimerWheel timers, PacingQueue pacing, TimerWheel.Task task) {
+		this.mTimers = timers;
+		this.mPacing = pacing;
+		this.mTimerTask = task;
+	}
+
+	/**
+	 * Lets a send held back by the pacing clock go on and fires the
+	 * retransmission timeout if its deadline has passed. A deadline pushed
+	 * back since the timer was scheduled gets a new timer instead.
+	 *
+	 * @param now
+	 *            - the current time from now()
+	 */
+	public void handleTimeout(long now) {
+		if (!this.mFinished && this.mPacingDue) {
+			this.mPacingDue = false;
+			onPacingDue();
+		}
+		if (!this.mFinished && now >= this.mRetransmitDeadline) {
+			onTimeout();
+		}
+		scheduleTimer();
+	}
+
+	/**
+	 * Called by the pacing queue once the pacing deadline has passed. Runs
+	 * the task of the transfer, so that the event loop retires the transfer
+	 * if the sends finish it.
+	 */
+	void pacingDue() {
+		this.mPacingQueued = false;
+		this.mPacingDue = true;
+		this.mTimerTask.expire(now());
+	}
+
+	/**
+	 * @return when the pacing clock lets the next block out, from
+	 *         System.nanoTime(), while the transfer is on the pacing queue
+	 */
+	long getPacingDeadline() {
+		return this.mPacingDeadline;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.TFTPNetworking#awaitPacing()
+	 */
+	@Override
+	protected boolean awaitPacing() {
+		// The loop thread cannot wait, so the block waits on the pacing queue,
+		// which the loop drains to the nanosecond rather than to the tick
+		if (this.mPacingQueued) {
+			return false;
+		}
+		long vNow = System.nanoTime();
+		long vDelay = mCongestion.getSendDelay(vNow);
+		if (vDelay <= 0 || this.mPacing == null) {
+			return true;
+		}
+		this.mPacingDeadline = vNow + vDelay;
+		this.mPacingQueued = true;
+		this.mPacing.add(this);
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.TFTPNetworking#sendDatagram(java.net.DatagramPacket)
+	 */
+	@Override
+	protected void sendDatagram(DatagramPacket packet) throws IOException {
+		// A full send buffer drops the datagram like a lost packet would, the
+		// retransmission timeout covers both cases
+		if (this.mSendBuffer == null || this.mSendBuffer.capacity() < packet.getLength()) {
+			this.mSendBuffer = ByteBuffer.allocateDirect(Math.max(packet.getLength(), Configurations.MAX_BUFFER));
+		}
+		if (this.mSendTarget == null || this.mSendTarget.getPort() != packet.getPort()
+				|| !this.mSendTarget.getAddress().equals(packet.getAddress())) {
+			this.mSendTarget = new InetSocketAddress(packet.getAddress(), packet.getPort());
+		}
+		this.mSendBuffer.clear();
+		this.mSendBuffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+		this.mSendBuffer.flip();
+		this.mChannel.send(this.mSendBuffer, this.mSendTarget);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see networking.TFTPNetworking#armTransmissionTimeout(long)
+	 */
+	@Override
+	protected void armTransmissionTimeout(long timeout) {
+		super.armTransmissionTimeout(timeout);
+		scheduleTimer();
+	}
+
+	/**
+	 * Makes sure a timer is pending while the transfer runs, for the
+	 * retransmission deadline. A timer already pending that fires no later
+	 * than that is left alone; handleTimeout() reschedules it if it fires
+	 * early. This keeps the wheel at one timer per transfer and avoids a
+	 * cancel and schedule for every packet. Only a deadline brought forward,
+	 * once the measured timeout is shorter than the one the timer was set
+	 * for, moves the timer.
+	 */
+	private void scheduleTimer() {
+		if (this.mFinished || this.mTimers == null) {
+			return;
+		}
+		long vDeadline = this.mRetransmitDeadline;
+		if (this.mTimeout != null && this.mTimeout.isPending()) {
+			if (this.mScheduledDeadline <= vDeadline) {
+				return;
+			}
+			this.mTimeout.cancel();
+		}
+		this.mScheduledDeadline = vDeadline;
+		this.mTimeout = this.mTimers.schedule(this.mTimerTask, vDeadline);
+	}
+
+	/**
+	 * Sends a packet, finishing the transfer if the channel fails.
+	 *
+	 * @param packet
+	 *            - DatagramPacket to send
+	 */
+	protected void transmitOrAbort(DatagramPacket packet) {
+		try {
+			transmit(packet);
+		} catch (IOException e) {
+			e.printStackTrace();
+			finish();
+		}
+	}
+
+	/**
+	 * Marks the transfer as done, the event loop will close it.
+	 */
+	protected void finish() {
+		this.mFinished = true;
+	}
+
+	/**
+	 * @return true once the transfer has completed or given up
+	 */
+	public boolean isFinished() {
+		return this.mFinished;
+	}
+
+	/**
+	 * Cancels the timeout, leaves the pacing queue and closes the transfer channel, unless it is
+	 * shared.
+	 */
+	public void close() {
+		if (this.mTimeout != null) {
+			this.mTimeout.cancel();
+		}
+		if (this.mPacingQueued) {
+			this.mPacingQueued = false;
+			this.mPacing.remove(this);
+		}
+		if (this.mSharedChannel) {
+			return;
+		}
+		try {
+			this.mChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package networking;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * @author Team 3
+ *
+ *         The transfers of one event loop that hold a block back until their
+ *         pacing clock lets it out, ordered by when that is. Pacing intervals
+ *         are often well under the tick of the timer wheel, so the deadlines
+ *         are kept in nanoseconds from System.nanoTime() and the loop bounds
+ *         its wait by the first of them. A transfer is queued at most once.
+ *         A queue is only used by the thread of its event loop, so it does no
+ *         locking.
+ */
+public class PacingQueue {
+
+	// Below this the loop cannot block in the selector, which counts in
+	// milliseconds, and parks for the rest instead
+	private static final long SELECT_GRANULARITY = 1000000;
+
+	private final PriorityQueue<NonBlockingTransfer> mWaiting = new PriorityQueue<NonBlockingTransfer>(16,
+			new Comparator<NonBlockingTransfer>() {
+				public int compare(NonBlockingTransfer a, NonBlockingTransfer b) {
+					// nanoTime() may wrap, only differences are ordered
+					return Long.signum(a.getPacingDeadline() - b.getPacingDeadline());
+				}
+			});
+
+	/**
+	 * Queues a transfer until its pacing deadline.
+	 *
+	 * @param transfer
+	 *            - a transfer not already queued, its deadline set
+	 */
+	void add(NonBlockingTransfer transfer) {
+		this.mWaiting.add(transfer);
+	}
+
+	/**
+	 * Takes a transfer off the queue, as when it is closed.
+	 *
+	 * @param transfer
+	 *            - the transfer to remove
+	 */
+	void remove(NonBlockingTransfer transfer) {
+		this.mWaiting.remove(transfer);
+	}
+
+	/**
+	 * Lets out every transfer whose pacing deadline has passed. A transfer
+	 * that holds its next block back while it sends is queued again with a
+	 * later deadline and does not run twice in the same call.
+	 *
+	 * @param now
+	 *            - the current time from System.nanoTime()
+	 * @return the number of transfers let out
+	 */
+	public int advance(long now) {
+		int due = 0;
+		NonBlockingTransfer transfer;
+		while ((transfer = this.mWaiting.peek()) != null && transfer.getPacingDeadline() - now <= 0) {
+			this.mWaiting.poll();
+			due++;
+			transfer.pacingDue();
+		}
+		return due;
+	}
+
+	/**
+	 * @param now
+	 *            - the current time from System.nanoTime()
+	 * @return nanoseconds until the first pacing deadline, at least 0, or
+	 *         Long.MAX_VALUE if no transfer is waiting
+	 */
+	public long timeUntilNext(long now) {
+		NonBlockingTransfer transfer = this.mWaiting.peek();
+		if (transfer == null) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, transfer.getPacingDeadline() - now);
+	}
+
+	/**
+	 * Works out how long the event loop may block in its selector before the
+	 * first pacing deadline, next to the timeout from its timer wheel.
+	 *
+	 * @param now
+	 *            - the current time from System.nanoTime()
+	 * @param timerMillis
+	 *            - the timeout from the timer wheel, 0 for none
+	 * @return milliseconds to pass to select(), 0 to block without a timeout,
+	 *         or -1 if the first deadline is under a millisecond away and the
+	 *         loop should only poll its channels
+	 */
+	public long selectTimeout(long now, long timerMillis) {
+		long wait = timeUntilNext(now);
+		if (wait == Long.MAX_VALUE) {
+			return timerMillis;
+		}
+		if (wait < SELECT_GRANULARITY) {
+			return -1;
+		}
+		// Rounded down, the rest of the wait is parked once under a millisecond
+		long millis = wait / SELECT_GRANULARITY;
+		return timerMillis > 0 ? Math.min(timerMillis, millis) : millis;
+	}
+
+	/**
+	 * @return the number of transfers waiting
+	 */
+	public int size() {
+		return this.mWaiting.size();
+	}
+}
@@ -0,0 +1,115 @@
+package networking;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Team 3
+ *
+ *         Holds the DATA blocks of a windowed transfer that arrive ahead of a
+ *         missing one, until the missing block comes in and they can be
+ *         written in order. Without it a block overtaken by the next ones
+ *         made the receiver drop the rest of the window and ask for all of it
+ *         again.
+ *
+ *         The blocks are kept in a ring indexed by block number. Its size is
+ *         a power of two at least as large as the window, so it divides 65536
+ *         and the blocks of one window never share a slot, even across the
+ *         rollover from 65535 to 0.
+ */
+public class ReorderBuffer {
+
+	// Over every transfer of this process, for the status command
+	private static AtomicLong sHeld = new AtomicLong(0);
+	private static AtomicLong sDuplicates = new AtomicLong(0);
+	private static AtomicLong sGapAcks = new AtomicLong(0);
+
+	private final DatagramPacket[] mSlots;
+	// Block number held in each slot, -1 if the slot is free
+	private final int[] mBlockNumbers;
+	private final int mMask;
+	private int mCount = 0;
+
+	/**
+	 * @param windowSize
+	 *            - blocks the sender may have in flight
+	 */
+	public ReorderBuffer(int windowSize) {
+		int vCapacity = Integer.highestOneBit(Math.max(windowSize, 1) - 1) << 1;
+		this.mSlots = new DatagramPacket[Math.max(vCapacity, 1)];
+		this.mBlockNumbers = new int[this.mSlots.length];
+		this.mMask = this.mSlots.length - 1;
+		for (int i = 0; i < this.mBlockNumbers.length; ++i) {
+			this.mBlockNumbers[i] = -1;
+		}
+	}
+
+	/**
+	 * Keeps a block that came ahead of the one expected. The packet is kept
+	 * as it is, the caller must receive the next one into another buffer.
+	 *
+	 * @param blockNumber
+	 *            - block number of the packet, within the window
+	 * @param packet
+	 *            - the DATA packet
+	 * @return false if the block is already held, the packet is a duplicate
+	 */
+	public boolean hold(int blockNumber, DatagramPacket packet) {
+		int vSlot = blockNumber & this.mMask;
+		if (this.mBlockNumbers[vSlot] == blockNumber) {
+			sDuplicates.incrementAndGet();
+			return false;
+		}
+		if (this.mBlockNumbers[vSlot] == -1) {
+			++this.mCount;
+		}
+		this.mSlots[vSlot] = packet;
+		this.mBlockNumbers[vSlot] = blockNumber;
+		sHeld.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Hands back a held block once it is the one expected.
+	 *
+	 * @param blockNumber
+	 *            - the block number expected next
+	 * @return the DATA packet, or null if that block is not held
+	 */
+	public DatagramPacket take(int blockNumber) {
+		int vSlot = blockNumber & this.mMask;
+		if (this.mBlockNumbers[vSlot] != blockNumber) {
+			return null;
+		}
+		DatagramPacket vPacket = this.mSlots[vSlot];
+		this.mSlots[vSlot] = null;
+		this.mBlockNumbers[vSlot] = -1;
+		--this.mCount;
+		return vPacket;
+	}
+
+	/**
+	 * @return number of blocks held
+	 */
+	public int size() {
+		return this.mCount;
+	}
+
+	/**
+	 * Counts an ACK sent for the block before a gap, which makes the sender
+	 * send the window again from the missing block.
+	 */
+	public static void recordGapAck() {
+		sGapAcks.incrementAndGet();
+	}
+
+	/**
+	 * @return a line for the status command: blocks held until the gap before
+	 *         them was filled, copies of held blocks dropped, and ACKs sent to
+	 *         ask for a missing block
+	 */
+	public static String getReport() {
+		return String.format("Reordered blocks held : %d | Duplicates dropped : %d | Gap ACKs : %d", sHeld.get(),
+				sDuplicates.get(), sGapAcks.get());
+	}
+}
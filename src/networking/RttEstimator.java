@@ -0,0 +1,123 @@
+package networking;
+
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         Keeps the retransmission timeout of one transfer, following RFC 6298:
+ *         a smoothed round trip time and its variation are updated from timed
+ *         packets, and the timeout is doubled on every expiry until a new
+ *         measurement comes in. Only one block is timed at a time, and a block
+ *         that was sent again is never timed, as Karn's rule asks, since its
+ *         answer could be for either copy. A timeout negotiated with the RFC
+ *         2349 timeout option replaces the estimate altogether.
+ */
+public class RttEstimator {
+
+	private double mSmoothedRtt = -1;
+	private double mRttVariation = 0;
+	private long mTimeout = Configurations.TRANMISSION_TIMEOUT;
+	private boolean mFixed = false;
+	// Block being timed and when it was sent, -1 when none is
+	private int mSampleBlock = -1;
+	private long mSampleSentAt = 0; // from System.nanoTime()
+
+	/**
+	 * Starts timing a block that was just sent for the first time, unless
+	 * another block is already being timed.
+	 *
+	 * @param blockNumber
+	 *            - block of the packet, or of the answer expected for it
+	 */
+	public void startSample(int blockNumber) {
+		if (this.mFixed || this.mSampleBlock != -1) {
+			return;
+		}
+		this.mSampleBlock = blockNumber;
+		this.mSampleSentAt = System.nanoTime();
+	}
+
+	/**
+	 * Ends the measurement if the block answered is the one being timed.
+	 *
+	 * @param blockNumber
+	 *            - block the answer is for
+	 */
+	public void completeSample(int blockNumber) {
+		if (this.mSampleBlock != blockNumber) {
+			return;
+		}
+		this.mSampleBlock = -1;
+		addSample((System.nanoTime() - this.mSampleSentAt) / 1000000.0);
+	}
+
+	/**
+	 * Drops the measurement in progress because its block was sent again.
+	 */
+	public void cancelSample() {
+		this.mSampleBlock = -1;
+	}
+
+	/**
+	 * Doubles the timeout after it expired, up to the largest timeout. Once a
+	 * timeout expires the peer may be gone rather than slow, so the timeout is
+	 * never backed off below the default one: a transfer gives up no sooner
+	 * than it did with the fixed timeout. The block being timed will be sent
+	 * again, so its measurement is dropped.
+	 */
+	public void backoff() {
+		cancelSample();
+		if (!this.mFixed) {
+			this.mTimeout = Math.min(Math.max(this.mTimeout * 2, Configurations.TRANMISSION_TIMEOUT),
+					Configurations.MAX_TRANSMISSION_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Uses a timeout agreed with the peer instead of the estimate.
+	 *
+	 * @param timeout
+	 *            - timeout in milliseconds
+	 */
+	public void setFixedTimeout(long timeout) {
+		this.mFixed = true;
+		this.mTimeout = timeout;
+		cancelSample();
+	}
+
+	/**
+	 * Updates the estimate with one round trip time.
+	 *
+	 * @param rtt
+	 *            - measured round trip time in milliseconds, with the
+	 *            fraction kept so a loopback or LAN round trip is not 0
+	 */
+	private void addSample(double rtt) {
+		if (this.mSmoothedRtt < 0) {
+			this.mSmoothedRtt = rtt;
+			this.mRttVariation = rtt / 2.0;
+		} else {
+			this.mRttVariation = 0.75 * this.mRttVariation + 0.25 * Math.abs(this.mSmoothedRtt - rtt);
+			this.mSmoothedRtt = 0.875 * this.mSmoothedRtt + 0.125 * rtt;
+		}
+		long timeout = (long) Math.ceil(this.mSmoothedRtt + Math.max(1, 4 * this.mRttVariation));
+		this.mTimeout = Math.max(Configurations.MIN_TRANSMISSION_TIMEOUT,
+				Math.min(timeout, Configurations.MAX_TRANSMISSION_TIMEOUT));
+	}
+
+	/**
+	 * @return the retransmission timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return this.mTimeout;
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds, -1 before the
+	 *         first measurement
+	 */
+	public long getSmoothedRttNanos() {
+		return this.mSmoothedRtt < 0 ? -1 : (long) (this.mSmoothedRtt * 1000000);
+	}
+}
@@ -0,0 +1,136 @@
+package networking;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import packet.PacketEncoder;
+
+/**
+ * @author Team 3
+ *
+ *         The DATA packets of a windowed transfer that are sent and not
+ *         acknowledged yet, oldest first, kept to be sent again. Each block is
+ *         encoded by the PacketEncoder straight into the buffer of a slot,
+ *         where a DataPacket built a new buffer and DatagramPacket for every
+ *         block.
+ *
+ *         The slots form a ring that is made as the first window goes out and
+ *         kept for the whole transfer. An acknowledged slot takes the next
+ *         block, so once the ring has grown to the window, sending a block
+ *         allocates nothing.
+ */
+public class SendWindow {
+
+	private ByteBuffer[] mBuffers = new ByteBuffer[1];
+	private DatagramPacket[] mPackets = new DatagramPacket[1];
+	private int[] mBlockNumbers = new int[1];
+	// Length of the largest packet so far, new slots are made this large
+	private int mSlotSize = 0;
+	// Slot of the oldest block, and blocks in the window from it on
+	private int mFirst = 0;
+	private int mCount = 0;
+
+	/**
+	 * Encodes the next block into a free slot.
+	 *
+	 * @param blockNumber
+	 *            - block number of the block
+	 * @param payload
+	 *            - the block, may be null for an empty one
+	 * @param length
+	 *            - length of the block
+	 * @param address
+	 *            - where the block goes
+	 * @param port
+	 *            - port it goes to
+	 * @return the DATA packet to send, kept until it is acknowledged
+	 */
+	public DatagramPacket add(int blockNumber, byte[] payload, int length, InetAddress address, int port) {
+		if (this.mCount == this.mBuffers.length) {
+			grow();
+		}
+		int vSlot = (this.mFirst + this.mCount) % this.mBuffers.length;
+		ByteBuffer vBuffer = this.mBuffers[vSlot];
+		this.mSlotSize = Math.max(this.mSlotSize, PacketEncoder.getDataLength(length));
+		if (vBuffer == null || vBuffer.capacity() < PacketEncoder.getDataLength(length)) {
+			// A slot is made once, or again for a block larger than any before
+			vBuffer = ByteBuffer.allocate(this.mSlotSize);
+			this.mBuffers[vSlot] = vBuffer;
+			this.mPackets[vSlot] = new DatagramPacket(vBuffer.array(), vBuffer.capacity());
+		}
+		DatagramPacket vPacket = this.mPackets[vSlot];
+		vPacket.setLength(PacketEncoder.encodeData(vBuffer, blockNumber, payload, 0, length));
+		vPacket.setAddress(address);
+		vPacket.setPort(port);
+		this.mBlockNumbers[vSlot] = blockNumber;
+		++this.mCount;
+		return vPacket;
+	}
+
+	/**
+	 * Drops the oldest block, once it is acknowledged.
+	 */
+	public void removeFirst() {
+		this.mFirst = (this.mFirst + 1) % this.mBuffers.length;
+		--this.mCount;
+	}
+
+	/**
+	 * @param index
+	 *            - position in the window, 0 for the oldest block
+	 * @return the DATA packet of the block
+	 */
+	public DatagramPacket getPacket(int index) {
+		return this.mPackets[(this.mFirst + index) % this.mBuffers.length];
+	}
+
+	/**
+	 * @param index
+	 *            - position in the window, 0 for the oldest block
+	 * @return block number of the block
+	 */
+	public int getBlockNumber(int index) {
+		return this.mBlockNumbers[(this.mFirst + index) % this.mBuffers.length];
+	}
+
+	/**
+	 * @param index
+	 *            - position in the window, 0 for the oldest block
+	 * @return length of the block, without the DATA header
+	 */
+	public int getPayloadLength(int index) {
+		return getPacket(index).getLength() - PacketEncoder.getDataLength(0);
+	}
+
+	/**
+	 * @return number of blocks in the window
+	 */
+	public int size() {
+		return this.mCount;
+	}
+
+	public boolean isEmpty() {
+		return this.mCount == 0;
+	}
+
+	/**
+	 * Doubles the ring, moving the blocks in the window to its start.
+	 */
+	private void grow() {
+		int vCapacity = this.mBuffers.length;
+		ByteBuffer[] vBuffers = new ByteBuffer[vCapacity * 2];
+		DatagramPacket[] vPackets = new DatagramPacket[vCapacity * 2];
+		int[] vBlockNumbers = new int[vCapacity * 2];
+		for (int i = 0; i < vCapacity; ++i) {
+			int vSlot = (this.mFirst + i) % vCapacity;
+			vBuffers[i] = this.mBuffers[vSlot];
+			vPackets[i] = this.mPackets[vSlot];
+			vBlockNumbers[i] = this.mBlockNumbers[vSlot];
+		}
+		this.mBuffers = vBuffers;
+		this.mPackets = vPackets;
+		this.mBlockNumbers = vBlockNumbers;
+		this.mFirst = 0;
+	}
+}
@@ -4,17 +4,19 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
 import java.nio.file.AccessDeniedException;
 
 import helpers.BufferPrinter;
 import helpers.FileStorageService;
+import helpers.TransferChecksum;
 import packet.AckPacket;
+import packet.OptionAckPacket;
 import packet.ReadWritePacket;
 import resource.Configurations;
 import resource.Strings;
 import testbed.TFTPErrorMessage;
 import types.DirectoryAccessViolationException;
+import types.DiskFullException;
 import types.ErrorType;
 import types.InstanceType;
 import types.Logger;
@@ -73,7 +75,10 @@ public class ServerNetworking extends TFTPNetworking {
 				return error;
 			}
 		}
-		if( FileStorageService.checkFileNameExists(Configurations.SERVER_ROOT_FILE_DIRECTORY+"/"+fileName) ){
+		// The partial file of a failed upload is not a file yet, it is resumed
+		String vFilePath = Configurations.SERVER_ROOT_FILE_DIRECTORY+"/"+fileName;
+		FileStorageService.expirePartialFile(vFilePath);
+		if( FileStorageService.checkFileNameExists(vFilePath) && !FileStorageService.isPartialFile(vFilePath) ){
 			String message = String.format(Strings.PRE_FILE_NAME_EXIST + Strings.FILE_EXISTS, fileName);
 			return new TFTPErrorMessage(ErrorType.FILE_EXISTS, message);
 		}
@@ -81,38 +86,67 @@ public class ServerNetworking extends TFTPNetworking {
 		try {
 			storage = new FileStorageService(fileName, InstanceType.SERVER, RequestType.WRQ);
 			storage.lockFile();
+			storage.setSource(wrq.getPacket().getAddress().getHostAddress());
 			System.out.println("Locked the write file");
 		} catch (DirectoryAccessViolationException e) {
 			if(this.storage != null)
-				this.storage.deleteFileFromDisk();
+				this.storage.retainPartialFile();
 			return new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, Strings.MKDIR_FAIL);
 		} catch (FileNotFoundException e) {
 			if(this.storage != null)
-				this.storage.deleteFileFromDisk();
+				this.storage.retainPartialFile();
 			e.printStackTrace();
 		} catch (AccessDeniedException e) {
 			error = new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, e.getFile());
 			if(this.storage != null)
-				this.storage.deleteFileFromDisk();
+				this.storage.retainPartialFile();
 			return error;
 		}catch (IOException e) {
 			error = new TFTPErrorMessage(ErrorType.NOT_DEFINED, "Unknown IO Exception occurred.");
 			if(this.storage != null)
-				this.storage.deleteFileFromDisk();
+				this.storage.retainPartialFile();
 			return error;
 		}
 
-		errorChecker.incrementExpectedBlockNumber();
-
-		AckPacket vAckPacket = new AckPacket(wrq.getPacket());
-		DatagramPacket vSendPacket = vAckPacket.buildPacket();
+		// A file announced with tsize that cannot fit is refused before any ACK
+		long vTransferSize = parseTransferSize(wrq.getOption(Configurations.OPTION_TRANSFER_SIZE));
+		if (vTransferSize != -1) {
+			try {
+				storage.reserveSpace(vTransferSize);
+			} catch (DiskFullException e) {
+				// Closes the file, a partial file from before is kept as it was
+				this.storage.retainPartialFile();
+				return new TFTPErrorMessage(ErrorType.ALLOCATION_EXCEEDED, e.getMessage());
+			}
+		}
 
+		// Options accepted are acknowledged with an OACK in place of ACK 0
+		DatagramPacket vSendPacket;
+		setMode(wrq.getMode());
+		OptionAckPacket vOptionAck = negotiateOptions(wrq);
+		if (storage.getRetainedLength() != -1) {
+			// Goes on after the part agreed with the offset option, or over it
+			try {
+				storage.resumeWritingAt((mFirstBlock - 1) * mBlockSize);
+			} catch (IOException e) {
+				this.storage.finishedTransferingFile();
+				return new TFTPErrorMessage(ErrorType.NOT_DEFINED, "Unknown IO Exception occurred.");
+			}
+		}
+		expectFirstBlock();
 		logger.print(Logger.VERBOSE, Strings.SENDING);
-		BufferPrinter.printPacket(new AckPacket(vSendPacket), this.logger, RequestType.ACK);
+		if (vOptionAck != null) {
+			vSendPacket = vOptionAck.getPacket();
+			BufferPrinter.printPacket(vOptionAck, this.logger, RequestType.OACK);
+		} else {
+			AckPacket vAckPacket = new AckPacket(wrq.getPacket());
+			vSendPacket = vAckPacket.buildPacket();
+			BufferPrinter.printPacket(new AckPacket(vSendPacket), this.logger, RequestType.ACK);
+		}
 
 		try {
-			super.socket.setSoTimeout(Configurations.TRANMISSION_TIMEOUT);
-			socket.send(vSendPacket);
+			transmit(vSendPacket);
+			mRtt.startSample((int) (mFirstBlock & 0xFFFF));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -139,13 +173,15 @@ public class ServerNetworking extends TFTPNetworking {
 		TFTPErrorMessage error = errorChecker.check(rrq, RequestType.RRQ);
 		if (error.getType() != ErrorType.NO_ERROR)
 				return error;
-		if (!FileStorageService.checkFileNameExists(Configurations.SERVER_ROOT_FILE_DIRECTORY+"/"+fileName)){
+		// A partial file left by a failed upload cannot be read until complete
+		String vFilePath = Configurations.SERVER_ROOT_FILE_DIRECTORY+"/"+fileName;
+		FileStorageService.expirePartialFile(vFilePath);
+		if (!FileStorageService.checkFileNameExists(vFilePath) || FileStorageService.isPartialFile(vFilePath)){
 			return new TFTPErrorMessage(ErrorType.FILE_NOT_FOUND, Strings.FILE_NOT_FOUND);
 		}
 		
 		try {
 			storage = new FileStorageService(fileName, InstanceType.SERVER, RequestType.RRQ);
-			super.socket.setSoTimeout(Configurations.TRANMISSION_TIMEOUT);
 		} catch (DirectoryAccessViolationException e) {
 			//this.storage.deleteFileFromDisk();
 			return new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, Strings.MKDIR_FAIL);
@@ -153,16 +189,162 @@ public class ServerNetworking extends TFTPNetworking {
 			e.printStackTrace();
 		} catch (AccessDeniedException e) {
 			return new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, e.getFile());
-		} catch (SocketException e1) {
-			e1.printStackTrace();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			//e.printStackTrace();
 		}
 
-		errorChecker.incrementExpectedBlockNumber();
-
+		setMode(rrq.getMode());
+		OptionAckPacket vOptionAck = negotiateOptions(rrq);
+		if (vOptionAck == null) {
+			errorChecker.incrementExpectedBlockNumber();
+			return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
+		}
+		// DATA 1 waits for the client to acknowledge the OACK with ACK 0
+		logger.print(Logger.VERBOSE, Strings.SENDING);
+		BufferPrinter.printPacket(vOptionAck, this.logger, RequestType.OACK);
+		mPendingOptionAck = vOptionAck.getPacket();
+		try {
+			transmit(mPendingOptionAck);
+			mRtt.startSample(0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
 	}
 
+	/**
+	 * Goes through the RFC 2347 options of a request and applies those the
+	 * server supports. Options the server does not know, or values it cannot
+	 * use, are left out of the OACK as the RFC asks.
+	 * 
+	 * @param request
+	 *            - the read or write request
+	 * @return the OACK to answer with, or null to answer the plain way
+	 */
+	protected OptionAckPacket negotiateOptions(ReadWritePacket request) {
+		if (!request.hasOptions()) {
+			return null;
+		}
+		OptionAckPacket vOptionAck = new OptionAckPacket(request.getPacket());
+		int vBlockSize = parseBlockSize(request.getOption(Configurations.OPTION_BLOCK_SIZE));
+		if (vBlockSize != -1) {
+			setBlockSize(vBlockSize);
+			vOptionAck.setOption(Configurations.OPTION_BLOCK_SIZE, Integer.toString(vBlockSize));
+		}
+		if (parseCompression(request.getOption(Configurations.OPTION_COMPRESSION)) && acceptsCompression()) {
+			// The flag byte comes out of the blksize, payloads never exceed it
+			setCompression(true);
+			vOptionAck.setOption(Configurations.OPTION_COMPRESSION, Configurations.COMPRESSION_DEFLATE);
+		}
+		int vWindowSize = parseWindowSize(request.getOption(Configurations.OPTION_WINDOW_SIZE));
+		if (vWindowSize != -1 && acceptsWindowSize()) {
+			vWindowSize = Math.min(vWindowSize, Configurations.SERVER_MAX_WINDOW_SIZE);
+			setWindowSize(vWindowSize);
+			vOptionAck.setOption(Configurations.OPTION_WINDOW_SIZE, Integer.toString(vWindowSize));
+		}
+		int vTimeout = parseTimeout(request.getOption(Configurations.OPTION_TIMEOUT));
+		if (vTimeout != -1) {
+			setTimeout(vTimeout);
+			vOptionAck.setOption(Configurations.OPTION_TIMEOUT, Integer.toString(vTimeout));
+		}
+		long vTransferSize = parseTransferSize(request.getOption(Configurations.OPTION_TRANSFER_SIZE));
+		if (vTransferSize != -1 && request.getRequestType() == RequestType.RRQ) {
+			// A RRQ asks with 0 and gets the size of the file opened for it, a
+			// WRQ announces the size, which is echoed back
+			vTransferSize = storage == null ? -1 : storage.getFileSize();
+		}
+		if (vTransferSize != -1) {
+			vOptionAck.setOption(Configurations.OPTION_TRANSFER_SIZE, Long.toString(vTransferSize));
+		}
+		long vOffset = parseOffset(request.getOption(Configurations.OPTION_OFFSET));
+		if (vOffset != -1 && acceptsOffset()) {
+			// The requester offers the most it could skip, we agree on whole
+			// blocks that both sides have
+			vOffset = Math.min(vOffset, getResumableLength(request));
+			vOffset -= vOffset % mBlockSize;
+			if (vOffset > 0) {
+				setResumeOffset(vOffset);
+				vOptionAck.setOption(Configurations.OPTION_OFFSET, Long.toString(vOffset));
+				logger.print(logger, String.format(Strings.RESUMING, request.getFilename(), vOffset));
+			}
+		}
+		String vChecksum = TransferChecksum.choose(request.getOption(Configurations.OPTION_CHECKSUM));
+		if (vChecksum != null && acceptsChecksum()) {
+			setChecksum(TransferChecksum.create(vChecksum));
+			vOptionAck.setOption(Configurations.OPTION_CHECKSUM, vChecksum);
+		}
+		if (!vOptionAck.hasOptions()) {
+			return null;
+		}
+		vOptionAck.buildPacket();
+		return vOptionAck;
+	}
+
+	/**
+	 * Tells how much of a file could be skipped: all of a file being read,
+	 * the verified part of a partial file being written. A partial file is
+	 * only resumed by the host that sent its first part, and not if the size
+	 * announced for it has changed since; either way it would be the first
+	 * part of another file, which the checksum of the rest cannot tell.
+	 * 
+	 * @param request
+	 *            - the read or write request
+	 * @return bytes that may be skipped, 0 if none
+	 */
+	private long getResumableLength(ReadWritePacket request) {
+		if (storage == null) {
+			return 0;
+		}
+		if (request.getRequestType() == RequestType.RRQ) {
+			return storage.getFileSize();
+		}
+		String vSource = request.getPacket().getAddress().getHostAddress();
+		if (storage.getRetainedLength() > 0 && !vSource.equals(storage.getRetainedSource())) {
+			logger.print(logger, String.format(Strings.PARTIAL_FILE_OTHER_SOURCE, request.getFilename(), vSource));
+			return 0;
+		}
+		long vTransferSize = parseTransferSize(request.getOption(Configurations.OPTION_TRANSFER_SIZE));
+		if (storage.getRetainedFileSize() != -1 && vTransferSize != -1
+				&& storage.getRetainedFileSize() != vTransferSize) {
+			logger.print(logger, String.format(Strings.PARTIAL_FILE_CHANGED, request.getFilename()));
+			return 0;
+		}
+		return Math.max(storage.getRetainedLength(), 0);
+	}
+
+	/**
+	 * @return false for transfers whose blocks cannot be compressed, the
+	 *         compress option is then left out of the OACK. Netascii blocks
+	 *         are not compressed, they are sent as they are translated.
+	 */
+	protected boolean acceptsCompression() {
+		return !isNetascii();
+	}
+
+	/**
+	 * @return false for transfers that cannot start past the first block,
+	 *         the offset option is then left out of the OACK. A netascii
+	 *         offset would count bytes on the wire, not in the file.
+	 */
+	protected boolean acceptsOffset() {
+		return !isNetascii();
+	}
+
+	/**
+	 * @return false for transfers whose receiver cannot return a digest, the
+	 *         checksum option is then left out of the OACK
+	 */
+	protected boolean acceptsChecksum() {
+		return true;
+	}
+
+	/**
+	 * @return false for transfers that cannot send blocks in windows, the
+	 *         windowsize option is then left out of the OACK
+	 */
+	protected boolean acceptsWindowSize() {
+		return true;
+	}
+
 }
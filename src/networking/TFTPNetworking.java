@@ -8,13 +8,27 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.file.AccessDeniedException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.ZipException;
+import helpers.BlockCompression;
+import helpers.BlockReadAhead;
 import helpers.BufferPrinter;
 import helpers.FileStorageService;
 import helpers.Keyboard;
-import packet.AckPacket;
+import helpers.NetasciiDecoder;
+import helpers.NetasciiEncoder;
+import helpers.TransferChecksum;
+import packet.AckView;
 import packet.DataPacket;
+import packet.DataView;
 import packet.ErrorPacket;
+import packet.OptionAckPacket;
+import packet.PacketEncoder;
+import packet.PacketFactory;
+import packet.PacketView;
 import packet.ReadWritePacket;
 import resource.Configurations;
 import resource.Strings;
@@ -24,6 +38,7 @@ import types.DiskFullException;
 import types.ErrorType;
 import types.InstanceType;
 import types.Logger;
+import types.ModeType;
 import types.RequestType;
 
 /**
@@ -36,12 +51,67 @@ public class TFTPNetworking {
 
 	protected DatagramSocket socket;
 	protected DatagramPacket lastPacket;
+	// Views the DATA and ACK packets of the transfer are decoded with
+	protected PacketFactory mPacketFactory = new PacketFactory();
 	protected ErrorChecker errorChecker;
 	protected Logger logger = Logger.VERBOSE;
 	protected String fileName;
 	protected FileStorageService storage;
 	protected int retries = 0;
 	protected InstanceType mInstanceType = InstanceType.SERVER;
+	protected TransferRecord mTransferRecord = null;
+	// When the peer must have answered our last packet, from now()
+	protected long mRetransmitDeadline = Long.MAX_VALUE;
+	// DATA payload size, 512 unless a blksize option was negotiated
+	protected int mNegotiatedBlockSize = Configurations.MAX_PAYLOAD_BUFFER;
+	// Bytes of the file per DATA block, the payload size less the flag byte
+	// of a compressed transfer
+	protected int mBlockSize = Configurations.MAX_PAYLOAD_BUFFER;
+	// OACK answering a RRQ, resent until the client acknowledges it with ACK 0
+	protected DatagramPacket mPendingOptionAck = null;
+	// Blocks sent before waiting for an ACK, 1 unless windowsize was negotiated
+	protected int mWindowSize = 1;
+	// DATA packets sent and not acknowledged yet, oldest first
+	protected SendWindow mSendWindow = new SendWindow();
+	// Newest blocks of the window still to be sent again, paced like new ones
+	protected int mResendCount = 0;
+	protected int mLastSentBlock = 0;
+	// Set once the short block that ends the file has been read
+	protected boolean mLastBlockRead = false;
+	// In order blocks received since we last sent an ACK
+	protected int mBlocksSinceAck = 0;
+	// Blocks received ahead of a missing one, made on the first such block
+	protected ReorderBuffer mReorder = null;
+	// Set once a gap has been answered, until the next block is written
+	protected boolean mGapAnswered = false;
+	// Retransmission timeout, measured from the round trips of this transfer
+	protected RttEstimator mRtt = new RttEstimator();
+	// Reads the blocks of the file being sent ahead, from the first window on
+	protected BlockReadAhead mReadAhead = null;
+	protected CongestionWindow mCongestion = new CongestionWindow();
+	// Position of the first block of the transfer, past 1 when an offset
+	// option resumed it after the blocks the receiver already has
+	protected long mFirstBlock = 1;
+	// Set when the compress option was agreed, DATA payloads are then deflated
+	protected boolean mCompression = false;
+	// Blocks of the file sent and acknowledged, for the bytes they stand for
+	protected long mBlocksAcknowledged = 0;
+	// Translate the file to and from netascii, null for octet transfers
+	protected NetasciiEncoder mNetasciiEncoder = null;
+	protected NetasciiDecoder mNetasciiDecoder = null;
+	// Block being filled with netascii, or the file bytes one decoded to
+	protected byte[] mNetasciiBlock = null;
+	// Block a compressed DATA payload is inflated into
+	protected byte[] mDecodedBlock = null;
+	// Checksum of the file bytes agreed with the checksum option, null if none
+	protected TransferChecksum mChecksum = null;
+	// Set once the short block is on disk, its ACK then carries our digest
+	protected boolean mLastBlockStored = false;
+	// The ACKs of the transfer are encoded into this buffer, with room for a
+	// digest, and sent with the packet over it
+	protected ByteBuffer mAckBuffer = ByteBuffer
+			.allocate(Configurations.LEN_ACK_PACKET_BUFFER + TransferChecksum.DIGEST_LENGTH);
+	protected DatagramPacket mAckPacket = new DatagramPacket(mAckBuffer.array(), mAckBuffer.capacity());
 
 	/**
 	 * Use this constructor if planning to manually interface with send and
@@ -133,19 +203,51 @@ public class TFTPNetworking {
 		// (block 0)
 		socket = vSocket;
 		TFTPErrorMessage error;
-		DatagramPacket receivePacket = new DatagramPacket(new byte[Configurations.MAX_BUFFER],
-				Configurations.MAX_BUFFER);
+		DatagramPacket receivePacket = new DatagramPacket(new byte[getReceiveBufferSize()],
+				getReceiveBufferSize());
+		// The buffer of the block before lastPacket, free to receive into. The
+		// packet lastPacket starts with belongs to the caller and never is.
+		DatagramPacket vSpare = null;
+		boolean vReceivedLast = false;
 		boolean retriesExceeded = false;
 		try {
-			byte[] vEmptyData = new byte[Configurations.MAX_BUFFER];
 			boolean vHasMore = true;
 			while (vHasMore) {
 				while (true) {
+					DatagramPacket vHeld = takeHeldBlock();
+					if (vHeld != null) {
+						// The gap before it was filled, it is next in order
+						vSpare = vReceivedLast ? lastPacket : null;
+						lastPacket = vHeld;
+						vReceivedLast = true;
+						break;
+					}
+					if (receivePacket == lastPacket) {
+						// Timeouts are answered from lastPacket, never receive
+						// over it, but swap it with the buffer before it
+						if (vSpare != null && vSpare.getData().length >= getReceiveBufferSize()) {
+							receivePacket = vSpare;
+							receivePacket.setLength(receivePacket.getData().length);
+						} else {
+							receivePacket = new DatagramPacket(new byte[getReceiveBufferSize()],
+									getReceiveBufferSize());
+						}
+						vSpare = null;
+					}
 					try {
-						socket.receive(receivePacket);
+						receiveBeforeDeadline(receivePacket);
 					} catch (SocketTimeoutException e) {
 						logger.print(Logger.ERROR, Strings.TFTPNETWORKING_SOCKET_TIMEOUT);
+						TFTPErrorMessage vGiveUp = giveUpOnTimeout();
+						if (vGiveUp != null) {
+							errorHandle(vGiveUp, lastPacket);
+							this.storage.retainPartialFile();
+							return vGiveUp;
+						}
+						mBlocksSinceAck = 0;
+						mRtt.backoff();
 						sendACK(lastPacket);
+						recordRetransmit();
 						if (++retries == Configurations.RETRANMISSION_TRY) {
 							if (vHasMore) {
 								// logger.print(Logger.ERROR,
@@ -162,65 +264,97 @@ public class TFTPNetworking {
 								return null;
 							}
 							retriesExceeded = true;
-							this.storage.deleteFileFromDisk();
+							this.storage.retainPartialFile();
 							break;
 						}
 						continue;
 					}
-					lastPacket = receivePacket;
 					if (errorChecker == null) {
-						errorChecker = new ErrorChecker(new DataPacket(lastPacket));
+						errorChecker = new ErrorChecker(new DataPacket(receivePacket));
 						errorChecker.incrementExpectedBlockNumber();
 					}
-					DataPacket receivedPacket = new DataPacket(lastPacket);
-					error = errorChecker.check(receivedPacket, RequestType.DATA);
+					if (OptionAckPacket.isOptionAck(receivePacket) && errorChecker.getExpectedBlockNumber() == 1
+							&& errorChecker.check(new OptionAckPacket(receivePacket), RequestType.OACK)
+									.getType() == ErrorType.NO_ERROR) {
+						// Our ACK 0 was lost and the server sent its OACK again
+						sendACK(lastPacket);
+						continue;
+					}
+					PacketView vView = mPacketFactory.getView(receivePacket);
+					error = errorChecker.check(vView, RequestType.DATA);
 					logger.print(logger, Strings.RECEIVED);
-					BufferPrinter.printPacket(receivedPacket, logger, RequestType.DATA);
-
-					if (error.getType() == ErrorType.NO_ERROR)
+					BufferPrinter.printPacket(vView, logger, RequestType.DATA);
+					if (error.getType() == ErrorType.UNKNOWN_TRANSFER) {
+						// Answer the stray sender, but keep replying to our peer
+						errorHandle(error, receivePacket, RequestType.DATA);
+						continue;
+					}
+					if (error.getType() == ErrorType.NO_ERROR) {
+						vSpare = vReceivedLast ? lastPacket : null;
+						lastPacket = receivePacket;
+						vReceivedLast = true;
+						mRtt.completeSample(((DataView) vView).getBlockNumber());
 						break;
-					if (error.getType() == ErrorType.SORCERERS_APPRENTICE)
-						sendACK(lastPacket);
-					if (errorHandle(error, lastPacket, RequestType.DATA)) {
-						this.storage.deleteFileFromDisk();
+					}
+					if (error.getType() == ErrorType.SORCERERS_APPRENTICE) {
+						if (holdEarlyBlock(receivePacket, ((DataView) vView).getBlockNumber())) {
+							// The packet is held, receive the next one elsewhere
+							receivePacket = new DatagramPacket(new byte[getReceiveBufferSize()],
+									getReceiveBufferSize());
+							continue;
+						}
+						answerDuplicate();
+					}
+					if (errorHandle(error, receivePacket, RequestType.DATA)) {
+						this.storage.retainPartialFile();
 						return error;
 					}
 				}
 				retries = 0;
-				// Extract the data from the received packet with packet builder
-				if (lastPacket.getLength() < Configurations.MAX_MESSAGE_SIZE) {
-					int realPacketSize = lastPacket.getLength();
-					byte[] packetBuffer = new byte[realPacketSize];
-					System.arraycopy(lastPacket.getData(), 0, packetBuffer, 0, realPacketSize);
-					lastPacket.setData(packetBuffer);
-				}
 				if (retriesExceeded)
 					break;
 
-				DataPacket vDataPacketBuilder = new DataPacket(lastPacket);
-				vEmptyData = vDataPacketBuilder.getDataBuffer();
-
-				vHasMore = storage.saveFileByteBufferToDisk(vEmptyData);
+				// The payload is written from the receive buffer as it is
+				DataView vBlock = (DataView) mPacketFactory.getView(lastPacket);
+				vHasMore = storeBlock(vBlock.getBuffer(), vBlock.getPayloadOffset(), vBlock.getPayloadLength());
 				if (vHasMore)
 					errorChecker.incrementExpectedBlockNumber();
-				sendACK(lastPacket);
+				if (closesWindow(vHasMore)) {
+					sendACK(lastPacket);
+					if (vHasMore) {
+						mRtt.startSample(errorChecker.getExpectedBlockNumber());
+					}
+				} else {
+					// The sender is still in its window, give it a full timeout
+					armTransmissionTimeout();
+				}
 			}
 			// Wait on last DATA in case of the last data was lost.
-			socket.setSoTimeout(Configurations.TRANMISSION_TIMEOUT);
 			if (Configurations.TRANMISSION_TIMEOUT == 0) {
 				return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
 			}
 			while (!retriesExceeded) {
 				try {
-
-					byte[] data = new byte[Configurations.MAX_BUFFER];
-					receivePacket = new DatagramPacket(data, data.length);
-					socket.receive(receivePacket);
+					if (receivePacket == lastPacket) {
+						// The ACKs answer from lastPacket, receive into the
+						// buffer before it as the blocks were
+						if (vSpare != null && vSpare.getData().length >= getReceiveBufferSize()) {
+							receivePacket = vSpare;
+							receivePacket.setLength(receivePacket.getData().length);
+						} else {
+							receivePacket = new DatagramPacket(new byte[getReceiveBufferSize()],
+									getReceiveBufferSize());
+						}
+						vSpare = null;
+					}
+					receiveBeforeDeadline(receivePacket);
+					vSpare = vReceivedLast ? lastPacket : null;
 					lastPacket = receivePacket;
-					DataPacket receivedPacket = new DataPacket(lastPacket);
-					error = errorChecker.check(receivedPacket, RequestType.DATA);
+					vReceivedLast = true;
+					PacketView vView = mPacketFactory.getView(lastPacket);
+					error = errorChecker.check(vView, RequestType.DATA);
 					logger.print(logger, Strings.RECEIVED);
-					BufferPrinter.printPacket(receivedPacket, logger, RequestType.DATA);
+					BufferPrinter.printPacket(vView, logger, RequestType.DATA);
 
 					if (error.getType() == ErrorType.NO_ERROR) {
 						sendACK(lastPacket);
@@ -230,6 +364,8 @@ public class TFTPNetworking {
 					if (error.getType() == ErrorType.SORCERERS_APPRENTICE)
 						sendACK(lastPacket);
 					if (errorHandle(error, lastPacket, RequestType.DATA)) {
+						// The sender rejected the complete file, nothing in it
+						// is verified
 						this.storage.deleteFileFromDisk();
 						return error;
 					}
@@ -241,16 +377,22 @@ public class TFTPNetworking {
 						retriesExceeded = true;
 						break;
 					}
+					// Dally on the default timeout, the sender may back off
+					// past our estimate before it sends the last block again
+					armTransmissionTimeout(Configurations.TRANMISSION_TIMEOUT);
 				}
 			}
-
-			socket.setSoTimeout(Configurations.TRANMISSION_TIMEOUT);
+		} catch (ZipException e) {
+			TFTPErrorMessage errMsg = new TFTPErrorMessage(ErrorType.ILLEGAL_OPERATION, Strings.COMPRESSION_CORRUPT);
+			this.errorHandle(errMsg, this.lastPacket);
+			this.storage.retainPartialFile();
+			return errMsg;
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (DiskFullException e) {
 			TFTPErrorMessage errMsg = new TFTPErrorMessage(ErrorType.ALLOCATION_EXCEEDED, e.getMessage());
 			if (this.errorHandle(errMsg, this.lastPacket)) {
-				this.storage.deleteFileFromDisk();
+				this.storage.retainPartialFile();
 				return errMsg;
 			}
 		}
@@ -270,82 +412,94 @@ public class TFTPNetworking {
 	 */
 	public TFTPErrorMessage sendFile() {
 
-		DatagramPacket receivePacket;
-		AckPacket ackPacket;
-		int currentSendBlockNumber = 0;
+		// Every ACK is received into the same buffer and read in place
+		DatagramPacket receivePacket = new DatagramPacket(new byte[Configurations.MAX_BUFFER],
+				Configurations.MAX_BUFFER);
+		AckView ackView;
 		lastPacket = new DatagramPacket(new byte[Configurations.MAX_MESSAGE_SIZE], Configurations.MAX_MESSAGE_SIZE,
 				lastPacket.getAddress(), lastPacket.getPort());
 		try {
-			byte[] vEmptyData = new byte[Configurations.MAX_BUFFER];
 			TFTPErrorMessage error;
-			boolean retriesExceeded = false;
-			while (vEmptyData != null && vEmptyData.length >= Configurations.MAX_PAYLOAD_BUFFER) {
-				try {
-					vEmptyData = storage.getFileByteBufferFromDisk();
-				} catch (AccessDeniedException e) {
-					error = new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, e.getFile());
-					this.errorHandle(error, this.lastPacket, RequestType.ACK);
+			if (mPendingOptionAck != null) {
+				error = awaitOptionAck();
+				if (error.getType() != ErrorType.NO_ERROR) {
 					return error;
 				}
-				// Building a data packet from the last packet ie. will
-				// increment block number
-				// if(currentSendBlockNumber == 32676) {
-				// System.out.println("dsd");
-				// }
-				DataPacket vDataPacket = new DataPacket(lastPacket);
-				vDataPacket.setBlockNumber(currentSendBlockNumber);
-				if (++currentSendBlockNumber == 65536) {
-					currentSendBlockNumber = 0;
-				}
-				DatagramPacket vSendPacket = vDataPacket.buildPacket(vEmptyData);
-				logger.print(logger, Strings.SENDING);
-				BufferPrinter.printPacket(vDataPacket, logger, RequestType.DATA);
-				socket.send(vSendPacket);
-
-				while (true) {
-					// Receive ACK packets from the client.
-					byte[] data = new byte[Configurations.MAX_BUFFER];
-					receivePacket = new DatagramPacket(data, data.length);
-					try {
-						socket.receive(receivePacket);
-					} catch (SocketTimeoutException e) {
-						logger.print(Logger.ERROR, Strings.TFTPNETWORKING_TIME_OUT);
-						BufferPrinter.printPacket(vDataPacket, logger, RequestType.DATA);
-						socket.send(vSendPacket);
-						if (++retries == Configurations.RETRANMISSION_TRY) {
-							if (vEmptyData != null && vEmptyData.length < Configurations.MAX_PAYLOAD_BUFFER) {
-								// logger.print(logger,
-								// String.format(Strings.TFTPNETWORKING_RETRY));
-							} else {
-								logger.print(logger, String.format(Strings.TFTPNETWORKING_RE_TRAN_SUCCEED, retries));
-							}
-							retriesExceeded = true;
-							this.storage.finishedTransferingFile();
-							break;
-						}
-						continue;
+			}
+			error = fillSendWindow();
+			if (error != null) {
+				this.errorHandle(error, this.lastPacket, RequestType.ACK);
+				return error;
+			}
+			while (!mSendWindow.isEmpty()) {
+				// Receive ACK packets from the client.
+				receivePacket.setLength(Configurations.MAX_BUFFER);
+				try {
+					receiveBeforeDeadline(receivePacket);
+				} catch (SocketTimeoutException e) {
+					logger.print(Logger.ERROR, Strings.TFTPNETWORKING_TIME_OUT);
+					TFTPErrorMessage vGiveUp = giveUpOnTimeout();
+					if (vGiveUp != null) {
+						errorHandle(vGiveUp, lastPacket);
+						this.storage.finishedTransferingFile();
+						return vGiveUp;
+					}
+					mRtt.backoff();
+					mCongestion.onLoss();
+					resendSendWindow();
+					recordRetransmit();
+					if (++retries == Configurations.RETRANMISSION_TRY) {
+						// Blocks still unacknowledged, the last one at least, may
+						// never have reached the receiver
+						logger.print(Logger.ERROR, String.format(Strings.TFTPNETWORKING_RE_TRAN_SHUT_DOWN, retries));
+						this.storage.finishedTransferingFile();
+						return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR,
+								String.format(Strings.TFTPNETWORKING_RE_TRAN_SHUT_DOWN, retries));
 					}
-					ackPacket = new AckPacket(receivePacket);
+					continue;
+				}
+				if (OptionAckPacket.isOptionAck(receivePacket)) {
+					// The server timed out before DATA 1 came in and sent its
+					// OACK again, it stands for a duplicate ACK 0
+					continue;
+				}
+				PacketView vView = mPacketFactory.getView(receivePacket);
 
-					logger.print(logger, Strings.RECEIVED);
-					BufferPrinter.printPacket(ackPacket, logger, RequestType.ACK);
+				logger.print(logger, Strings.RECEIVED);
+				BufferPrinter.printPacket(vView, logger, RequestType.ACK);
 
-					error = errorChecker.check(ackPacket, RequestType.ACK);
-					if (error.getType() == ErrorType.NO_ERROR)
-						break;
-					if (error.getType() == ErrorType.SORCERERS_APPRENTICE) {
-						continue;
-					}
+				error = errorChecker.check(vView, RequestType.ACK);
+				if (error.getType() == ErrorType.SORCERERS_APPRENTICE) {
+					continue;
+				}
+				if (error.getType() != ErrorType.NO_ERROR) {
 					if (errorHandle(error, receivePacket, RequestType.ACK)) {
 						this.storage.finishedTransferingFile();
 						return error;
 					}
+					continue;
+				}
+				ackView = (AckView) vView;
+				if (!acknowledgeSendWindow(ackView.getBlockNumber())) {
+					continue;
 				}
-				if (retriesExceeded)
-					break;
 				retries = 0;
-				errorChecker.incrementExpectedBlockNumber();
-				lastPacket = receivePacket;
+				if (isSendComplete()) {
+					error = verifyDigest(ackView);
+					if (error != null) {
+						this.errorHandle(error, receivePacket, RequestType.ACK);
+						this.storage.finishedTransferingFile();
+						return error;
+					}
+				}
+				// Blocks past the ACK were lost or are out of order, send them
+				// again before going on with new ones
+				resendSendWindow();
+				error = fillSendWindow();
+				if (error != null) {
+					this.errorHandle(error, this.lastPacket, RequestType.ACK);
+					return error;
+				}
 			}
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -356,6 +510,857 @@ public class TFTPNetworking {
 		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
 	}
 
+	/**
+	 * Reads and sends new blocks until the window is full or the last block
+	 * of the file has been sent. With a windowsize of 1 this is one block
+	 * per ACK, the plain TFTP lock step. The blocks come from the read-ahead,
+	 * which reads, and compresses if agreed, the next ones while we wait for
+	 * the ACKs, and go out on the pacing clock of the congestion window,
+	 * after any block queued to be sent again. A netascii transfer translates
+	 * them into DATA blocks on the way.
+	 * 
+	 * @return TFTPErrorMessage if the file could not be read, null otherwise
+	 * @throws IOException
+	 */
+	protected TFTPErrorMessage fillSendWindow() throws IOException {
+		if (mReadAhead == null && !mLastBlockRead) {
+			mReadAhead = new BlockReadAhead(storage, mBlockSize, mWindowSize, mFirstBlock, mCompression, mChecksum);
+		}
+		if (!sendQueuedResends()) {
+			return null;
+		}
+		while (!mLastBlockRead && mSendWindow.size() < mWindowSize && awaitPacing()) {
+			byte[] vData;
+			int vLength;
+			try {
+				if (isNetascii()) {
+					vData = takeNetasciiBlock();
+					vLength = vData == null ? 0 : vData.length;
+				} else {
+					vData = mReadAhead.take();
+					vLength = mReadAhead.getTakenLength();
+				}
+			} catch (AccessDeniedException e) {
+				return new TFTPErrorMessage(ErrorType.ACCESS_VIOLATION, e.getFile());
+			} catch (IOException e) {
+				return new TFTPErrorMessage(ErrorType.NOT_DEFINED, Strings.FILE_READ_ERROR);
+			}
+			if (!isNetascii() && mReadAhead.isLastBlockTaken()) {
+				mLastBlockRead = true;
+			}
+			// The block goes to the sender of the last packet, 65535 rolls
+			// over to 0
+			mLastSentBlock = (mLastSentBlock + 1) & 0xFFFF;
+			DatagramPacket vSendPacket = mSendWindow.add(mLastSentBlock, vData, vLength, lastPacket.getAddress(),
+					lastPacket.getPort());
+			logger.print(logger, Strings.SENDING);
+			BufferPrinter.printPacket(vSendPacket, logger, RequestType.DATA);
+			transmit(vSendPacket);
+			mCongestion.onSent(System.nanoTime(), mRtt.getSmoothedRttNanos(), mRtt.getTimeout(), mWindowSize);
+			if (mSendWindow.size() == mWindowSize || mLastBlockRead) {
+				// Only the block closing the window is answered right away, an
+				// earlier one would also time the pacing of the rest
+				mRtt.startSample(mLastSentBlock);
+			}
+		}
+		if (this.mTransferRecord != null) {
+			this.mTransferRecord.setCongestionWindow(mCongestion.getWindow());
+			this.mTransferRecord.setReadAhead(mReadAhead.getDepth(), mReadAhead.getDiskNanos(),
+					mReadAhead.getStallNanos());
+		}
+		return null;
+	}
+
+	/**
+	 * Fills the next DATA block of a netascii transfer from the blocks of the
+	 * file the read-ahead hands out. A line ending grows by a byte on the
+	 * wire, so a DATA block takes what is left of one block of the file and
+	 * the start of the next.
+	 * 
+	 * @return the block, valid until the next call; shorter than the block
+	 *         size for the last block, null if the last block is empty
+	 * @throws IOException
+	 *             if the file could not be read
+	 */
+	protected byte[] takeNetasciiBlock() throws IOException {
+		if (mNetasciiBlock == null) {
+			mNetasciiBlock = new byte[mBlockSize];
+		}
+		int vLength = 0;
+		while (true) {
+			vLength += mNetasciiEncoder.encode(mNetasciiBlock, vLength, mBlockSize - vLength);
+			if (vLength == mBlockSize) {
+				return mNetasciiBlock;
+			}
+			if (mReadAhead.isLastBlockTaken()) {
+				break;
+			}
+			byte[] vFileBlock = mReadAhead.take();
+			mNetasciiEncoder.setInput(vFileBlock, mReadAhead.getTakenLength());
+		}
+		mLastBlockRead = true;
+		return vLength == 0 ? null : Arrays.copyOf(mNetasciiBlock, vLength);
+	}
+
+	/**
+	 * Sends every block of the window again, oldest first. The answers to
+	 * these blocks cannot be timed any more. They go out on the pacing clock
+	 * like new blocks, a burst of them would overrun the same bottleneck
+	 * that lost the first copies; the ones not due yet are sent by the next
+	 * fillSendWindow(), before any new block.
+	 * 
+	 * @throws IOException
+	 */
+	protected void resendSendWindow() throws IOException {
+		if (!mSendWindow.isEmpty()) {
+			mRtt.cancelSample();
+		}
+		mResendCount = mSendWindow.size();
+		sendQueuedResends();
+	}
+
+	/**
+	 * Sends the blocks resendSendWindow() queued as the pacing clock lets
+	 * them go. They are the newest blocks of the window, an ACK since may
+	 * have taken older ones out.
+	 * 
+	 * @return true once none is left to send
+	 * @throws IOException
+	 */
+	private boolean sendQueuedResends() throws IOException {
+		mResendCount = Math.min(mResendCount, mSendWindow.size());
+		while (mResendCount > 0 && awaitPacing()) {
+			DatagramPacket vSendPacket = mSendWindow.getPacket(mSendWindow.size() - mResendCount);
+			BufferPrinter.printPacket(vSendPacket, logger, RequestType.DATA);
+			transmit(vSendPacket);
+			mCongestion.onSent(System.nanoTime(), mRtt.getSmoothedRttNanos(), mRtt.getTimeout(), mWindowSize);
+			--mResendCount;
+		}
+		return mResendCount == 0;
+	}
+
+	/**
+	 * Drops the blocks an ACK covers from the window. The ACK names the last
+	 * block the peer received in order, so it acknowledges every block of
+	 * the window up to it.
+	 * 
+	 * @param blockNumber
+	 *            - block number of the ACK, already checked by the error
+	 *            checker
+	 * @return false if the ACK names a block that was not sent
+	 */
+	protected boolean acknowledgeSendWindow(int blockNumber) {
+		if (mSendWindow.isEmpty()) {
+			return false;
+		}
+		int vAcknowledged = ErrorChecker.blockDistance(mSendWindow.getBlockNumber(0), blockNumber) + 1;
+		if (vAcknowledged > mSendWindow.size()) {
+			return false;
+		}
+		for (int i = 0; i < vAcknowledged; ++i) {
+			mRtt.completeSample(mSendWindow.getBlockNumber(0));
+			recordSentBlock(mSendWindow.getPayloadLength(0));
+			mSendWindow.removeFirst();
+			errorChecker.incrementExpectedBlockNumber();
+		}
+		mCongestion.onAcknowledged(vAcknowledged);
+		if (!mSendWindow.isEmpty()) {
+			// The receiver only answers a window early when a block is missing
+			mCongestion.onLoss();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the pacing clock lets the next new block go out.
+	 * 
+	 * @return true once the block may be sent
+	 */
+	protected boolean awaitPacing() {
+		long vDelay = mCongestion.getSendDelay(System.nanoTime());
+		if (vDelay > 0) {
+			LockSupport.parkNanos(vDelay);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true once the last block of the file has been acknowledged
+	 */
+	protected boolean isSendComplete() {
+		return mLastBlockRead && mSendWindow.isEmpty();
+	}
+
+	/**
+	 * Waits for the ACK 0 with which the client accepts the OACK sent for its
+	 * read request, resending the OACK on every timeout.
+	 * 
+	 * @return TFTPErrorMessage with NO_ERROR once block 1 may be sent
+	 * @throws IOException
+	 */
+	protected TFTPErrorMessage awaitOptionAck() throws IOException {
+		DatagramPacket receivePacket = new DatagramPacket(new byte[Configurations.MAX_BUFFER],
+				Configurations.MAX_BUFFER);
+		while (true) {
+			receivePacket.setLength(Configurations.MAX_BUFFER);
+			try {
+				receiveBeforeDeadline(receivePacket);
+			} catch (SocketTimeoutException e) {
+				logger.print(Logger.ERROR, Strings.TFTPNETWORKING_TIME_OUT);
+				mRtt.backoff();
+				transmit(mPendingOptionAck);
+				recordRetransmit();
+				if (++retries == Configurations.RETRANMISSION_TRY) {
+					this.storage.finishedTransferingFile();
+					return new TFTPErrorMessage(ErrorType.TRANSMISSION_ERROR, Strings.TRANSMISSION_ERROR);
+				}
+				continue;
+			}
+			PacketView vView = mPacketFactory.getView(receivePacket);
+			logger.print(logger, Strings.RECEIVED);
+			BufferPrinter.printPacket(vView, logger, RequestType.ACK);
+
+			TFTPErrorMessage error = errorChecker.check(vView, RequestType.ACK);
+			if (error.getType() == ErrorType.NO_ERROR) {
+				retries = 0;
+				mRtt.completeSample(0);
+				mPendingOptionAck = null;
+				expectFirstBlock();
+				return error;
+			}
+			if (error.getType() == ErrorType.SORCERERS_APPRENTICE) {
+				continue;
+			}
+			if (errorHandle(error, receivePacket, RequestType.ACK)) {
+				this.storage.finishedTransferingFile();
+				return error;
+			}
+		}
+	}
+
+	/**
+	 * Sets the DATA payload size of the transfer once it has been negotiated,
+	 * for the file storage and the error checker as well.
+	 * 
+	 * @param blockSize
+	 *            - block size agreed with the blksize option
+	 */
+	public void setBlockSize(int blockSize) {
+		this.mNegotiatedBlockSize = blockSize;
+		applyBlockSize();
+	}
+
+	/**
+	 * Deflates the DATA payloads of the transfer once the compress option has
+	 * been agreed. The flag byte in front of every payload comes out of the
+	 * negotiated block size, so a block stored as is still fits in it and
+	 * each block carries one byte of the file less.
+	 * 
+	 * @param compression
+	 *            - true to compress the blocks
+	 */
+	public void setCompression(boolean compression) {
+		this.mCompression = compression;
+		applyBlockSize();
+	}
+
+	/**
+	 * Works out the bytes of the file per block from the negotiated block
+	 * size and the compress option, in whichever order they were agreed.
+	 */
+	private void applyBlockSize() {
+		this.mBlockSize = this.mCompression ? this.mNegotiatedBlockSize - BlockCompression.OVERHEAD
+				: this.mNegotiatedBlockSize;
+		if (this.storage != null) {
+			this.storage.setBlockSize(this.mBlockSize);
+		}
+		if (this.errorChecker != null) {
+			this.errorChecker.setBlockSize(this.mNegotiatedBlockSize);
+		}
+	}
+
+	/**
+	 * Reads the value of a compress option, a list of methods separated by
+	 * commas in order of preference.
+	 * 
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return true if deflate is one of them
+	 */
+	public static boolean parseCompression(String value) {
+		if (value == null) {
+			return false;
+		}
+		for (String method : value.split(",")) {
+			if (method.trim().equalsIgnoreCase(Configurations.COMPRESSION_DEFLATE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes a DATA block received in order to the file, decompressed if
+	 * compression was agreed and translated back from netascii for a text
+	 * file. A short block ends the file whatever it decodes to.
+	 * 
+	 * @param payload
+	 *            - the payload as received
+	 * @return true if more blocks follow
+	 * @throws ZipException
+	 *             if the payload is not a compressed block
+	 * @throws DiskFullException
+	 *             if the disk is full
+	 */
+	protected boolean storeBlock(byte[] payload) throws ZipException, DiskFullException {
+		return storeBlock(payload, 0, payload == null ? 0 : payload.length);
+	}
+
+	/**
+	 * Writes a DATA block received in order to the file, read in place from
+	 * the buffer it was received in. The decoded block of a compressed or
+	 * netascii transfer goes through buffers kept for the transfer, so no
+	 * block allocates.
+	 * 
+	 * @param buffer
+	 *            - buffer holding the payload
+	 * @param offset
+	 *            - position of the payload in the buffer
+	 * @param length
+	 *            - bytes of the payload
+	 * @return true if more blocks follow
+	 * @throws ZipException
+	 *             if the payload is not a compressed block
+	 * @throws DiskFullException
+	 *             if the disk is full
+	 */
+	protected boolean storeBlock(byte[] buffer, int offset, int length) throws ZipException, DiskFullException {
+		byte[] vBlock = buffer;
+		int vBlockOffset = offset;
+		int vBlockLength = length;
+		if (mCompression) {
+			recordWireBytes(length);
+			if (mDecodedBlock == null) {
+				mDecodedBlock = new byte[mBlockSize + 1];
+			}
+			vBlock = mDecodedBlock;
+			vBlockOffset = 0;
+			vBlockLength = BlockCompression.decompress(buffer, offset, length, mDecodedBlock, mBlockSize);
+		}
+		recordBytes(vBlockLength);
+		boolean vLastBlock = vBlockLength < mBlockSize;
+		byte[] vFileBytes = vBlock;
+		int vFileOffset = vBlockOffset;
+		int vLength = vBlockLength;
+		if (isNetascii()) {
+			if (mNetasciiBlock == null) {
+				mNetasciiBlock = new byte[mBlockSize + 1];
+			}
+			vFileBytes = mNetasciiBlock;
+			vFileOffset = 0;
+			vLength = mNetasciiDecoder.decode(vBlock, vBlockOffset, vBlockLength, mNetasciiBlock);
+			if (vLastBlock) {
+				vLength += mNetasciiDecoder.finish(mNetasciiBlock, vLength);
+			}
+		}
+		if (mChecksum != null) {
+			mChecksum.update(vFileBytes, vFileOffset, vLength);
+		}
+		boolean vHasMore = storage.saveFileByteBufferToDisk(vFileBytes, vFileOffset, vLength, vLastBlock);
+		mLastBlockStored = !vHasMore;
+		mGapAnswered = false;
+		return vHasMore;
+	}
+
+	/**
+	 * Keeps a DATA block that overtook the one expected until the blocks
+	 * before it arrive, rather than dropping it and having the sender send it
+	 * again. Once a few blocks are held past the gap, or the held block ends
+	 * the window the sender waits on, the block before the gap is
+	 * acknowledged. The sender then sends the window again from the missing
+	 * block and the copies of the held blocks are dropped.
+	 * 
+	 * @param packet
+	 *            - the DATA packet caught as the sorcerer's apprentice
+	 * @param blockNumber
+	 *            - its block number
+	 * @return true if the block was ahead within the window and needs no
+	 *         answer, false for a duplicate of a block already written
+	 */
+	protected boolean holdEarlyBlock(DatagramPacket packet, int blockNumber) {
+		if (!errorChecker.isEarlyBlock(blockNumber)) {
+			return false;
+		}
+		if (mReorder == null) {
+			mReorder = new ReorderBuffer(mWindowSize);
+		}
+		if (!mReorder.hold(blockNumber, packet)) {
+			return true;
+		}
+		logger.print(logger, String.format(Strings.BLOCK_HELD, blockNumber, errorChecker.getExpectedBlockNumber()));
+		if (this.mTransferRecord != null) {
+			this.mTransferRecord.incrementHeldBlocks();
+		}
+		// The sender's window ends a window past our last ACK
+		int vAhead = ErrorChecker.blockDistance(errorChecker.getExpectedBlockNumber(), blockNumber);
+		boolean vEndsWindow = vAhead + mBlocksSinceAck + 1 >= mWindowSize;
+		if (!mGapAnswered && (vEndsWindow || mReorder.size() == Configurations.REORDER_GAP_ACK_BLOCKS)) {
+			// More than reordering, or the sender stops until we answer
+			ReorderBuffer.recordGapAck();
+			mGapAnswered = true;
+			mBlocksSinceAck = 0;
+			sendACK(lastPacket);
+		}
+		return true;
+	}
+
+	/**
+	 * Called on every timeout of a transfer before the packets are sent
+	 * again. The client gives up there on a block size no block gets through
+	 * with, to ask for the file again with smaller blocks.
+	 * 
+	 * @return TFTPErrorMessage sent to the peer to end the transfer, or null
+	 *         to go on
+	 */
+	protected TFTPErrorMessage giveUpOnTimeout() {
+		return null;
+	}
+
+	/**
+	 * Answers a copy of a block already written with an ACK of the last block
+	 * received in order, so a lock step sender goes on from it. A windowed
+	 * sender sends the rest of its window again on every ACK short of it, so
+	 * the copies it sent after a gap are not answered, each answer would make
+	 * it send the window once more. If it sent them because our ACK was lost,
+	 * the receive timeout sends that ACK again.
+	 */
+	protected void answerDuplicate() {
+		if (mWindowSize > 1) {
+			return;
+		}
+		mBlocksSinceAck = 0;
+		sendACK(lastPacket);
+	}
+
+	/**
+	 * @return the held DATA packet of the block expected next, or null if it
+	 *         has not arrived yet
+	 */
+	protected DatagramPacket takeHeldBlock() {
+		if (mReorder == null || mReorder.size() == 0) {
+			return null;
+		}
+		return mReorder.take(errorChecker.getExpectedBlockNumber());
+	}
+
+	/**
+	 * Checks the digest the receiver sent with its final ACK against the
+	 * checksum of the blocks we read.
+	 * 
+	 * @param ack
+	 *            - the ACK of the last block
+	 * @return TFTPErrorMessage if the digests differ or the ACK carries none,
+	 *         null if the file arrived intact or no checksum was agreed
+	 */
+	protected TFTPErrorMessage verifyDigest(AckView ack) {
+		if (mChecksum == null) {
+			return null;
+		}
+		if (!ack.hasDigest()) {
+			return new TFTPErrorMessage(ErrorType.ILLEGAL_OPERATION,
+					String.format(Strings.CHECKSUM_MISSING, mChecksum.getMethod()));
+		}
+		int vReceived = ack.getDigest();
+		if (vReceived != mChecksum.getDigest()) {
+			return new TFTPErrorMessage(ErrorType.ILLEGAL_OPERATION,
+					String.format(Strings.CHECKSUM_MISMATCH, mChecksum.getMethod(), vReceived, mChecksum.getDigest()));
+		}
+		logger.print(logger, String.format(Strings.CHECKSUM_VERIFIED, mChecksum.getMethod(), vReceived));
+		return null;
+	}
+
+	/**
+	 * Adds up the file bytes of the transfer once the checksum option has
+	 * been agreed. The final ACK may then carry a digest.
+	 * 
+	 * @param checksum
+	 *            - the agreed checksum, null for none
+	 */
+	public void setChecksum(TransferChecksum checksum) {
+		this.mChecksum = checksum;
+		if (this.errorChecker != null) {
+			this.errorChecker.setAckDigestLength(checksum == null ? 0 : TransferChecksum.DIGEST_LENGTH);
+		}
+	}
+
+	/**
+	 * Sets the transfer mode of the request. A netascii transfer translates
+	 * line endings as the blocks go out or come in.
+	 * 
+	 * @param mode
+	 *            - mode named by the request
+	 */
+	public void setMode(ModeType mode) {
+		boolean vNetascii = mode == ModeType.NETASCII;
+		this.mNetasciiEncoder = vNetascii ? new NetasciiEncoder() : null;
+		this.mNetasciiDecoder = vNetascii ? new NetasciiDecoder() : null;
+		this.mNetasciiBlock = null;
+	}
+
+	/**
+	 * @return true if the transfer translates line endings
+	 */
+	public boolean isNetascii() {
+		return this.mNetasciiEncoder != null;
+	}
+
+	/**
+	 * Sets the number of blocks sent per window once it has been negotiated,
+	 * for the error checker as well.
+	 * 
+	 * @param windowSize
+	 *            - window size agreed with the windowsize option
+	 */
+	public void setWindowSize(int windowSize) {
+		this.mWindowSize = windowSize;
+		if (this.errorChecker != null) {
+			this.errorChecker.setWindowSize(windowSize);
+		}
+	}
+
+	/**
+	 * Reads the value of a windowsize option.
+	 * 
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return the window size, or -1 if it is missing or out of the RFC 7440
+	 *         range
+	 */
+	public static int parseWindowSize(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			int windowSize = Integer.parseInt(value.trim());
+			if (windowSize < 1 || windowSize > Configurations.MAX_WINDOW_SIZE) {
+				return -1;
+			}
+			return windowSize;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Starts the transfer after the bytes the receiver already has, once an
+	 * offset option has been agreed. Block numbers go on from where they
+	 * would have been, so the first block sent is numbered as its position.
+	 * 
+	 * @param offset
+	 *            - bytes skipped, a multiple of the block size
+	 */
+	protected void setResumeOffset(long offset) {
+		this.mFirstBlock = offset / mBlockSize + 1;
+		this.mLastSentBlock = (int) ((this.mFirstBlock - 1) & 0xFFFF);
+	}
+
+	/**
+	 * Points the error checker at the first block of the transfer once the
+	 * options have been acknowledged, block 1 unless it resumes.
+	 */
+	protected void expectFirstBlock() {
+		errorChecker.setExpectedBlockNumber((int) (mFirstBlock & 0xFFFF));
+	}
+
+	/**
+	 * Reads the value of an offset option.
+	 * 
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return the number of bytes to skip, or -1 if it is missing or not a
+	 *         length
+	 */
+	public static long parseOffset(String value) {
+		return parseTransferSize(value);
+	}
+
+	/**
+	 * Reads the value of a tsize option.
+	 * 
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return the size of the file in bytes, or -1 if it is missing or not a
+	 *         size
+	 */
+	public static long parseTransferSize(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			long transferSize = Long.parseLong(value.trim());
+			return transferSize < 0 ? -1 : transferSize;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Tells whether an in order block must be acknowledged now: the last
+	 * block of a window and the last block of the file are, the others are
+	 * covered by the ACK that closes their window.
+	 * 
+	 * @param hasMore
+	 *            - false for the last block of the file
+	 * @return true to send the ACK
+	 */
+	protected boolean closesWindow(boolean hasMore) {
+		if (++mBlocksSinceAck >= mWindowSize || !hasMore) {
+			mBlocksSinceAck = 0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the DATA payload size of the transfer, the negotiated blksize
+	 */
+	public int getBlockSize() {
+		return this.mNegotiatedBlockSize;
+	}
+
+	/**
+	 * Size of the buffers DATA packets are received into. It leaves room past
+	 * the largest valid packet so that oversized packets are caught by the
+	 * error checker instead of being cut short.
+	 * 
+	 * @return buffer size in bytes
+	 */
+	protected int getReceiveBufferSize() {
+		return mBlockSize + Configurations.MAX_BUFFER - Configurations.MAX_PAYLOAD_BUFFER;
+	}
+
+	/**
+	 * Reads the value of a blksize option.
+	 * 
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return the block size, or -1 if it is missing or out of the RFC 2348
+	 *         range
+	 */
+	public static int parseBlockSize(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			int blockSize = Integer.parseInt(value.trim());
+			if (blockSize < Configurations.MIN_BLOCK_SIZE || blockSize > Configurations.MAX_BLOCK_SIZE) {
+				return -1;
+			}
+			return blockSize;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends a packet of the transfer to the peer and arms the retransmission
+	 * timeout for its answer.
+	 * 
+	 * @param packet
+	 *            - DatagramPacket to send, addressed to the peer
+	 * @throws IOException
+	 */
+	protected void transmit(DatagramPacket packet) throws IOException {
+		sendDatagram(packet);
+		armTransmissionTimeout();
+	}
+
+	/**
+	 * Sends a packet on the transfer socket. Every outgoing packet goes
+	 * through here so that subclasses driving the transfer from a channel
+	 * can take over the actual send.
+	 * 
+	 * @param packet
+	 *            - DatagramPacket to send
+	 * @throws IOException
+	 */
+	protected void sendDatagram(DatagramPacket packet) throws IOException {
+		socket.send(packet);
+	}
+
+	/**
+	 * Sets the retransmission deadline one timeout from now. Packets that do
+	 * not move the transfer forward do not push it back.
+	 */
+	protected void armTransmissionTimeout() {
+		armTransmissionTimeout(mRtt.getTimeout());
+	}
+
+	/**
+	 * Sets the retransmission deadline a given time from now.
+	 * 
+	 * @param timeout
+	 *            - milliseconds until the deadline
+	 */
+	protected void armTransmissionTimeout(long timeout) {
+		mRetransmitDeadline = now() + timeout;
+		if (this.mTransferRecord != null) {
+			this.mTransferRecord.setTimeout(mRtt.getTimeout());
+		}
+	}
+
+	/**
+	 * @return the retransmission timeout of the transfer in milliseconds
+	 */
+	public long getRetransmissionTimeout() {
+		return mRtt.getTimeout();
+	}
+
+	/**
+	 * Uses the timeout agreed with the RFC 2349 timeout option instead of
+	 * measuring one.
+	 * 
+	 * @param seconds
+	 *            - timeout agreed with the peer
+	 */
+	public void setTimeout(int seconds) {
+		mRtt.setFixedTimeout(seconds * 1000L);
+	}
+
+	/**
+	 * Reads the value of a timeout option.
+	 * 
+	 * @param value
+	 *            - option value as sent, may be null
+	 * @return the timeout in seconds, or -1 if it is missing or out of the RFC
+	 *         2349 range
+	 */
+	public static int parseTimeout(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			int seconds = Integer.parseInt(value.trim());
+			if (seconds < Configurations.MIN_TIMEOUT_OPTION || seconds > Configurations.MAX_TIMEOUT_OPTION) {
+				return -1;
+			}
+			return seconds;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Receives on the transfer socket until the retransmission deadline. The
+	 * socket only waits for the time left, so a stream of stray or duplicate
+	 * packets cannot keep the timeout from firing.
+	 * 
+	 * @param packet
+	 *            - DatagramPacket to receive into
+	 * @throws SocketTimeoutException
+	 *             once the deadline has passed
+	 * @throws IOException
+	 */
+	protected void receiveBeforeDeadline(DatagramPacket packet) throws IOException {
+		if (mRetransmitDeadline != Long.MAX_VALUE) {
+			long remaining = mRetransmitDeadline - now();
+			if (remaining <= 0) {
+				throw new SocketTimeoutException();
+			}
+			socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+		}
+		socket.receive(packet);
+	}
+
+	/**
+	 * Monotonic clock used for transfer deadlines, so that wall clock changes
+	 * do not fire or delay retransmissions.
+	 * 
+	 * @return the current time in milliseconds
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Attaches the registry record that this transfer keeps up to date.
+	 * 
+	 * @param record
+	 *            - TransferRecord of the transfer
+	 */
+	public void setTransferRecord(TransferRecord record) {
+		this.mTransferRecord = record;
+	}
+
+	/**
+	 * @return the record of this transfer, or null if it is not registered
+	 */
+	public TransferRecord getTransferRecord() {
+		return this.mTransferRecord;
+	}
+
+	/**
+	 * Counts the payload of a block that was saved or acknowledged.
+	 * 
+	 * @param block
+	 *            - the payload, null for an empty last block
+	 */
+	protected void recordBytes(byte[] block) {
+		if (block != null) {
+			recordBytes(block.length);
+		}
+	}
+
+	/**
+	 * Counts payload bytes that were saved or acknowledged.
+	 * 
+	 * @param length
+	 *            - number of payload bytes
+	 */
+	protected void recordBytes(int length) {
+		if (this.mTransferRecord != null) {
+			this.mTransferRecord.addBytes(length);
+		}
+	}
+
+	/**
+	 * Counts a block of the file the peer acknowledged. A compressed block
+	 * stands for a whole block of the file, less for the last one.
+	 * 
+	 * @param payloadLength
+	 *            - bytes of the DATA payload
+	 */
+	protected void recordSentBlock(int payloadLength) {
+		long vPosition = mFirstBlock + mBlocksAcknowledged++;
+		if (!mCompression) {
+			recordBytes(payloadLength);
+			return;
+		}
+		recordWireBytes(payloadLength);
+		recordBytes((int) Math.min(mBlockSize, storage.getFileSize() - (vPosition - 1) * mBlockSize));
+	}
+
+	/**
+	 * Counts the bytes compressed blocks took on the wire.
+	 * 
+	 * @param length
+	 *            - bytes of the DATA payload
+	 */
+	protected void recordWireBytes(int length) {
+		if (this.mTransferRecord != null) {
+			this.mTransferRecord.addWireBytes(length);
+		}
+	}
+
+	/**
+	 * Counts a packet that was sent again after a timeout.
+	 */
+	protected void recordRetransmit() {
+		if (this.mTransferRecord != null) {
+			this.mTransferRecord.incrementRetransmits();
+		}
+	}
+
 	/**
 	 * This function is used to send acknowledgement messages to the requesting
 	 * host. It uses the last packet to determine which host to send to.
@@ -365,16 +1370,51 @@ public class TFTPNetworking {
 	 */
 	protected void sendACK(DatagramPacket packet) {
 		logger.print(logger, Strings.SENDING);
-		AckPacket ackPacket = new AckPacket(packet);
-		ackPacket.buildPacket();
-		BufferPrinter.printPacket(ackPacket, logger, RequestType.ACK);
+		if (OptionAckPacket.isOptionAck(packet)) {
+			// Our own OACK stands in for ACK 0 until DATA 1 arrives
+			BufferPrinter.printPacket(new OptionAckPacket(packet), logger, RequestType.OACK);
+			try {
+				transmit(packet);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		int vBlockNumber = getAcknowledgedBlock(packet);
+		if (mChecksum != null && mLastBlockStored) {
+			// The final ACK carries the digest of what we wrote
+			mAckPacket.setLength(PacketEncoder.encodeAck(mAckBuffer, vBlockNumber, mChecksum.getDigest()));
+		} else {
+			mAckPacket.setLength(PacketEncoder.encodeAck(mAckBuffer, vBlockNumber));
+		}
+		mAckPacket.setAddress(packet.getAddress());
+		mAckPacket.setPort(packet.getPort());
+		BufferPrinter.printPacket(mAckPacket, logger, RequestType.ACK);
 		try {
-			socket.send(ackPacket.getPacket());
+			transmit(mAckPacket);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Finds the block an ACK answering a packet names, the way AckPacket
+	 * does: the block of a DATA or ACK, 1 for a RRQ and 0 for anything else.
+	 * 
+	 * @param packet
+	 *            - DatagramPacket to reply to
+	 * @return the block number to acknowledge
+	 */
+	private static int getAcknowledgedBlock(DatagramPacket packet) {
+		int vOpcode = PacketView.getOpcode(packet);
+		if ((vOpcode == RequestType.DATA.getOptCode() || vOpcode == RequestType.ACK.getOptCode())
+				&& packet.getLength() >= Configurations.LEN_ACK_PACKET_BUFFER) {
+			byte[] vBuffer = packet.getData();
+			return ((vBuffer[packet.getOffset() + 3] & 0xFF) << 8) | (vBuffer[packet.getOffset() + 2] & 0xFF);
+		}
+		return vOpcode == RequestType.RRQ.getOptCode() ? 1 : 0;
+	}
+
 	/**
 	 * Handle the error cases. Will return boolean to indicate whether to
 	 * terminate thread or carry on.
@@ -398,7 +1438,7 @@ public class TFTPNetworking {
 			DatagramPacket allocationExceeded = errorPacket.buildPacket(ErrorType.ALLOCATION_EXCEEDED,
 					error.getString());
 			try {
-				socket.send(allocationExceeded);
+				transmit(allocationExceeded);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -409,7 +1449,7 @@ public class TFTPNetworking {
 				logger.print(Logger.ERROR, error.getString());
 				DatagramPacket fileExists = errorPacket.buildPacket(ErrorType.FILE_EXISTS, error.getString());
 				try {
-					socket.send(fileExists);
+					transmit(fileExists);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -424,7 +1464,7 @@ public class TFTPNetworking {
 				logger.print(Logger.ERROR, error.getString());
 				DatagramPacket fileNotFound = errorPacket.buildPacket(ErrorType.FILE_NOT_FOUND, error.getString());
 				try {
-					socket.send(fileNotFound);
+					transmit(fileNotFound);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -438,7 +1478,7 @@ public class TFTPNetworking {
 			logger.print(Logger.ERROR, error.getString());
 			DatagramPacket accessViolation = errorPacket.buildPacket(ErrorType.ACCESS_VIOLATION, error.getString());
 			try {
-				socket.send(accessViolation);
+				transmit(accessViolation);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -452,7 +1492,7 @@ public class TFTPNetworking {
 			}
 			DatagramPacket illegalOpsError = errorPacket.buildPacket(ErrorType.ILLEGAL_OPERATION, error.getString());
 			try {
-				socket.send(illegalOpsError);
+				transmit(illegalOpsError);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -462,13 +1502,27 @@ public class TFTPNetworking {
 		case UNKNOWN_TRANSFER:
 			DatagramPacket unknownError = errorPacket.buildPacket(ErrorType.UNKNOWN_TRANSFER, error.getString());
 			try {
-				socket.send(unknownError);
+				// Goes to the stray sender, the transfer keeps its deadline
+				sendDatagram(unknownError);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 			logger.print(Logger.ERROR, Strings.UNKNOWN_TRANSFER_HELP_MESSAGE);
 			BufferPrinter.printPacket(new ErrorPacket(unknownError), Logger.ERROR, RequestType.ERROR);
 			return false;
+		case OPTION_NEGOTIATION:
+			logger.print(Logger.ERROR, error.getString());
+			if (this.mInstanceType == InstanceType.CLIENT) {
+				// Refuse the OACK, the server drops the transfer
+				DatagramPacket optionError = errorPacket.buildPacket(ErrorType.OPTION_NEGOTIATION, error.getString());
+				try {
+					sendDatagram(optionError);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				BufferPrinter.printPacket(new ErrorPacket(optionError), Logger.ERROR, RequestType.ERROR);
+			}
+			return true;
 		case SORCERERS_APPRENTICE:
 			return false;
 		default:
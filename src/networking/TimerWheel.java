@@ -0,0 +1,194 @@
+package networking;
+
+/**
+ * @author Team 3
+ *
+ *         A hashed timer wheel for the retransmission, give up and dally
+ *         timeouts of the transfers on one event loop. Time is cut in ticks
+ *         and every timeout hangs in the bucket of the tick it expires on, so
+ *         scheduling and cancelling only link or unlink a node, whatever the
+ *         number of pending timeouts. Deadlines further away than one turn of
+ *         the wheel stay in their bucket until the turn they belong to comes
+ *         round. Deadlines come from NonBlockingTransfer.now(), a monotonic
+ *         clock. A wheel is only used by the thread of its event loop, so it
+ *         does no locking.
+ */
+public class TimerWheel {
+
+	/**
+	 * Work to run when a timeout expires.
+	 */
+	public interface Task {
+		/**
+		 * @param now
+		 *            - the current time from NonBlockingTransfer.now()
+		 */
+		void expire(long now);
+	}
+
+	/**
+	 * A scheduled task, which can be cancelled until it has expired.
+	 */
+	public static final class Timeout {
+		private final TimerWheel mWheel;
+		private final Task mTask;
+		private final long mTick;
+		private Timeout mPrevious;
+		private Timeout mNext;
+		private boolean mPending = true;
+
+		private Timeout(TimerWheel wheel, Task task, long tick) {
+			this.mWheel = wheel;
+			this.mTask = task;
+			this.mTick = tick;
+		}
+
+		/**
+		 * Removes the timeout from the wheel, if it has not expired yet.
+		 */
+		public void cancel() {
+			if (this.mPending) {
+				this.mWheel.unlink(this);
+			}
+		}
+
+		/**
+		 * @return true until the timeout expires or is cancelled
+		 */
+		public boolean isPending() {
+			return this.mPending;
+		}
+	}
+
+	private final Timeout[] mBuckets;
+	private final int mMask;
+	private final long mTickMillis;
+	private final long mStartTime;
+	// The next tick that advance() has to process
+	private long mCurrentTick = 0;
+	private int mPendingCount = 0;
+
+	/**
+	 * @param bucketCount
+	 *            - number of ticks in one turn of the wheel, rounded up to a
+	 *            power of two
+	 * @param tickMillis
+	 *            - length of a tick, the precision of every timeout
+	 * @param now
+	 *            - the current time from NonBlockingTransfer.now()
+	 */
+	public TimerWheel(int bucketCount, long tickMillis, long now) {
+		int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+		this.mBuckets = new Timeout[size];
+		this.mMask = size - 1;
+		this.mTickMillis = Math.max(1, tickMillis);
+		this.mStartTime = now;
+	}
+
+	/**
+	 * Schedules a task. It never runs before its deadline, and at most one
+	 * tick after it.
+	 *
+	 * @param task
+	 *            - what to run
+	 * @param deadline
+	 *            - when to run it, from NonBlockingTransfer.now()
+	 * @return the timeout, to cancel it
+	 */
+	public Timeout schedule(Task task, long deadline) {
+		long tick = (Math.max(0, deadline - this.mStartTime) + this.mTickMillis - 1) / this.mTickMillis;
+		Timeout timeout = new Timeout(this, task, Math.max(tick, this.mCurrentTick));
+		int bucket = (int) (timeout.mTick & this.mMask);
+		timeout.mNext = this.mBuckets[bucket];
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrevious = timeout;
+		}
+		this.mBuckets[bucket] = timeout;
+		this.mPendingCount++;
+		return timeout;
+	}
+
+	/**
+	 * Runs every task whose deadline has passed. Tasks may schedule new
+	 * timeouts and cancel pending ones while they run; the new ones never
+	 * expire in the same call.
+	 *
+	 * @param now
+	 *            - the current time from NonBlockingTransfer.now()
+	 * @return the number of tasks run
+	 */
+	public int advance(long now) {
+		long target = Math.max(0, now - this.mStartTime) / this.mTickMillis;
+		if (target < this.mCurrentTick) {
+			return 0;
+		}
+		long first = this.mCurrentTick;
+		// Past one full turn every bucket is visited once
+		long count = Math.min(target - first + 1, this.mBuckets.length);
+		this.mCurrentTick = target + 1;
+		int expired = 0;
+		for (long i = 0; i < count; ++i) {
+			int bucket = (int) ((first + i) & this.mMask);
+			Timeout timeout = this.mBuckets[bucket];
+			while (timeout != null) {
+				Timeout next = timeout.mNext;
+				if (timeout.mTick <= target) {
+					unlink(timeout);
+					expired++;
+					timeout.mTask.expire(now);
+					// The task cancelled the timeout after it, the bucket is
+					// walked again from its head
+					if (next != null && !next.mPending) {
+						next = this.mBuckets[bucket];
+					}
+				}
+				timeout = next;
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Works out how long the event loop may block before the next tick that
+	 * has a timeout hanging in its bucket. That timeout may belong to a later
+	 * turn of the wheel, in which case the loop only wakes up early.
+	 *
+	 * @param now
+	 *            - the current time from NonBlockingTransfer.now()
+	 * @return milliseconds to wait, or 0 if no timeout is pending
+	 */
+	public long timeUntilNextTick(long now) {
+		if (this.mPendingCount == 0) {
+			return 0;
+		}
+		for (long tick = this.mCurrentTick; tick < this.mCurrentTick + this.mBuckets.length; ++tick) {
+			if (this.mBuckets[(int) (tick & this.mMask)] != null) {
+				return Math.max(1, this.mStartTime + tick * this.mTickMillis - now);
+			}
+		}
+		return this.mTickMillis;
+	}
+
+	/**
+	 * @return the number of timeouts waiting to expire
+	 */
+	public int size() {
+		return this.mPendingCount;
+	}
+
+	private void unlink(Timeout timeout) {
+		int bucket = (int) (timeout.mTick & this.mMask);
+		if (timeout.mPrevious != null) {
+			timeout.mPrevious.mNext = timeout.mNext;
+		} else {
+			this.mBuckets[bucket] = timeout.mNext;
+		}
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrevious = timeout.mPrevious;
+		}
+		timeout.mPrevious = null;
+		timeout.mNext = null;
+		timeout.mPending = false;
+		this.mPendingCount--;
+	}
+}
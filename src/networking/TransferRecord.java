@@ -0,0 +1,206 @@
+package networking;
+
+import java.net.SocketAddress;
+
+import helpers.BlockReadAhead;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         The live state of one transfer, as shown by the server console. Only
+ *         the thread running the transfer writes to its record, other threads
+ *         only read it, so plain volatile fields are enough.
+ */
+public class TransferRecord {
+
+	private final long mId;
+	private final SocketAddress mPeer;
+	private final String mFileName;
+	private final RequestType mDirection;
+	private final long mStartTime;
+	private volatile long mBytesMoved = 0;
+	// DATA payload bytes of a compressed transfer, 0 if it is not compressed
+	private volatile long mWireBytes = 0;
+	private volatile long mRetransmits = 0;
+	// Blocks received ahead of a missing one and held until it came
+	private volatile long mHeldBlocks = 0;
+	private volatile long mTimeout = 0;
+	private volatile int mCongestionWindow = 0;
+	private volatile String mOwner = "";
+	// Blocks read ahead and disk time of a file being sent, 0 until known
+	private volatile int mReadAheadDepth = 0;
+	private volatile long mDiskNanos = 0;
+	private volatile long mStallNanos = 0;
+
+	/**
+	 * @param id
+	 *            - transfer id given by the registry
+	 * @param peer
+	 *            - the remote TID
+	 * @param fileName
+	 *            - the file being read or written
+	 * @param direction
+	 *            - RRQ or WRQ
+	 */
+	public TransferRecord(long id, SocketAddress peer, String fileName, RequestType direction) {
+		this.mId = id;
+		this.mPeer = peer;
+		this.mFileName = fileName;
+		this.mDirection = direction == null ? RequestType.NONE : direction;
+		this.mStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Adds the payload of a block that was written or acknowledged.
+	 *
+	 * @param bytes
+	 *            - payload length
+	 */
+	public void addBytes(long bytes) {
+		this.mBytesMoved += bytes;
+	}
+
+	/**
+	 * Adds the payload of a compressed block as it went on the wire.
+	 *
+	 * @param bytes
+	 *            - payload length
+	 */
+	public void addWireBytes(long bytes) {
+		this.mWireBytes += bytes;
+	}
+
+	/**
+	 * Counts one packet sent again after a timeout.
+	 */
+	public void incrementRetransmits() {
+		this.mRetransmits++;
+	}
+
+	/**
+	 * Counts one block received out of order and held for the gap before it.
+	 */
+	public void incrementHeldBlocks() {
+		this.mHeldBlocks++;
+	}
+
+	/**
+	 * Sets the retransmission timeout the transfer currently uses.
+	 *
+	 * @param timeout
+	 *            - timeout in milliseconds
+	 */
+	public void setTimeout(long timeout) {
+		this.mTimeout = timeout;
+	}
+
+	/**
+	 * Sets the congestion window of a transfer sending a file.
+	 *
+	 * @param window
+	 *            - blocks per round trip
+	 */
+	public void setCongestionWindow(int window) {
+		this.mCongestionWindow = window;
+	}
+
+	/**
+	 * Sets the state of the read-ahead of a file being sent.
+	 *
+	 * @param depth
+	 *            - blocks read ahead
+	 * @param diskNanos
+	 *            - time spent reading the file
+	 * @param stallNanos
+	 *            - time the transfer waited for the disk
+	 */
+	public void setReadAhead(int depth, long diskNanos, long stallNanos) {
+		this.mReadAheadDepth = depth;
+		this.mDiskNanos = diskNanos;
+		this.mStallNanos = stallNanos;
+	}
+
+	/**
+	 * Sets the name of the thread running the transfer.
+	 *
+	 * @param owner
+	 *            - thread name
+	 */
+	public void setOwner(String owner) {
+		this.mOwner = owner;
+	}
+
+	public long getId() {
+		return this.mId;
+	}
+
+	public SocketAddress getPeer() {
+		return this.mPeer;
+	}
+
+	public String getFileName() {
+		return this.mFileName;
+	}
+
+	public RequestType getDirection() {
+		return this.mDirection;
+	}
+
+	public long getBytesMoved() {
+		return this.mBytesMoved;
+	}
+
+	public long getWireBytes() {
+		return this.mWireBytes;
+	}
+
+	public long getRetransmits() {
+		return this.mRetransmits;
+	}
+
+	public long getHeldBlocks() {
+		return this.mHeldBlocks;
+	}
+
+	public long getTimeout() {
+		return this.mTimeout;
+	}
+
+	public String getOwner() {
+		return this.mOwner;
+	}
+
+	/**
+	 * @return milliseconds since the transfer was registered
+	 */
+	public long getElapsedMillis() {
+		return (System.nanoTime() - this.mStartTime) / 1000000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		String compressed = "";
+		if (this.mWireBytes > 0 && this.mBytesMoved > 0) {
+			compressed = String.format(" (deflated to %d%%)", 100 * this.mWireBytes / this.mBytesMoved);
+		}
+		String reordered = "";
+		if (this.mHeldBlocks > 0) {
+			reordered = String.format(" | %d held out of order", this.mHeldBlocks);
+		}
+		String sending = "";
+		if (this.mReadAheadDepth > 0) {
+			sending = String.format(" | cwnd %d | read-ahead %d, disk %.1f ms, %d%% overlapped",
+					this.mCongestionWindow, this.mReadAheadDepth, this.mDiskNanos / 1000000.0,
+					BlockReadAhead.overlapPercent(this.mDiskNanos, this.mStallNanos));
+		}
+		return String.format("#%d %s %s %s | %d bytes%s | %d retransmits%s | RTO %d ms%s | %d ms | %s", this.mId,
+				this.mDirection.name(), this.mFileName, this.mPeer, this.mBytesMoved, compressed, this.mRetransmits,
+				reordered, this.mTimeout, sending, getElapsedMillis(), this.mOwner);
+	}
+}
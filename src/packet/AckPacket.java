@@ -2,6 +2,7 @@ package packet;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import types.ModeType;
@@ -55,12 +56,7 @@ public class AckPacket extends Packet {
 	public DatagramPacket buildPacket() {
 		//this.mBlockNumber = (short) ((this.mBlockNumber) % Short.MAX_VALUE);
 		this.mBuffer = new byte[Configurations.LEN_ACK_PACKET_BUFFER];
-		byte[] udpHeader = getRequestTypeHeaderByteArray();
-		byte[] blockNumber = Conversion.intToBytes(this.mBlockNumber);
-		
-		// Copy everything into the new buffer
-		System.arraycopy(udpHeader, 0, this.mBuffer, 0, udpHeader.length);
-		System.arraycopy(blockNumber, 0, this.mBuffer, udpHeader.length, blockNumber.length);
+		PacketEncoder.encodeAck(ByteBuffer.wrap(this.mBuffer), this.mBlockNumber);
 		this.mDatagramPacket = new DatagramPacket(this.mBuffer, this.mBuffer.length, this.mInetAddress, this.mDestinationPort);
 		return this.mDatagramPacket;
 	}
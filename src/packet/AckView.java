@@ -0,0 +1,34 @@
+package packet;
+
+import helpers.TransferChecksum;
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         View of a received ACK packet, with the digest the final ACK carries
+ *         once the checksum option has been agreed.
+ */
+public class AckView extends PacketView {
+
+	/**
+	 * @return the block number, or -1 if the packet is too short to have one
+	 */
+	public int getBlockNumber() {
+		return this.mLength < Configurations.LEN_ACK_PACKET_BUFFER ? -1 : readShort(2);
+	}
+
+	/**
+	 * @return true if a digest follows the block number
+	 */
+	public boolean hasDigest() {
+		return this.mLength >= Configurations.LEN_ACK_PACKET_BUFFER + TransferChecksum.DIGEST_LENGTH;
+	}
+
+	/**
+	 * @return the digest, only meaningful if hasDigest()
+	 */
+	public int getDigest() {
+		return TransferChecksum.readDigest(this.mBuffer, this.mOffset + Configurations.LEN_ACK_PACKET_BUFFER);
+	}
+}
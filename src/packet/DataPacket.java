@@ -2,6 +2,7 @@ package packet;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import helpers.Conversion;
@@ -75,20 +76,12 @@ public class DataPacket extends Packet {
 	public DatagramPacket buildPacket(byte[] payload) {
 		// Start the block number back at 1 if it over flows
 		this.mBlockNumber = ((this.mBlockNumber + 1) % 65536);
-		byte[] blockNumber = Conversion.intToBytes(this.mBlockNumber);
-		byte[] udpHeader = getRequestTypeHeaderByteArray();
 		int sizeOfPayload = 0;
 		if (payload != null) {
 			sizeOfPayload = payload.length;
 		}
-		this.mBuffer = new byte[sizeOfPayload + udpHeader.length + blockNumber.length];
-
-		// Copy everything into the new buffer
-		System.arraycopy(udpHeader, 0, this.mBuffer, 0, udpHeader.length);
-		System.arraycopy(blockNumber, 0, this.mBuffer, udpHeader.length, blockNumber.length);
-		if (payload != null) {
-			System.arraycopy(payload, 0, this.mBuffer, udpHeader.length + blockNumber.length, payload.length);
-		}
+		this.mBuffer = new byte[PacketEncoder.getDataLength(sizeOfPayload)];
+		PacketEncoder.encodeData(ByteBuffer.wrap(this.mBuffer), this.mBlockNumber, payload, 0, sizeOfPayload);
 		this.mDatagramPacket = new DatagramPacket(this.mBuffer, this.mBuffer.length, this.mInetAddress,
 				this.mDestinationPort);
 		return this.mDatagramPacket;
@@ -0,0 +1,34 @@
+package packet;
+
+import resource.Configurations;
+
+/**
+ * @author Team 3
+ *
+ *         View of a received DATA packet. The payload is not copied out, it is
+ *         read from the receive buffer between getPayloadOffset() and the end
+ *         of the datagram.
+ */
+public class DataView extends PacketView {
+
+	/**
+	 * @return the block number, or -1 if the packet is too short to have one
+	 */
+	public int getBlockNumber() {
+		return this.mLength < Configurations.LEN_ACK_PACKET_BUFFER ? -1 : readShort(2);
+	}
+
+	/**
+	 * @return position of the first payload byte in getBuffer()
+	 */
+	public int getPayloadOffset() {
+		return this.mOffset + Configurations.LEN_ACK_PACKET_BUFFER;
+	}
+
+	/**
+	 * @return bytes of payload, 0 for the empty block that ends a file
+	 */
+	public int getPayloadLength() {
+		return Math.max(this.mLength - Configurations.LEN_ACK_PACKET_BUFFER, 0);
+	}
+}
@@ -2,6 +2,7 @@ package packet;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import helpers.Conversion;
 import resource.Configurations;
 import types.ErrorType;
@@ -46,18 +47,7 @@ public class ErrorPacket extends Packet {
 	 * @return datagram packet
 	 */
 	public DatagramPacket buildPacket(ErrorType errorType) {
-		this.mErrorType = errorType;
-		byte[] errorHeaderBytes = RequestType.ERROR.getHeaderByteArray();
-		byte[] errorCodeBytes = Conversion.intToBytes(errorType.getErrorCodeShort());
-		byte[] errorMessageBytes = errorType.getErrorMessageString().getBytes();
-		int bufferLength = errorHeaderBytes.length + errorCodeBytes.length + errorMessageBytes.length + 1;
-		this.mBuffer = new byte[bufferLength];
-		System.arraycopy(errorHeaderBytes, 0, this.mBuffer, 0, errorHeaderBytes.length);
-		System.arraycopy(errorCodeBytes, 0, this.mBuffer, errorHeaderBytes.length, errorCodeBytes.length);
-		System.arraycopy(errorMessageBytes, 0, this.mBuffer, errorHeaderBytes.length + errorCodeBytes.length,
-				errorMessageBytes.length);
-		this.mBuffer[bufferLength - 1] = 0; // Null terminating zero
-		return new DatagramPacket(this.mBuffer, this.mBuffer.length, this.mInetAddress, this.mDestinationPort);
+		return buildPacket(errorType, errorType.getErrorMessageString());
 	}
 
 	/**
@@ -72,16 +62,8 @@ public class ErrorPacket extends Packet {
 	 */
 	public DatagramPacket buildPacket(ErrorType errorType, String customMessage) {
 		this.mErrorType = errorType;
-		byte[] errorHeaderBytes = RequestType.ERROR.getHeaderByteArray();
-		byte[] errorCodeBytes = Conversion.intToBytes(errorType.getErrorCodeShort());
-		byte[] errorMessageBytes = customMessage.getBytes();
-		int bufferLength = errorHeaderBytes.length + errorCodeBytes.length + errorMessageBytes.length + 1;
-		this.mBuffer = new byte[bufferLength];
-		System.arraycopy(errorHeaderBytes, 0, this.mBuffer, 0, errorHeaderBytes.length);
-		System.arraycopy(errorCodeBytes, 0, this.mBuffer, errorHeaderBytes.length, errorCodeBytes.length);
-		System.arraycopy(errorMessageBytes, 0, this.mBuffer, errorHeaderBytes.length + errorCodeBytes.length,
-				errorMessageBytes.length);
-		this.mBuffer[bufferLength - 1] = 0; // Null terminating zero
+		this.mBuffer = new byte[PacketEncoder.getErrorLength(customMessage)];
+		PacketEncoder.encodeError(ByteBuffer.wrap(this.mBuffer), errorType, customMessage);
 		return new DatagramPacket(this.mBuffer, this.mBuffer.length, this.mInetAddress, this.mDestinationPort);
 	}
 
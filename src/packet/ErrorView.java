@@ -0,0 +1,32 @@
+package packet;
+
+import resource.Configurations;
+import types.ErrorType;
+
+/**
+ * @author Team 3
+ *
+ *         View of a received ERROR packet. An error ends the transfer, so its
+ *         message is only turned into a string when asked for.
+ */
+public class ErrorView extends PacketView {
+
+	/**
+	 * @return the error type of the error code
+	 */
+	public ErrorType getErrorType() {
+		return this.mLength < Configurations.LEN_ACK_PACKET_BUFFER ? ErrorType.NO_ERROR
+				: ErrorType.matchErrorByNumber(readShort(2));
+	}
+
+	/**
+	 * @return the message of the error, empty if there is none
+	 */
+	public String getErrorMessage() {
+		if (this.mLength <= Configurations.ERROR_PACKET_USELESS_VALUES) {
+			return "";
+		}
+		return new String(this.mBuffer, this.mOffset + Configurations.LEN_ACK_PACKET_BUFFER,
+				this.mLength - Configurations.ERROR_PACKET_USELESS_VALUES);
+	}
+}
@@ -0,0 +1,188 @@
+package packet;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+
+import types.ModeType;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         This class represents the RFC 2347 option acknowledgement. A server
+ *         that accepts options of a request answers with an OACK listing the
+ *         options it agreed to, instead of ACK 0 for a WRQ or DATA 1 for a RRQ.
+ *         The format is OPCODE 6 ~ OPTION ~ 0 ~ VALUE ~ 0 for every option.
+ */
+public class OptionAckPacket extends Packet {
+
+	private LinkedHashMap<String, String> mOptions = new LinkedHashMap<String, String>();
+
+	/**
+	 * Used to create a packet from scratch by inputing the required parameters
+	 * of the DatagramPacket class.
+	 *
+	 * @param addressOfHost
+	 *            - InetAddress of the host
+	 * @param destPort
+	 *            - Destination port number
+	 */
+	public OptionAckPacket(InetAddress addressOfHost, int destPort) {
+		super(addressOfHost, destPort, RequestType.OACK);
+	}
+
+	/**
+	 * Used primary for de-construction of received packets. Passing a request
+	 * creates an empty OACK addressed back to the requester.
+	 *
+	 * @param inDatagramPacket
+	 *            - the packet to reply to (or load info from)
+	 */
+	public OptionAckPacket(DatagramPacket inDatagramPacket) {
+		super(inDatagramPacket);
+		deconstructPacket(inDatagramPacket);
+	}
+
+	/**
+	 * Tells whether a received datagram is an OACK without building one
+	 *
+	 * @param packet
+	 *            - the received datagram
+	 * @return true if the opcode is OACK
+	 */
+	public static boolean isOptionAck(DatagramPacket packet) {
+		return packet.getLength() >= 2 && packet.getData()[packet.getOffset()] == 0
+				&& packet.getData()[packet.getOffset() + 1] == RequestType.OACK.getOptCode();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#buildPacket()
+	 */
+	@Override
+	public DatagramPacket buildPacket() {
+		this.mBuffer = new byte[PacketEncoder.getOptionAckLength(this.mOptions)];
+		PacketEncoder.encodeOptionAck(ByteBuffer.wrap(this.mBuffer), this.mOptions);
+		this.mDatagramPacket = new DatagramPacket(this.mBuffer, this.mBuffer.length, this.mInetAddress,
+				this.mDestinationPort);
+		return this.mDatagramPacket;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#decontructPacket(java.net.DatagramPacket)
+	 */
+	@Override
+	public void deconstructPacket(DatagramPacket inDatagramPacket) {
+		setRequestTypeFromBuffer(this.mBuffer);
+		if (this.mRequestType == RequestType.OACK) {
+			this.mOptions = parseOptions(this.mBuffer, 2);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#getRequestTypeHeaderByteArray()
+	 */
+	@Override
+	protected byte[] getRequestTypeHeaderByteArray() {
+		return RequestType.OACK.getHeaderByteArray();
+	}
+
+	/**
+	 * Adds an option the server agreed to
+	 *
+	 * @param name
+	 *            - option name, case insensitive
+	 * @param value
+	 *            - the value agreed to
+	 */
+	public void setOption(String name, String value) {
+		this.mOptions.put(name.toLowerCase(), value);
+	}
+
+	/**
+	 * Gets the value the server agreed to for an option
+	 *
+	 * @param name
+	 *            - option name, case insensitive
+	 * @return String value, or null if the server did not acknowledge it
+	 */
+	public String getOption(String name) {
+		return this.mOptions.get(name.toLowerCase());
+	}
+
+	/**
+	 * Gets every acknowledged option, in the order they were sent
+	 *
+	 * @return the option names and values
+	 */
+	public LinkedHashMap<String, String> getOptions() {
+		return this.mOptions;
+	}
+
+	/**
+	 * Tells whether any option was agreed to. An OACK without options must
+	 * not be sent, the plain ACK or DATA answer is used instead
+	 *
+	 * @return boolean
+	 */
+	public boolean hasOptions() {
+		return !this.mOptions.isEmpty();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#setFilename(java.lang.String)
+	 */
+	@Override
+	public void setFilename(String fileName) {
+		throw new IllegalArgumentException("You cannot use filename with this type of packet.");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#setMode(types.ModeType)
+	 */
+	@Override
+	public void setMode(ModeType mode) {
+		throw new IllegalArgumentException("You cannot use Mode with this type of packet.");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#getMode()
+	 */
+	@Override
+	public ModeType getMode() {
+		throw new IllegalArgumentException("You cannot use Mode with this type of packet.");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see packet.Packet#setBlockNumber(int)
+	 */
+	@Override
+	public void setBlockNumber(int blockNumber) {
+		throw new IllegalArgumentException("You cannot use block number with this type of packet.");
+	}
+
+	/**
+	 * An OACK stands in for block 0 of the transfer
+	 *
+	 * @return always 0
+	 */
+	@Override
+	public int getBlockNumber() {
+		return 0;
+	}
+}
@@ -1,11 +1,10 @@
 package packet;
 
 import java.net.*;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 import types.ModeType;
 import types.RequestType;
-import helpers.Conversion;
 
 /**
  * @author Team 3
@@ -183,31 +182,42 @@ public abstract class Packet {
 	}
 
 	/**
-	 * This function can be used to create a READ/WRITE message from the base
-	 * class
+	 * Reads the option name and value pairs of an RFC 2347 option list, as
+	 * found after the mode of a request or the opcode of an OACK. Names are
+	 * case insensitive, so they are kept in lower case. A name without its
+	 * value ends the list.
 	 * 
-	 * @param opcode
-	 *            - RRQ or WRQ
-	 * @param filename
-	 *            - The filename associated with this request
-	 * @param mode
-	 *            - the mode of the encoding
-	 * @return the byte buffer that goes inside a DatagramPacket
+	 * @param buffer
+	 *            - the packet buffer
+	 * @param start
+	 *            - index of the first option name
+	 * @return the options in the order they were sent
 	 */
-	protected byte[] createMsg(byte[] opcode, String filename, String mode) {
-		ArrayList<Byte> msg = new ArrayList<Byte>();
-		for (byte b : opcode) {
-			msg.add(b);
+	protected static LinkedHashMap<String, String> parseOptions(byte[] buffer, int start) {
+		LinkedHashMap<String, String> options = new LinkedHashMap<String, String>();
+		int index = start;
+		while (index < buffer.length) {
+			int nameEnd = indexOfZero(buffer, index);
+			int valueEnd = indexOfZero(buffer, nameEnd + 1);
+			if (valueEnd >= buffer.length) {
+				break;
+			}
+			String name = new String(buffer, index, nameEnd - index).toLowerCase();
+			options.put(name, new String(buffer, nameEnd + 1, valueEnd - nameEnd - 1));
+			index = valueEnd + 1;
 		}
-		for (byte b : filename.getBytes()) {
-			msg.add(b);
-		}
-		msg.add((byte) 0);
-		for (byte b : mode.getBytes()) {
-			msg.add(b);
+		return options;
+	}
+
+	/**
+	 * @return the index of the next zero byte from start, or the buffer length
+	 */
+	protected static int indexOfZero(byte[] buffer, int start) {
+		int index = start;
+		while (index < buffer.length && buffer[index] != 0) {
+			++index;
 		}
-		msg.add((byte) 0);
-		return Conversion.toByteArray(msg);
+		return index;
 	}
 
 	/**
@@ -242,6 +252,9 @@ public abstract class Packet {
 		if (buffer[1] == 5) {
 			this.mRequestType = RequestType.ERROR;
 		}
+		if (buffer[1] == 6) {
+			this.mRequestType = RequestType.OACK;
+		}
 	}
 
 	/**
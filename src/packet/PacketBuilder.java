@@ -47,6 +47,10 @@ public class PacketBuilder {
 			receivePacketBuilder = new ErrorPacket(inPacket);
 			receivePacketBuilder.setRequestType(RequestType.ERROR);
 			break;
+		case 6:
+			receivePacketBuilder = new OptionAckPacket(inPacket);
+			receivePacketBuilder.setRequestType(RequestType.OACK);
+			break;
 		}
 		return receivePacketBuilder;
 	}
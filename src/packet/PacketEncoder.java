@@ -0,0 +1,261 @@
+package packet;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import resource.Configurations;
+import types.ErrorType;
+import types.ModeType;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Writes TFTP packets straight into a buffer the caller keeps, the
+ *         counterpart of the views on the receive side. The Packet classes
+ *         build a new buffer and DatagramPacket for every packet, and the
+ *         headers and block numbers that go into it are new arrays too. A
+ *         transfer that encodes its DATA and ACK packets here, into buffers
+ *         it made once, allocates nothing per packet.
+ *
+ *         Every method clears the buffer, writes the packet from its start
+ *         and flips it, so the buffer holds exactly the packet, and returns
+ *         its length. A DatagramPacket over the array of the buffer is sent
+ *         once its length is set to that. The opcode is written the way the
+ *         socket API reads it, the block number and error code in the byte
+ *         order of Conversion.
+ */
+public class PacketEncoder {
+
+	// Opcodes, computed once rather than from RequestType for every packet
+	private static final short RRQ_OPCODE = (short) RequestType.RRQ.getOptCode();
+	private static final short WRQ_OPCODE = (short) RequestType.WRQ.getOptCode();
+	private static final short DATA_OPCODE = (short) RequestType.DATA.getOptCode();
+	private static final short ACK_OPCODE = (short) RequestType.ACK.getOptCode();
+	private static final short ERROR_OPCODE = (short) RequestType.ERROR.getOptCode();
+	private static final short OACK_OPCODE = (short) RequestType.OACK.getOptCode();
+
+	// Mode names of a request, indexed by the ordinal of the mode
+	private static final byte[][] MODES = new byte[ModeType.values().length][];
+
+	static {
+		for (ModeType vMode : ModeType.values()) {
+			MODES[vMode.ordinal()] = vMode.getModeByteArray();
+		}
+	}
+
+	/**
+	 * Writes a DATA packet.
+	 *
+	 * @param buffer
+	 *            - where to write it, at least 4 bytes longer than the payload
+	 * @param blockNumber
+	 *            - block number, 0 to 65535
+	 * @param payload
+	 *            - the block, may be null for an empty one
+	 * @param offset
+	 *            - position of the block in the payload array
+	 * @param length
+	 *            - length of the block
+	 * @return length of the packet
+	 */
+	public static int encodeData(ByteBuffer buffer, int blockNumber, byte[] payload, int offset, int length) {
+		buffer.clear();
+		buffer.putShort(DATA_OPCODE);
+		putShort(buffer, blockNumber);
+		if (length > 0) {
+			buffer.put(payload, offset, length);
+		}
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * Writes an ACK packet.
+	 *
+	 * @param buffer
+	 *            - where to write it
+	 * @param blockNumber
+	 *            - block number acknowledged, 0 to 65535
+	 * @return length of the packet
+	 */
+	public static int encodeAck(ByteBuffer buffer, int blockNumber) {
+		buffer.clear();
+		buffer.putShort(ACK_OPCODE);
+		putShort(buffer, blockNumber);
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * Writes the final ACK of a transfer that agreed the checksum option,
+	 * followed by the digest of the file bytes written.
+	 *
+	 * @param buffer
+	 *            - where to write it
+	 * @param blockNumber
+	 *            - block number acknowledged, 0 to 65535
+	 * @param digest
+	 *            - the digest, in the byte order TransferChecksum writes it
+	 * @return length of the packet
+	 */
+	public static int encodeAck(ByteBuffer buffer, int blockNumber, int digest) {
+		buffer.clear();
+		buffer.putShort(ACK_OPCODE);
+		putShort(buffer, blockNumber);
+		buffer.putInt(digest);
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * Writes an ERROR packet.
+	 *
+	 * @param buffer
+	 *            - where to write it, see getErrorLength()
+	 * @param errorType
+	 *            - the error
+	 * @param message
+	 *            - the message that goes with it
+	 * @return length of the packet
+	 */
+	public static int encodeError(ByteBuffer buffer, ErrorType errorType, String message) {
+		buffer.clear();
+		buffer.putShort(ERROR_OPCODE);
+		putShort(buffer, errorType.getErrorCodeShort());
+		putString(buffer, message);
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * Writes a RRQ or WRQ, followed by its options.
+	 *
+	 * @param buffer
+	 *            - where to write it, see getRequestLength()
+	 * @param requestType
+	 *            - RRQ or WRQ
+	 * @param filename
+	 *            - the file asked for
+	 * @param mode
+	 *            - the mode of the transfer
+	 * @param options
+	 *            - the options in the order they are sent, may be empty
+	 * @return length of the packet
+	 */
+	public static int encodeRequest(ByteBuffer buffer, RequestType requestType, String filename, ModeType mode,
+			Map<String, String> options) {
+		buffer.clear();
+		buffer.putShort(requestType == RequestType.RRQ ? RRQ_OPCODE : WRQ_OPCODE);
+		putString(buffer, filename);
+		buffer.put(MODES[mode.ordinal()]);
+		buffer.put((byte) 0);
+		putOptions(buffer, options);
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * Writes an OACK with the options the server agreed to.
+	 *
+	 * @param buffer
+	 *            - where to write it, see getOptionAckLength()
+	 * @param options
+	 *            - the options in the order they are sent
+	 * @return length of the packet
+	 */
+	public static int encodeOptionAck(ByteBuffer buffer, Map<String, String> options) {
+		buffer.clear();
+		buffer.putShort(OACK_OPCODE);
+		putOptions(buffer, options);
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * @return length of a DATA packet with the payload
+	 */
+	public static int getDataLength(int payloadLength) {
+		return Configurations.LEN_ACK_PACKET_BUFFER + payloadLength;
+	}
+
+	/**
+	 * @return length of the ERROR packet with the message
+	 */
+	public static int getErrorLength(String message) {
+		return Configurations.LEN_ACK_PACKET_BUFFER + getStringLength(message);
+	}
+
+	/**
+	 * @return length of the request with the filename, mode and options
+	 */
+	public static int getRequestLength(String filename, ModeType mode, Map<String, String> options) {
+		return 2 + getStringLength(filename) + MODES[mode.ordinal()].length + 1 + getOptionsLength(options);
+	}
+
+	/**
+	 * @return length of the OACK with the options
+	 */
+	public static int getOptionAckLength(Map<String, String> options) {
+		return 2 + getOptionsLength(options);
+	}
+
+	/**
+	 * Writes a block number or error code, low byte first.
+	 */
+	private static void putShort(ByteBuffer buffer, int value) {
+		buffer.put((byte) value);
+		buffer.put((byte) (value >>> 8));
+	}
+
+	/**
+	 * Writes a string and the zero that ends it. ASCII, which is all file
+	 * names, modes and options ever are in practice, is written a char at a
+	 * time; anything else the way String.getBytes() encodes it.
+	 */
+	private static void putString(ByteBuffer buffer, String value) {
+		int vStart = buffer.position();
+		for (int i = 0; i < value.length(); ++i) {
+			char vChar = value.charAt(i);
+			if (vChar >= 0x80) {
+				buffer.position(vStart);
+				buffer.put(value.getBytes());
+				break;
+			}
+			buffer.put((byte) vChar);
+		}
+		buffer.put((byte) 0);
+	}
+
+	private static void putOptions(ByteBuffer buffer, Map<String, String> options) {
+		if (options == null) {
+			return;
+		}
+		for (Map.Entry<String, String> vOption : options.entrySet()) {
+			putString(buffer, vOption.getKey());
+			putString(buffer, vOption.getValue());
+		}
+	}
+
+	/**
+	 * @return bytes putString() writes for the string
+	 */
+	private static int getStringLength(String value) {
+		for (int i = 0; i < value.length(); ++i) {
+			if (value.charAt(i) >= 0x80) {
+				return value.getBytes().length + 1;
+			}
+		}
+		return value.length() + 1;
+	}
+
+	private static int getOptionsLength(Map<String, String> options) {
+		int vLength = 0;
+		if (options != null) {
+			for (Map.Entry<String, String> vOption : options.entrySet()) {
+				vLength += getStringLength(vOption.getKey()) + getStringLength(vOption.getValue());
+			}
+		}
+		return vLength;
+	}
+}
@@ -7,35 +7,43 @@ import types.RequestType;
 /**
  * @author Team 3
  *
- *         This class creates packets based on in comming datagram packets
+ *         This class hands out the views the packets of a transfer are decoded
+ *         with. It keeps one view per opcode in a table indexed by the opcode,
+ *         and points the view of an incoming datagram at it, rather than
+ *         building a new packet object for every datagram. The views are
+ *         reused, so each transfer needs a factory of its own.
+ *
+ *         DATA, ACK and ERROR have views of their own. RRQ, WRQ and OACK come
+ *         once per transfer and carry options, they are decoded by their
+ *         Packet classes and only get the plain view here, as does a datagram
+ *         with an unknown opcode.
  */
 public class PacketFactory {
 
+	private final PacketView[] mViews = new PacketView[RequestType.OACK.getOptCode() + 1];
+	private final PacketView mOtherView = new PacketView();
+
 	public PacketFactory() {
+		this.mViews[RequestType.DATA.getOptCode()] = new DataView();
+		this.mViews[RequestType.ACK.getOptCode()] = new AckView();
+		this.mViews[RequestType.ERROR.getOptCode()] = new ErrorView();
 	}
 
 	/**
-	 * Determines which Packet derived class to create based on the input header
-	 * 
+	 * Determines which view decodes a datagram from its opcode and points it
+	 * at the datagram.
+	 *
 	 * @param inDatagram
 	 *            - the packet that was received
-	 * @return
+	 * @return the view of the packet, valid until the next call
 	 */
-	public Packet getBuilder(DatagramPacket inDatagram) {
-		int packetNum = inDatagram.getData()[1] - 1;
-		switch (packetNum) {
-		case 0:
-			return new ReadPacket(inDatagram);
-		case 1:
-			return new WritePacket(inDatagram);
-		case 2:
-			return new DataPacket(inDatagram);
-		case 3:
-			return new AckPacket(inDatagram);
-		case 4:
-			return new ErrorPacket(inDatagram);
-		default:
-			return null;
+	public PacketView getView(DatagramPacket inDatagram) {
+		int vOpcode = PacketView.getOpcode(inDatagram);
+		PacketView vView = vOpcode >= 0 && vOpcode < this.mViews.length ? this.mViews[vOpcode] : null;
+		if (vView == null) {
+			vView = this.mOtherView;
 		}
+		vView.wrap(inDatagram);
+		return vView;
 	}
 }
@@ -0,0 +1,122 @@
+package packet;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         A reusable window onto a received datagram. Where the Packet classes
+ *         copy the datagram and then copy the fields out of the copy, a view
+ *         reads the fields straight from the receive buffer when asked for
+ *         them. One view of each kind is kept per transfer by its
+ *         PacketFactory and pointed at every datagram of that kind in turn,
+ *         so decoding the DATA and ACK packets of a transfer allocates
+ *         nothing.
+ *
+ *         A view is only valid until the buffer it wraps is received into
+ *         again. Anything that outlives the packet, such as the payload of a
+ *         block written to disk, has to be used or copied before then.
+ */
+public class PacketView {
+
+	protected byte[] mBuffer;
+	protected int mOffset;
+	protected int mLength;
+	protected InetAddress mAddress;
+	protected int mPort;
+
+	/**
+	 * Points the view at a received datagram.
+	 *
+	 * @param packet
+	 *            - the datagram, with the sender address set
+	 */
+	public void wrap(DatagramPacket packet) {
+		this.mBuffer = packet.getData();
+		this.mOffset = packet.getOffset();
+		this.mLength = packet.getLength();
+		this.mAddress = packet.getAddress();
+		this.mPort = packet.getPort();
+	}
+
+	/**
+	 * Reads the opcode of a datagram without wrapping it.
+	 *
+	 * @param packet
+	 *            - the datagram
+	 * @return the opcode, or -1 if the datagram is too short to have one
+	 */
+	public static int getOpcode(DatagramPacket packet) {
+		if (packet.getLength() < 2) {
+			return -1;
+		}
+		byte[] vBuffer = packet.getData();
+		return ((vBuffer[packet.getOffset()] & 0xFF) << 8) | (vBuffer[packet.getOffset() + 1] & 0xFF);
+	}
+
+	/**
+	 * @return the request type of the opcode, NONE if it is not one
+	 */
+	public RequestType getRequestType() {
+		return this.mLength < 2 || this.mBuffer[this.mOffset] != 0 ? RequestType.NONE
+				: RequestType.matchRequestByNumber(this.mBuffer[this.mOffset + 1]);
+	}
+
+	/**
+	 * @return the first byte of the opcode, always 0 in a valid packet
+	 */
+	public int getFirstByte() {
+		return this.mLength < 1 ? 0 : this.mBuffer[this.mOffset];
+	}
+
+	/**
+	 * @return the second byte of the opcode
+	 */
+	public int getOpcodeByte() {
+		return this.mLength < 2 ? 0 : this.mBuffer[this.mOffset + 1];
+	}
+
+	/**
+	 * @return length of the datagram
+	 */
+	public int getLength() {
+		return this.mLength;
+	}
+
+	/**
+	 * @return the receive buffer the view reads from
+	 */
+	public byte[] getBuffer() {
+		return this.mBuffer;
+	}
+
+	/**
+	 * @return position of the first byte of the datagram in the buffer
+	 */
+	public int getOffset() {
+		return this.mOffset;
+	}
+
+	public InetAddress getAddress() {
+		return this.mAddress;
+	}
+
+	public int getPort() {
+		return this.mPort;
+	}
+
+	/**
+	 * Reads a two byte field, in the byte order Conversion writes it.
+	 *
+	 * @param position
+	 *            - position of the field from the start of the datagram
+	 * @return the field, 0 to 65535
+	 */
+	protected int readShort(int position) {
+		return ((this.mBuffer[this.mOffset + position + 1] & 0xFF) << 8)
+				| (this.mBuffer[this.mOffset + position] & 0xFF);
+	}
+}
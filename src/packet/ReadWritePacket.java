@@ -2,6 +2,8 @@ package packet;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 
 import types.*;
 import resource.Configurations;
@@ -17,6 +19,7 @@ public class ReadWritePacket extends Packet {
 
 	protected String mFilename;
 	protected ModeType mMode;
+	protected LinkedHashMap<String, String> mOptions = new LinkedHashMap<String, String>();
 
 	/**
 	 * Used to create a packet from scratch by inputing the required parameters
@@ -91,39 +94,17 @@ public class ReadWritePacket extends Packet {
 
 	/**
 	 * This function will build a DatagramPacket by the specified packet format:
-	 * REQUEST TYPE ~ FILENAME ~ 0 ~ MESSAGE ~ 0 It will copy sections of the
-	 * packet into a packet buffer before setting the destination address of the
-	 * packet
+	 * REQUEST TYPE ~ FILENAME ~ 0 ~ MESSAGE ~ 0 followed by OPTION ~ 0 ~ VALUE ~
+	 * 0 for every option set. The PacketEncoder writes it into a buffer of
+	 * its exact length before the destination address of the packet is set
 	 * 
 	 * @return the built DatagramPacket
 	 */
 	@Override
 	public DatagramPacket buildPacket() {
-		byte[] udpHeader = this.mRequestType.getHeaderByteArray();
-		byte[] modeBody = this.mMode.getModeByteArray();
-		byte[] message = this.mFilename.getBytes();
-		byte zeroByte = 0;
-		int currentBufferIndex = 0;
-		// Create the buffer size with two zeros as padding between message and
-		// null terminator
-		int bufferSize = message.length + udpHeader.length + modeBody.length + 2;
-		this.mBuffer = new byte[bufferSize];
-
-		// Copy our header and messages into the buffer
-		System.arraycopy(udpHeader, 0, this.mBuffer, 0, udpHeader.length);
-		System.arraycopy(message, 0, this.mBuffer, udpHeader.length, message.length);
-		currentBufferIndex += udpHeader.length + message.length;
-
-		// Create a 0 padding
-		this.mBuffer[udpHeader.length + message.length] = zeroByte;
-		++currentBufferIndex;
-
-		// Copy the mode byte array into it
-		System.arraycopy(modeBody, 0, this.mBuffer, currentBufferIndex, modeBody.length);
-		currentBufferIndex += modeBody.length;
-
-		// Set the last trailing 0
-		mBuffer[currentBufferIndex] = zeroByte;
+		this.mBuffer = new byte[PacketEncoder.getRequestLength(this.mFilename, this.mMode, this.mOptions)];
+		PacketEncoder.encodeRequest(ByteBuffer.wrap(this.mBuffer), this.mRequestType, this.mFilename, this.mMode,
+				this.mOptions);
 		this.mDatagramPacket = new DatagramPacket(mBuffer, mBuffer.length, this.mInetAddress, this.mDestinationPort);
 		return this.mDatagramPacket;
 	}
@@ -141,35 +122,18 @@ public class ReadWritePacket extends Packet {
 	}
 
 	/**
-	 * This method is used to extract the filename and mode from the packet.
-	 * These attributes can be get grabbed through getter functions
+	 * This method is used to extract the filename, mode and options from the
+	 * packet. These attributes can be get grabbed through getter functions
 	 */
 	private void deconstructBuffer() {
 		try {
-			StringBuilder modeName = new StringBuilder();
-			boolean fileNameDone = false;
-			boolean startDeconstructingMode = false;
-			int endIndexForFilename = 0;
-			for (int i = 2; i < this.mBuffer.length - 1; ++i) {
-				if (startDeconstructingMode) {
-					modeName.append(this.mBuffer[i]);
-				}
-				if (this.mBuffer[i] == 0) {
-					fileNameDone = true;
-					startDeconstructingMode = true;
-				}
-				if (!fileNameDone) {
-					++endIndexForFilename;
-				}
-			}
-			byte[] fileNameBytes = new byte[endIndexForFilename];
-			byte[] modeStringBytes = new byte[this.mBuffer.length - endIndexForFilename - 4];
+			int endIndexForFilename = indexOfZero(this.mBuffer, 2);
+			int endIndexForMode = indexOfZero(this.mBuffer, endIndexForFilename + 1);
 
-			System.arraycopy(this.mBuffer, 2, fileNameBytes, 0, endIndexForFilename);
-			System.arraycopy(this.mBuffer, endIndexForFilename + 3, modeStringBytes, 0, modeStringBytes.length);
-
-			this.mFilename = new String(fileNameBytes);
-			this.mMode = ModeType.matchModeFromString(new String(modeStringBytes));
+			this.mFilename = new String(this.mBuffer, 2, endIndexForFilename - 2);
+			this.mMode = ModeType.matchModeFromString(
+					new String(this.mBuffer, endIndexForFilename + 1, endIndexForMode - endIndexForFilename - 1));
+			this.mOptions = parseOptions(this.mBuffer, endIndexForMode + 1);
 		} catch (Exception e) {
 
 		}
@@ -220,6 +184,50 @@ public class ReadWritePacket extends Packet {
 		return this.mMode;
 	}
 
+	/**
+	 * Adds an RFC 2347 option to the request, replacing any earlier value
+	 * 
+	 * @param name
+	 *            - option name, case insensitive
+	 * @param value
+	 *            - option value
+	 */
+	public void setOption(String name, String value) {
+		this.mOptions.put(name.toLowerCase(), value);
+	}
+
+	/**
+	 * Drops an option from the request, buildPacket() has to be called again
+	 * for the packet to leave it out
+	 * 
+	 * @param name
+	 *            - option name, case insensitive
+	 */
+	public void removeOption(String name) {
+		this.mOptions.remove(name.toLowerCase());
+	}
+
+	/**
+	 * Gets the value of an option the request carries
+	 * 
+	 * @param name
+	 *            - option name, case insensitive
+	 * @return String value, or null if the option was not requested
+	 */
+	public String getOption(String name) {
+		return this.mOptions.get(name.toLowerCase());
+	}
+
+	/**
+	 * Tells whether the request carries any option, in which case an option
+	 * aware peer answers with an OACK
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasOptions() {
+		return !this.mOptions.isEmpty();
+	}
+
 	/**
 	 * Gets the current state of the filename of the packet
 	 * 
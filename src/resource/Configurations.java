@@ -23,9 +23,92 @@ public class Configurations {
 	public static final int LEN_ACK_PACKET_BUFFER = 4;
 	public static final String SERVER_INET_HOST = "localhost";
 	public static final int ERROR_PACKET_USELESS_VALUES = 5;
-	public static final int TRANMISSION_TIMEOUT = 1000; // 1000 ms
+	public static final int TRANMISSION_TIMEOUT = 1000; // 1000 ms, until the round trip time is measured
+	public static final int MIN_TRANSMISSION_TIMEOUT = 50;
+	public static final int MAX_TRANSMISSION_TIMEOUT = 16000;
 	public static final int RETRANMISSION_TRY = 4;
 	
+	/* RFC 2348 block size negotiation */
+	public static final int MIN_BLOCK_SIZE = 8;
+	public static final int MAX_BLOCK_SIZE = 65464; // largest block in one UDP datagram over IPv4
+	public static final int MAX_DATAGRAM_BUFFER = 65536;
+	public static final int CLIENT_BLOCK_SIZE = 1428; // DATA fits a 1500 byte Ethernet MTU
+	public static final String OPTION_BLOCK_SIZE = "blksize";
+	public static final boolean CLIENT_DISCOVER_BLOCK_SIZE = true; // largest block the path carries unfragmented
+	public static final int CLIENT_PROBE_TIMEOUTS = 2; // timeouts before the first block that give up on its size
+	public static final String BLOCK_SIZE_CACHE_FILE = ".blocksizes"; // in the client folder
+	public static final long BLOCK_SIZE_CACHE_EXPIRY = 24 * 60 * 60 * 1000; // 1 day
+	public static final int IPV4_HEADER_SIZE = 20;
+	public static final int IPV6_HEADER_SIZE = 40;
+	public static final int UDP_HEADER_SIZE = 8;
+	
+	/* RFC 7440 window size negotiation */
+	public static final int MAX_WINDOW_SIZE = 65535;
+	public static final int SERVER_MAX_WINDOW_SIZE = 64; // blocks in flight per transfer
+	public static final int CLIENT_WINDOW_SIZE = 16;
+	public static final String OPTION_WINDOW_SIZE = "windowsize";
+	public static final int REORDER_GAP_ACK_BLOCKS = 3; // blocks held past a gap before the receiver asks for it
+	
+	/* Congestion control of windowed sends, windows in blocks */
+	public static final int CONGESTION_INITIAL_WINDOW = 4;
+	public static final int CONGESTION_MAX_WINDOW = 1024;
+	public static final double PACING_GAIN_SLOW_START = 2.0; // rate above the window while probing
+	public static final double PACING_GAIN = 1.25;
+	
+	/* RFC 2349 transfer size and timeout options, the timeout in seconds */
+	public static final String OPTION_TRANSFER_SIZE = "tsize";
+	public static final int MIN_TIMEOUT_OPTION = 1;
+	public static final int MAX_TIMEOUT_OPTION = 255;
+	public static final String OPTION_TIMEOUT = "timeout";
+	
+	/* Resuming a transfer from the part of a file received before it failed */
+	public static final String OPTION_OFFSET = "offset"; // bytes skipped, a multiple of the block size
+	public static final boolean CLIENT_RESUME_TRANSFERS = true;
+	public static final String PARTIAL_FILE_SUFFIX = ".partial"; // beside a partial file, holds its verified length
+	public static final long PARTIAL_FILE_EXPIRY = 24 * 60 * 60 * 1000L; // ms a partial file waits to be resumed
+	
+	/* RFC 2090 multicast option, for many clients reading the same file */
+	public static final String OPTION_MULTICAST = "multicast";
+	public static final String MULTICAST_GROUP_ADDRESS = "239.255.69.69"; // organization local scope
+	public static final int MULTICAST_FIRST_PORT = 1758; // tftp-mcast
+	public static final int MULTICAST_PORT_COUNT = 64; // files distributed at once
+	public static final boolean CLIENT_REQUEST_MULTICAST = false;
+	public static final long MULTICAST_POLL_INTERVAL = 20; // 20 ms of group silence before checking our own TID
+	public static final long MULTICAST_IDLE_TIMEOUT = 60000; // 60 s without traffic before a client gives up
+	
+	/* Deflate compression of each DATA block, for compressible files */
+	public static final String OPTION_COMPRESSION = "compress";
+	public static final String COMPRESSION_DEFLATE = "deflate";
+	public static final int COMPRESSION_LEVEL = 1; // fastest, compression runs ahead of the sender
+	public static final boolean CLIENT_REQUEST_COMPRESSION = false;
+	
+	/* End to end checksum of the file, the receiver returns it with its final ACK */
+	public static final String OPTION_CHECKSUM = "checksum";
+	public static final boolean CLIENT_REQUEST_CHECKSUM = true;
+	
+	/* Blocks of a file being sent are read ahead while waiting for ACKs */
+	public static final int READ_AHEAD_THREADS = 4; // disk readers shared by every transfer
+	public static final int READ_AHEAD_MAX_DEPTH = 128; // blocks
+	public static final int READ_AHEAD_MAX_BYTES = 1024 * 1024; // 1 MB per transfer
+	public static final int READ_AHEAD_SHRINK_AFTER = 64; // blocks taken without waiting before the depth shrinks
+	
+	/* Server transfer executor bounds */
+	public static final int SERVER_MAX_WORKERS = 64;
+	public static final int SERVER_MAX_PENDING_REQUESTS = 256;
+	public static final long SERVER_WORKER_KEEP_ALIVE = 30000; // 30 s
+	public static final int ERROR_SIM_MAX_WORKERS = 16; // requests past these get a server busy error
+	public static final int ERROR_SIM_MAX_PENDING_REQUESTS = 16;
+	public static final int VIRTUAL_MAX_TRANSFERS = 50000;
+	public static final int SERVER_INTAKE_LISTENERS = Runtime.getRuntime().availableProcessors();
+	public static final int SERVER_SOCKET_POOL_FIRST_PORT = 61000;
+	public static final int SERVER_SOCKET_POOL_SIZE = 512; // ports 61000 to 61511
+	public static final int SERVER_SOCKET_BUFFER_SIZE = 64 * 1024;
+	public static final long SOCKET_POOL_LEASE_WAIT = 100; // 100 ms
+	public static final int SELECTOR_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	public static final int SELECTOR_MAX_TRANSFERS = 10000; // per event loop
+	public static final long SELECTOR_TIMER_RESOLUTION = 10; // 10 ms
+	public static final int TIMER_WHEEL_BUCKETS = 512; // 5.12 s per turn at 10 ms
+	
 	/* Important keys for Error Simulator command */
 	public static final String MAIN_ERROR = "MAIN_ERROR_SELECTION";
 	public static final String SUB_ERROR = "SUB_ERROR_SELECTION";
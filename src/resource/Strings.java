@@ -22,6 +22,15 @@ public class Strings {
 	public static final String EXITING = "Server listening port is closing, connected threads ending after transfer completes.";
 	public static final String SS_TRANSFER_FINISHED = "Service thread finished work, exiting.";
 	public static final String SS_WRONG_PACKET = "Server cannot cannot accept a service other than write or read request.";
+	public static final String SERVER_BUSY = "Server busy, please try again later.";
+	public static final String SERVER_BUSY_REJECTED = "Pending request queue is full, rejected request from %s.";
+	public static final String ES_BUSY_REJECTED = "Error simulator is busy, rejected request from %s.";
+	public static final String NO_TRANSFERS_IN_PROGRESS = "No transfers in progress.";
+	public static final String WAITING_FOR_TRANSFERS = "Waiting for %d transfer(s) to finish:";
+	public static final String SOCKET_POOL_NO_PORTS = "No port between %d and %d could be bound for transfers.";
+	public static final String SOCKET_POOL_EXHAUSTED_REJECTED = "Every transfer socket is in use, refused request from %s.";
+	public static final String REUSEPORT_UNAVAILABLE = "SO_REUSEPORT is not supported here, requests are received by a single listener.";
+	public static final String VIRTUAL_THREADS_UNAVAILABLE = "This JVM does not support virtual threads, using the bounded worker pool instead.";
 
 	// Client messages.
 	public static final String PROMPT_ENTER_FILE_NAME = "Please enter file name:";
@@ -50,6 +59,29 @@ public class Strings {
 			+ " Sending error message to the unknown client.";
 	public static final String FILE_EXISTS = "File already exists.";
 	public static final String NO_SUCH_USER = "No such user.";
+	public static final String OPTION_NEGOTIATION = "Option negotiation failed.";
+	public static final String OPTION_REFUSED = "The server acknowledged option %s with %s, which was not requested.";
+	public static final String TRANSFER_SIZE_EXCEEDED = "The file is %d bytes long but only %d bytes are free on the disk.";
+	public static final String MULTICAST_REFUSED = "The server acknowledged multicast with %s, which is not a group address.";
+	public static final String MULTICAST_STARTED = "Distributing %s to group %s for %s.";
+	public static final String MULTICAST_JOINED = "%s joined the distribution of %s.";
+	public static final String MULTICAST_MASTER = "%s is now the master client of %s.";
+	public static final String MULTICAST_DROPPED = "%s stopped answering and was dropped from the distribution of %s.";
+	public static final String MULTICAST_FINISHED = "Every client has received %s, the distribution is over.";
+	public static final String MULTICAST_IDLE = "The multicast group has been silent for too long.";
+	public static final String OFFSET_REFUSED = "The server acknowledged offset %s, which is not a block boundary we can resume from.";
+	public static final String COMPRESSION_CORRUPT = "A DATA block could not be decompressed.";
+	public static final String CHECKSUM_MISMATCH = "The %s of the file received is %08x, the file sent has %08x.";
+	public static final String CHECKSUM_MISSING = "The final ACK did not carry the %s of the file received.";
+	public static final String CHECKSUM_VERIFIED = "The file received has the %s of the file sent, %08x.";
+	public static final String RESUMING = "Resuming %s from byte %d.";
+	public static final String BLOCK_HELD = "Holding block %d until block %d arrives.";
+	public static final String BLOCK_SIZE_LOST = "No block of %d bytes got through, giving up on that block size.";
+	public static final String BLOCK_SIZE_FALLBACK = "Asking again with blocks of %d bytes.";
+	public static final String PARTIAL_FILE_KEPT = "Kept the first %d bytes of %s to resume from.";
+	public static final String PARTIAL_FILE_CHANGED = "%s changed since part of it was received, it will be received again from the start.";
+	public static final String PARTIAL_FILE_OTHER_SOURCE = "%s was partly received from another host, it will be received from %s from the start.";
+	public static final String PARTIAL_FILE_EXPIRED = "Deleted %s, it was left partial too long ago to be resumed.";
 	public static final String NO_ERROR = "No error.";
 	public static final String OPERATION_NOT_SUPPORTED = "This option is not supported right now. Not generating any errors.";
 	public static final String EXCEPTION_ERROR = "Exception Error please see console for details.";
@@ -87,6 +119,7 @@ public class Strings {
 
 	public static final String ACK_PACKET = "ACK PACKET";
 	public static final String DATA_PACKET = "DATA PACKET";
+	public static final String OACK_PACKET = "OACK PACKET";
 	public static final String RRQ = "READ PACKET";
 	public static final String WRQ = "WRITE PACKET";
 	public static final String ERROR = "ERROR PACKET";
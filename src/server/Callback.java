@@ -7,10 +7,10 @@ package server;
  */
 public interface Callback {
 	/**
-	 * Calls back to TFTPServer with a thread id telling the server
-	 * to close this thread.
+	 * Calls back to the listener with a transfer id telling it that
+	 * the transfer has finished.
 	 * 
-	 * @param id The thread identifier
+	 * @param id The transfer identifier given by the TransferRegistry
 	 */
 	void callback(long id);
 }
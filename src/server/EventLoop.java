@@ -0,0 +1,564 @@
+package server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import helpers.BufferPrinter;
+import networking.NonBlockingReceiveTransfer;
+import networking.NonBlockingSendTransfer;
+import networking.NonBlockingTransfer;
+import networking.PacingQueue;
+import networking.TimerWheel;
+import networking.TransferRecord;
+import packet.ErrorPacket;
+import packet.ReadPacket;
+import packet.ReadWritePacket;
+import packet.WritePacket;
+import resource.Configurations;
+import resource.Strings;
+import types.ErrorType;
+import types.Logger;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Runs a shard of the server transfers on one thread. One ephemeral
+ *         channel per transfer is registered with the Selector of the loop.
+ *         Readable channels are handed to their NonBlockingTransfer, and
+ *         transfers whose retransmission deadline has passed are timed out by
+ *         the same loop from its timer wheel. Blocks held back by pacing wait
+ *         on the pacing queue of the loop, which cuts the wait of the loop
+ *         short of the next tick when a block is due sooner. Every packet and
+ *         timer of a transfer stays on the loop that started it, so
+ *         transfers need no locking.
+ * 
+ *         One loop of the EventLoopGroup also owns the listener channel on
+ *         port 69. It hands each request to the loop chosen by the remote TID
+ *         through that loop's request queue.
+ * 
+ *         In single port mode transfers have no channel of their own. Every
+ *         datagram arrives on the listener and is handed to the loop owning
+ *         its TID, which looks the transfer up by remote address and port.
+ *         The same lookup finds requests that a client resent while its
+ *         transfer is already running, in either mode, and drops them.
+ */
+public class EventLoop implements Runnable {
+
+	private Selector mSelector;
+	private DatagramChannel mListener;
+	private EventLoopGroup mGroup;
+	private int mIndex;
+	private ConcurrentLinkedQueue<DatagramPacket> mPendingRequests = new ConcurrentLinkedQueue<DatagramPacket>();
+	private Map<SocketAddress, NonBlockingTransfer> mTransfersByPeer = new HashMap<SocketAddress, NonBlockingTransfer>();
+	private Logger logger;
+	private ByteBuffer mReceiveBuffer = ByteBuffer.allocate(Configurations.MAX_DATAGRAM_BUFFER);
+	private TimerWheel mTimers;
+	private PacingQueue mPacing = new PacingQueue();
+	private volatile boolean mShutdownRequested = false;
+
+	private volatile int mActiveTransfers = 0;
+	private AtomicLong mCompletedCount = new AtomicLong(0);
+	private AtomicLong mRejectedCount = new AtomicLong(0);
+	private AtomicLong mCoalescedCount = new AtomicLong(0);
+	private volatile long mThreadId = -1;
+	private volatile long mStartTime = 0;
+
+	/**
+	 * Opens the selector of the loop.
+	 *
+	 * @param log
+	 *            - logger handed to every transfer
+	 * @param group
+	 *            - the group this loop is a shard of
+	 * @param index
+	 *            - position of the loop in its group
+	 * @throws IOException
+	 */
+	public EventLoop(Logger log, EventLoopGroup group, int index) throws IOException {
+		this.logger = log;
+		this.mGroup = group;
+		this.mIndex = index;
+		this.mSelector = Selector.open();
+		this.mTimers = new TimerWheel(Configurations.TIMER_WHEEL_BUCKETS, Configurations.SELECTOR_TIMER_RESOLUTION,
+				NonBlockingTransfer.now());
+	}
+
+	/**
+	 * Makes this loop the one reading requests from the listener channel.
+	 * Must be called before the loop runs.
+	 *
+	 * @param listener
+	 *            - the non-blocking channel bound to the server port
+	 * @throws IOException
+	 */
+	public void listen(DatagramChannel listener) throws IOException {
+		this.mListener = listener;
+		this.mListener.register(this.mSelector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Queues a request received by the listener loop so that this loop starts
+	 * its transfer, or in single port mode any datagram for a TID this loop
+	 * owns. Safe to call from another thread.
+	 *
+	 * @param request
+	 *            - the datagram to handle
+	 */
+	public void handOff(DatagramPacket request) {
+		this.mPendingRequests.add(request);
+		this.mSelector.wakeup();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		this.mThreadId = Thread.currentThread().getId();
+		this.mStartTime = NonBlockingTransfer.now();
+		try {
+			while (!isDone()) {
+				// In single port mode the listener carries the transfers too, so it
+				// stays open until all of them are done
+				if (this.mShutdownRequested && this.mListener != null && this.mListener.isOpen()
+						&& (!this.mGroup.isSinglePort() || this.mGroup.getActiveTransfers() == 0)) {
+					this.mListener.close();
+					this.mGroup.listenerClosed();
+				}
+				DatagramPacket request;
+				while ((request = this.mPendingRequests.poll()) != null) {
+					admit(request);
+				}
+				// Blocks without a timeout when no timer is pending and no block is
+				// held back by pacing
+				long vTimeout = this.mPacing.selectTimeout(System.nanoTime(),
+						this.mTimers.timeUntilNextTick(NonBlockingTransfer.now()));
+				if (vTimeout >= 0) {
+					this.mSelector.select(vTimeout);
+				} else if (this.mSelector.selectNow() == 0) {
+					LockSupport.parkNanos(this.mPacing.timeUntilNext(System.nanoTime()));
+				}
+
+				Iterator<SelectionKey> selected = this.mSelector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.channel() == this.mListener) {
+						acceptRequests();
+					} else {
+						NonBlockingTransfer transfer = (NonBlockingTransfer) key.attachment();
+						try {
+							transfer.handleReadable(this.mReceiveBuffer);
+						} catch (RuntimeException e) {
+							// A malformed packet only ends its own transfer
+							e.printStackTrace();
+							retire(key, transfer);
+							continue;
+						}
+						if (transfer.isFinished()) {
+							retire(key, transfer);
+						}
+					}
+				}
+
+				this.mTimers.advance(NonBlockingTransfer.now());
+				this.mPacing.advance(System.nanoTime());
+			}
+			this.mSelector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * After a shutdown request no new requests are taken, but the loop keeps
+	 * running until its accepted transfers are done. The listener is checked
+	 * before the request queue, since once it is closed nothing more can be
+	 * handed off to this loop.
+	 *
+	 * @return true when the loop can exit
+	 */
+	private boolean isDone() {
+		return this.mShutdownRequested && this.mGroup.isListenerClosed() && this.mPendingRequests.isEmpty()
+				&& this.mActiveTransfers == 0;
+	}
+
+	/**
+	 * Reads every datagram waiting on the listener and hands each of them to
+	 * the loop owning its TID. In single port mode the blocks and ACKs of
+	 * the transfers of this loop are handed to them in place in the receive
+	 * buffer; only requests and datagrams for another loop are copied out.
+	 *
+	 * @throws IOException
+	 */
+	private void acceptRequests() throws IOException {
+		SocketAddress from;
+		while (true) {
+			this.mReceiveBuffer.clear();
+			from = this.mListener.receive(this.mReceiveBuffer);
+			if (from == null) {
+				return;
+			}
+			EventLoop owner = this.mGroup.loopFor(from);
+			if (owner == this && this.mGroup.isSinglePort() && !isRequest(this.mReceiveBuffer)) {
+				NonBlockingTransfer transfer = this.mTransfersByPeer.get(from);
+				if (transfer != null) {
+					deliver(transfer, from);
+					continue;
+				}
+			}
+			byte[] data = Arrays.copyOf(this.mReceiveBuffer.array(), this.mReceiveBuffer.position());
+			DatagramPacket request = new DatagramPacket(data, data.length, from);
+			if (owner == this) {
+				admit(request);
+			} else {
+				owner.handOff(request);
+			}
+		}
+	}
+
+	/**
+	 * @param datagram
+	 *            - buffer holding a datagram up to its position
+	 * @return true if the datagram is a RRQ or WRQ
+	 */
+	private static boolean isRequest(ByteBuffer datagram) {
+		if (datagram.position() < 2) {
+			return false;
+		}
+		byte opcode = datagram.get(1);
+		return opcode == RequestType.RRQ.getOptCode() || opcode == RequestType.WRQ.getOptCode();
+	}
+
+	/**
+	 * Starts the transfer of a request unless the loop is already full, or
+	 * drops it if it repeats the request of a running transfer. In single
+	 * port mode a datagram from the TID of a running transfer is delivered to
+	 * it instead, and one from an unknown TID that is not a request is
+	 * answered with an unknown transfer ID error.
+	 *
+	 * @param request
+	 *            - the datagram to handle
+	 */
+	private void admit(DatagramPacket request) {
+		NonBlockingTransfer transfer = this.mTransfersByPeer.get(request.getSocketAddress());
+		if (transfer != null && RequestCoalescer.isDuplicate(transfer.getRequestBuffer(), request)) {
+			// The client resent its request, the running transfer answers it
+			this.mCoalescedCount.incrementAndGet();
+			return;
+		}
+		if (this.mGroup.isSinglePort()) {
+			if (transfer != null) {
+				deliver(transfer, request);
+				return;
+			}
+			RequestType reqType = request.getLength() < 2 ? null
+					: RequestType.matchRequestByNumber(request.getData()[1]);
+			if (reqType != RequestType.RRQ && reqType != RequestType.WRQ) {
+				replyUnknownTransfer(request);
+				return;
+			}
+			if (this.mShutdownRequested) {
+				replyServerBusy(request);
+				return;
+			}
+		}
+		if (this.mActiveTransfers >= Configurations.SELECTOR_MAX_TRANSFERS) {
+			replyServerBusy(request);
+			return;
+		}
+		try {
+			startTransfer(request);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens the transfer channel, creates the state machine for the request
+	 * and sends its first packet.
+	 *
+	 * @param request
+	 *            - the RRQ or WRQ received on the listener
+	 */
+	private void startTransfer(DatagramPacket request) {
+		logger.print(Logger.VERBOSE, BufferPrinter.acceptConnectionMessage(Strings.SERVER_ACCEPT_CONNECTION,
+				request.getSocketAddress().toString()));
+		boolean singlePort = this.mGroup.isSinglePort();
+		DatagramChannel channel;
+		try {
+			if (singlePort) {
+				channel = this.mGroup.getListener();
+			} else {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				channel.configureBlocking(false);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			replyServerBusy(request);
+			return;
+		}
+
+		RequestType reqType = request.getLength() < 2 ? null : new ReadWritePacket(request).getRequestType();
+		NonBlockingTransfer transfer;
+		if (reqType == RequestType.WRQ) {
+			transfer = new NonBlockingReceiveTransfer(new WritePacket(request), channel, logger);
+		} else if (reqType == RequestType.RRQ) {
+			transfer = new NonBlockingSendTransfer(new ReadPacket(request), channel, logger);
+		} else {
+			logger.print(Logger.ERROR, Strings.SS_WRONG_PACKET);
+			DatagramPacket error = new ErrorPacket(request).buildPacket(ErrorType.ILLEGAL_OPERATION,
+					Strings.SS_WRONG_PACKET);
+			try {
+				channel.send(ByteBuffer.wrap(error.getData(), 0, error.getLength()), error.getSocketAddress());
+				if (!singlePort) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		logger.print(logger, "Server initializing client's request on port " + channel.socket().getLocalPort());
+		TransferRecord record = this.mGroup.getRegistry().register(request.getSocketAddress(),
+				transfer.getRequestFileName(), reqType);
+		record.setOwner(Thread.currentThread().getName());
+		transfer.setTransferRecord(record);
+		TransferTimer timer = new TransferTimer(transfer);
+		transfer.setTimer(this.mTimers, this.mPacing, timer);
+		if (singlePort) {
+			transfer.useSharedChannel();
+		}
+		transfer.start();
+		if (transfer.isFinished()) {
+			transfer.close();
+			this.mGroup.getRegistry().deregister(record.getId());
+			this.mCompletedCount.incrementAndGet();
+			return;
+		}
+		if (singlePort) {
+			this.mTransfersByPeer.put(request.getSocketAddress(), transfer);
+			this.mActiveTransfers++;
+			return;
+		}
+		try {
+			timer.mKey = channel.register(this.mSelector, SelectionKey.OP_READ, transfer);
+			this.mTransfersByPeer.putIfAbsent(request.getSocketAddress(), transfer);
+			this.mActiveTransfers++;
+		} catch (IOException e) {
+			e.printStackTrace();
+			transfer.close();
+			this.mGroup.getRegistry().deregister(record.getId());
+		}
+	}
+
+	/**
+	 * The timer of one transfer on the wheel of the loop. It retires the
+	 * transfer when its timeout ends it.
+	 */
+	private class TransferTimer implements TimerWheel.Task {
+		private NonBlockingTransfer mTransfer;
+		// Null for a transfer on the shared channel
+		private SelectionKey mKey;
+
+		TransferTimer(NonBlockingTransfer transfer) {
+			this.mTransfer = transfer;
+		}
+
+		public void expire(long now) {
+			if (fireTimeout(this.mTransfer, now)) {
+				retire(this.mKey, this.mTransfer);
+			}
+		}
+	}
+
+	/**
+	 * Fires the timeout of a transfer if it is due.
+	 *
+	 * @return true if the transfer is finished and must be retired
+	 */
+	private boolean fireTimeout(NonBlockingTransfer transfer, long now) {
+		try {
+			transfer.handleTimeout(now);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return true;
+		}
+		return transfer.isFinished();
+	}
+
+	/**
+	 * Hands the datagram in the receive buffer to a transfer on the shared
+	 * channel, without copying it, and retires the transfer if that finished
+	 * it.
+	 */
+	private void deliver(NonBlockingTransfer transfer, SocketAddress from) {
+		boolean finished;
+		try {
+			transfer.deliver(this.mReceiveBuffer, from);
+			finished = transfer.isFinished();
+		} catch (RuntimeException e) {
+			// A malformed packet only ends its own transfer
+			e.printStackTrace();
+			finished = true;
+		}
+		if (finished) {
+			retire(null, transfer);
+		}
+	}
+
+	/**
+	 * Hands a datagram to a transfer on the shared channel and retires the
+	 * transfer if that finished it.
+	 */
+	private void deliver(NonBlockingTransfer transfer, DatagramPacket packet) {
+		boolean finished;
+		try {
+			transfer.deliver(packet);
+			finished = transfer.isFinished();
+		} catch (RuntimeException e) {
+			// A malformed packet only ends its own transfer
+			e.printStackTrace();
+			finished = true;
+		}
+		if (finished) {
+			retire(null, transfer);
+		}
+	}
+
+	/**
+	 * Deregisters and closes a finished transfer.
+	 *
+	 * @param key
+	 *            - the selection key of the transfer channel, null for a
+	 *            transfer on the shared channel
+	 */
+	private void retire(SelectionKey key, NonBlockingTransfer transfer) {
+		if (key != null) {
+			key.cancel();
+		}
+		this.mTransfersByPeer.remove(transfer.getTransferRecord().getPeer(), transfer);
+		transfer.close();
+		this.mGroup.getRegistry().deregister(transfer.getTransferRecord().getId());
+		this.mActiveTransfers--;
+		this.mCompletedCount.incrementAndGet();
+		logger.print(logger, Strings.SS_TRANSFER_FINISHED);
+	}
+
+	/**
+	 * Refuses a request when the loop is already running as many transfers as
+	 * it is allowed to. The error is sent from the listener channel, which
+	 * any loop may send on.
+	 *
+	 * @param request
+	 *            - the request that was rejected
+	 */
+	private void replyServerBusy(DatagramPacket request) {
+		this.mRejectedCount.incrementAndGet();
+		logger.print(Logger.ERROR,
+				String.format(Strings.SERVER_BUSY_REJECTED, request.getSocketAddress().toString()));
+		DatagramPacket busyPacket = new ErrorPacket(request).buildPacket(ErrorType.NOT_DEFINED, Strings.SERVER_BUSY);
+		try {
+			this.mGroup.getListener().send(ByteBuffer.wrap(busyPacket.getData(), 0, busyPacket.getLength()),
+					busyPacket.getSocketAddress());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Answers a datagram from a TID that has no transfer on the shared
+	 * channel, as the protocol requires, without disturbing any transfer.
+	 *
+	 * @param packet
+	 *            - the stray datagram
+	 */
+	private void replyUnknownTransfer(DatagramPacket packet) {
+		logger.print(Logger.ERROR, Strings.UNKNOWN_TRANSFER);
+		DatagramPacket error = new ErrorPacket(packet).buildPacket(ErrorType.UNKNOWN_TRANSFER,
+				Strings.UNKNOWN_TRANSFER);
+		try {
+			this.mGroup.getListener().send(ByteBuffer.wrap(error.getData(), 0, error.getLength()),
+					error.getSocketAddress());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops taking new requests. The loop returns once the transfers in
+	 * progress are done. Safe to call from another thread.
+	 */
+	public void shutdown() {
+		this.mShutdownRequested = true;
+		this.mSelector.wakeup();
+	}
+
+	/**
+	 * @return the number of transfers currently running on this loop
+	 */
+	public int getActiveTransfers() {
+		return this.mActiveTransfers;
+	}
+
+	/**
+	 * @return the number of transfers this loop has finished
+	 */
+	public long getCompletedCount() {
+		return this.mCompletedCount.get();
+	}
+
+	/**
+	 * @return the number of requests this loop refused because it was full
+	 */
+	public long getRejectedCount() {
+		return this.mRejectedCount.get();
+	}
+
+	/**
+	 * @return the number of resent requests this loop dropped
+	 */
+	public long getCoalescedCount() {
+		return this.mCoalescedCount.get();
+	}
+
+	/**
+	 * @return the id of the thread running the loop, or -1 before it started
+	 */
+	public long getThreadId() {
+		return this.mThreadId;
+	}
+
+	/**
+	 * @return when the loop started, from NonBlockingTransfer.now()
+	 */
+	public long getStartTime() {
+		return this.mStartTime;
+	}
+
+	/**
+	 * @return position of the loop in its group
+	 */
+	public int getIndex() {
+		return this.mIndex;
+	}
+}
@@ -0,0 +1,203 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import networking.NonBlockingTransfer;
+import resource.Configurations;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         A set of event loops, one per core, that share the work of the
+ *         server. The first loop reads the listener channel and every request
+ *         is served by the loop picked by hashing the remote (address, port)
+ *         TID, so the transfers of a client are spread across cores while
+ *         each single transfer stays on one thread. In single port mode the
+ *         transfers also run on the listener channel instead of a channel
+ *         each.
+ */
+public class EventLoopGroup {
+
+	private EventLoop[] mLoops;
+	private DatagramChannel mListener;
+	private volatile boolean mListenerClosed = false;
+	private boolean mSinglePort;
+	private TransferRegistry mRegistry;
+
+	/**
+	 * Binds the listener channel and creates the loops.
+	 *
+	 * @param log
+	 *            - logger handed to every transfer
+	 * @param loopCount
+	 *            - number of loops, at least one
+	 * @param registry
+	 *            - where the transfers of every loop are listed
+	 * @param singlePort
+	 *            - true to run every transfer on the listener channel
+	 * @throws IOException
+	 *             if the listener port cannot be bound
+	 */
+	public EventLoopGroup(Logger log, int loopCount, TransferRegistry registry, boolean singlePort)
+			throws IOException {
+		this.mRegistry = registry;
+		this.mSinglePort = singlePort;
+		this.mListener = DatagramChannel.open();
+		this.mListener.bind(new InetSocketAddress(Configurations.SERVER_LISTEN_PORT));
+		this.mListener.configureBlocking(false);
+
+		this.mLoops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < this.mLoops.length; ++i) {
+			this.mLoops[i] = new EventLoop(log, this, i);
+		}
+		this.mLoops[0].listen(this.mListener);
+	}
+
+	/**
+	 * Runs the loops, each on its own thread, and blocks until all of them
+	 * have returned after a shutdown.
+	 */
+	public void run() {
+		Thread[] threads = new Thread[this.mLoops.length];
+		for (int i = 0; i < this.mLoops.length; ++i) {
+			threads[i] = new Thread(this.mLoops[i], "EventLoop-" + i);
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Picks the loop that serves a remote TID. The same TID always lands on
+	 * the same loop.
+	 *
+	 * @param remote
+	 *            - address and port of the client
+	 * @return EventLoop
+	 */
+	public EventLoop loopFor(SocketAddress remote) {
+		int h = remote.hashCode();
+		h ^= (h >>> 16);
+		return this.mLoops[(h & 0x7fffffff) % this.mLoops.length];
+	}
+
+	/**
+	 * @return the registry shared by every loop
+	 */
+	public TransferRegistry getRegistry() {
+		return this.mRegistry;
+	}
+
+	/**
+	 * @return the listener channel bound to the server port
+	 */
+	public DatagramChannel getListener() {
+		return this.mListener;
+	}
+
+	/**
+	 * @return true if the transfers share the listener channel
+	 */
+	public boolean isSinglePort() {
+		return this.mSinglePort;
+	}
+
+	/**
+	 * @return the number of transfers running on all loops
+	 */
+	public int getActiveTransfers() {
+		int active = 0;
+		for (EventLoop loop : this.mLoops) {
+			active += loop.getActiveTransfers();
+		}
+		return active;
+	}
+
+	/**
+	 * Called by the listening loop once it has closed the listener, after
+	 * which no more requests are handed off.
+	 */
+	public void listenerClosed() {
+		this.mListenerClosed = true;
+	}
+
+	/**
+	 * @return true once the listener has been closed for shutdown
+	 */
+	public boolean isListenerClosed() {
+		return this.mListenerClosed;
+	}
+
+	/**
+	 * Asks every loop to stop taking requests and to return once its
+	 * transfers are done.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : this.mLoops) {
+			loop.shutdown();
+		}
+	}
+
+	/**
+	 * Builds a one line summary of all loops for the server console.
+	 *
+	 * @return String report
+	 */
+	public String getReport() {
+		int active = 0;
+		long rejected = 0, completed = 0, coalesced = 0;
+		for (EventLoop loop : this.mLoops) {
+			active += loop.getActiveTransfers();
+			rejected += loop.getRejectedCount();
+			completed += loop.getCompletedCount();
+			coalesced += loop.getCoalescedCount();
+		}
+		return String.format((this.mSinglePort ? "Single port | " : "")
+				+ "Event loops : %d | Transfers active : %d/%d | Rejected : %d | Completed : %d | Resent requests dropped : %d",
+				this.mLoops.length, active, this.mLoops.length * Configurations.SELECTOR_MAX_TRANSFERS, rejected,
+				completed, coalesced);
+	}
+
+	/**
+	 * Builds the per-loop load report for the server console: transfers
+	 * running on each loop and the CPU time its thread has used, also as a
+	 * share of the time the loop has been running.
+	 *
+	 * @return String report, one line per loop
+	 */
+	public String getLoadReport() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean cpuTimeSupported = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+		StringBuilder report = new StringBuilder();
+		for (EventLoop loop : this.mLoops) {
+			long cpuNanos = -1;
+			if (cpuTimeSupported && loop.getThreadId() != -1) {
+				cpuNanos = threads.getThreadCpuTime(loop.getThreadId());
+			}
+			String cpu = "n/a";
+			if (cpuNanos >= 0) {
+				long wallMillis = Math.max(1, NonBlockingTransfer.now() - loop.getStartTime());
+				long cpuMillis = cpuNanos / 1000000;
+				cpu = String.format("%d ms (%.1f%%)", cpuMillis, 100.0 * cpuMillis / wallMillis);
+			}
+			report.append(String.format("Loop %d : Transfers active : %d | Completed : %d | Rejected : %d | CPU : %s",
+					loop.getIndex(), loop.getActiveTransfers(), loop.getCompletedCount(), loop.getRejectedCount(),
+					cpu));
+			if (loop.getIndex() < this.mLoops.length - 1) {
+				report.append("\n");
+			}
+		}
+		return report.toString();
+	}
+}
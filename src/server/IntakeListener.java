@@ -0,0 +1,245 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import helpers.BufferPrinter;
+import networking.NonBlockingTransfer;
+import packet.ErrorPacket;
+import resource.Configurations;
+import resource.Strings;
+import types.ErrorType;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         One receiver of initial requests on the server port. When the
+ *         platform supports SO_REUSEPORT several listeners bind the same port
+ *         and the kernel spreads incoming requests across them, so one slow
+ *         reader no longer lets the receive queue overflow. Each listener
+ *         reuses one receive buffer and only copies a request out once it is
+ *         handed to the transfer executor.
+ */
+public class IntakeListener implements Runnable {
+
+	private DatagramChannel mChannel;
+	private int mIndex;
+	private Logger logger;
+	private TransferExecutor mExecutor;
+	private Callback mCallback;
+	private TransferRegistry mRegistry;
+	private SocketPool mSocketPool;
+	private RequestCoalescer mCoalescer;
+	private MulticastGroups mMulticastGroups;
+	private ByteBuffer mReceiveBuffer = ByteBuffer.allocate(Configurations.MAX_BUFFER);
+
+	private AtomicLong mReceivedCount = new AtomicLong(0);
+	private AtomicLong mRefusedCount = new AtomicLong(0);
+	private AtomicLong mMalformedCount = new AtomicLong(0);
+	private AtomicLong mCoalescedCount = new AtomicLong(0);
+	private long mLastReportCount = 0;
+	private long mLastReportTime = NonBlockingTransfer.now();
+
+	/**
+	 * Binds a listener to the server port.
+	 *
+	 * @param index
+	 *            - position of the listener, used in reports
+	 * @param reusePort
+	 *            - the SO_REUSEPORT option to set, null to bind alone
+	 * @param log
+	 *            - logger handed to every transfer
+	 * @param executor
+	 *            - runs the accepted transfers
+	 * @param callback
+	 *            - told when a transfer finishes
+	 * @param registry
+	 *            - where the transfers are listed
+	 * @param socketPool
+	 *            - where the transfers lease their socket
+	 * @param coalescer
+	 *            - drops requests resent while their transfer is in flight
+	 * @param multicastGroups
+	 *            - distributions that multicast read requests join
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public IntakeListener(int index, SocketOption<Boolean> reusePort, Logger log, TransferExecutor executor,
+			Callback callback, TransferRegistry registry, SocketPool socketPool, RequestCoalescer coalescer,
+			MulticastGroups multicastGroups) throws IOException {
+		this.mIndex = index;
+		this.logger = log;
+		this.mExecutor = executor;
+		this.mCallback = callback;
+		this.mRegistry = registry;
+		this.mSocketPool = socketPool;
+		this.mCoalescer = coalescer;
+		this.mMulticastGroups = multicastGroups;
+		this.mChannel = DatagramChannel.open();
+		if (reusePort != null) {
+			this.mChannel.setOption(reusePort, true);
+		}
+		this.mChannel.bind(new InetSocketAddress(Configurations.SERVER_LISTEN_PORT));
+	}
+
+	/**
+	 * SO_REUSEPORT only exists from Java 9 and not on every platform, so it is
+	 * looked up at run time.
+	 *
+	 * @return the option, or null if it cannot be used here
+	 */
+	@SuppressWarnings("unchecked")
+	public static SocketOption<Boolean> reusePortOption() {
+		try {
+			SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+			DatagramChannel probe = DatagramChannel.open();
+			try {
+				return probe.supportedOptions().contains(option) ? option : null;
+			} finally {
+				probe.close();
+			}
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (true) {
+			SocketAddress from;
+			this.mReceiveBuffer.clear();
+			try {
+				from = this.mChannel.receive(this.mReceiveBuffer);
+			} catch (ClosedChannelException e) {
+				// Closed by the console for shutdown
+				return;
+			} catch (IOException e) {
+				System.out.println(Strings.SERVER_RECEIVE_ERROR);
+				e.printStackTrace();
+				continue;
+			}
+			this.mReceivedCount.incrementAndGet();
+			if (this.mReceiveBuffer.position() < 2) {
+				// Too short to hold an opcode, there is nobody to answer
+				this.mMalformedCount.incrementAndGet();
+				continue;
+			}
+			byte[] data = Arrays.copyOf(this.mReceiveBuffer.array(), this.mReceiveBuffer.position());
+			DatagramPacket request = new DatagramPacket(data, data.length, from);
+			if (!this.mCoalescer.claim(request)) {
+				// Resent by the client, the transfer already queued answers it
+				this.mCoalescedCount.incrementAndGet();
+				continue;
+			}
+			logger.print(logger,
+					BufferPrinter.acceptConnectionMessage(Strings.SERVER_ACCEPT_CONNECTION, from.toString()));
+			if (!this.mExecutor.submit(new TFTPService(request, logger, this.mCallback, this.mRegistry,
+					this.mSocketPool, this.mCoalescer, this.mMulticastGroups))) {
+				this.mRefusedCount.incrementAndGet();
+				this.mCoalescer.release(request);
+				replyServerBusy(request);
+			}
+		}
+	}
+
+	/**
+	 * Refuses a request that did not fit in the pending queue by sending an
+	 * error packet back from the listener socket.
+	 *
+	 * @param request
+	 *            - the request that was rejected
+	 */
+	private void replyServerBusy(DatagramPacket request) {
+		logger.print(Logger.ERROR,
+				String.format(Strings.SERVER_BUSY_REJECTED, request.getSocketAddress().toString()));
+		DatagramPacket busyPacket = new ErrorPacket(request).buildPacket(ErrorType.NOT_DEFINED, Strings.SERVER_BUSY);
+		try {
+			this.mChannel.send(ByteBuffer.wrap(busyPacket.getData(), 0, busyPacket.getLength()),
+					busyPacket.getSocketAddress());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the listener, its thread returns from run().
+	 */
+	public void close() {
+		try {
+			this.mChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Builds a one line summary of the listener for the server console. The
+	 * rate is measured since the previous report.
+	 *
+	 * @return String report
+	 */
+	public synchronized String getReport() {
+		long now = NonBlockingTransfer.now();
+		long received = this.mReceivedCount.get();
+		double rate = (received - this.mLastReportCount) * 1000.0 / Math.max(1, now - this.mLastReportTime);
+		this.mLastReportCount = received;
+		this.mLastReportTime = now;
+		return String.format(
+				"Listener %d : Received : %d (%.1f/s) | Refused busy : %d | Dropped malformed : %d | Resent requests dropped : %d",
+				this.mIndex, received, rate, this.mRefusedCount.get(), this.mMalformedCount.get(),
+				this.mCoalescedCount.get());
+	}
+
+	/**
+	 * Reads how many datagrams the kernel dropped on full receive queues of
+	 * the sockets bound to a port. Only Linux exposes this, in /proc/net/udp.
+	 *
+	 * @param port
+	 *            - local port of the sockets
+	 * @return the number of drops, or -1 if it cannot be read
+	 */
+	public static long readKernelDrops(int port) {
+		String localPort = String.format(":%04X", port);
+		long drops = -1;
+		for (String table : new String[] { "/proc/net/udp", "/proc/net/udp6" }) {
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader(table));
+				try {
+					String line = reader.readLine(); // header
+					while ((line = reader.readLine()) != null) {
+						String[] columns = line.trim().split("\\s+");
+						if (columns.length > 1 && columns[1].endsWith(localPort)) {
+							drops = Math.max(drops, 0) + Long.parseLong(columns[columns.length - 1]);
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				// Not on Linux, or the table is not readable
+			} catch (NumberFormatException e) {
+				// Unknown table layout
+			}
+		}
+		return drops;
+	}
+}
@@ -0,0 +1,106 @@
+package server;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import networking.MulticastTransfer;
+import networking.TransferRecord;
+import packet.ReadPacket;
+import resource.Configurations;
+import testbed.TFTPErrorMessage;
+import types.ErrorType;
+import types.Logger;
+import types.ModeType;
+
+/**
+ * @author Team 3
+ *
+ *         Keeps the multicast distributions running on the server, one per
+ *         file and mode, each on its own port of the multicast group. A read
+ *         request with the multicast option joins the distribution of its file
+ *         if there is one, or starts it on the socket its worker leased. The
+ *         worker that started a distribution runs it until the last client
+ *         leaves, the others return as soon as their client has joined.
+ */
+public class MulticastGroups {
+
+	private HashMap<String, MulticastTransfer> mSessions = new HashMap<String, MulticastTransfer>();
+	private BitSet mPortsInUse = new BitSet(Configurations.MULTICAST_PORT_COUNT);
+	private InetAddress mGroupAddress;
+
+	/**
+	 * @throws UnknownHostException
+	 *             if the configured group address is not valid
+	 */
+	public MulticastGroups() throws UnknownHostException {
+		this.mGroupAddress = InetAddress.getByName(Configurations.MULTICAST_GROUP_ADDRESS);
+	}
+
+	/**
+	 * Serves a read request with the multicast option.
+	 *
+	 * @param request
+	 *            - the RRQ
+	 * @param socket
+	 *            - socket leased by the worker, the TID of a new distribution
+	 * @param record
+	 *            - registry record of the request
+	 * @param log
+	 *            - logger of the transfer
+	 * @return false if the request could not join or start a distribution and
+	 *         must be served on its own
+	 */
+	public boolean serve(ReadPacket request, DatagramSocket socket, TransferRecord record, Logger log) {
+		if (request.getMode() == ModeType.NETASCII) {
+			// Listeners write blocks where they fall in the file, which only
+			// octet blocks allow
+			return false;
+		}
+		String vKey = request.getFilename() + "\0" + request.getMode();
+		MulticastTransfer vSession;
+		int vPort;
+		synchronized (this) {
+			vSession = this.mSessions.get(vKey);
+			if (vSession != null && !vSession.isClosed()) {
+				return vSession.join(request);
+			}
+			vPort = this.mPortsInUse.nextClearBit(0);
+			if (vPort >= Configurations.MULTICAST_PORT_COUNT) {
+				return false;
+			}
+			vSession = new MulticastTransfer(request, socket,
+					new InetSocketAddress(this.mGroupAddress, Configurations.MULTICAST_FIRST_PORT + vPort));
+			vSession.setTransferRecord(record);
+			// Opened under the lock so that a client asking at the same time
+			// joins once the options of the distribution are known
+			TFTPErrorMessage vResult = vSession.open(log);
+			if (vResult.getType() != ErrorType.NO_ERROR) {
+				vSession.errorHandle(vResult, request.getPacket());
+				return true;
+			}
+			this.mSessions.put(vKey, vSession);
+			this.mPortsInUse.set(vPort);
+		}
+		try {
+			vSession.distribute();
+		} finally {
+			synchronized (this) {
+				this.mSessions.remove(vKey, vSession);
+				this.mPortsInUse.clear(vPort);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a line for the status command
+	 */
+	public synchronized String report() {
+		return String.format("Multicast distributions : %d/%d", this.mSessions.size(),
+				Configurations.MULTICAST_PORT_COUNT);
+	}
+}
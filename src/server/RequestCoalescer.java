@@ -0,0 +1,68 @@
+package server;
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Team 3
+ *
+ *         Remembers the requests the server has accepted until their transfer
+ *         is over, so that a client resending its RRQ or WRQ after a timeout
+ *         does not start a second transfer. The resent request is dropped and
+ *         the client is answered by the transfer already serving it, which
+ *         retransmits its first packet on its own timeout. A client uses a
+ *         new TID for every transfer, so the same request from the same TID
+ *         is always a retransmission.
+ */
+public class RequestCoalescer {
+
+	private ConcurrentHashMap<SocketAddress, byte[]> mInFlight = new ConcurrentHashMap<SocketAddress, byte[]>();
+
+	/**
+	 * Records a request unless it repeats one already in flight. Safe to call
+	 * from several listener threads.
+	 *
+	 * @param request
+	 *            - the request as received, its data array sized to the packet
+	 * @return false if the request is a retransmission and must be dropped
+	 */
+	public boolean claim(DatagramPacket request) {
+		byte[] first = this.mInFlight.putIfAbsent(request.getSocketAddress(), request.getData());
+		return first == null || !isDuplicate(first, request);
+	}
+
+	/**
+	 * Forgets a request once its transfer is over or was refused. A request
+	 * that was not the one recorded for its TID leaves the record alone.
+	 *
+	 * @param request
+	 *            - the request passed to claim()
+	 */
+	public void release(DatagramPacket request) {
+		this.mInFlight.remove(request.getSocketAddress(), request.getData());
+	}
+
+	/**
+	 * Compares a request with a packet received later from the same TID.
+	 *
+	 * @param first
+	 *            - the bytes of the request being served
+	 * @param again
+	 *            - the packet received since
+	 * @return true if the packet holds the same request
+	 */
+	public static boolean isDuplicate(byte[] first, DatagramPacket again) {
+		if (first.length != again.getLength()) {
+			return false;
+		}
+		byte[] data = again.getData();
+		int offset = again.getOffset();
+		for (int i = 0; i < first.length; ++i) {
+			if (first[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import packet.ErrorPacket;
+import resource.Configurations;
+import resource.Strings;
+import types.ErrorType;
+import types.Logger;
+
+/**
+ * @author Team 3
+ *
+ *         A fixed set of UDP sockets, bound once over a range of ports, that
+ *         transfers lease as their TID instead of opening a socket per
+ *         request. Sockets are handed out in the order they were returned, so
+ *         a port stays idle as long as possible before it is reused, and any
+ *         datagram left over from the previous transfer is drained on return.
+ *         When every socket is leased a request waits a short while and is
+ *         then refused with a TFTP error.
+ */
+public class SocketPool {
+
+	private ArrayBlockingQueue<DatagramSocket> mIdle;
+	private Map<DatagramSocket, Long> mLeasedAt = new ConcurrentHashMap<DatagramSocket, Long>();
+	private DatagramSocket mErrorSocket;
+	private int mSize;
+	private ByteBuffer mDrainBuffer = ByteBuffer.allocate(Configurations.MAX_BUFFER);
+
+	private AtomicLong mLeaseCount = new AtomicLong(0);
+	private AtomicLong mExhaustedCount = new AtomicLong(0);
+	private AtomicLong mDrainedCount = new AtomicLong(0);
+	private AtomicLong mTotalWaitNanos = new AtomicLong(0);
+	private AtomicLong mMaxWaitNanos = new AtomicLong(0);
+	private AtomicLong mReleaseCount = new AtomicLong(0);
+	private AtomicLong mTotalHeldNanos = new AtomicLong(0);
+	private AtomicLong mMaxHeldNanos = new AtomicLong(0);
+
+	/**
+	 * Binds one socket to every free port of the range. Ports already in use
+	 * are skipped.
+	 *
+	 * @param firstPort
+	 *            - first port of the range
+	 * @param size
+	 *            - number of ports in the range
+	 * @throws IOException
+	 *             if no port of the range could be bound
+	 */
+	public SocketPool(int firstPort, int size) throws IOException {
+		this.mIdle = new ArrayBlockingQueue<DatagramSocket>(Math.max(1, size));
+		for (int port = firstPort; port < firstPort + size; ++port) {
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				channel.bind(new InetSocketAddress(port));
+			} catch (IOException e) {
+				channel.close();
+				continue;
+			}
+			DatagramSocket socket = channel.socket();
+			socket.setReceiveBufferSize(Configurations.SERVER_SOCKET_BUFFER_SIZE);
+			socket.setSendBufferSize(Configurations.SERVER_SOCKET_BUFFER_SIZE);
+			this.mIdle.add(socket);
+		}
+		this.mSize = this.mIdle.size();
+		if (this.mSize == 0) {
+			throw new IOException(String.format(Strings.SOCKET_POOL_NO_PORTS, firstPort, firstPort + size - 1));
+		}
+		this.mErrorSocket = new DatagramSocket();
+	}
+
+	/**
+	 * Takes an idle socket, waiting at most SOCKET_POOL_LEASE_WAIT for one to
+	 * be returned.
+	 *
+	 * @return a bound socket, or null if the pool stayed exhausted
+	 */
+	public DatagramSocket lease() {
+		long start = System.nanoTime();
+		DatagramSocket socket = null;
+		try {
+			socket = this.mIdle.poll(Configurations.SOCKET_POOL_LEASE_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long now = System.nanoTime();
+		long waited = now - start;
+		this.mTotalWaitNanos.addAndGet(waited);
+		this.mMaxWaitNanos.accumulateAndGet(waited, Math::max);
+		if (socket == null) {
+			this.mExhaustedCount.incrementAndGet();
+			return null;
+		}
+		this.mLeaseCount.incrementAndGet();
+		this.mLeasedAt.put(socket, now);
+		return socket;
+	}
+
+	/**
+	 * Gives a leased socket back. Datagrams still queued on it are thrown
+	 * away so the next transfer does not read them.
+	 *
+	 * @param socket
+	 *            - a socket returned by lease()
+	 */
+	public void release(DatagramSocket socket) {
+		Long leasedAt = this.mLeasedAt.remove(socket);
+		if (leasedAt == null) {
+			return;
+		}
+		long held = System.nanoTime() - leasedAt;
+		this.mReleaseCount.incrementAndGet();
+		this.mTotalHeldNanos.addAndGet(held);
+		this.mMaxHeldNanos.accumulateAndGet(held, Math::max);
+		try {
+			drain(socket.getChannel());
+			socket.setSoTimeout(0);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.mIdle.add(socket);
+	}
+
+	/**
+	 * Reads and discards everything queued on a channel without blocking.
+	 *
+	 * @param channel
+	 *            - the channel behind a pooled socket
+	 * @throws IOException
+	 */
+	private void drain(DatagramChannel channel) throws IOException {
+		synchronized (this.mDrainBuffer) {
+			channel.configureBlocking(false);
+			try {
+				while (true) {
+					this.mDrainBuffer.clear();
+					if (channel.receive(this.mDrainBuffer) == null) {
+						break;
+					}
+					this.mDrainedCount.incrementAndGet();
+				}
+			} finally {
+				channel.configureBlocking(true);
+			}
+		}
+	}
+
+	/**
+	 * Refuses a request because no socket could be leased for it.
+	 *
+	 * @param request
+	 *            - the request that could not be served
+	 * @param logger
+	 *            - logger to print with
+	 */
+	public void replyExhausted(DatagramPacket request, Logger logger) {
+		logger.print(Logger.ERROR,
+				String.format(Strings.SOCKET_POOL_EXHAUSTED_REJECTED, request.getSocketAddress().toString()));
+		DatagramPacket busyPacket = new ErrorPacket(request).buildPacket(ErrorType.NOT_DEFINED, Strings.SERVER_BUSY);
+		try {
+			this.mErrorSocket.send(busyPacket);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes every socket of the pool. Only call once all transfers are done.
+	 */
+	public void close() {
+		for (DatagramSocket socket : this.mIdle) {
+			socket.close();
+		}
+		for (DatagramSocket socket : this.mLeasedAt.keySet()) {
+			socket.close();
+		}
+		this.mErrorSocket.close();
+	}
+
+	/**
+	 * Builds a one line summary of the pool for the server console.
+	 *
+	 * @return String report
+	 */
+	public String getReport() {
+		long leases = this.mLeaseCount.get() + this.mExhaustedCount.get();
+		long releases = this.mReleaseCount.get();
+		return String.format(
+				"Sockets leased : %d/%d | Leases : %d | Exhausted : %d | Drained : %d | Wait avg %.2f ms max %.2f ms | Held avg %.1f ms max %.1f ms",
+				this.mLeasedAt.size(), this.mSize, this.mLeaseCount.get(), this.mExhaustedCount.get(),
+				this.mDrainedCount.get(), toMillis(leases == 0 ? 0 : this.mTotalWaitNanos.get() / leases),
+				toMillis(this.mMaxWaitNanos.get()), toMillis(releases == 0 ? 0 : this.mTotalHeldNanos.get() / releases),
+				toMillis(this.mMaxHeldNanos.get()));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	/**
+	 * @return the number of sockets the pool could bind
+	 */
+	public int getSize() {
+		return this.mSize;
+	}
+}
@@ -1,23 +1,23 @@
 package server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.Vector;
+import java.net.SocketOption;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import resource.Configurations;
 import resource.Strings;
 import types.Logger;
-import helpers.BufferPrinter;
+import helpers.BlockReadAhead;
+import helpers.FileStorageService;
 import helpers.Keyboard;
+import types.ExecutionMode;
+import networking.ReorderBuffer;
 
 /**
  * The Console class will allow someone (presumably an admin) to manage the
- * server from a local machine. Currently its only functionality is to close the
- * server, but this can be expanded later.
+ * server from a local machine. It can close the server ('q'), print the
+ * state of the transfer executor ('s'), print the load of each event loop
+ * or intake listener ('l') and list the transfers in progress ('t').
  */
 class Console implements Runnable {
 
@@ -34,9 +34,16 @@ class Console implements Runnable {
 	 */
 	public void run() {
 
-		String quitCommand = Keyboard.getString();
-		while (!quitCommand.equalsIgnoreCase("q")) {
-			quitCommand = Keyboard.getString();
+		String command = Keyboard.getString();
+		while (!command.equalsIgnoreCase("q")) {
+			if (command.equalsIgnoreCase("s")) {
+				System.out.println(this.mMonitorServer.getExecutorReport());
+			} else if (command.equalsIgnoreCase("l")) {
+				System.out.println(this.mMonitorServer.getLoadReport());
+			} else if (command.equalsIgnoreCase("t")) {
+				System.out.println(this.mMonitorServer.getTransferReport());
+			}
+			command = Keyboard.getString();
 		}
 		System.out.println(Strings.EXITING);
 		TFTPServer.active.set(false);
@@ -47,8 +54,11 @@ class Console implements Runnable {
 /**
  * @author Team 3
  *
- * The server main thread will listen on port 69 for incoming requests
- * then spawn a handler thread to handle file upload
+ * The server listens on port 69 for incoming requests, with one intake
+ * listener per core when SO_REUSEPORT is available, then hands each one to a
+ * bounded pool of handler threads, or to a virtual thread per transfer. It can
+ * also run the transfers on selector event loops, one per core. When no more
+ * transfers can be accepted the request is refused with a server busy error.
  */
 public class TFTPServer implements Callback {
 
@@ -62,18 +72,28 @@ public class TFTPServer implements Callback {
 
 	// Some class attributes.
 	static AtomicBoolean active = new AtomicBoolean(true);
-	private Vector<Thread> threads;
-	private DatagramSocket serverSock = null;
+	private ExecutionMode mode;
+	private TransferExecutor executor;
+	private TransferRegistry registry = new TransferRegistry();
+	private EventLoopGroup eventLoops;
+	private IntakeListener[] intakeListeners;
+	private SocketPool socketPool;
+	private RequestCoalescer coalescer = new RequestCoalescer();
+	private MulticastGroups multicastGroups;
 	public Logger logger;
 	private String CLASS_TAG = "<TFTP Server>";
 
 	/**
-	 * Constructor for TFTPServer that initializes the thread container
-	 * 'threads'.
+	 * Constructor for TFTPServer that initializes the transfer executor, or
+	 * leaves it out when transfers run on the selector event loop.
 	 */
 	public TFTPServer() {
-		threads = new Vector<Thread>();
 		logger = getVerbosity();
+		mode = TransferExecutor.promptExecutionMode(ExecutionMode.values());
+		if (mode != ExecutionMode.SELECTOR && mode != ExecutionMode.SINGLE_PORT) {
+			executor = TransferExecutor.create(mode, Configurations.SERVER_MAX_WORKERS,
+					Configurations.SERVER_MAX_PENDING_REQUESTS);
+		}
 		logger.setClassTag(CLASS_TAG);
 		
 		//hostAddress = TFTPNetworking.promptAddress();
@@ -93,11 +113,29 @@ public class TFTPServer implements Callback {
 	 * Handles operation of the server.
 	 */
 	public void start() {
-		DatagramPacket receivePacket = null;
+		// Partial uploads whose names are never asked for again
+		FileStorageService.expirePartialFiles(Configurations.SERVER_ROOT_FILE_DIRECTORY);
+		if (mode == ExecutionMode.SELECTOR || mode == ExecutionMode.SINGLE_PORT) {
+			startEventLoop();
+			return;
+		}
+		SocketOption<Boolean> reusePort = IntakeListener.reusePortOption();
+		int count = Configurations.SERVER_INTAKE_LISTENERS;
+		if (reusePort == null && count > 1) {
+			System.out.println(Strings.REUSEPORT_UNAVAILABLE);
+			count = 1;
+		}
+		intakeListeners = new IntakeListener[Math.max(1, count)];
 		try {
-			serverSock = new DatagramSocket(Configurations.SERVER_LISTEN_PORT);
+			socketPool = new SocketPool(Configurations.SERVER_SOCKET_POOL_FIRST_PORT,
+					Configurations.SERVER_SOCKET_POOL_SIZE);
+			multicastGroups = new MulticastGroups();
+			for (int i = 0; i < intakeListeners.length; ++i) {
+				intakeListeners[i] = new IntakeListener(i, reusePort, logger, executor, this, registry, socketPool,
+						coalescer, multicastGroups);
+			}
 			System.out.println("Server initiated on port " + Configurations.SERVER_LISTEN_PORT);
-		} catch (SocketException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
@@ -107,33 +145,14 @@ public class TFTPServer implements Callback {
 		console.start();
 
 		/*
-		 * - Receive packets until the admin console gives the shutdown signal.
-		 * - Since receiving a packet is a blocking operation, timeouts have
-		 * been set to loop back and check if the close signal has been given.
+		 * Each listener receives requests on its own thread until the admin
+		 * console closes it.
 		 */
-		while (active.get()) {
-			try {
-				// Create the packet for receiving.
-				byte[] buffer = new byte[Configurations.MAX_BUFFER];
-				receivePacket = new DatagramPacket(buffer, buffer.length);
-				serverSock.receive(receivePacket);
-				System.out.println("Received packet from server (right socket)");
-			} catch (SocketTimeoutException e) {
-				continue;
-			} catch (SocketException e) {
-				continue;
-			} catch (IOException e) {
-				System.out.println(Strings.SERVER_RECEIVE_ERROR);
-				e.printStackTrace();
-			}
-			System.out.println(BufferPrinter.acceptConnectionMessage(Strings.SERVER_ACCEPT_CONNECTION,
-					receivePacket.getSocketAddress().toString()));
-			Thread service = new Thread(new TFTPService(receivePacket, logger, this), "Service");
-			threads.addElement(service);
-			service.start();
+		Thread[] threads = new Thread[intakeListeners.length];
+		for (int i = 0; i < intakeListeners.length; ++i) {
+			threads[i] = new Thread(intakeListeners[i], "Intake-" + i);
+			threads[i].start();
 		}
-		this.serverSock.close();
-		// Wait for all service threads to close before completely exiting.
 		for (Thread t : threads) {
 			try {
 				t.join();
@@ -141,30 +160,94 @@ public class TFTPServer implements Callback {
 				e.printStackTrace();
 			}
 		}
+		// Wait for all service threads to close before completely exiting.
+		executor.shutdownAndWait();
+		socketPool.close();
 	}
 
 	/**
-	 * This interrupt will stop the socket from receiving.
+	 * Runs the server on the selector event loops, one per core. The calling
+	 * thread waits until every loop has shut down.
 	 */
-	public void interruptSocketAndShutdown() {
-		this.serverSock.close();
+	private void startEventLoop() {
+		try {
+			eventLoops = new EventLoopGroup(logger, Configurations.SELECTOR_EVENT_LOOPS, registry,
+					mode == ExecutionMode.SINGLE_PORT);
+			System.out.println("Server initiated on port " + Configurations.SERVER_LISTEN_PORT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		Thread console = new Thread(new Console(this), "command console");
+		console.start();
+
+		eventLoops.run();
 	}
 
 	/**
-	 * - Check if the server is still active. If it is not then the join
-	 * operation is running, making this unnecessary. - Loop through all the
-	 * threads, checking if that thread's ID is the ID of the thread that just
-	 * ended. - If it is, remove it from the vector of threads and break out of
-	 * the loop.
+	 * @return a summary of queue depth, active workers and rejections, of
+	 *         the transfer socket pool, of the disk read-ahead and of the
+	 *         blocks received out of order
 	 */
-	public synchronized void callback(long id) {
-		if (active.get()) {
-			for (Thread t : threads) {
-				if (t.getId() == id) {
-					threads.remove(t);
-					break;
-				}
-			}
+	public String getExecutorReport() {
+		if (eventLoops != null) {
+			return eventLoops.getReport() + "\n" + BlockReadAhead.getReport() + "\n" + ReorderBuffer.getReport();
+		}
+		return executor.getReport() + "\n" + socketPool.getReport() + "\n" + multicastGroups.report() + "\n"
+				+ BlockReadAhead.getReport() + "\n" + ReorderBuffer.getReport();
+	}
+
+	/**
+	 * @return transfer count and CPU use of each event loop, or the intake
+	 *         rate and drops of each listener
+	 */
+	public String getLoadReport() {
+		if (eventLoops != null) {
+			return eventLoops.getLoadReport();
+		}
+		StringBuilder report = new StringBuilder();
+		for (IntakeListener listener : intakeListeners) {
+			report.append(listener.getReport()).append("\n");
+		}
+		long kernelDrops = IntakeListener.readKernelDrops(Configurations.SERVER_LISTEN_PORT);
+		report.append("Dropped by the kernel : ").append(kernelDrops < 0 ? "n/a" : String.valueOf(kernelDrops));
+		return report.toString();
+	}
+
+	/**
+	 * @return one line per transfer in progress
+	 */
+	public String getTransferReport() {
+		if (registry.size() == 0) {
+			return Strings.NO_TRANSFERS_IN_PROGRESS;
+		}
+		return registry.getReport();
+	}
+
+	/**
+	 * This interrupt will stop the socket from receiving. The transfers still
+	 * running are listed since shutdown waits for them.
+	 */
+	public void interruptSocketAndShutdown() {
+		if (registry.size() > 0) {
+			System.out.println(String.format(Strings.WAITING_FOR_TRANSFERS, registry.size()));
+			System.out.println(registry.getReport());
+		}
+		if (this.eventLoops != null) {
+			this.eventLoops.shutdown();
+			return;
 		}
+		for (IntakeListener listener : this.intakeListeners) {
+			listener.close();
+		}
+	}
+
+	/**
+	 * Removes a finished transfer from the registry. Worker threads belong to
+	 * the transfer executor, which takes care of their lifetime.
+	 */
+	public void callback(long id) {
+		registry.deregister(id);
 	}
 }
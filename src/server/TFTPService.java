@@ -6,6 +6,8 @@ import java.nio.file.AccessDeniedException;
 
 import helpers.BufferPrinter;
 import networking.ServerNetworking;
+import networking.TransferRecord;
+import resource.Configurations;
 import types.ErrorType;
 import types.Logger;
 import types.RequestType;
@@ -24,6 +26,10 @@ public class TFTPService implements Runnable {
 	private DatagramSocket mSendReceiveSocket;
 	private DatagramPacket mLastPacket;
 	private Callback mClientFinishedCallback;
+	private TransferRegistry mRegistry;
+	private SocketPool mSocketPool;
+	private RequestCoalescer mCoalescer;
+	private MulticastGroups mMulticastGroups;
 	private final String CLASS_TAG = "<Server Service Thread>";
 	private Logger logger;
 
@@ -32,28 +38,75 @@ public class TFTPService implements Runnable {
 	 * care of all client interactions, and provides file transfer service
 	 * 
 	 * @param packet
+	 * @param registry
+	 *            - where the transfer is listed while it runs
+	 * @param socketPool
+	 *            - where the transfer leases its socket
+	 * @param coalescer
+	 *            - told when the request is no longer in flight
+	 * @param multicastGroups
+	 *            - distributions that read requests with the multicast option
+	 *            join
 	 */
-	public TFTPService(DatagramPacket packet, Logger log, Callback finCallback) {
+	public TFTPService(DatagramPacket packet, Logger log, Callback finCallback, TransferRegistry registry,
+			SocketPool socketPool, RequestCoalescer coalescer, MulticastGroups multicastGroups) {
 		this.mLastPacket = packet;
 		this.mClientFinishedCallback = finCallback;
-		try {
-			this.mSendReceiveSocket = new DatagramSocket();
-		} catch (SocketException e) {
-			e.printStackTrace();
-		}
+		this.mRegistry = registry;
+		this.mSocketPool = socketPool;
+		this.mCoalescer = coalescer;
+		this.mMulticastGroups = multicastGroups;
 		logger = log;
-		logger.setClassTag(CLASS_TAG);
-		logger.print(logger,
-				"Server initializing client's request on port " + this.mSendReceiveSocket.getLocalPort());
 	}
 
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
+		TransferRecord record = null;
+		try {
+			ReadWritePacket vClientRequestPacket = new ReadWritePacket(this.mLastPacket);
+			RequestType reqType = vClientRequestPacket.getRequestType();
+			record = this.mRegistry.register(this.mLastPacket.getSocketAddress(), vClientRequestPacket.getFilename(),
+					reqType);
+			record.setOwner(Thread.currentThread().getName());
+			// The socket is only leased once a worker picks up the request, so
+			// requests waiting in the executor queue do not hold a port.
+			this.mSendReceiveSocket = this.mSocketPool.lease();
+			if (this.mSendReceiveSocket == null) {
+				this.mSocketPool.replyExhausted(this.mLastPacket, logger);
+				return;
+			}
+			logger.setClassTag(CLASS_TAG);
+			logger.print(logger,
+					"Server initializing client's request on port " + this.mSendReceiveSocket.getLocalPort());
+			serve(vClientRequestPacket, reqType, record);
+			logger.print(logger, Strings.SS_TRANSFER_FINISHED);
+		} finally {
+			// However the request ended, refused for want of a socket or by an
+			// exception in the transfer, its socket goes back to the pool and
+			// it is no longer in flight or listed as live
+			if (this.mSendReceiveSocket != null) {
+				this.mSocketPool.release(this.mSendReceiveSocket);
+			}
+			this.mCoalescer.release(this.mLastPacket);
+			if (record != null) {
+				this.mClientFinishedCallback.callback(record.getId());
+			}
+		}
+	}
 
-		ReadWritePacket vClientRequestPacket = new ReadWritePacket(this.mLastPacket);
-		RequestType reqType = vClientRequestPacket.getRequestType();
+	/**
+	 * Runs the transfer the request asks for on the leased socket.
+	 * 
+	 * @param vClientRequestPacket
+	 *            - the request
+	 * @param reqType
+	 *            - RRQ or WRQ, anything else is refused
+	 * @param record
+	 *            - where the transfer is listed while it runs
+	 */
+	private void serve(ReadWritePacket vClientRequestPacket, RequestType reqType, TransferRecord record) {
 		ServerNetworking net;
 		TFTPErrorMessage result = null;
 
@@ -65,6 +118,7 @@ public class TFTPService implements Runnable {
 			BufferPrinter.printPacket(vWritePacket, logger, RequestType.WRQ);
 
 			net = new ServerNetworking(vWritePacket, mSendReceiveSocket);
+			net.setTransferRecord(record);
 			result = net.handleInitWRQ(vWritePacket, logger);
 			if (!result.getString().equals(Strings.NO_ERROR)) {
 				net.errorHandle(result, vWritePacket.getPacket(), RequestType.WRQ);
@@ -81,7 +135,12 @@ public class TFTPService implements Runnable {
 			logger.print(logger, Strings.RECEIVED);
 			BufferPrinter.printPacket(vReadPacket, logger, RequestType.RRQ);
 
-			net = new ServerNetworking(vReadPacket);
+			if (vReadPacket.getOption(Configurations.OPTION_MULTICAST) != null && this.mMulticastGroups
+					.serve(vReadPacket, mSendReceiveSocket, record, logger)) {
+				break;
+			}
+			net = new ServerNetworking(vReadPacket, mSendReceiveSocket);
+			net.setTransferRecord(record);
 
 			result = net.handleInitRRQ(vReadPacket, logger);
 			if (!result.getString().equals(Strings.NO_ERROR)) {
@@ -95,17 +154,10 @@ public class TFTPService implements Runnable {
 		default:
 			logger.print(Logger.ERROR, Strings.SS_WRONG_PACKET);
 			TFTPErrorMessage error = new TFTPErrorMessage(ErrorType.ILLEGAL_OPERATION, Strings.SS_WRONG_PACKET);
-			new ServerNetworking(vClientRequestPacket).errorHandle(error, vClientRequestPacket.getPacket());
+			new ServerNetworking(vClientRequestPacket, mSendReceiveSocket).errorHandle(error, vClientRequestPacket.getPacket());
 			// While it might not be a WRQ we're expecting, the effect is the
 			// same.
 			break;
 		}
-
-		this.mSendReceiveSocket.close();
-		synchronized (this.mClientFinishedCallback) {
-			this.mClientFinishedCallback.callback(Thread.currentThread().getId());
-		}
-		logger.print(logger, Strings.SS_TRANSFER_FINISHED);
-
 	}
 }
\ No newline at end of file
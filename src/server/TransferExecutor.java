@@ -0,0 +1,268 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import helpers.Keyboard;
+import resource.Configurations;
+import resource.Strings;
+import types.ExecutionMode;
+
+/**
+ * @author Team 3
+ *
+ *         A bounded executor that runs the transfers of a listener (the server
+ *         or the error simulator). In POOLED mode at most a fixed number of
+ *         worker threads run transfers at once, and at most a fixed number of
+ *         accepted requests wait in the pending queue. In VIRTUAL mode every
+ *         transfer gets its own virtual thread and only the number of
+ *         concurrent transfers is bounded. Requests that do not fit are
+ *         rejected so that the listener can reply with a server busy error
+ *         instead of starting more threads.
+ */
+public class TransferExecutor {
+
+	private ExecutionMode mMode;
+	private ThreadPoolExecutor mWorkers;
+
+	// Only used in VIRTUAL mode, where there is no pool to ask for statistics
+	private ExecutorService mVirtualThreads;
+	private Semaphore mAdmission;
+	private int mMaxTransfers;
+	private AtomicLong mCompletedCount = new AtomicLong(0);
+
+	private AtomicLong mRejectedCount = new AtomicLong(0);
+
+	/**
+	 * Creates a POOLED executor with the given bounds.
+	 *
+	 * @param maxWorkers
+	 *            - the maximum number of transfers running at once
+	 * @param maxPendingRequests
+	 *            - the maximum number of requests waiting for a worker
+	 */
+	public TransferExecutor(int maxWorkers, int maxPendingRequests) {
+		this.mMode = ExecutionMode.POOLED;
+		this.mWorkers = new ThreadPoolExecutor(maxWorkers, maxWorkers, Configurations.SERVER_WORKER_KEEP_ALIVE,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxPendingRequests), new ServiceThreadFactory());
+		// Idle workers are given back during quiet periods
+		this.mWorkers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Creates a VIRTUAL executor that starts one virtual thread per transfer.
+	 *
+	 * @param virtualThreads
+	 *            - a thread-per-task executor backed by virtual threads
+	 * @param maxTransfers
+	 *            - the maximum number of transfers running at once
+	 */
+	private TransferExecutor(ExecutorService virtualThreads, int maxTransfers) {
+		this.mMode = ExecutionMode.VIRTUAL;
+		this.mVirtualThreads = virtualThreads;
+		this.mMaxTransfers = maxTransfers;
+		this.mAdmission = new Semaphore(maxTransfers);
+	}
+
+	/**
+	 * Creates an executor for the requested mode. If virtual threads are asked
+	 * for but the running JVM does not have them, a POOLED executor is
+	 * returned instead.
+	 *
+	 * @param mode
+	 *            - POOLED or VIRTUAL
+	 * @param maxWorkers
+	 *            - the maximum number of workers in POOLED mode
+	 * @param maxPendingRequests
+	 *            - the pending queue size in POOLED mode
+	 * @return TransferExecutor
+	 */
+	public static TransferExecutor create(ExecutionMode mode, int maxWorkers, int maxPendingRequests) {
+		if (mode == ExecutionMode.VIRTUAL) {
+			ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+			if (virtualThreads != null) {
+				return new TransferExecutor(virtualThreads, Configurations.VIRTUAL_MAX_TRANSFERS);
+			}
+			System.err.println(Strings.VIRTUAL_THREADS_UNAVAILABLE);
+		}
+		return new TransferExecutor(maxWorkers, maxPendingRequests);
+	}
+
+	/**
+	 * The project is built against Java 8, so the virtual thread executor
+	 * (Java 21+) is looked up at run time.
+	 *
+	 * @return the executor, or null if this JVM has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Asks the admin which execution mode the listener should use.
+	 *
+	 * @param modes
+	 *            - the modes the listener supports, in prompt order
+	 * @return ExecutionMode
+	 */
+	public static ExecutionMode promptExecutionMode(ExecutionMode... modes) {
+		StringBuilder question = new StringBuilder("Transfers should run on ");
+		for (int i = 0; i < modes.length; ++i) {
+			if (i > 0) {
+				question.append(i == modes.length - 1 ? " or " : ", ");
+			}
+			question.append("(" + (i + 1) + ") " + modes[i].getDescription());
+		}
+		question.append("?");
+
+		int m;
+		do {
+			System.out.println(question.toString());
+			m = Keyboard.getInteger();
+		} while (m < 1 || m > modes.length);
+
+		return modes[m - 1];
+	}
+
+	/**
+	 * Hands a transfer to the executor.
+	 *
+	 * @param service
+	 *            - the transfer to run
+	 * @return true if the transfer was accepted, false if the executor is full
+	 *         and the request was rejected
+	 */
+	public boolean submit(final Runnable service) {
+		try {
+			if (this.mMode == ExecutionMode.POOLED) {
+				this.mWorkers.execute(service);
+				return true;
+			}
+			if (!this.mAdmission.tryAcquire()) {
+				throw new RejectedExecutionException();
+			}
+			try {
+				this.mVirtualThreads.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							service.run();
+						} finally {
+							mCompletedCount.incrementAndGet();
+							mAdmission.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				this.mAdmission.release();
+				throw e;
+			}
+			return true;
+		} catch (RejectedExecutionException e) {
+			this.mRejectedCount.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the execution mode this executor ended up using
+	 */
+	public ExecutionMode getMode() {
+		return this.mMode;
+	}
+
+	/**
+	 * @return the number of accepted requests waiting for a worker, always zero
+	 *         for virtual threads since every transfer starts right away
+	 */
+	public int getQueueDepth() {
+		if (this.mMode == ExecutionMode.VIRTUAL) {
+			return 0;
+		}
+		return this.mWorkers.getQueue().size();
+	}
+
+	/**
+	 * @return the approximate number of workers currently running a transfer
+	 */
+	public int getActiveWorkers() {
+		if (this.mMode == ExecutionMode.VIRTUAL) {
+			return this.mMaxTransfers - this.mAdmission.availablePermits();
+		}
+		return this.mWorkers.getActiveCount();
+	}
+
+	/**
+	 * @return the number of requests rejected because the executor was full
+	 */
+	public long getRejectedCount() {
+		return this.mRejectedCount.get();
+	}
+
+	/**
+	 * @return the approximate number of transfers that have finished
+	 */
+	public long getCompletedCount() {
+		if (this.mMode == ExecutionMode.VIRTUAL) {
+			return this.mCompletedCount.get();
+		}
+		return this.mWorkers.getCompletedTaskCount();
+	}
+
+	/**
+	 * Builds a one line summary of the executor state for the server console.
+	 *
+	 * @return String report
+	 */
+	public String getReport() {
+		if (this.mMode == ExecutionMode.VIRTUAL) {
+			return String.format("Virtual threads active : %d/%d | Rejected : %d | Completed : %d",
+					getActiveWorkers(), this.mMaxTransfers, getRejectedCount(), getCompletedCount());
+		}
+		return String.format("Workers active : %d/%d | Queue depth : %d/%d | Rejected : %d | Completed : %d",
+				getActiveWorkers(), this.mWorkers.getMaximumPoolSize(), getQueueDepth(),
+				getQueueDepth() + this.mWorkers.getQueue().remainingCapacity(), getRejectedCount(),
+				getCompletedCount());
+	}
+
+	/**
+	 * Stops accepting new transfers and blocks until every accepted transfer
+	 * has finished.
+	 */
+	public void shutdownAndWait() {
+		ExecutorService executor = this.mMode == ExecutionMode.VIRTUAL ? this.mVirtualThreads : this.mWorkers;
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(Configurations.TRANMISSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				// Keep waiting, transfers will finish or time out on their own
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Names the worker threads the same way the server used to name its
+	 * service threads.
+	 */
+	private static class ServiceThreadFactory implements ThreadFactory {
+		private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "Service-" + this.mThreadCount.incrementAndGet());
+		}
+	}
+}
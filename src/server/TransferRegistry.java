@@ -0,0 +1,90 @@
+package server;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import networking.TransferRecord;
+import types.RequestType;
+
+/**
+ * @author Team 3
+ *
+ *         Keeps the record of every transfer in progress, keyed by a transfer
+ *         id. Registering and removing a transfer locks only the one bin of
+ *         the map the id falls in, so transfers on other bins never wait,
+ *         and the console and shutdown can walk a live view of the transfers
+ *         while they start and finish without taking any lock.
+ *
+ *         The ids are boxed into Long keys. The JDK has no concurrent map on
+ *         primitive keys, and the one box per transfer is small next to the
+ *         socket and buffers each transfer holds, so a hand written one was
+ *         not worth its upkeep.
+ */
+public class TransferRegistry {
+
+	private final ConcurrentHashMap<Long, TransferRecord> mTransfers = new ConcurrentHashMap<Long, TransferRecord>();
+	private final AtomicLong mNextId = new AtomicLong(1);
+
+	/**
+	 * Creates and stores the record of a new transfer.
+	 *
+	 * @param peer
+	 *            - the remote TID
+	 * @param fileName
+	 *            - the requested file
+	 * @param direction
+	 *            - RRQ or WRQ
+	 * @return the record, its id is the one to deregister with
+	 */
+	public TransferRecord register(SocketAddress peer, String fileName, RequestType direction) {
+		TransferRecord record = new TransferRecord(this.mNextId.getAndIncrement(), peer, fileName, direction);
+		this.mTransfers.put(record.getId(), record);
+		return record;
+	}
+
+	/**
+	 * Removes a finished transfer.
+	 *
+	 * @param id
+	 *            - transfer id of the record
+	 */
+	public void deregister(long id) {
+		this.mTransfers.remove(id);
+	}
+
+	/**
+	 * The view is weakly consistent: it never throws while transfers come
+	 * and go, and may or may not show changes made after it was taken.
+	 *
+	 * @return a read only view of the transfers in progress
+	 */
+	public Collection<TransferRecord> snapshot() {
+		return Collections.unmodifiableCollection(this.mTransfers.values());
+	}
+
+	/**
+	 * @return the number of transfers in progress
+	 */
+	public int size() {
+		return this.mTransfers.size();
+	}
+
+	/**
+	 * Lists the transfers in progress, one per line.
+	 *
+	 * @return String report
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (TransferRecord record : snapshot()) {
+			if (report.length() > 0) {
+				report.append("\n");
+			}
+			report.append(record.toString());
+		}
+		return report.toString();
+	}
+}
@@ -7,9 +7,13 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import packet.AckPacket;
+import packet.AckView;
 import packet.DataPacket;
+import packet.DataView;
 import packet.ErrorPacket;
+import packet.ErrorView;
 import packet.Packet;
+import packet.PacketView;
 import resource.Configurations;
 import resource.Strings;
 import types.ErrorType;
@@ -23,9 +27,18 @@ import types.RequestType;
  */
 public class ErrorChecker {
 
+	// Results of every packet that passes, shared rather than made per packet
+	private static final TFTPErrorMessage NO_ERROR = new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
+	private static final TFTPErrorMessage DUPLICATE = new TFTPErrorMessage(ErrorType.SORCERERS_APPRENTICE,
+			Strings.SORCERERS_APPRENTICE);
+
 	private InetAddress mPacketOriginatingAddress;
 	private int mPacketOriginatingPort;
 	public int mExpectedBlockNumber;
+	private boolean mTransferIdVerified = false;
+	private int mMaxMessageSize = Configurations.MAX_MESSAGE_SIZE;
+	private int mWindowSize = 1;
+	private int mAckDigestLength = 0;
 	private Logger logger = Logger.ERROR;
 	private final String CLASS_TAG = "<Error Checker>";
 	
@@ -36,10 +49,97 @@ public class ErrorChecker {
 		logger.setClassTag(CLASS_TAG);
 	}
 	
+	/**
+	 * Skips the address and port check for callers that only hand over
+	 * packets already matched to this transfer by their remote TID, such as
+	 * the single port server which looks every packet up by its sender.
+	 * 
+	 * @param verified
+	 *            - true if the caller guarantees the TID
+	 */
+	public void setTransferIdVerified(boolean verified) {
+		this.mTransferIdVerified = verified;
+	}
+
+	/**
+	 * Raises the largest packet accepted once a block size other than 512
+	 * bytes has been negotiated for the transfer.
+	 * 
+	 * @param blockSize
+	 *            - the negotiated DATA payload size
+	 */
+	public void setBlockSize(int blockSize) {
+		this.mMaxMessageSize = blockSize + Configurations.LEN_ACK_PACKET_BUFFER;
+	}
+
+	/**
+	 * Accepts block numbers up to a window ahead of the expected one once a
+	 * windowsize other than 1 has been negotiated. A DATA block ahead of the
+	 * expected one means a block of the window was lost, and an ACK ahead of
+	 * it acknowledges several blocks at once.
+	 * 
+	 * @param windowSize
+	 *            - the negotiated number of blocks per window
+	 */
+	public void setWindowSize(int windowSize) {
+		this.mWindowSize = windowSize;
+	}
+
+	/**
+	 * Accepts an ACK carrying a digest after its block number once the
+	 * checksum option has been agreed, the receiver sends it with its final
+	 * ACK.
+	 * 
+	 * @param digestLength
+	 *            - bytes of the digest, 0 if no checksum was agreed
+	 */
+	public void setAckDigestLength(int digestLength) {
+		this.mAckDigestLength = digestLength;
+	}
+
+	/**
+	 * Counts how far a block number is ahead of another, across the rollover
+	 * from 65535 to 0.
+	 * 
+	 * @param from
+	 *            - the earlier block number
+	 * @param to
+	 *            - the later block number
+	 * @return the number of blocks from one to the other, 0 to 65535
+	 */
+	public static int blockDistance(int from, int to) {
+		return (to - from) & 0xFFFF;
+	}
+
+	/**
+	 * Tells a block that overtook the one expected from a duplicate. Both
+	 * are caught as the sorcerer's apprentice by check().
+	 * 
+	 * @param blockNumber
+	 *            - block number of a DATA packet
+	 * @return true if the block is past the one expected but within the
+	 *         window
+	 */
+	public boolean isEarlyBlock(int blockNumber) {
+		int vAhead = blockDistance(this.mExpectedBlockNumber, blockNumber);
+		return vAhead != 0 && vAhead < this.mWindowSize;
+	}
+
 	public int getExpectedBlockNumber() {
 		return mExpectedBlockNumber;
 	}
 
+	/**
+	 * Starts the block numbers of a transfer past 1, when it resumes after
+	 * the blocks the receiver already has.
+	 *
+	 * @param blockNumber
+	 *            - block number expected next, 0 to 65535
+	 */
+	public void setExpectedBlockNumber(int blockNumber) {
+		this.mExpectedBlockNumber = blockNumber & 0xFFFF;
+	}
+
 	public void incrementExpectedBlockNumber() {
 		mExpectedBlockNumber++;
 		if(this.mExpectedBlockNumber == 65536) {
@@ -47,6 +147,24 @@ public class ErrorChecker {
 		}
 	}
 
+	/**
+	 * A transfer whose TID the caller already verified takes every packet
+	 * handed to it; otherwise both the address and the port must be those of
+	 * the peer.
+	 * 
+	 * @param address
+	 *            - address the packet came from
+	 * @param port
+	 *            - port the packet came from
+	 * @return true if the packet belongs to this transfer
+	 */
+	private boolean isFromPeer(InetAddress address, int port) {
+		if (mTransferIdVerified) {
+			return true;
+		}
+		return mPacketOriginatingAddress.equals(address) && mPacketOriginatingPort == port;
+	}
+
 	/**
 	 * General error checking function that determines every possible error that
 	 * could occur to a packet 1.File not found 2.Access violation 3.Disk full
@@ -62,8 +180,7 @@ public class ErrorChecker {
 	public TFTPErrorMessage check(Packet packet, RequestType expectedCommunicationType) {
 		
 		// Check if address and port match the expected address and port.
-		if (!mPacketOriginatingAddress.equals(packet.getPacket().getAddress())
-				|| mPacketOriginatingPort != packet.getPacket().getPort())
+		if (!isFromPeer(packet.getPacket().getAddress(), packet.getPacket().getPort()))
 			return new TFTPErrorMessage(ErrorType.UNKNOWN_TRANSFER, Strings.UNKNOWN_TRANSFER);
 		
 		if (packet.getRequestType() == RequestType.ERROR) {
@@ -74,17 +191,63 @@ public class ErrorChecker {
 
 		// Check that the packet format is correct.
 		String formatErrorMessage = formatError(packet, expectedCommunicationType);
+		return toErrorMessage(formatErrorMessage);
+	}
+
+	/**
+	 * The same checks as check() for the DATA and ACK packets of a transfer,
+	 * read from the view of the packet instead of a copy of it. Nothing is
+	 * allocated unless the packet is in error.
+	 * 
+	 * @param view
+	 *            - view of the incoming packet from the PacketFactory
+	 * @param expectedCommunicationType
+	 *            - DATA or ACK
+	 * @return TFTPErrorMessage message
+	 */
+	public TFTPErrorMessage check(PacketView view, RequestType expectedCommunicationType) {
+
+		// Check if address and port match the expected address and port.
+		if (!isFromPeer(view.getAddress(), view.getPort()))
+			return new TFTPErrorMessage(ErrorType.UNKNOWN_TRANSFER, Strings.UNKNOWN_TRANSFER);
+
+		if (view instanceof ErrorView) {
+			// We found an error packet, now print out the message.
+			ErrorView errorView = (ErrorView) view;
+			return new TFTPErrorMessage(errorView.getErrorType(), errorView.getErrorMessage());
+		}
+
+		String formatErrorMessage = formatHeaderError(view.getFirstByte(), view.getOpcodeByte(), view.getLength(),
+				expectedCommunicationType);
+		if (formatErrorMessage.isEmpty()) {
+			if (view.getLength() < Configurations.LEN_ACK_PACKET_BUFFER) {
+				logger.print(logger, String.format("Packet validation found no block number!"));
+				formatErrorMessage = String.format(Strings.INVALID_PACKET_SIZE, view.getLength());
+			} else if (expectedCommunicationType == RequestType.DATA) {
+				formatErrorMessage = formatDataError(((DataView) view).getBlockNumber());
+			} else if (expectedCommunicationType == RequestType.ACK) {
+				formatErrorMessage = formatAckError(((AckView) view).getBlockNumber(), view.getLength());
+			}
+		}
+		return toErrorMessage(formatErrorMessage);
+	}
+
+	/**
+	 * @param formatErrorMessage
+	 *            - result of the format checks
+	 * @return the TFTPErrorMessage for it
+	 */
+	private TFTPErrorMessage toErrorMessage(String formatErrorMessage) {
 		if(formatErrorMessage.equals("-1")) {
 			logger.print(logger, String.format("Dealing with the special sorcerors apprentice bug. Not going to reply with a duplicate DATA..."));
-			return new TFTPErrorMessage(ErrorType.SORCERERS_APPRENTICE, Strings.SORCERERS_APPRENTICE);
+			return DUPLICATE;
 		}
 		
 		if (!formatErrorMessage.isEmpty())
 			return new TFTPErrorMessage(ErrorType.ILLEGAL_OPERATION, formatErrorMessage);
 
 		// No error occurred.
-		return new TFTPErrorMessage(ErrorType.NO_ERROR, Strings.NO_ERROR);
-
+		return NO_ERROR;
 	}
 
 	/**
@@ -95,23 +258,10 @@ public class ErrorChecker {
 	 * @return error string
 	 */
 	private String formatError(Packet packet, RequestType comType) {
-		int currentBlockNumber = 0;
 		byte[] data = packet.getPacketBuffer();
-		if (data[0] != 0) {
-			logger.print(logger, String.format("Packet validation found invalid zero byte in the begining!"));
-			return String.format(Strings.NON_ZERO_FIRST_BYTE, (int)data[0]);
-		}
-
-		if (RequestType.matchRequestByNumber(data[1]) != comType) {
-			logger.print(logger, String.format("Packet validation found op code %d when expecting %d!",
-					RequestType.matchRequestByNumber(data[1]).getOptCode(), comType.getOptCode()));
-			return String.format(Strings.COMMUNICATION_TYPE_MISMATCH,comType.getRequestTypeString(),
-					RequestType.matchRequestByNumber(data[1]).getRequestTypeString());
-		}
-
-		if (data.length > Configurations.MAX_MESSAGE_SIZE) {
-			logger.print(logger, String.format("Packet validation found the packet was too large!"));
-			return String.format(Strings.PACKET_TOO_LARGE, data.length);
+		String headerError = formatHeaderError(data[0], data[1], data.length, comType);
+		if (!headerError.isEmpty()) {
+			return headerError;
 		}
 
 		switch (comType) {
@@ -160,35 +310,10 @@ public class ErrorChecker {
 			break;
 
 		case DATA:
-			currentBlockNumber = ((DataPacket) packet).getBlockNumber();
-			if(this.mExpectedBlockNumber > currentBlockNumber) {
-				logger.print(logger, String.format("We've seen this DATA packet with blk %d when expected %d, going to ack this packet.", 
-						currentBlockNumber, this.mExpectedBlockNumber));
-				return "-1";
-			}else if (mExpectedBlockNumber != currentBlockNumber) {
-				logger.print(logger, String.format("ACK block number mismatch on expected %d from actual %d",
-						this.mExpectedBlockNumber, currentBlockNumber));
-				return String.format(Strings.BLOCK_NUMBER_MISMATCH, this.mExpectedBlockNumber, currentBlockNumber);
-			}
-			break;
+			return formatDataError(((DataPacket) packet).getBlockNumber());
 
 		case ACK:
-			currentBlockNumber = ((AckPacket) packet).getBlockNumber();
-			if (packet.getPacketLength() != 4) {
-				logger.print(logger, String.format("Invalid packet size on ACK of %d with expected %d", packet.getPacketLength(), 4));
-				return String.format(Strings.INVALID_PACKET_SIZE, packet.getPacketLength());
-			}
-			if(this.mExpectedBlockNumber > currentBlockNumber) {
-				logger.print(logger, String.format("We've seen this ACK packet with blk %d when expected %d. We should not resend a DATA to correspond to this ACK.", 
-						currentBlockNumber, this.mExpectedBlockNumber));
-				return "-1";
-			}
-			else if (mExpectedBlockNumber != currentBlockNumber) {
-				logger.print(logger, String.format("ACK block number mismatch on expected %d from actual %d (op code %d)", 
-						this.mExpectedBlockNumber, currentBlockNumber, packet.getRequestType().getOptCode()));
-				return String.format(Strings.BLOCK_NUMBER_MISMATCH, this.mExpectedBlockNumber, currentBlockNumber);
-			}
-			break;
+			return formatAckError(((AckPacket) packet).getBlockNumber(), packet.getPacketLength());
 
 		case ERROR:
 			if (data.length < 6) {
@@ -212,6 +337,17 @@ public class ErrorChecker {
 			}
 			break;
 
+		case OACK:
+			if (data.length < 4) {
+				logger.print(logger, String.format("OACK Packet validation found no option!"));
+				return Strings.PACKET_TOO_SMALL;
+			}
+			if (data[data.length - 1] != 0) {
+				logger.print(logger, String.format("OACK Packet validation found missing last byte!"));
+				return String.format(Strings.NON_ZERO_LAST_BYTE, (int)data[data.length-1]);
+			}
+			break;
+
 		case NONE:
 			logger.print(logger, String.format("None Packet validation, programming error!"));
 			return Strings.INVALID_PACKET_NONE_TYPE;
@@ -220,6 +356,86 @@ public class ErrorChecker {
 		return "";
 	}
 
+	/**
+	 * Checks the opcode and size every packet shares.
+	 * 
+	 * @param firstByte	- first byte of the opcode
+	 * @param opcode	- second byte of the opcode
+	 * @param length	- length of the packet
+	 * @param comType	- the expected communication type
+	 * @return error string
+	 */
+	private String formatHeaderError(int firstByte, int opcode, int length, RequestType comType) {
+		if (firstByte != 0) {
+			logger.print(logger, String.format("Packet validation found invalid zero byte in the begining!"));
+			return String.format(Strings.NON_ZERO_FIRST_BYTE, firstByte);
+		}
+
+		if (RequestType.matchRequestByNumber(opcode) != comType) {
+			logger.print(logger, String.format("Packet validation found op code %d when expecting %d!",
+					RequestType.matchRequestByNumber(opcode).getOptCode(), comType.getOptCode()));
+			return String.format(Strings.COMMUNICATION_TYPE_MISMATCH,comType.getRequestTypeString(),
+					RequestType.matchRequestByNumber(opcode).getRequestTypeString());
+		}
+
+		if (length > this.mMaxMessageSize) {
+			logger.print(logger, String.format("Packet validation found the packet was too large!"));
+			return String.format(Strings.PACKET_TOO_LARGE, length);
+		}
+		return "";
+	}
+
+	/**
+	 * Checks the block number of a DATA packet against the one expected.
+	 * 
+	 * @param currentBlockNumber	- block number of the packet
+	 * @return error string, "-1" for a duplicate or early block
+	 */
+	private String formatDataError(int currentBlockNumber) {
+		int dataAhead = blockDistance(this.mExpectedBlockNumber, currentBlockNumber);
+		if (dataAhead != 0 && dataAhead < this.mWindowSize) {
+			logger.print(logger, String.format("DATA packet with blk %d arrived out of order when expected %d, going to hold it until the gap is filled.", 
+					currentBlockNumber, this.mExpectedBlockNumber));
+			return "-1";
+		}
+		if (dataAhead >= 32768) {
+			logger.print(logger, String.format("We've seen this DATA packet with blk %d when expected %d, going to ack this packet.", 
+					currentBlockNumber, this.mExpectedBlockNumber));
+			return "-1";
+		}else if (mExpectedBlockNumber != currentBlockNumber) {
+			logger.print(logger, String.format("ACK block number mismatch on expected %d from actual %d",
+					this.mExpectedBlockNumber, currentBlockNumber));
+			return String.format(Strings.BLOCK_NUMBER_MISMATCH, this.mExpectedBlockNumber, currentBlockNumber);
+		}
+		return "";
+	}
+
+	/**
+	 * Checks the size and block number of an ACK packet.
+	 * 
+	 * @param currentBlockNumber	- block number of the packet
+	 * @param length				- length of the packet
+	 * @return error string, "-1" for a duplicate ACK
+	 */
+	private String formatAckError(int currentBlockNumber, int length) {
+		if (length != 4 && length != 4 + this.mAckDigestLength) {
+			logger.print(logger, String.format("Invalid packet size on ACK of %d with expected %d", length, 4));
+			return String.format(Strings.INVALID_PACKET_SIZE, length);
+		}
+		int ackAhead = blockDistance(this.mExpectedBlockNumber, currentBlockNumber);
+		if (ackAhead >= 32768) {
+			logger.print(logger, String.format("We've seen this ACK packet with blk %d when expected %d. We should not resend a DATA to correspond to this ACK.", 
+					currentBlockNumber, this.mExpectedBlockNumber));
+			return "-1";
+		}
+		else if (ackAhead >= this.mWindowSize) {
+			logger.print(logger, String.format("ACK block number mismatch on expected %d from actual %d (op code %d)", 
+					this.mExpectedBlockNumber, currentBlockNumber, RequestType.ACK.getOptCode()));
+			return String.format(Strings.BLOCK_NUMBER_MISMATCH, this.mExpectedBlockNumber, currentBlockNumber);
+		}
+		return "";
+	}
+
 	/**
 	 * Regular expression to valid file names on windows system
 	 * 	Reference: http://stackoverflow.com/questions/6730009/validate-a-file-name-on-windows
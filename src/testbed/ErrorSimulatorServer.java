@@ -6,17 +6,22 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import resource.Configurations;
 import resource.Strings;
 import server.Callback;
+import server.TransferExecutor;
+import server.TransferRegistry;
 import types.ErrorType;
+import types.ExecutionMode;
 import types.Logger;
 import types.RequestType;
 import helpers.BufferPrinter;
 import networking.TFTPNetworking;
+import networking.TransferRecord;
+import packet.ErrorPacket;
+import packet.ReadWritePacket;
 
 /**
  * @author Team 3
@@ -45,18 +50,20 @@ public class ErrorSimulatorServer implements Callback {
 	private int mClientPort = 0;
 
 	public static AtomicBoolean active = new AtomicBoolean(true);
-	Vector<Thread> threads;
+	private TransferExecutor executor;
+	private TransferRegistry registry = new TransferRegistry();
 
 	DatagramSocket errorSimulatorSock = null;
 
 	/**
-	 * Constructor for ErrorSimulatorServer that initializes the thread
-	 * container 'threads'.
+	 * Constructor for ErrorSimulatorServer that initializes the executor
+	 * running the simulation services.
 	 */
 	public ErrorSimulatorServer() {
-		threads = new Vector<Thread>();
 		this.mErrorUI = new TFTPUserInterface();
 		this.address = TFTPNetworking.promptAddress();
+		this.executor = TransferExecutor.create(TransferExecutor.promptExecutionMode(ExecutionMode.POOLED, ExecutionMode.VIRTUAL),
+				Configurations.ERROR_SIM_MAX_WORKERS, Configurations.ERROR_SIM_MAX_PENDING_REQUESTS);
 		//testInstance = this.mErrorUI.printTestableProcess();
 		logger.setClassTag(CLASS_TAG);
 		this.mErrorOptionSettings = null;
@@ -130,9 +137,7 @@ public class ErrorSimulatorServer implements Callback {
 						this.mErrorOptionSettings.setMainErrorFamily(3);
 						this.mErrorOptionSettings.setSubErrorFromFamily(-1);
 						vLastThread = new ErrorSimulatorService(receivePacket, this, this.mErrorOptionSettings, this.address);
-						Thread service = new Thread(vLastThread, CLASS_TAG);
-						threads.addElement(service);
-						service.start();
+						startService(vLastThread);
 
 						this.LETS_GO = false; // We won't product this error
 												// after
@@ -160,9 +165,7 @@ public class ErrorSimulatorServer implements Callback {
 						this.mErrorOptionSettings.setMainErrorFamily(3);
 						this.mErrorOptionSettings.setSubErrorFromFamily(-1);
 						vLastThread = new ErrorSimulatorService(receivePacket, this, this.mErrorOptionSettings, this.address);
-						Thread service = new Thread(vLastThread, CLASS_TAG);
-						threads.addElement(service);
-						service.start();
+						startService(vLastThread);
 
 						this.LETS_GO = false; // We won't product this error
 												// after
@@ -191,9 +194,7 @@ public class ErrorSimulatorServer implements Callback {
 						this.mErrorOptionSettings.setMainErrorFamily(3);
 						this.mErrorOptionSettings.setSubErrorFromFamily(-1);
 						vLastThread = new ErrorSimulatorService(receivePacket, this, this.mErrorOptionSettings, this.address);
-						Thread service = new Thread(vLastThread, CLASS_TAG);
-						threads.addElement(service);
-						service.start();
+						startService(vLastThread);
 
 						this.LETS_GO = false; // We won't product this error
 												// after
@@ -217,9 +218,7 @@ public class ErrorSimulatorServer implements Callback {
 						System.out.println(BufferPrinter.acceptConnectionMessage(Strings.SERVER_ACCEPT_CONNECTION,
 								receivePacket.getSocketAddress().toString()));
 						vLastThread = new ErrorSimulatorService(receivePacket, this, this.mErrorOptionSettings, this.address);
-						Thread service = new Thread(vLastThread, CLASS_TAG);
-						threads.addElement(service);
-						service.start();
+						startService(vLastThread);
 						this.LETS_GO = false;
 						errorSimulatorSock.setSoTimeout(0);
 					} catch (SocketTimeoutException e) {
@@ -248,9 +247,7 @@ public class ErrorSimulatorServer implements Callback {
 						this.mErrorOptionSettings.setMainErrorFamily(3);
 						this.mErrorOptionSettings.setSubErrorFromFamily(-1);
 						vLastThread = new ErrorSimulatorService(receivePacket, this, this.mErrorOptionSettings, this.address);
-						Thread service = new Thread(vLastThread, CLASS_TAG);
-						threads.addElement(service);
-						service.start();
+						startService(vLastThread);
 
 						this.LETS_GO = false; // We won't product this error
 												// after
@@ -288,17 +285,43 @@ public class ErrorSimulatorServer implements Callback {
 			System.out.println(BufferPrinter.acceptConnectionMessage(Strings.SERVER_ACCEPT_CONNECTION,
 					receivePacket.getSocketAddress().toString()));
 			vLastThread = new ErrorSimulatorService(receivePacket, this, this.mErrorOptionSettings, this.address);
-			Thread service = new Thread(vLastThread, CLASS_TAG);
-			threads.addElement(service);
-			service.start();
+			startService(vLastThread);
 
 		}
 		this.errorSimulatorSock.close();
 		// Wait for all service threads to close before completely exiting.
-		for (Thread t : threads) {
+		if (this.registry.size() > 0) {
+			System.out.println(String.format(Strings.WAITING_FOR_TRANSFERS, this.registry.size()));
+			System.out.println(this.registry.getReport());
+		}
+		this.executor.shutdownAndWait();
+	}
+
+	/**
+	 * Hands an error simulation service to the executor. A request that finds
+	 * every worker busy and the pending queue full, or every virtual thread
+	 * permit taken, is refused the way the server refuses one: the rejection
+	 * is logged with the client, and the client gets a server busy error
+	 * rather than waiting for a timeout. The socket the service already
+	 * opened is closed.
+	 *
+	 * @param service
+	 *            - the service to run
+	 */
+	private void startService(ErrorSimulatorService service) {
+		DatagramPacket request = service.getInitialPacket();
+		TransferRecord record = this.registry.register(request.getSocketAddress(),
+				new ReadWritePacket(request).getFilename(), service.getInitialRequestType());
+		service.setTransferRecord(record);
+		if (!this.executor.submit(service)) {
+			this.registry.deregister(record.getId());
+			service.close();
+			logger.print(Logger.ERROR, String.format(Strings.ES_BUSY_REJECTED, request.getSocketAddress().toString()));
+			DatagramPacket busyPacket = new ErrorPacket(request).buildPacket(ErrorType.NOT_DEFINED,
+					Strings.SERVER_BUSY);
 			try {
-				t.join();
-			} catch (InterruptedException e) {
+				this.errorSimulatorSock.send(busyPacket);
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
@@ -312,20 +335,10 @@ public class ErrorSimulatorServer implements Callback {
 	}
 
 	/**
-	 * - Check if the error simulator is still active. If it is not then the
-	 * join operation is running, making this unnecessary. - Loop through all
-	 * the threads, checking if that thread's ID is the ID of the thread that
-	 * just ended. - If it is, remove it from the vector of threads and break
-	 * out of the loop.
+	 * Removes a finished service from the registry. The executor owns the
+	 * lifetime of the service threads.
 	 */
-	public synchronized void callback(long id) {
-		if (active.get()) {
-			for (Thread t : threads) {
-				if (t.getId() == id) {
-					threads.remove(t);
-					break;
-				}
-			}
-		}
+	public void callback(long id) {
+		this.registry.deregister(id);
 	}
 }
@@ -11,10 +11,16 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
+import java.util.zip.ZipException;
 
+import helpers.BlockCompression;
 import helpers.BufferPrinter;
+import networking.TFTPNetworking;
+import networking.TransferRecord;
+import packet.OptionAckPacket;
 import packet.Packet;
 import packet.PacketBuilder;
+import packet.ReadWritePacket;
 import resource.Configurations;
 import resource.Strings;
 import server.Callback;
@@ -50,6 +56,7 @@ public class ErrorSimulatorService implements Runnable {
 	/* Core logic variables */
 	private LinkedList<DatagramPacket> mPacketSendQueue;
 	private Callback mCallback;
+	private TransferRecord mTransferRecord;
 	private ErrorCommand mErrorSettings;
 	private DatagramPacket mLastPacket;
 	private DatagramSocket mSendReceiveSocket;
@@ -57,6 +64,9 @@ public class ErrorSimulatorService implements Runnable {
 	private byte[] mBuffer = null;
 	private int mTransmissionRetries;
 	private int mSimulatedPacketCounter;
+	private int mBlockSize = Configurations.MAX_PAYLOAD_BUFFER;
+	private boolean mCompression = false;
+	private byte[] mBlock = null; // decompressed DATA block, made once
 
 	/* Section of uninitialized Error Producers */
 	private ErrorCodeFour mEPFour = null;
@@ -91,7 +101,7 @@ public class ErrorSimulatorService implements Runnable {
 	@SuppressWarnings("unused")
 	public ErrorSimulatorService(DatagramPacket inDatagram, Callback cb, ErrorCommand errorSetting,
 			InetAddress servAddress) {
-		this.mLastPacket = inDatagram;
+		this.mLastPacket = declineWindowSize(inDatagram);
 		this.mErrorSettings = errorSetting;
 		this.mCallback = cb;
 		this.mClientHostAddress = inDatagram.getAddress();
@@ -137,6 +147,7 @@ public class ErrorSimulatorService implements Runnable {
 		boolean errorSentToClient = false;
 		boolean errorSendToServer = false;
 		DatagramPacket receivedPacket = null;
+		this.mTransferRecord.setOwner(Thread.currentThread().getName());
 
 		try {
 			// Facilitate the first WRQ/RRQ request and set server thread port
@@ -247,7 +258,7 @@ public class ErrorSimulatorService implements Runnable {
 					this.directPacketToDestination();
 					this.forwardPacketToSocket(this.mLastPacket);
 					// }
-					byte[] data = new byte[Configurations.MAX_BUFFER];
+					byte[] data = new byte[Configurations.MAX_DATAGRAM_BUFFER];
 					DatagramPacket receivePacket = new DatagramPacket(data, data.length);
 					this.mSendReceiveSocket.receive(receivePacket);
 					this.mLastPacket = receivePacket;
@@ -275,7 +286,40 @@ public class ErrorSimulatorService implements Runnable {
 
 		// Closing Logic
 		this.mSendReceiveSocket.close();
-		this.mCallback.callback(Thread.currentThread().getId());
+		this.mCallback.callback(this.mTransferRecord.getId());
+	}
+
+	/**
+	 * Gives back the socket of a service that will never run, because the
+	 * simulator had no room for it.
+	 */
+	public void close() {
+		this.mSendReceiveSocket.close();
+	}
+
+	/**
+	 * Attaches the registry record of this service, must be called before the
+	 * service runs.
+	 * 
+	 * @param record
+	 *            - TransferRecord given by the error simulator server
+	 */
+	public void setTransferRecord(TransferRecord record) {
+		this.mTransferRecord = record;
+	}
+
+	/**
+	 * @return the packet that started this service
+	 */
+	public DatagramPacket getInitialPacket() {
+		return this.mLastPacket;
+	}
+
+	/**
+	 * @return the request type of the packet that started this service
+	 */
+	public RequestType getInitialRequestType() {
+		return this.mInitialRequestType;
 	}
 
 	/**
@@ -316,7 +360,17 @@ public class ErrorSimulatorService implements Runnable {
 			} else {
 				logger.print(Logger.VERBOSE, String.format(Strings.ERROR_SERVICE_FORWARD_CLI_ACK));
 			}
-			return this.mLastPacket.getLength() == Configurations.MAX_MESSAGE_SIZE;
+			return !isLastBlock(this.mLastPacket);
+		} else if (header == 6) {
+			// The server accepted options, DATA blocks change size with blksize
+			// and no longer tell their length once compressed
+			OptionAckPacket vOptionAck = new OptionAckPacket(this.mLastPacket);
+			int blockSize = TFTPNetworking.parseBlockSize(vOptionAck.getOption(Configurations.OPTION_BLOCK_SIZE));
+			if (blockSize != -1) {
+				this.mBlockSize = blockSize;
+			}
+			this.mCompression = vOptionAck.getOption(Configurations.OPTION_COMPRESSION) != null;
+			return true;
 		} else {
 			if (header == 4) {
 				if (this.mInitialRequestType == RequestType.RRQ) {
@@ -352,6 +406,56 @@ public class ErrorSimulatorService implements Runnable {
 		// }
 	}
 
+	/**
+	 * Takes the windowsize option out of a RRQ or WRQ before it reaches the
+	 * server. The simulator relays and counts one packet at a time, and its
+	 * errors are aimed at block numbers in lock step, so transfers through it
+	 * keep to a window of one block.
+	 * 
+	 * @param inPacket
+	 *            - a packet from the client
+	 * @return the request without the option, or the packet as it was
+	 */
+	private static DatagramPacket declineWindowSize(DatagramPacket inPacket) {
+		int vOpCode = inPacket.getData()[1];
+		if (vOpCode != RequestType.RRQ.getOptCode() && vOpCode != RequestType.WRQ.getOptCode()) {
+			return inPacket;
+		}
+		ReadWritePacket vRequest = new ReadWritePacket(inPacket);
+		if (vRequest.getOption(Configurations.OPTION_WINDOW_SIZE) == null) {
+			return inPacket;
+		}
+		vRequest.removeOption(Configurations.OPTION_WINDOW_SIZE);
+		return vRequest.buildPacket();
+	}
+
+	/**
+	 * Tells whether a DATA packet ends the transfer. A compressed block holds
+	 * blksize - OVERHEAD bytes of the file whatever the length of its
+	 * payload, so it is decompressed to see if it is the short one.
+	 * 
+	 * @param inPacket
+	 *            - the DATA packet
+	 * @return true if it is the last block of the file
+	 */
+	private boolean isLastBlock(DatagramPacket inPacket) {
+		int vPayloadLength = inPacket.getLength() - Configurations.LEN_ACK_PACKET_BUFFER;
+		if (!this.mCompression) {
+			return vPayloadLength != this.mBlockSize;
+		}
+		int vFileBlockSize = this.mBlockSize - BlockCompression.OVERHEAD;
+		if (this.mBlock == null || this.mBlock.length < vFileBlockSize + 1) {
+			this.mBlock = new byte[vFileBlockSize + 1];
+		}
+		try {
+			return BlockCompression.decompress(inPacket.getData(), inPacket.getOffset()
+					+ Configurations.LEN_ACK_PACKET_BUFFER, vPayloadLength, this.mBlock, vFileBlockSize) < vFileBlockSize;
+		} catch (ZipException e) {
+			// A block we mangled, the receiver answers it with an error
+			return false;
+		}
+	}
+
 	/**
 	 * This function is used to apply the rules of the simulator to make sure
 	 * arbitrary packets get forwarded to the correct destination
@@ -912,7 +1016,7 @@ public class ErrorSimulatorService implements Runnable {
 	 * @throws IOException
 	 */
 	private DatagramPacket retrievePacketFromSocket() {
-		mBuffer = new byte[Configurations.MAX_BUFFER];
+		mBuffer = new byte[Configurations.MAX_DATAGRAM_BUFFER];
 		DatagramPacket receivePacket = new DatagramPacket(mBuffer, mBuffer.length);
 		while (true) {
 			try {
@@ -952,7 +1056,7 @@ public class ErrorSimulatorService implements Runnable {
 	public void addWorkToFrontOfQueue(DatagramPacket inPacket) {
 		logger.print(Logger.ERROR, "Inject delayed packet back into work queue!");
 		DatagramPacket prevPacket = this.mLastPacket;
-		this.mLastPacket = inPacket;
+		this.mLastPacket = declineWindowSize(inPacket);
 		directPacketToDestination();
 		try {
 			forwardPacketToSocket(this.mLastPacket);
@@ -92,6 +92,16 @@ public enum ErrorType {
 			return Strings.NO_SUCH_USER;
 		}
 	},
+	OPTION_NEGOTIATION {
+		@Override
+		public short getErrorCodeShort() {
+			return 8;
+		}
+		@Override
+		public String getErrorMessageString() {
+			return Strings.OPTION_NEGOTIATION;
+		}
+	},
 	NO_ERROR {
 		@Override
 		public short getErrorCodeShort() {
@@ -168,6 +178,8 @@ public enum ErrorType {
 				return ErrorType.FILE_EXISTS;
 			case 7:
 				return ErrorType.NO_SUCH_USER;
+			case 8:
+				return ErrorType.OPTION_NEGOTIATION;
 			case 404:
 				return ErrorType.TRANSMISSION_ERROR;
 			case 9:
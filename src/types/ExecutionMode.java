@@ -0,0 +1,33 @@
+package types;
+
+/**
+ * @author Team 3
+ *
+ *         The ways a listener can run the transfers it accepts
+ */
+public enum ExecutionMode {
+	/** A bounded pool of platform threads with a bounded pending queue */
+	POOLED("a bounded worker pool"),
+	/** One virtual thread per transfer (needs a JVM with virtual threads) */
+	VIRTUAL("virtual threads"),
+	/** Transfers multiplexed on selector event loops, one per core (server only) */
+	SELECTOR("selector event loops"),
+	/**
+	 * Selector event loops with every transfer on the server port, told apart
+	 * by the remote TID (server only)
+	 */
+	SINGLE_PORT("selector event loops sharing port 69");
+
+	private String mDescription;
+
+	ExecutionMode(String description) {
+		this.mDescription = description;
+	}
+
+	/**
+	 * @return how the mode is described in the startup prompt
+	 */
+	public String getDescription() {
+		return this.mDescription;
+	}
+}
@@ -75,6 +75,20 @@ public enum RequestType {
 			return "ERROR";
 		}
 	},
+	OACK {
+		@Override
+		public int getOptCode() {
+			return 6;
+		}
+		@Override
+		public byte[] getHeaderByteArray() {
+			return new byte[] {0,6};
+		}
+		@Override
+		public String getRequestTypeString() {
+			return "OACK";
+		}
+	},
 	NONE {
 		@Override
 		public int getOptCode() {
@@ -111,6 +125,8 @@ public enum RequestType {
 				return RequestType.ACK;
 			case 4:
 				return RequestType.ERROR;
+			case 5:
+				return RequestType.OACK;
 			default:
 				return RequestType.NONE;
 		}